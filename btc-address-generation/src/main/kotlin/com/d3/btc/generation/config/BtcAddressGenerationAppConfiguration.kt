@@ -11,10 +11,14 @@ import com.d3.btc.generation.handler.BtcAddressRegisteredHandler
 import com.d3.btc.generation.handler.BtcMultiSigAddressGeneratedHandler
 import com.d3.btc.generation.handler.NewKeyHandler
 import com.d3.btc.generation.provider.BtcSessionProvider
+import com.d3.btc.metrics.MetricsRegistry
+import com.d3.btc.metrics.TimedIrohaConsumer
+import com.d3.btc.metrics.TimedIrohaQueryHelper
 import com.d3.btc.provider.BtcChangeAddressProvider
 import com.d3.btc.provider.BtcFreeAddressesProvider
 import com.d3.btc.provider.network.BtcNetworkConfigProvider
 import com.d3.btc.wallet.createWalletIfAbsent
+import com.d3.btc.wallet.groupCommitSaver
 import com.d3.chainadapter.client.RMQConfig
 import com.d3.chainadapter.client.ReliableIrohaChainListener
 import com.d3.commons.config.loadLocalConfigs
@@ -32,6 +36,7 @@ import io.grpc.ManagedChannelBuilder
 import jp.co.soramitsu.iroha.java.IrohaAPI
 import jp.co.soramitsu.iroha.java.Utils
 import org.bitcoinj.wallet.Wallet
+import org.springframework.beans.factory.annotation.Qualifier
 import org.springframework.context.annotation.Bean
 import org.springframework.context.annotation.Configuration
 import java.io.File
@@ -104,12 +109,17 @@ class BtcAddressGenerationAppConfiguration {
     fun healthCheckPort() = btcAddressGenerationConfig.healthCheckPort
 
     @Bean
-    fun registrationQueryHelper() = RobustIrohaQueryHelperImpl(
-        IrohaQueryHelperImpl(
-            generationIrohaAPI(),
-            registrationCredential.accountId,
-            registrationCredential.keyPair
-        ), btcAddressGenerationConfig().irohaQueryTimeoutMls
+    fun metricsRegistry() = MetricsRegistry()
+
+    @Bean
+    fun registrationQueryHelper() = TimedIrohaQueryHelper(
+        "registration", RobustIrohaQueryHelperImpl(
+            IrohaQueryHelperImpl(
+                generationIrohaAPI(),
+                registrationCredential.accountId,
+                registrationCredential.keyPair
+            ), btcAddressGenerationConfig().irohaQueryTimeoutMls
+        ), metricsRegistry()
     )
 
     @Bean
@@ -123,7 +133,16 @@ class BtcAddressGenerationAppConfiguration {
     }
 
     @Bean
-    fun registrationConsumer() = IrohaConsumerImpl(registrationCredential, generationIrohaAPI())
+    fun keysWalletSaver(@Qualifier("keysWallet") keysWallet: Wallet) =
+        keysWallet.groupCommitSaver(btcAddressGenerationConfig.btcKeysWalletPath, metricsRegistry())
+
+    @Bean
+    fun registrationConsumer() =
+        TimedIrohaConsumer(
+            "registration",
+            IrohaConsumerImpl(registrationCredential, generationIrohaAPI()),
+            metricsRegistry()
+        )
 
     @Bean
     fun multiSigConsumer() = MultiSigIrohaConsumer(mstRegistrationCredential, generationIrohaAPI())
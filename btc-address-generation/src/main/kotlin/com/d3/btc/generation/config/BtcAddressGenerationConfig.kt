@@ -56,4 +56,16 @@ interface BtcAddressGenerationConfig {
 
     /** Timeout for Iroha queries */
     val irohaQueryTimeoutMls: Int
+
+    // Number of address generation sessions that are created in one Iroha transaction
+    val sessionsPerTransaction: Int
+
+    // Number of session creation transactions that may be sent to Iroha concurrently
+    val sessionCreationConcurrency: Int
+
+    // Number of keys that are derived and saved in wallet at once
+    val keyPoolSize: Int
+
+    // Time in milliseconds since session generation after which an incomplete session is evicted from memory
+    val sessionTtlMls: Long
 }
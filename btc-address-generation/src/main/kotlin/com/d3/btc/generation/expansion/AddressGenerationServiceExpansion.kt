@@ -5,6 +5,7 @@
 
 package com.d3.btc.generation.expansion
 
+import com.d3.btc.generation.provider.BtcPublicKeyProvider
 import com.d3.commons.expansion.ExpansionUtils
 import com.d3.commons.expansion.ServiceExpansion
 import com.d3.commons.model.IrohaCredential
@@ -19,7 +20,8 @@ class AddressGenerationServiceExpansion(
     private val irohaAPI: IrohaAPI,
     private val serviceExpansion: ServiceExpansion,
     @Qualifier("mstRegistrationCredential")
-    private val mstRegistrationCredential: IrohaCredential
+    private val mstRegistrationCredential: IrohaCredential,
+    private val btcPublicKeyProvider: BtcPublicKeyProvider
 ) {
 
     fun expand(block: BlockOuterClass.Block) {
@@ -30,6 +32,8 @@ class AddressGenerationServiceExpansion(
                 expansionsDetails,
                 triggerTime
             )
+            // Number of peers and quorum are about to change
+            btcPublicKeyProvider.resetPeersAndQuorum()
         }
     }
 }
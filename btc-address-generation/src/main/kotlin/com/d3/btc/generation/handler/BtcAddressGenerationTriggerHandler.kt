@@ -11,11 +11,9 @@ import com.d3.btc.generation.provider.BTC_SESSION_DOMAIN
 import com.d3.btc.generation.provider.BtcPublicKeyProvider
 import com.d3.btc.handler.SetAccountDetailEvent
 import com.d3.btc.handler.SetAccountDetailHandler
-import com.d3.btc.wallet.safeSave
+import com.d3.btc.handler.SetAccountDetailRoute
 import com.github.kittinunf.result.Result
 import mu.KLogging
-import org.bitcoinj.wallet.Wallet
-import org.springframework.beans.factory.annotation.Qualifier
 import org.springframework.stereotype.Component
 
 /**
@@ -24,8 +22,6 @@ import org.springframework.stereotype.Component
 @Component
 class BtcAddressGenerationTriggerHandler(
     private val btcAddressGenerationConfig: BtcAddressGenerationConfig,
-    @Qualifier("keysWallet")
-    private val keysWallet: Wallet,
     private val btcPublicKeyProvider: BtcPublicKeyProvider
 ) : SetAccountDetailHandler() {
 
@@ -43,9 +39,15 @@ class BtcAddressGenerationTriggerHandler(
 
     // Generates new key
     private fun onGenerateKey(sessionAccountId: String): Result<String, Exception> {
-        return btcPublicKeyProvider.createKey(sessionAccountId) { keysWallet.safeSave(btcAddressGenerationConfig.btcKeysWalletPath) }
+        return btcPublicKeyProvider.createKey(sessionAccountId)
     }
 
+    override fun route() = SetAccountDetailRoute(
+        creator = btcAddressGenerationConfig.registrationAccount.accountId,
+        domain = BTC_SESSION_DOMAIN,
+        key = ADDRESS_GENERATION_TIME_KEY
+    )
+
     override fun filter(setAccountDetailEvent: SetAccountDetailEvent) =
         setAccountDetailEvent.command.accountId.endsWith("@$BTC_SESSION_DOMAIN")
                 && setAccountDetailEvent.command.key == ADDRESS_GENERATION_TIME_KEY
@@ -9,6 +9,7 @@ import com.d3.btc.generation.config.BtcAddressGenerationConfig
 import com.d3.btc.generation.trigger.AddressGenerationTrigger
 import com.d3.btc.handler.SetAccountDetailEvent
 import com.d3.btc.handler.SetAccountDetailHandler
+import com.d3.btc.handler.SetAccountDetailRoute
 import com.d3.btc.provider.account.BTC_CURRENCY_NAME_KEY
 import mu.KLogging
 import org.springframework.stereotype.Component
@@ -32,6 +33,11 @@ class BtcAddressRegisteredHandler(
             { ex -> logger.error("Cannot trigger address generation", ex) })
     }
 
+    override fun route() = SetAccountDetailRoute(
+        creator = btcAddressGenerationConfig.registrationAccount.accountId,
+        key = BTC_CURRENCY_NAME_KEY
+    )
+
     /**
      * Checks if BTC address was registered
      * @param setAccountDetailEvent - event to check
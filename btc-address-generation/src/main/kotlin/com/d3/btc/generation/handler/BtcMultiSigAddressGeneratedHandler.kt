@@ -9,6 +9,7 @@ import com.d3.btc.generation.BTC_ADDRESS_GENERATION_OPERATION_NAME
 import com.d3.btc.generation.config.BtcAddressGenerationConfig
 import com.d3.btc.handler.SetAccountDetailEvent
 import com.d3.btc.handler.SetAccountDetailHandler
+import com.d3.btc.handler.SetAccountDetailRoute
 import com.d3.btc.model.AddressInfo
 import com.d3.btc.model.BtcAddress
 import com.d3.btc.provider.BtcFreeAddressesProvider
@@ -61,6 +62,11 @@ class BtcMultiSigAddressGeneratedHandler(
             { ex -> logger.error("Cannot register address $address as a free address", ex) })
     }
 
+    override fun route() = SetAccountDetailRoute(
+        creator = addressGenerationConfig.mstRegistrationAccount.accountId,
+        accountId = addressGenerationConfig.notaryAccount
+    )
+
     override fun filter(setAccountDetailEvent: SetAccountDetailEvent) =
         setAccountDetailEvent.creator == addressGenerationConfig.mstRegistrationAccount.accountId &&
                 setAccountDetailEvent.command.accountId == addressGenerationConfig.notaryAccount
@@ -6,93 +6,95 @@
 package com.d3.btc.generation.handler
 
 import com.d3.btc.generation.config.BtcAddressGenerationConfig
-import com.d3.btc.generation.provider.ADDRESS_GENERATION_NODE_ID_KEY
-import com.d3.btc.generation.provider.ADDRESS_GENERATION_TIME_KEY
 import com.d3.btc.generation.provider.BTC_SESSION_DOMAIN
 import com.d3.btc.generation.provider.BtcPublicKeyProvider
+import com.d3.btc.generation.provider.BtcSession
+import com.d3.btc.generation.provider.BtcSessionAggregator
 import com.d3.btc.handler.SetAccountDetailEvent
 import com.d3.btc.handler.SetAccountDetailHandler
-import com.d3.btc.model.BtcAddressType
+import com.d3.btc.handler.SetAccountDetailRoute
 import com.d3.btc.model.getAddressTypeByAccountId
-import com.d3.btc.wallet.safeSave
-import com.d3.commons.sidechain.iroha.util.IrohaQueryHelper
 import com.github.kittinunf.result.Result
 import com.github.kittinunf.result.failure
 import com.github.kittinunf.result.flatMap
 import com.github.kittinunf.result.map
 import mu.KLogging
-import org.bitcoinj.wallet.Wallet
-import org.springframework.beans.factory.annotation.Qualifier
 import org.springframework.stereotype.Component
 
 /**
- * Handler that handles 'new key' events
+ * Handler that handles 'new key' events.
+ * Keys of sessions are aggregated in memory(see [BtcSessionAggregator]),
+ * so a MultiSig address is created once every peer has posted its key.
  */
 @Component
 class NewKeyHandler(
     private val btcAddressGenerationConfig: BtcAddressGenerationConfig,
-    @Qualifier("keysWallet")
-    private val keysWallet: Wallet,
-    @Qualifier("registrationQueryHelper")
-    private val registrationQueryHelper: IrohaQueryHelper,
+    private val btcSessionAggregator: BtcSessionAggregator,
     private val btcPublicKeyProvider: BtcPublicKeyProvider
 ) : SetAccountDetailHandler() {
 
     override fun handle(setAccountDetailEvent: SetAccountDetailEvent) {
-        val accountId = setAccountDetailEvent.command.accountId
+        val command = setAccountDetailEvent.command
         //create a MultiSig address, if we have enough keys in session account
-        onGenerateMultiSigAddress(
-            accountId,
-            getAddressTypeByAccountId(accountId)
-        ).failure { ex ->
-            logger.error(
-                "Cannot generate multi signature address", ex
-            )
-        }
+        btcSessionAggregator.addDetail(command.accountId, command.key, command.value)
+            .flatMap { session -> onGenerateMultiSigAddress(session) }
+            .failure { ex ->
+                logger.error(
+                    "Cannot generate multi signature address", ex
+                )
+            }
     }
 
     /**
-     * Generates MultiSig address
-     * @param sessionAccount - account that holds public keys that are used in MultiSig address generation
-     * @param addressType - type of address to generate
+     * Generates MultiSig address if every peer has posted its key to session
+     * @param session - session that holds public keys that are used in MultiSig address generation
      */
-    private fun onGenerateMultiSigAddress(
-        sessionAccount: String,
-        addressType: BtcAddressType
-    ): Result<Unit, Exception> {
-        return registrationQueryHelper.getAccountDetails(
-            sessionAccount,
-            btcAddressGenerationConfig.registrationAccount.accountId
-        ).map { it.toMutableMap() }
-            .flatMap { details ->
-                // Getting time
-                val time = details.remove(ADDRESS_GENERATION_TIME_KEY)!!.toLong()
-                // Getting node id
-                val nodeId = details.remove(ADDRESS_GENERATION_NODE_ID_KEY)!!
-                // Getting keys
-                val notaryKeys = details.values
-                if (!notaryKeys.isEmpty()) {
+    private fun onGenerateMultiSigAddress(session: BtcSession): Result<Unit, Exception> {
+        return getPeersCount(session).flatMap { peers ->
+            if (session.isReady(peers)) {
+                btcSessionAggregator.complete(session.accountId) {
                     btcPublicKeyProvider.checkAndCreateMultiSigAddress(
-                        notaryKeys.toList(),
-                        addressType,
-                        time,
-                        nodeId
-                    ) { keysWallet.safeSave(btcAddressGenerationConfig.btcKeysWalletPath) }
-                } else {
-                    Result.of { Unit }
+                        session.notaryKeys,
+                        getAddressTypeByAccountId(session.accountId),
+                        session.generationTime!!,
+                        session.nodeId!!
+                    )
                 }
+            } else {
+                Result.of { Unit }
+            }
+        }
+    }
+
+    /**
+     * Returns number of peers. The number is cached,
+     * so it's re-read if session has more keys than there are peers(i.e. peers were added recently)
+     * @param session - session to check
+     * @return number of peers
+     */
+    private fun getPeersCount(session: BtcSession): Result<Int, Exception> {
+        return btcPublicKeyProvider.getPeersAndQuorum().flatMap { (peers, _) ->
+            if (session.notaryKeys.size > peers) {
+                btcPublicKeyProvider.resetPeersAndQuorum()
+                btcPublicKeyProvider.getPeersAndQuorum().map { (actualPeers, _) -> actualPeers }
+            } else {
+                Result.of { peers }
             }
+        }
     }
 
+    override fun route() = SetAccountDetailRoute(
+        creator = btcAddressGenerationConfig.registrationAccount.accountId,
+        domain = BTC_SESSION_DOMAIN
+    )
+
     /**
-     * Checks if new key was added
+     * Checks if session detail was set. Time and node id of session are collected alongside with keys
      * @param setAccountDetailEvent - event to check
-     * @return true if given event is a 'new key' event
+     * @return true if given event is a session event
      */
     override fun filter(setAccountDetailEvent: SetAccountDetailEvent) =
         setAccountDetailEvent.command.accountId.endsWith("@$BTC_SESSION_DOMAIN")
-                && setAccountDetailEvent.command.key != ADDRESS_GENERATION_TIME_KEY
-                && setAccountDetailEvent.command.key != ADDRESS_GENERATION_NODE_ID_KEY
                 && setAccountDetailEvent.creator == btcAddressGenerationConfig.registrationAccount.accountId
 
 
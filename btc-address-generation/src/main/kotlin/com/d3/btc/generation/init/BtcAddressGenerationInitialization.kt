@@ -11,7 +11,9 @@ import com.d3.btc.generation.expansion.AddressGenerationServiceExpansion
 import com.d3.btc.generation.trigger.AddressGenerationTrigger
 import com.d3.btc.handler.SetAccountDetailEvent
 import com.d3.btc.handler.SetAccountDetailHandler
+import com.d3.btc.handler.SetAccountDetailRouter
 import com.d3.btc.healthcheck.HealthyService
+import com.d3.btc.provider.BtcFreeAddressesProvider
 import com.d3.btc.provider.network.BtcNetworkConfigProvider
 import com.d3.btc.wallet.checkWalletNetwork
 import com.d3.chainadapter.client.ReliableIrohaChainListener
@@ -45,9 +47,13 @@ class BtcAddressGenerationInitialization(
     private val addressGenerationServiceExpansion: AddressGenerationServiceExpansion,
     @Qualifier("addressGenerationHandlers")
     private val handlers: List<SetAccountDetailHandler>,
-    private val notaryClientsProvider: NotaryClientsProvider
+    private val notaryClientsProvider: NotaryClientsProvider,
+    private val btcFreeAddressesProvider: BtcFreeAddressesProvider
 ) : HealthyService() {
 
+    // Routes 'SetAccountDetail' events to interested handlers only
+    private val handlersRouter by lazy { SetAccountDetailRouter(handlers) }
+
     /**
      * Initiates address generation process
      */
@@ -91,6 +97,9 @@ class BtcAddressGenerationInitialization(
             // Expand the address generation service if there a need to do so
             addressGenerationServiceExpansion.expand(block)
 
+            // Keep the number of free addresses up to date before handlers use it
+            btcFreeAddressesProvider.onBlock(block)
+
             // Handle creation of D3 clients
             getCreateAccountCommands(block).forEach { command ->
                 if (isNewClientRegistered(command.createAccount)) {
@@ -105,7 +114,7 @@ class BtcAddressGenerationInitialization(
                     it.creator
                 )
             }.forEach { setAccountDetailEvent ->
-                handlers.forEach { handler ->
+                handlersRouter.route(setAccountDetailEvent).forEach { handler ->
                     handler.handleFiltered(setAccountDetailEvent)
                 }
             }
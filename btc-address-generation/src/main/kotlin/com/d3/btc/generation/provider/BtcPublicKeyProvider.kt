@@ -11,6 +11,7 @@ import com.d3.btc.helper.address.createMsAddress
 import com.d3.btc.model.AddressInfo
 import com.d3.btc.model.BtcAddressType
 import com.d3.btc.provider.network.BtcNetworkConfigProvider
+import com.d3.btc.wallet.GroupCommitSaver
 import com.d3.commons.model.D3ErrorException
 import com.d3.commons.sidechain.iroha.consumer.IrohaConsumer
 import com.d3.commons.sidechain.iroha.util.IrohaQueryHelper
@@ -19,16 +20,23 @@ import com.d3.commons.util.getRandomId
 import com.d3.commons.util.irohaEscape
 import com.github.kittinunf.result.Result
 import com.github.kittinunf.result.fanout
+import com.github.kittinunf.result.flatMap
 import com.github.kittinunf.result.map
 import mu.KLogging
+import org.bitcoinj.crypto.DeterministicKey
+import org.bitcoinj.wallet.KeyChain
 import org.bitcoinj.wallet.Wallet
 import org.springframework.beans.factory.annotation.Qualifier
 import org.springframework.stereotype.Component
+import java.util.*
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.atomic.AtomicReference
 
 /**
  *  Bitcoin keys provider
  *  @param queryHelper - query helper that is used to get number of peers
  *  @param keysWallet - bitcoin wallet
+ *  @param keysWalletSaver - saver of [keysWallet]
  *  @param btcAddressGenerationConfig - address generation configuration object
  *  @param multiSigConsumer - consumer of multisignature Iroha account. Used to create multisignature transactions.
  *  @param registrationConsumer - consumer of session Iroha account. Used to store session data.
@@ -39,6 +47,8 @@ class BtcPublicKeyProvider(
     private val queryHelper: IrohaQueryHelper,
     @Qualifier("keysWallet")
     private val keysWallet: Wallet,
+    @Qualifier("keysWalletSaver")
+    private val keysWalletSaver: GroupCommitSaver,
     private val btcAddressGenerationConfig: BtcAddressGenerationConfig,
     @Qualifier("multiSigConsumer")
     private val multiSigConsumer: IrohaConsumer,
@@ -47,25 +57,56 @@ class BtcPublicKeyProvider(
     private val btcNetworkConfigProvider: BtcNetworkConfigProvider
 ) {
 
+    // Keys that are derived and saved in wallet, but not published yet
+    private val keyPool = ArrayDeque<DeterministicKey>()
+
+    // Number of peers and quorum of MultiSig account. Both are changed by service expansion only
+    private val peersAndQuorum = AtomicReference<Pair<Int, Int>?>()
+
+    // Hex encoded public keys of every issued key. Keys are never removed from wallet
+    private val issuedPubKeys: MutableSet<String> = ConcurrentHashMap.newKeySet<String>().apply {
+        keysWallet.issuedReceiveKeys.forEach { key -> add(key.publicKeyAsHex) }
+    }
+
     /**
      * Creates notary public key and sets it into session account details
      * @param sessionAccountId - id of session account
-     * @param onKeyCreated - function that will be called right after key creation
      * @return new public key created by notary
      */
-    fun createKey(sessionAccountId: String, onKeyCreated: () -> Unit): Result<String, Exception> {
-        // Generate new key from wallet
-        val key = keysWallet.freshReceiveKey()
-        onKeyCreated()
-        val pubKey = key.publicKeyAsHex
-        return ModelUtil.setAccountDetail(
-            registrationConsumer,
-            sessionAccountId,
-            String.getRandomId(),
-            pubKey
-        ).map {
-            logger.info { "New key has been generated" }
-            pubKey
+    fun createKey(sessionAccountId: String): Result<String, Exception> {
+        // Take key that is saved in wallet already
+        return Result.of { takeKey().publicKeyAsHex }.flatMap { pubKey ->
+            ModelUtil.setAccountDetail(
+                registrationConsumer,
+                sessionAccountId,
+                String.getRandomId(),
+                pubKey
+            ).map {
+                logger.info { "New key has been generated" }
+                pubKey
+            }
+        }
+    }
+
+    /**
+     * Takes key from the pool. Keys are derived in batches of [BtcAddressGenerationConfig.keyPoolSize] keys.
+     * The wallet is saved once per batch, so every key that is taken from the pool is persisted already.
+     * Keys that are left in the pool on shutdown are never used.
+     * @return key that is saved in wallet
+     */
+    private fun takeKey(): DeterministicKey {
+        synchronized(keyPool) {
+            if (keyPool.isEmpty()) {
+                val keys = keysWallet.freshKeys(
+                    KeyChain.KeyPurpose.RECEIVE_FUNDS,
+                    Math.max(1, btcAddressGenerationConfig.keyPoolSize)
+                )
+                keysWalletSaver.save()
+                keys.forEach { key -> issuedPubKeys.add(key.publicKeyAsHex) }
+                keyPool.addAll(keys)
+                logger.info { "${keys.size} keys have been derived" }
+            }
+            return keyPool.removeFirst()
         }
     }
 
@@ -75,19 +116,15 @@ class BtcPublicKeyProvider(
      * @param addressType - type of address to create
      * @param generationTime - time of address generation. Used in Iroha multisig
      * @param nodeId - node id
-     * @param onMsAddressCreated - function that will be called right after MS address creation
      * @return Result of operation
      */
     fun checkAndCreateMultiSigAddress(
         notaryKeys: List<String>,
         addressType: BtcAddressType,
         generationTime: Long,
-        nodeId: String,
-        onMsAddressCreated: () -> Unit
+        nodeId: String
     ): Result<Unit, Exception> {
-        return queryHelper.getPeersCount().fanout {
-            multiSigConsumer.getConsumerQuorum()
-        }.map { (peers, quorum) ->
+        return getPeersAndQuorum().map { (peers, quorum) ->
             if (peers == 0) {
                 throw D3ErrorException.warning(
                     failedOperation = BTC_ADDRESS_GENERATION_OPERATION_NAME,
@@ -113,7 +150,8 @@ class BtcPublicKeyProvider(
                     description = "Failed to add Bitcoin address $msAddress to wallet"
                 )
             }
-            onMsAddressCreated()
+            // The address must be saved before it's published. Concurrent saves are coalesced
+            keysWalletSaver.save()
             logger.info("Address $msAddress was added to wallet. Used keys are $notaryKeys")
             val addressStorage =
                 createAddressStorage(addressType, notaryKeys, nodeId, generationTime)
@@ -138,14 +176,41 @@ class BtcPublicKeyProvider(
         }
     }
 
+    /**
+     * Returns number of peers and quorum of MultiSig account.
+     * Both are cached until [resetPeersAndQuorum] is called
+     * @return number of peers and quorum
+     */
+    fun getPeersAndQuorum(): Result<Pair<Int, Int>, Exception> {
+        val cached = peersAndQuorum.get()
+        if (cached != null) {
+            return Result.of { cached }
+        }
+        return queryHelper.getPeersCount().fanout {
+            multiSigConsumer.getConsumerQuorum()
+        }.map { (peers, quorum) ->
+            val fresh = Pair(peers, quorum)
+            // No peers is an error, so it's never cached
+            if (peers != 0) {
+                peersAndQuorum.set(fresh)
+            }
+            fresh
+        }
+    }
+
+    /**
+     * Resets cached number of peers and quorum. Must be called once the number of peers might have changed
+     */
+    fun resetPeersAndQuorum() {
+        peersAndQuorum.set(null)
+    }
+
     /**
      * Checks if current notary has its key in notaryKeys
      * @param notaryKeys - public keys of notaries
      * @return true if at least one current notary key is among given notaryKeys
      */
-    private fun hasMyKey(notaryKeys: Collection<String>) = notaryKeys.find { key ->
-        keysWallet.issuedReceiveKeys.find { ecKey -> ecKey.publicKeyAsHex == key } != null
-    } != null
+    private fun hasMyKey(notaryKeys: Collection<String>) = notaryKeys.any { key -> issuedPubKeys.contains(key) }
 
     /**
      * Creates address storage object that depends on generated address type
@@ -0,0 +1,196 @@
+/*
+ * Copyright D3 Ledger, Inc. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package com.d3.btc.generation.provider
+
+import com.d3.btc.generation.config.BtcAddressGenerationConfig
+import com.d3.commons.sidechain.iroha.util.IrohaQueryHelper
+import com.github.kittinunf.result.Result
+import com.github.kittinunf.result.map
+import mu.KLogging
+import org.springframework.beans.factory.annotation.Qualifier
+import org.springframework.stereotype.Component
+
+// Maximum period of expired sessions eviction
+private const val MAX_EVICTION_PERIOD_MLS = 60_000L
+
+/**
+ * Aggregator of address generation sessions.
+ * Session details are collected from 'SetAccountDetail' events, so sessions are not re-read from Iroha on every new key.
+ * Iroha is queried only for sessions that are not known, i.e. sessions that were started before the service
+ * or evicted. Sessions that are not completed within [BtcAddressGenerationConfig.sessionTtlMls] since their generation
+ * time are evicted, so abandoned sessions don't pile up in memory.
+ * @param btcAddressGenerationConfig - address generation configuration object
+ * @param registrationQueryHelper - query helper that is used to read sessions that are not known yet
+ */
+@Component
+class BtcSessionAggregator(
+    private val btcAddressGenerationConfig: BtcAddressGenerationConfig,
+    @Qualifier("registrationQueryHelper")
+    private val registrationQueryHelper: IrohaQueryHelper
+) {
+
+    // Session account id -> details of session that is not complete yet
+    private val sessions = HashMap<String, SessionDetails>()
+
+    private var nextEvictionTime = 0L
+
+    /**
+     * Adds session detail
+     * @param sessionAccountId - id of session account
+     * @param key - detail key
+     * @param value - detail value
+     * @return session with all the details collected so far
+     */
+    @Synchronized
+    fun addDetail(sessionAccountId: String, key: String, value: String): Result<BtcSession, Exception> {
+        evictExpiredSessions()
+        val knownSession = sessions[sessionAccountId]
+        val session = if (knownSession != null) {
+            Result.of { knownSession }
+        } else if (key == ADDRESS_GENERATION_TIME_KEY) {
+            // Session creation is being handled. There is nothing to read yet
+            Result.of { SessionDetails().also { sessions[sessionAccountId] = it } }
+        } else {
+            recoverSession(sessionAccountId)
+        }
+        return session.map { details ->
+            details.add(key, value)
+            details.toSession(sessionAccountId)
+        }
+    }
+
+    /**
+     * Completes session by creating its MultiSig address. Only one completion of a session runs at a time.
+     * Session is removed only if address creation succeeds, so a failed completion may be repeated
+     * @param sessionAccountId - id of session account
+     * @param createAddress - function that creates MultiSig address of session
+     * @return result of address creation. Successful if session is being completed or has been completed already
+     */
+    fun complete(sessionAccountId: String, createAddress: () -> Result<Unit, Exception>): Result<Unit, Exception> {
+        if (!startCompletion(sessionAccountId)) {
+            return Result.of { Unit }
+        }
+        val result = createAddress()
+        finishCompletion(sessionAccountId, result.component2() == null)
+        return result
+    }
+
+    /**
+     * Marks session as being completed
+     * @param sessionAccountId - id of session account
+     * @return true if session is known and not being completed by another call
+     */
+    @Synchronized
+    private fun startCompletion(sessionAccountId: String): Boolean {
+        val session = sessions[sessionAccountId]
+        if (session == null || session.completing) {
+            return false
+        }
+        session.completing = true
+        return true
+    }
+
+    /**
+     * Finishes session completion
+     * @param sessionAccountId - id of session account
+     * @param succeeded - whether MultiSig address was created
+     */
+    @Synchronized
+    private fun finishCompletion(sessionAccountId: String, succeeded: Boolean) {
+        if (succeeded) {
+            sessions.remove(sessionAccountId)
+        } else {
+            sessions[sessionAccountId]?.completing = false
+        }
+    }
+
+    /**
+     * Evicts sessions that have expired. Runs no more than once per a fraction of session TTL
+     */
+    private fun evictExpiredSessions() {
+        val now = System.currentTimeMillis()
+        if (now < nextEvictionTime) {
+            return
+        }
+        val sessionTtlMls = btcAddressGenerationConfig.sessionTtlMls
+        nextEvictionTime = now + Math.min(sessionTtlMls, MAX_EVICTION_PERIOD_MLS)
+        val sessionsBefore = sessions.size
+        sessions.values.removeIf { session -> !session.completing && session.startTime() + sessionTtlMls < now }
+        if (sessions.size < sessionsBefore) {
+            logger.warn { "${sessionsBefore - sessions.size} expired address generation sessions were evicted" }
+        }
+    }
+
+    /**
+     * Reads session that was started before the service
+     * @param sessionAccountId - id of session account
+     * @return details of session
+     */
+    private fun recoverSession(sessionAccountId: String): Result<SessionDetails, Exception> {
+        logger.info { "Session $sessionAccountId is not known. Reading it from Iroha." }
+        return registrationQueryHelper.getAccountDetails(
+            sessionAccountId,
+            btcAddressGenerationConfig.registrationAccount.accountId
+        ).map { details ->
+            val session = SessionDetails()
+            details.forEach { (key, value) -> session.add(key, value) }
+            sessions[sessionAccountId] = session
+            session
+        }
+    }
+
+    /**
+     * Logger
+     */
+    companion object : KLogging()
+}
+
+/**
+ * Address generation session
+ * @param accountId - id of session account
+ * @param generationTime - time of address generation or null if it's not set yet
+ * @param nodeId - id of node that started the session or null if it's not set yet
+ * @param notaryKeys - public keys that were posted by notaries so far
+ */
+data class BtcSession(
+    val accountId: String,
+    val generationTime: Long?,
+    val nodeId: String?,
+    val notaryKeys: List<String>
+) {
+    /**
+     * Checks if session has everything that is needed to create a MultiSig address
+     * @param peers - number of peers
+     * @return true if every peer has posted its key
+     */
+    fun isReady(peers: Int) = generationTime != null && nodeId != null && notaryKeys.size == peers
+}
+
+/**
+ * Mutable details of session
+ */
+private class SessionDetails {
+    // Time when session became known. Used as a session start time if generation time is not known
+    private val creationTime = System.currentTimeMillis()
+    var generationTime: Long? = null
+    var nodeId: String? = null
+    // Whether MultiSig address of session is being created
+    var completing = false
+    // Detail key -> public key. Detail keys are unique, so the same key is never counted twice
+    val notaryKeys = LinkedHashMap<String, String>()
+
+    fun add(key: String, value: String) {
+        when (key) {
+            ADDRESS_GENERATION_TIME_KEY -> generationTime = value.toLong()
+            ADDRESS_GENERATION_NODE_ID_KEY -> nodeId = value
+            else -> notaryKeys[key] = value
+        }
+    }
+
+    fun startTime() = generationTime ?: creationTime
+
+    fun toSession(accountId: String) = BtcSession(accountId, generationTime, nodeId, notaryKeys.values.toList())
+}
@@ -31,29 +31,45 @@ class BtcSessionProvider(
      * @return Result of session creation process
      */
     fun createPubKeyCreationSession(sessionId: String, nodeId: String) =
-        registrationConsumer.send(createPubKeyCreationSessionTx(sessionId, nodeId))
+        createPubKeyCreationSessions(listOf(sessionId), nodeId)
 
     /**
-     * Creates a transaction that may be used to create special session account for notaries public key storage
+     * Creates special session accounts for notaries public key storage in one transaction.
+     * Either all the sessions are created or none of them
      *
-     * @param sessionId - session identifier aka session account name
+     * @param sessionIds - session identifiers aka session account names
+     * @param nodeId - node id
+     * @return Result of session creation process
+     */
+    fun createPubKeyCreationSessions(sessionIds: List<String>, nodeId: String) =
+        registrationConsumer.send(createPubKeyCreationSessionsTx(sessionIds, nodeId))
+
+    /**
+     * Creates a transaction that may be used to create special session accounts for notaries public key storage
+     *
+     * @param sessionIds - session identifiers aka session account names
      * @param nodeId - node id
      * @return transaction full of session creation commands
      */
-    private fun createPubKeyCreationSessionTx(sessionId: String, nodeId: String): Transaction {
-        return Transaction.builder(registrationConsumer.creator)
-            .createAccount(
-                sessionId,
-                BTC_SESSION_DOMAIN,
-                DUMMY_PUB_KEY
-            ).setAccountDetail(
-                "$sessionId@$BTC_SESSION_DOMAIN",
-                ADDRESS_GENERATION_TIME_KEY,
-                System.currentTimeMillis().toString()
-            ).setAccountDetail(
-                "$sessionId@$BTC_SESSION_DOMAIN",
-                ADDRESS_GENERATION_NODE_ID_KEY,
-                nodeId
-            ).build()
+    private fun createPubKeyCreationSessionsTx(sessionIds: List<String>, nodeId: String): Transaction {
+        val transactionBuilder = Transaction.builder(registrationConsumer.creator)
+        val addressGenerationTime = System.currentTimeMillis().toString()
+        sessionIds.forEach { sessionId ->
+            transactionBuilder
+                .createAccount(
+                    sessionId,
+                    BTC_SESSION_DOMAIN,
+                    DUMMY_PUB_KEY
+                ).setAccountDetail(
+                    "$sessionId@$BTC_SESSION_DOMAIN",
+                    ADDRESS_GENERATION_TIME_KEY,
+                    addressGenerationTime
+                ).setAccountDetail(
+                    "$sessionId@$BTC_SESSION_DOMAIN",
+                    ADDRESS_GENERATION_NODE_ID_KEY,
+                    nodeId
+                )
+        }
+        return transactionBuilder.build()
     }
 }
@@ -6,16 +6,21 @@
 package com.d3.btc.generation.trigger
 
 import com.d3.btc.generation.BTC_ADDRESS_GENERATION_OPERATION_NAME
+import com.d3.btc.generation.BTC_ADDRESS_GENERATION_SERVICE_NAME
+import com.d3.btc.generation.config.BtcAddressGenerationConfig
 import com.d3.btc.generation.provider.BtcSessionProvider
 import com.d3.btc.model.BtcAddressType
 import com.d3.btc.provider.BtcChangeAddressProvider
 import com.d3.btc.provider.BtcFreeAddressesProvider
 import com.d3.commons.model.D3ErrorException
+import com.d3.commons.util.createPrettyFixThreadPool
 import com.github.kittinunf.result.Result
-import com.github.kittinunf.result.failure
 import com.github.kittinunf.result.flatMap
 import mu.KLogging
 import org.springframework.stereotype.Component
+import java.io.Closeable
+import java.util.concurrent.Callable
+import java.util.concurrent.Semaphore
 
 /*
     Class that is used to start address generation process
@@ -24,10 +29,17 @@ import org.springframework.stereotype.Component
 class AddressGenerationTrigger(
     private val btcSessionProvider: BtcSessionProvider,
     private val btcFreeAddressesProvider: BtcFreeAddressesProvider,
-    private val btcChangeAddressesProvider: BtcChangeAddressProvider
-) {
+    private val btcChangeAddressesProvider: BtcChangeAddressProvider,
+    private val btcAddressGenerationConfig: BtcAddressGenerationConfig
+) : Closeable {
+
+    // Executor that sends session creation transactions
+    private val sessionCreationExecutor =
+        createPrettyFixThreadPool(BTC_ADDRESS_GENERATION_SERVICE_NAME, "session-creation")
+
     /**
-     * Starts address generation process
+     * Starts address generation process.
+     * Sessions are created in batches(one Iroha transaction per batch). Batches are sent concurrently.
      * @param addressType - type of address to generate
      * @param addressesToGenerate - number of addresses to generate. 1 by default.
      * @param nodeId - node id
@@ -38,17 +50,30 @@ class AddressGenerationTrigger(
         nodeId: String
     ): Result<Unit, Exception> {
         return Result.of {
-            repeat(addressesToGenerate) {
-                val sessionAccountName = addressType.createSessionAccountName()
-                btcSessionProvider.createPubKeyCreationSession(sessionAccountName, nodeId)
-                    .failure { ex ->
-                        throw D3ErrorException.warning(
-                            failedOperation = BTC_ADDRESS_GENERATION_OPERATION_NAME,
-                            description = "Cannot start address generation",
-                            errorCause = ex
-                        )
+            val batches = (0 until addressesToGenerate)
+                .map { addressType.createSessionAccountName() }
+                .chunked(btcAddressGenerationConfig.sessionsPerTransaction.coerceAtLeast(1))
+            // Bounds the number of transactions that are sent at the same time
+            val inFlightTransactions = Semaphore(btcAddressGenerationConfig.sessionCreationConcurrency.coerceAtLeast(1))
+            val failures = batches.map { sessionIds ->
+                inFlightTransactions.acquire()
+                sessionCreationExecutor.submit(Callable {
+                    try {
+                        btcSessionProvider.createPubKeyCreationSessions(sessionIds, nodeId)
+                    } finally {
+                        inFlightTransactions.release()
                     }
+                })
+            }.mapNotNull { sessionsCreation -> sessionsCreation.get().component2() }
+            if (failures.isNotEmpty()) {
+                throw D3ErrorException.warning(
+                    failedOperation = BTC_ADDRESS_GENERATION_OPERATION_NAME,
+                    description = "Cannot start address generation. " +
+                            "${failures.size} out of ${batches.size} session batches failed",
+                    errorCause = failures.first()
+                )
             }
+            logger.info("${batches.size} batches of $addressType address generation sessions have been created")
         }
     }
 
@@ -92,6 +117,10 @@ class AddressGenerationTrigger(
         }
     }
 
+    override fun close() {
+        sessionCreationExecutor.shutdownNow()
+    }
+
     /**
      * Logger
      */
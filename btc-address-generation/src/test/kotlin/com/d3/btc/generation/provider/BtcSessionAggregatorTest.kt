@@ -0,0 +1,173 @@
+/*
+ * Copyright D3 Ledger, Inc. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package com.d3.btc.generation.provider
+
+import com.d3.btc.generation.config.BtcAddressGenerationConfig
+import com.d3.commons.config.IrohaCredentialRawConfig
+import com.d3.commons.sidechain.iroha.util.IrohaQueryHelper
+import com.github.kittinunf.result.Result
+import com.nhaarman.mockito_kotlin.any
+import com.nhaarman.mockito_kotlin.doReturn
+import com.nhaarman.mockito_kotlin.mock
+import com.nhaarman.mockito_kotlin.never
+import com.nhaarman.mockito_kotlin.times
+import com.nhaarman.mockito_kotlin.verify
+import com.nhaarman.mockito_kotlin.whenever
+import org.junit.jupiter.api.Assertions.assertEquals
+import org.junit.jupiter.api.Assertions.assertNotNull
+import org.junit.jupiter.api.Assertions.assertNull
+import org.junit.jupiter.api.Test
+
+class BtcSessionAggregatorTest {
+
+    private val registrationAccountId = "btc_registration_service@notary"
+
+    private val sessionAccountId = "free_session@btcSession"
+
+    private val generationTime = System.currentTimeMillis()
+
+    private val registrationQueryHelper = mock<IrohaQueryHelper>()
+
+    private var ttlMls = 3_600_000L
+
+    private val btcAddressGenerationConfig = mock<BtcAddressGenerationConfig> {
+        val credential = mock<IrohaCredentialRawConfig> {
+            on { accountId } doReturn registrationAccountId
+        }
+        on { registrationAccount } doReturn credential
+        on { sessionTtlMls }.thenAnswer { ttlMls }
+    }
+
+    private val btcSessionAggregator by lazy {
+        BtcSessionAggregator(btcAddressGenerationConfig, registrationQueryHelper)
+    }
+
+    /**
+     * @given session aggregator
+     * @when session details come in order: generation time, node id and then keys
+     * @then keys are collected in order of their arrival without querying Iroha
+     */
+    @Test
+    fun testAddDetails() {
+        startSession(sessionAccountId)
+        btcSessionAggregator.addDetail(sessionAccountId, "notary_1", "pubKey1")
+        btcSessionAggregator.addDetail(sessionAccountId, "notary_2", "pubKey2")
+        // The same detail key is never counted twice
+        val session = btcSessionAggregator.addDetail(sessionAccountId, "notary_1", "pubKey1").get()
+        assertEquals(sessionAccountId, session.accountId)
+        assertEquals(generationTime, session.generationTime)
+        assertEquals("nodeId", session.nodeId)
+        assertEquals(listOf("pubKey1", "pubKey2"), session.notaryKeys)
+        assertEquals(true, session.isReady(2))
+        verify(registrationQueryHelper, never()).getAccountDetails(any(), any())
+    }
+
+    /**
+     * @given session aggregator that doesn't know a session, i.e. the session was started before restart
+     * @when a key of the session comes
+     * @then the session is read from Iroha once and the following keys are added to it
+     */
+    @Test
+    fun testRecoverSession() {
+        mockIrohaSession(sessionAccountId)
+        val recoveredSession = btcSessionAggregator.addDetail(sessionAccountId, "notary_2", "pubKey2").get()
+        assertEquals(generationTime, recoveredSession.generationTime)
+        assertEquals("nodeId", recoveredSession.nodeId)
+        assertEquals(listOf("pubKey1", "pubKey2"), recoveredSession.notaryKeys)
+
+        val session = btcSessionAggregator.addDetail(sessionAccountId, "notary_3", "pubKey3").get()
+        assertEquals(listOf("pubKey1", "pubKey2", "pubKey3"), session.notaryKeys)
+        verify(registrationQueryHelper, times(1)).getAccountDetails(sessionAccountId, registrationAccountId)
+    }
+
+    /**
+     * @given session aggregator with a session
+     * @when the session is completed several times, including a nested completion while the first one is running
+     * @then the address is created exactly once
+     */
+    @Test
+    fun testCompleteOnce() {
+        startSession(sessionAccountId)
+        var createdAddresses = 0
+        val result = btcSessionAggregator.complete(sessionAccountId) {
+            createdAddresses++
+            // The session is being completed, so the nested completion does nothing
+            btcSessionAggregator.complete(sessionAccountId) {
+                createdAddresses++
+                Result.of { Unit }
+            }
+        }
+        assertNull(result.component2())
+        btcSessionAggregator.complete(sessionAccountId) {
+            createdAddresses++
+            Result.of { Unit }
+        }
+        assertEquals(1, createdAddresses)
+    }
+
+    /**
+     * @given session aggregator with a session
+     * @when the first completion of the session fails
+     * @then the session is kept and the next completion creates the address
+     */
+    @Test
+    fun testCompleteAfterFailure() {
+        startSession(sessionAccountId)
+        var attempts = 0
+        val failedResult = btcSessionAggregator.complete(sessionAccountId) {
+            attempts++
+            Result.error(IllegalStateException("Iroha is not available"))
+        }
+        assertNotNull(failedResult.component2())
+        repeat(2) {
+            btcSessionAggregator.complete(sessionAccountId) {
+                attempts++
+                Result.of { Unit }
+            }
+        }
+        assertEquals(2, attempts)
+    }
+
+    /**
+     * @given session aggregator with a session that is older than session TTL
+     * @when a detail of another session comes
+     * @then the old session is evicted and its next key makes the aggregator read it from Iroha
+     */
+    @Test
+    fun testEvictExpiredSession() {
+        ttlMls = 100
+        val expiredSessionAccountId = "expired_session@btcSession"
+        btcSessionAggregator.addDetail(expiredSessionAccountId, ADDRESS_GENERATION_TIME_KEY, "1")
+        // Expired sessions are looked for once per TTL at most
+        Thread.sleep(ttlMls * 2)
+        val freshGenerationTime = System.currentTimeMillis() + 60_000
+        btcSessionAggregator.addDetail(sessionAccountId, ADDRESS_GENERATION_TIME_KEY, freshGenerationTime.toString())
+        verify(registrationQueryHelper, never()).getAccountDetails(any(), any())
+
+        mockIrohaSession(expiredSessionAccountId)
+        btcSessionAggregator.addDetail(expiredSessionAccountId, "notary_2", "pubKey2")
+        verify(registrationQueryHelper).getAccountDetails(expiredSessionAccountId, registrationAccountId)
+        // The session that is not expired is kept
+        btcSessionAggregator.addDetail(sessionAccountId, "notary_1", "pubKey1")
+        verify(registrationQueryHelper, never()).getAccountDetails(sessionAccountId, registrationAccountId)
+    }
+
+    private fun startSession(accountId: String) {
+        btcSessionAggregator.addDetail(accountId, ADDRESS_GENERATION_TIME_KEY, generationTime.toString())
+        btcSessionAggregator.addDetail(accountId, ADDRESS_GENERATION_NODE_ID_KEY, "nodeId")
+    }
+
+    private fun mockIrohaSession(accountId: String) {
+        whenever(registrationQueryHelper.getAccountDetails(accountId, registrationAccountId)).thenReturn(
+            Result.of {
+                mapOf(
+                    ADDRESS_GENERATION_TIME_KEY to generationTime.toString(),
+                    ADDRESS_GENERATION_NODE_ID_KEY to "nodeId",
+                    "notary_1" to "pubKey1"
+                )
+            })
+    }
+}
@@ -0,0 +1,110 @@
+/*
+ * Copyright D3 Ledger, Inc. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package com.d3.btc.generation.trigger
+
+import com.d3.btc.generation.config.BtcAddressGenerationConfig
+import com.d3.btc.generation.provider.BtcSessionProvider
+import com.d3.btc.model.BtcAddressType
+import com.d3.btc.provider.BtcChangeAddressProvider
+import com.d3.btc.provider.BtcFreeAddressesProvider
+import com.d3.commons.sidechain.iroha.consumer.IrohaConsumer
+import com.d3.commons.sidechain.iroha.util.IrohaQueryHelper
+import com.github.kittinunf.result.Result
+import com.nhaarman.mockito_kotlin.any
+import com.nhaarman.mockito_kotlin.doReturn
+import com.nhaarman.mockito_kotlin.mock
+import com.nhaarman.mockito_kotlin.whenever
+import org.junit.jupiter.api.AfterEach
+import org.junit.jupiter.api.Assertions.assertEquals
+import org.junit.jupiter.api.Assertions.assertNotNull
+import org.junit.jupiter.api.Assertions.assertNull
+import org.junit.jupiter.api.Assertions.assertTrue
+import org.junit.jupiter.api.Test
+import java.util.Collections
+import java.util.concurrent.atomic.AtomicInteger
+
+class AddressGenerationTriggerTest {
+
+    private val batchSize = 3
+
+    private val concurrency = 2
+
+    private val btcSessionProvider = mock<BtcSessionProvider>()
+
+    // Sizes of session batches in order of their creation
+    private val batchSizes = Collections.synchronizedList(ArrayList<Int>())
+
+    private val inFlightBatches = AtomicInteger()
+
+    private val maxInFlightBatches = AtomicInteger()
+
+    private val addressGenerationTrigger = AddressGenerationTrigger(
+        btcSessionProvider,
+        BtcFreeAddressesProvider("nodeId", "free@btcSession", mock<IrohaQueryHelper>(), mock<IrohaConsumer>()),
+        mock<BtcChangeAddressProvider>(),
+        mock<BtcAddressGenerationConfig> {
+            on { sessionsPerTransaction } doReturn batchSize
+            on { sessionCreationConcurrency } doReturn concurrency
+        }
+    )
+
+    @AfterEach
+    fun tearDown() {
+        addressGenerationTrigger.close()
+    }
+
+    /**
+     * @given address generation trigger that creates 3 sessions per transaction and sends up to 2 transactions at once
+     * @when 10 addresses are requested
+     * @then sessions are created in 4 batches(3+3+3+1) and no more than 2 batches are created at the same time
+     */
+    @Test
+    fun testStartAddressGenerationBatches() {
+        mockSessionCreation { Result.of { "tx hash" } }
+        val result = addressGenerationTrigger.startAddressGeneration(BtcAddressType.FREE, 10, "nodeId")
+        assertNull(result.component2())
+        assertEquals(listOf(1, 3, 3, 3), batchSizes.sorted())
+        assertTrue(maxInFlightBatches.get() in 1..concurrency)
+    }
+
+    /**
+     * @given address generation trigger which session creation fails for one of batches
+     * @when addresses are requested
+     * @then the other batches are still created, but address generation fails
+     */
+    @Test
+    fun testStartAddressGenerationFailure() {
+        val batches = AtomicInteger()
+        mockSessionCreation {
+            if (batches.incrementAndGet() == 2) {
+                Result.error(IllegalStateException("Iroha is not available"))
+            } else {
+                Result.of { "tx hash" }
+            }
+        }
+        val result = addressGenerationTrigger.startAddressGeneration(BtcAddressType.FREE, 7, "nodeId")
+        assertNotNull(result.component2())
+        assertEquals(3, batchSizes.size)
+    }
+
+    /**
+     * Mocks session creation. Every batch takes some time, so batches overlap if they are allowed to
+     * @param sessionCreation - result of session creation
+     */
+    private fun mockSessionCreation(sessionCreation: () -> Result<String, Exception>) {
+        whenever(btcSessionProvider.createPubKeyCreationSessions(any(), any())).thenAnswer { invocation ->
+            val inFlight = inFlightBatches.incrementAndGet()
+            maxInFlightBatches.accumulateAndGet(inFlight) { max, value -> Math.max(max, value) }
+            try {
+                batchSizes.add(invocation.getArgumentAt(0, List::class.java).size)
+                Thread.sleep(100)
+                sessionCreation()
+            } finally {
+                inFlightBatches.decrementAndGet()
+            }
+        }
+    }
+}
@@ -26,4 +26,7 @@ interface BtcDepositConfig {
     val changeAddressesStorageAccount: String
 
     val irohaBlockQueue: String
+
+    // Number of parallel lanes that execute events of Iroha blocks
+    val irohaBlockLanes: Int
 }
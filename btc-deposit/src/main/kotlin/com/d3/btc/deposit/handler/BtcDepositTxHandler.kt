@@ -5,6 +5,8 @@
 
 package com.d3.btc.deposit.handler
 
+import com.d3.btc.deposit.statistics.DepositLatency
+import com.d3.btc.deposit.statistics.DepositStatistics
 import com.d3.btc.storage.BtcAddressStorage
 import com.d3.btc.helper.address.outPutToBase58Address
 import com.d3.btc.helper.currency.satToBtc
@@ -24,19 +26,23 @@ private const val TWO_HOURS_MILLIS = 2 * 60 * 60 * 1000L
  * @param btcAddressStorage - in-memory storage of Bitcoin addresses
  * @param btcEventsSource - source of Bitcoin deposit events
  * @param onTxSave - function that is called to save transaction in wallet
+ * @param depositStatistics - statistics of deposit service
  */
 class BtcDepositTxHandler(
     private val btcAddressStorage: BtcAddressStorage,
     private val btcEventsSource: PublishSubject<SideChainEvent.PrimaryBlockChainEvent>,
-    private val onTxSave: () -> Unit
+    private val onTxSave: () -> Unit,
+    private val depositStatistics: DepositStatistics
 ) {
 
     /**
      * Handles deposit transaction
      * @param tx - Bitcoin deposit transaction
      * @param blockTime - time of block where [tx] appeared for the first time. This time is used in MST
+     * @param confirmedNanos - time when [tx] reached the confidence level(in nanoseconds)
      */
-    fun handleTx(tx: Transaction, blockTime: Date) {
+    fun handleTx(tx: Transaction, blockTime: Date, confirmedNanos: Long) {
+        var latencyObserved = false
         tx.outputs.forEach { output ->
             val txBtcAddress = outPutToBase58Address(output)
             logger.info { "Tx ${tx.hashAsString} has output address $txBtcAddress" }
@@ -62,6 +68,16 @@ class BtcDepositTxHandler(
                     "BTC deposit event(tx ${tx.hashAsString}, amount ${btcValue.toPlainString()}) was created. " +
                             "Related client is $clientAccountId. "
                 }
+                // A transaction may pay to several clients. The latency is observed once per transaction
+                if (!latencyObserved) {
+                    depositStatistics.observeLatency(
+                        DepositLatency.CONFIRMATION_TO_EVENT,
+                        System.nanoTime() - confirmedNanos
+                    )
+                    latencyObserved = true
+                }
+                // Registered before publishing, so the commit is never seen ahead of the event
+                depositStatistics.onDepositEvent(tx.hashAsString)
                 btcEventsSource.onNext(event)
                 //TODO better call this function after event consumption.
                 onTxSave()
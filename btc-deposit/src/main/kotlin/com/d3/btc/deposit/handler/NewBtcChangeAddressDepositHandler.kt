@@ -3,6 +3,7 @@ package com.d3.btc.deposit.handler
 import com.d3.btc.deposit.config.BtcDepositConfig
 import com.d3.btc.handler.SetAccountDetailEvent
 import com.d3.btc.handler.SetAccountDetailHandler
+import com.d3.btc.handler.SetAccountDetailRoute
 import com.d3.btc.storage.BtcAddressStorage
 import org.springframework.stereotype.Component
 
@@ -20,6 +21,11 @@ class NewBtcChangeAddressDepositHandler(
         btcAddressStorage.addChangeAddress(address)
     }
 
+    override fun route() = SetAccountDetailRoute(
+        creator = btcDepositConfig.mstRegistrationAccount,
+        accountId = btcDepositConfig.changeAddressesStorageAccount
+    )
+
     /**
      * Checks if event is a 'new change address' event
      */
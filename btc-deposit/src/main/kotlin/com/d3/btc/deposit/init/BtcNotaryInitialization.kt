@@ -11,19 +11,23 @@ import com.d3.btc.deposit.config.BtcDepositConfig
 import com.d3.btc.deposit.expansion.DepositServiceExpansion
 import com.d3.btc.deposit.listener.BitcoinBlockChainDepositListener
 import com.d3.btc.deposit.service.BtcWalletListenerRestartService
-import com.d3.btc.handler.SetAccountDetailEvent
+import com.d3.btc.deposit.statistics.DepositStatistics
+import com.d3.btc.executor.PartitionedExecutor
 import com.d3.btc.handler.SetAccountDetailHandler
+import com.d3.btc.handler.SetAccountDetailRouter
 import com.d3.btc.healthcheck.HealthyService
 import com.d3.btc.helper.network.addPeerConnectionStatusListener
 import com.d3.btc.helper.network.startChainDownload
+import com.d3.btc.listener.IrohaBlockBus
+import com.d3.btc.listener.IrohaBlockEvent
+import com.d3.btc.metrics.MetricsRegistry
 import com.d3.btc.peer.SharedPeerGroup
 import com.d3.btc.provider.network.BtcNetworkConfigProvider
 import com.d3.btc.storage.BtcAddressStorage
 import com.d3.btc.wallet.checkWalletNetwork
-import com.d3.chainadapter.client.ReliableIrohaChainListener
+import com.d3.btc.wallet.measuredSave
 import com.d3.commons.notary.NotaryImpl
 import com.d3.commons.sidechain.SideChainEvent
-import com.d3.commons.sidechain.iroha.util.getSetDetailCommandsWithCreator
 import com.d3.commons.util.createPrettySingleThreadPool
 import com.github.kittinunf.result.Result
 import com.github.kittinunf.result.failure
@@ -38,7 +42,6 @@ import org.bitcoinj.wallet.Wallet
 import org.springframework.beans.factory.annotation.Qualifier
 import org.springframework.stereotype.Component
 import java.io.Closeable
-import java.io.File
 import java.util.concurrent.ExecutorService
 
 @Component
@@ -54,20 +57,32 @@ class BtcNotaryInitialization(
     private val confidenceListenerExecutorService: ExecutorService,
     private val btcNetworkConfigProvider: BtcNetworkConfigProvider,
     private val depositServiceExpansion: DepositServiceExpansion,
-    @Qualifier("depositReliableIrohaChainListener")
-    private val irohaChainListener: ReliableIrohaChainListener,
+    private val irohaBlockBus: IrohaBlockBus,
     private val btcAddressStorage: BtcAddressStorage,
     @Qualifier("depositHandlers")
-    private val accountDetailHandlers: List<SetAccountDetailHandler>
+    private val accountDetailHandlers: List<SetAccountDetailHandler>,
+    private val depositStatistics: DepositStatistics,
+    private val metricsRegistry: MetricsRegistry
 ) : HealthyService(), Closeable {
 
+    // Routes 'SetAccountDetail' events to interested handlers only
+    private val accountDetailRouter by lazy { SetAccountDetailRouter(accountDetailHandlers) }
+
+    // Executes events of Iroha blocks
+    private val blockEventsExecutor = PartitionedExecutor(
+        BTC_DEPOSIT_SERVICE_NAME,
+        "iroha-block-events",
+        btcDepositConfig.irohaBlockLanes,
+        metricsRegistry
+    )
+
     // Executor that will be used to execute Bitcoin deposit listener logic
     private val blockChainDepositListenerExecutor =
         createPrettySingleThreadPool(BTC_DEPOSIT_SERVICE_NAME, "blockchain-deposit-listener")
 
     // Function that is called to save all the transactions in wallet
     private fun onTxSave() {
-        transferWallet.saveToFile(File(btcDepositConfig.btcTransferWalletPath))
+        transferWallet.measuredSave(btcDepositConfig.btcTransferWalletPath, metricsRegistry)
         logger.info { "Wallet was saved in ${btcDepositConfig.btcTransferWalletPath}" }
     }
 
@@ -85,24 +100,19 @@ class BtcNotaryInitialization(
             btcWalletListenerRestartService.restartTransactionListeners(
                 transferWallet, ::onTxSave
             )
-        }.flatMap {
-            irohaChainListener.getBlockObservable()
-        }.map { irohaObservable ->
-            irohaObservable.subscribe { (block, _) ->
-                // Expand the deposit service if there is a need to do so
-                depositServiceExpansion.expand(block)
-            }
-            irohaObservable.subscribe { (block, _) ->
-                getSetDetailCommandsWithCreator(block).map { SetAccountDetailEvent(it.command.setAccountDetail, it.creator) }
-                    .forEach { setAccountDetailEvent ->
-                        accountDetailHandlers.forEach { handler ->
-                            handler.handleFiltered(setAccountDetailEvent)
-                        }
-                    }
+        }.map {
+            irohaBlockBus.subscribe { blockEvent, ack ->
+                val tasks = try {
+                    handleIrohaBlock(blockEvent)
+                } catch (e: Exception) {
+                    logger.error("Cannot handle Iroha block", e)
+                    emptyList<Pair<String, () -> Unit>>()
+                }
+                blockEventsExecutor.executeBatch(tasks, ack)
             }
             logger.info { "Registration service listener was successfully initialized" }
-        }.map {
-            irohaChainListener.listen()
+        }.flatMap {
+            irohaBlockBus.listen()
         }.map {
             initBtcEvents(peerGroup, bitcoinConfig.confidenceLevel)
         }.map {
@@ -112,6 +122,37 @@ class BtcNotaryInitialization(
         }
     }
 
+    /**
+     * Handles Iroha block
+     * @param blockEvent - Iroha block
+     * @return tasks of 'SetAccountDetail' handlers keyed by account id.
+     * Tasks of the same account are executed in order. Block is acknowledged once all the tasks are executed
+     */
+    private fun handleIrohaBlock(blockEvent: IrohaBlockEvent): List<Pair<String, () -> Unit>> {
+        // Expand the deposit service if there is a need to do so
+        depositServiceExpansion.expand(blockEvent.block)
+        registerCommittedDeposits(blockEvent)
+        return blockEvent.setAccountDetailEvents
+            .flatMap { setAccountDetailEvent ->
+                accountDetailRouter.route(setAccountDetailEvent).map { handler ->
+                    Pair(setAccountDetailEvent.command.accountId, { handler.handleFiltered(setAccountDetailEvent) })
+                }
+            }
+    }
+
+    /**
+     * Registers deposits that have been committed in Iroha.
+     * Deposit transfers carry the hash of Bitcoin transaction in their description
+     * @param blockEvent - Iroha block
+     */
+    private fun registerCommittedDeposits(blockEvent: IrohaBlockEvent) {
+        blockEvent.block.blockV1.payload.transactionsList.forEach { tx ->
+            tx.payload.reducedPayload.commandsList
+                .filter { command -> command.hasTransferAsset() }
+                .forEach { command -> depositStatistics.onDepositCommitted(command.transferAsset.description) }
+        }
+    }
+
     //Checks if address is watched by notary
     fun isWatchedAddress(btcAddress: String) =
         transferWallet.isAddressWatched(
@@ -135,13 +176,15 @@ class BtcNotaryInitialization(
                 confidenceListenerExecutorService,
                 confidenceLevel,
                 btcAddressStorage,
-                ::onTxSave
+                ::onTxSave,
+                depositStatistics
             )
         )
     }
 
     override fun close() {
         logger.info { "Closing Bitcoin notary service" }
+        blockEventsExecutor.close()
         blockChainDepositListenerExecutor.shutdownNow()
         peerGroup.stop()
     }
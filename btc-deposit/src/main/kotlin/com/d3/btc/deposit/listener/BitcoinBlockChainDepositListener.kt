@@ -6,6 +6,8 @@
 package com.d3.btc.deposit.listener
 
 import com.d3.btc.deposit.handler.BtcDepositTxHandler
+import com.d3.btc.deposit.statistics.DepositLatency
+import com.d3.btc.deposit.statistics.DepositStatistics
 import com.d3.btc.storage.BtcAddressStorage
 import com.d3.commons.sidechain.SideChainEvent
 import io.reactivex.subjects.PublishSubject
@@ -24,13 +26,15 @@ private const val DAY_MILLIS = 24 * 60 * 60 * 1000L
  * @param confidenceListenerExecutorService - executor service that is used to execute 'confidence change' events
  * @param btcAddressStorage - in-memory storage of Bitcoin addresses
  * @param onTxSave - function that is called to save transaction
+ * @param depositStatistics - statistics of deposit service
  */
 class BitcoinBlockChainDepositListener(
     private val btcEventsSource: PublishSubject<SideChainEvent.PrimaryBlockChainEvent>,
     private val confidenceListenerExecutorService: ExecutorService,
     private val confidenceLevel: Int,
     private val btcAddressStorage: BtcAddressStorage,
-    private val onTxSave: () -> Unit
+    private val onTxSave: () -> Unit,
+    private val depositStatistics: DepositStatistics
 ) : BlocksDownloadedEventListener {
 
     private val processedBlocks = HashSet<String>()
@@ -41,6 +45,7 @@ class BitcoinBlockChainDepositListener(
         filteredBlock: FilteredBlock?,
         blocksLeft: Int
     ) {
+        val receivedNanos = System.nanoTime()
         if (block.time.time < System.currentTimeMillis() - DAY_MILLIS) {
             //We cannot handle too old blocks due to Iroha time restrictions.
             return
@@ -59,14 +64,18 @@ class BitcoinBlockChainDepositListener(
                 btcAddressStorage,
                 confidenceLevel,
                 confidenceListenerExecutorService,
-                BtcDepositTxHandler(btcAddressStorage, btcEventsSource, onTxSave)
-            )
-        block.transactions?.forEach { tx ->
-            receivedCoinsListener.onTransaction(
-                tx,
-                block.time
+                BtcDepositTxHandler(btcAddressStorage, btcEventsSource, onTxSave, depositStatistics),
+                depositStatistics
             )
+        val transactions = block.transactions ?: emptyList()
+        var matchedTransactions = 0
+        transactions.forEach { tx ->
+            if (receivedCoinsListener.onTransaction(tx, block.time)) {
+                matchedTransactions++
+                depositStatistics.observeLatency(DepositLatency.BLOCK_TO_MATCH, System.nanoTime() - receivedNanos)
+            }
         }
+        depositStatistics.addProcessedBlock(transactions.size, matchedTransactions)
     }
 
     /**
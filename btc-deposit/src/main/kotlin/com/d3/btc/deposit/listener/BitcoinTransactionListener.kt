@@ -6,6 +6,7 @@
 package com.d3.btc.deposit.listener
 
 import com.d3.btc.deposit.handler.BtcDepositTxHandler
+import com.d3.btc.deposit.statistics.DepositStatistics
 import com.d3.btc.storage.BtcAddressStorage
 import com.d3.btc.helper.address.outPutToBase58Address
 import mu.KLogging
@@ -19,21 +20,30 @@ import java.util.concurrent.ExecutorService
  * @param confidenceLevel - level of confidence aka depth of transaction. Recommend value is 6
  * @param confidenceListenerExecutor - executor that will be used to execute confidence listener logic
  * @param btcDepositTxHandler - handles btc deposit transactions deposit('unspent' occurrence)
+ * @param depositStatistics - statistics of deposit service
  */
 class BitcoinTransactionListener(
     private val btcAddressStorage: BtcAddressStorage,
     private val confidenceLevel: Int,
     private val confidenceListenerExecutor: ExecutorService,
-    private val btcDepositTxHandler: BtcDepositTxHandler
+    private val btcDepositTxHandler: BtcDepositTxHandler,
+    private val depositStatistics: DepositStatistics
 ) {
-    fun onTransaction(tx: Transaction, blockTime: Date) {
+
+    /**
+     * Handles transaction of Bitcoin block
+     * @param tx - transaction to handle
+     * @param blockTime - time of block where [tx] appeared for the first time
+     * @return true if [tx] has outputs on watched addresses
+     */
+    fun onTransaction(tx: Transaction, blockTime: Date): Boolean {
         if (!hasOurAddresses(tx)) {
-            return
+            return false
         }
         if (tx.confidence.depthInBlocks >= confidenceLevel) {
             //If tx has desired depth, we call function that handles it
             logger.info { "BTC was received. Tx: ${tx.hashAsString}" }
-            btcDepositTxHandler.handleTx(tx, blockTime)
+            btcDepositTxHandler.handleTx(tx, blockTime, System.nanoTime())
         } else {
             /*
             Otherwise we will register listener, that listens to tx depth updates.
@@ -46,10 +56,12 @@ class BitcoinTransactionListener(
                     confidenceLevel,
                     tx,
                     blockTime,
-                    btcDepositTxHandler::handleTx
+                    btcDepositTxHandler::handleTx,
+                    depositStatistics
                 )
             )
         }
+        return true
     }
 
     //Checks if tx contains our addresses in its outputs
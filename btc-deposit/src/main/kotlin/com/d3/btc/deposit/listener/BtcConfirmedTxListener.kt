@@ -5,6 +5,7 @@
 
 package com.d3.btc.deposit.listener
 
+import com.d3.btc.deposit.statistics.DepositStatistics
 import mu.KLogging
 import org.bitcoinj.core.Transaction
 import org.bitcoinj.core.TransactionConfidence
@@ -16,18 +17,22 @@ import java.util.concurrent.atomic.AtomicBoolean
  * @param confidenceLevel - depth of block to wait until calling [txHandler]
  * @param tx - transaction to listen
  * @param blockTime - time of block where [tx] appeared for the first time. This time is used in MST
- * @param txHandler - function that is called when [tx] hits [confidenceLevel] depth in Blockchain
+ * @param txHandler - function that is called when [tx] hits [confidenceLevel] depth in Blockchain.
+ * The last argument is the time when the depth was reached(in nanoseconds)
+ * @param depositStatistics - statistics of deposit service. Listeners are counted as pending confirmations until they are removed
  */
 class BtcConfirmedTxListener(
     private val confidenceLevel: Int,
     private val tx: Transaction,
     private val blockTime: Date,
-    private val txHandler: (Transaction, Date) -> Unit
+    private val txHandler: (Transaction, Date, Long) -> Unit,
+    private val depositStatistics: DepositStatistics
 ) : TransactionConfidence.Listener {
     private val processed = AtomicBoolean()
 
     init {
         logger.info("Listener for ${tx.hashAsString} has been created. Block time is $blockTime")
+        depositStatistics.incPendingConfirmations()
     }
 
     override fun onConfidenceChanged(
@@ -44,13 +49,26 @@ class BtcConfirmedTxListener(
         if (currentDepth >= confidenceLevel
             && processed.compareAndSet(false, true)
         ) {
+            val confirmedNanos = System.nanoTime()
             logger.info { "BTC tx ${tx.hashAsString} was confirmed" }
-            confidence.removeEventListener(this)
-            txHandler(tx, blockTime)
+            removeListener(confidence)
+            txHandler(tx, blockTime, confirmedNanos)
+        } else if (confidence.confidenceType == TransactionConfidence.ConfidenceType.DEAD
+            && processed.compareAndSet(false, true)
+        ) {
+            // Double spent transaction will never be confirmed
+            logger.warn { "BTC tx ${tx.hashAsString} is dead" }
+            removeListener(confidence)
         }
         logger.info { "BTC tx ${tx.hashAsString} has $currentDepth confirmations" }
     }
 
+    // Stops listening to transaction. The transaction is not pending anymore
+    private fun removeListener(confidence: TransactionConfidence) {
+        confidence.removeEventListener(this)
+        depositStatistics.decPendingConfirmations()
+    }
+
     /**
      * Logger
      */
@@ -8,6 +8,7 @@ package com.d3.btc.deposit.service
 import com.d3.btc.config.BitcoinConfig
 import com.d3.btc.deposit.handler.BtcDepositTxHandler
 import com.d3.btc.deposit.listener.BtcConfirmedTxListener
+import com.d3.btc.deposit.statistics.DepositStatistics
 import com.d3.btc.peer.SharedPeerGroup
 import com.d3.btc.storage.BtcAddressStorage
 import com.d3.commons.sidechain.SideChainEvent
@@ -29,7 +30,8 @@ class BtcWalletListenerRestartService(
     private val bitcoinConfig: BitcoinConfig,
     private val confidenceListenerExecutorService: ExecutorService,
     private val peerGroup: SharedPeerGroup,
-    private val btcEventsSource: PublishSubject<SideChainEvent.PrimaryBlockChainEvent>
+    private val btcEventsSource: PublishSubject<SideChainEvent.PrimaryBlockChainEvent>,
+    private val depositStatistics: DepositStatistics
 ) {
 
     /**
@@ -106,8 +108,10 @@ class BtcWalletListenerRestartService(
             BtcDepositTxHandler(
                 btcAddressStorage,
                 btcEventsSource,
-                onTxSave
-            )::handleTx
+                onTxSave,
+                depositStatistics
+            )::handleTx,
+            depositStatistics
         )
     }
 
@@ -0,0 +1,113 @@
+/*
+ * Copyright D3 Ledger, Inc. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package com.d3.btc.deposit.statistics
+
+import com.d3.btc.statistics.LatencyHistogram
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.atomic.AtomicLong
+
+// Deposits that are not committed for longer than this are considered lost
+private val UNCOMMITTED_DEPOSIT_TTL_NANOS = TimeUnit.DAYS.toNanos(1)
+// Lost deposits are dropped once there are more uncommitted deposits than this
+private const val MAX_UNCOMMITTED_DEPOSITS = 1_000
+
+/**
+ * Data class that holds short statistics about deposit service
+ */
+data class DepositStatistics(
+    val processedBlocks: AtomicLong,
+    val scannedTransactions: AtomicLong,
+    val matchedTransactions: AtomicLong,
+    val depositEvents: AtomicLong,
+    val committedDeposits: AtomicLong,
+    val pendingConfirmations: AtomicInteger
+) {
+    private val latencies = DepositLatency.values().associate { latency -> latency to LatencyHistogram() }
+
+    // Bitcoin transaction hash -> time when its deposit event was published (in nanoseconds)
+    private val uncommittedDeposits = ConcurrentHashMap<String, Long>()
+
+    /**
+     * Registers Bitcoin block
+     * @param scannedTransactions - number of transactions in block
+     * @param matchedTransactions - number of transactions that have outputs on watched addresses
+     */
+    fun addProcessedBlock(scannedTransactions: Int, matchedTransactions: Int) {
+        this.scannedTransactions.addAndGet(scannedTransactions.toLong())
+        this.matchedTransactions.addAndGet(matchedTransactions.toLong())
+        processedBlocks.incrementAndGet()
+    }
+
+    fun incPendingConfirmations() = pendingConfirmations.incrementAndGet()
+
+    fun decPendingConfirmations() = pendingConfirmations.decrementAndGet()
+
+    /**
+     * Registers latency of deposit step
+     * @param latency - deposit step
+     * @param latencyNanos - latency in nanoseconds
+     */
+    fun observeLatency(latency: DepositLatency, latencyNanos: Long) =
+        latencies.getValue(latency).observe(TimeUnit.NANOSECONDS.toMillis(latencyNanos))
+
+    /**
+     * Registers deposit event that was published to the notary.
+     * Its latency is measured until the deposit is committed in Iroha(see [onDepositCommitted])
+     * @param txHash - hash of Bitcoin deposit transaction
+     */
+    fun onDepositEvent(txHash: String) {
+        val now = System.nanoTime()
+        depositEvents.incrementAndGet()
+        if (uncommittedDeposits.size >= MAX_UNCOMMITTED_DEPOSITS) {
+            uncommittedDeposits.values.removeIf { eventNanos -> now - eventNanos > UNCOMMITTED_DEPOSIT_TTL_NANOS }
+        }
+        // A transaction may pay to several clients. The first event is taken
+        uncommittedDeposits.putIfAbsent(txHash, now)
+    }
+
+    /**
+     * Registers deposit that has been committed in Iroha.
+     * Does nothing if the deposit event hasn't been published by this node.
+     * @param txHash - hash of Bitcoin deposit transaction
+     */
+    fun onDepositCommitted(txHash: String) {
+        uncommittedDeposits.remove(txHash)?.let { eventNanos ->
+            committedDeposits.incrementAndGet()
+            observeLatency(DepositLatency.EVENT_TO_COMMIT, System.nanoTime() - eventNanos)
+        }
+    }
+
+    /**
+     * Returns latency histograms of deposit steps
+     * @return histogram snapshots in order of steps
+     */
+    fun getLatencies() = latencies.mapValues { (_, histogram) -> histogram.snapshot() }
+
+    companion object {
+        fun create() = DepositStatistics(
+            AtomicLong(),
+            AtomicLong(),
+            AtomicLong(),
+            AtomicLong(),
+            AtomicLong(),
+            AtomicInteger()
+        )
+    }
+}
+
+/**
+ * Deposit steps which latency is measured
+ */
+enum class DepositLatency {
+    // Time from receipt of Bitcoin block till the moment a deposit transaction is found in it
+    BLOCK_TO_MATCH,
+    // Time from reaching the confidence level till publishing of deposit event
+    CONFIRMATION_TO_EVENT,
+    // Time from publishing of deposit event till its commit in Iroha
+    EVENT_TO_COMMIT
+}
@@ -9,8 +9,18 @@ import com.d3.btc.config.BitcoinConfig.Companion.extractHosts
 import com.d3.btc.deposit.config.BTC_DEPOSIT_SERVICE_NAME
 import com.d3.btc.deposit.config.BtcDepositConfig
 import com.d3.btc.deposit.handler.NewBtcChangeAddressDepositHandler
+import com.d3.btc.deposit.statistics.DepositStatistics
 import com.d3.btc.dwbridge.BTC_DW_BRIDGE_SERVICE_NAME
+import com.d3.btc.executor.createSingleThreadPool
+import com.d3.btc.fee.BtcFeeRateProvider
+import com.d3.btc.fee.BtcFileFeeRateProvider
+import com.d3.btc.fee.BtcFixedFeeRateProvider
 import com.d3.btc.handler.NewBtcClientRegistrationHandler
+import com.d3.btc.listener.IrohaBlockBus
+import com.d3.btc.metrics.MetricsRegistry
+import com.d3.btc.metrics.TimedIrohaConsumer
+import com.d3.btc.metrics.TimedIrohaQueryHelper
+import com.d3.btc.metrics.registerExecutorMetrics
 import com.d3.btc.peer.SharedPeerGroupConfig
 import com.d3.btc.provider.BtcChangeAddressProvider
 import com.d3.btc.provider.BtcRegisteredAddressesProvider
@@ -19,7 +29,6 @@ import com.d3.btc.storage.BtcAddressStorage
 import com.d3.btc.wallet.WalletInitializer
 import com.d3.btc.wallet.createWalletIfAbsent
 import com.d3.btc.wallet.loadAutoSaveWallet
-import com.d3.btc.withdrawal.config.BTC_WITHDRAWAL_SERVICE_NAME
 import com.d3.btc.withdrawal.config.BtcWithdrawalConfig
 import com.d3.btc.withdrawal.handler.*
 import com.d3.btc.withdrawal.statistics.WithdrawalStatistics
@@ -127,11 +136,14 @@ class BtcDWBridgeAppConfiguration {
     fun consensusIrohaCredential() = btcConsensusCredential
 
     @Bean
-    fun consensusIrohaConsumer() = IrohaConsumerImpl(consensusIrohaCredential(), irohaAPI())
+    fun consensusIrohaConsumer() =
+        TimedIrohaConsumer("consensus", IrohaConsumerImpl(consensusIrohaCredential(), irohaAPI()), metricsRegistry())
 
     @Bean
     fun confidenceListenerExecutorService() =
-        createPrettySingleThreadPool(BTC_DEPOSIT_SERVICE_NAME, "tx-confidence-listener")
+        createSingleThreadPool(BTC_DEPOSIT_SERVICE_NAME, "tx-confidence-listener").also { executor ->
+            registerExecutorMetrics(metricsRegistry(), "$BTC_DEPOSIT_SERVICE_NAME:tx-confidence-listener", executor)
+        }
 
     @Bean
     fun btcEventsSource(): PublishSubject<SideChainEvent.PrimaryBlockChainEvent> {
@@ -189,18 +201,22 @@ class BtcDWBridgeAppConfiguration {
     }
 
     @Bean
-    fun signatureCollectorQueryHelper() = RobustIrohaQueryHelperImpl(
-        IrohaQueryHelperImpl(irohaAPI(), signatureCollectorCredential),
-        dwBridgeConfig.irohaQueryTimeoutMls
+    fun signatureCollectorQueryHelper() = TimedIrohaQueryHelper(
+        "signature-collector", RobustIrohaQueryHelperImpl(
+            IrohaQueryHelperImpl(irohaAPI(), signatureCollectorCredential),
+            dwBridgeConfig.irohaQueryTimeoutMls
+        ), metricsRegistry()
     )
 
     @Bean
-    fun notaryQueryHelper() = RobustIrohaQueryHelperImpl(
-        IrohaQueryHelperImpl(
-            irohaAPI(),
-            depositConfig.notaryCredential.accountId,
-            notaryKeypair
-        ), dwBridgeConfig.irohaQueryTimeoutMls
+    fun notaryQueryHelper() = TimedIrohaQueryHelper(
+        "notary", RobustIrohaQueryHelperImpl(
+            IrohaQueryHelperImpl(
+                irohaAPI(),
+                depositConfig.notaryCredential.accountId,
+                notaryKeypair
+            ), dwBridgeConfig.irohaQueryTimeoutMls
+        ), metricsRegistry()
     )
 
     @Bean
@@ -213,24 +229,36 @@ class BtcDWBridgeAppConfiguration {
     }
 
     @Bean
-    fun signatureCollectorConsumer() = IrohaConsumerImpl(signatureCollectorCredential, irohaAPI())
+    fun signatureCollectorConsumer() =
+        TimedIrohaConsumer(
+            "signature-collector",
+            IrohaConsumerImpl(signatureCollectorCredential, irohaAPI()),
+            metricsRegistry()
+        )
 
     @Bean
     fun transferWallet(networkProvider: BtcNetworkConfigProvider): Wallet {
         val walletPath = depositConfig.btcTransferWalletPath
         createWalletIfAbsent(walletPath, networkProvider)
-        return loadAutoSaveWallet(walletPath)
+        return loadAutoSaveWallet(walletPath, metricsRegistry())
     }
 
     @Bean
     fun withdrawalStatistics() = WithdrawalStatistics.create()
 
+    @Bean
+    fun metricsRegistry() = MetricsRegistry()
+
+    @Bean
+    fun depositStatistics() = DepositStatistics.create()
+
     @Bean
     fun withdrawalCredential() =
         IrohaCredential(withdrawalConfig.withdrawalCredential.accountId, withdrawalKeypair)
 
     @Bean
-    fun withdrawalConsumer() = IrohaConsumerImpl(withdrawalCredential(), irohaAPI())
+    fun withdrawalConsumer() =
+        TimedIrohaConsumer("withdrawal", IrohaConsumerImpl(withdrawalCredential(), irohaAPI()), metricsRegistry())
 
     @Bean
     fun reliableWithdrawalConsumer() =
@@ -248,15 +276,18 @@ class BtcDWBridgeAppConfiguration {
     fun withdrawalConfig() = withdrawalConfig
 
     @Bean
-    fun broadcastsIrohaConsumer() = IrohaConsumerImpl(broadcastCredential, irohaAPI())
+    fun broadcastsIrohaConsumer() =
+        TimedIrohaConsumer("broadcasts", IrohaConsumerImpl(broadcastCredential, irohaAPI()), metricsRegistry())
 
     @Bean
-    fun withdrawalQueryHelper() = RobustIrohaQueryHelperImpl(
-        IrohaQueryHelperImpl(
-            irohaAPI(),
-            withdrawalCredential().accountId,
-            withdrawalCredential().keyPair
-        ), dwBridgeConfig.irohaQueryTimeoutMls
+    fun withdrawalQueryHelper() = TimedIrohaQueryHelper(
+        "withdrawal", RobustIrohaQueryHelperImpl(
+            IrohaQueryHelperImpl(
+                irohaAPI(),
+                withdrawalCredential().accountId,
+                withdrawalCredential().keyPair
+            ), dwBridgeConfig.irohaQueryTimeoutMls
+        ), metricsRegistry()
     )
 
     @Bean
@@ -302,10 +333,22 @@ class BtcDWBridgeAppConfiguration {
     @Bean
     fun utxoStorageAccount() = withdrawalConfig.utxoStorageAccount
 
+    @Bean
+    fun btcFeeRateProvider(): BtcFeeRateProvider {
+        val feeRateFilePath = withdrawalConfig.feeRateFilePath
+        return if (feeRateFilePath.isNullOrEmpty()) {
+            BtcFixedFeeRateProvider(withdrawalConfig.feeRate)
+        } else {
+            BtcFileFeeRateProvider(feeRateFilePath)
+        }
+    }
+
     /*
        I could have made it simpler by using `@Autowired handler:List<SetAccountDetailHandler>`,
        but I'm really worry that there will be unwanted handlers in IoC.
        This is why I explicitly define handlers that I want to run.
+       Client registrations are handled by the deposit service only.
+       Both services share the same wallet and address storage, so there is no need to handle them twice.
      */
     @Bean
     fun withdrawalHandlers(
@@ -313,7 +356,6 @@ class BtcDWBridgeAppConfiguration {
         newTransactionCreatedHandler: NewTransactionCreatedHandler,
         newSignatureEventHandler: NewSignatureEventHandler,
         newConsensusDataHandler: ConsensusDataCreatedHandler,
-        newBtcClientRegistrationHandler: NewBtcClientRegistrationHandler,
         newChangeAddressHandler: NewBtcChangeAddressWithdrawalHandler,
         rollbackHandler: RollbackHandler
     ) = listOf(
@@ -321,7 +363,6 @@ class BtcDWBridgeAppConfiguration {
         newTransactionCreatedHandler,
         newSignatureEventHandler,
         newConsensusDataHandler,
-        newBtcClientRegistrationHandler,
         newChangeAddressHandler,
         rollbackHandler
     )
@@ -339,24 +380,23 @@ class BtcDWBridgeAppConfiguration {
     @Bean
     fun reverseChainAdapter() = ReverseChainAdapter(reverseAdapterConfig, irohaAPI())
 
+    /**
+     * Iroha blocks are read once and shared by the deposit and the withdrawal services
+     */
     @Bean
-    fun depositReliableIrohaChainListener() = ReliableIrohaChainListener(
-        rmqConfig, depositConfig.irohaBlockQueue,
-        consumerExecutorService = createPrettySingleThreadPool(
-            BTC_DEPOSIT_SERVICE_NAME,
-            "rmq-consumer"
-        ),
-        autoAck = true
-    )
-
-    @Bean
-    fun withdrawalReliableIrohaChainListener() = ReliableIrohaChainListener(
-        rmqConfig, withdrawalConfig.irohaBlockQueue,
-        consumerExecutorService = createPrettySingleThreadPool(
-            BTC_WITHDRAWAL_SERVICE_NAME,
-            "rmq-consumer"
+    fun irohaBlockBus() = IrohaBlockBus(
+        ReliableIrohaChainListener(
+            rmqConfig, dwBridgeConfig.irohaBlockQueue,
+            consumerExecutorService = createSingleThreadPool(
+                BTC_DW_BRIDGE_SERVICE_NAME,
+                "rmq-consumer"
+            ).also { executor ->
+                registerExecutorMetrics(metricsRegistry(), "$BTC_DW_BRIDGE_SERVICE_NAME:rmq-consumer", executor)
+            },
+            autoAck = false
         ),
-        autoAck = false
+        metricsRegistry(),
+        subscribersCount = 2
     )
 
     @Bean
@@ -35,6 +35,9 @@ interface BtcDWBridgeConfig {
     /** Timeout for Iroha queries */
     val irohaQueryTimeoutMls: Int
 
+    // Name of RabbitMQ queue to read Iroha blocks from. Blocks are shared by the deposit and the withdrawal services
+    val irohaBlockQueue: String
+
     companion object {
         fun extractSeeds(btcDWBridgeConfig: BtcDWBridgeConfig): List<String> =
             extractCommaSeparatedList(btcDWBridgeConfig.dnsSeedAddresses)
@@ -36,6 +36,8 @@ const val BTC_DW_BRIDGE_SERVICE_NAME = "btc-dw-bridge"
         "com.d3.btc.withdrawal.provider",
         "com.d3.btc.withdrawal.transaction",
         "com.d3.btc.withdrawal.expansion",
+        "com.d3.btc.withdrawal.pipeline",
+        "com.d3.btc.withdrawal.statistics",
         "com.d3.btc.listener",
         "com.d3.btc.deposit.init",
         "com.d3.btc.deposit.service",
@@ -1,8 +1,16 @@
 package com.d3.btc.dwbridge.monitoring
 
 import com.d3.btc.config.BitcoinConfig
+import com.d3.btc.deposit.statistics.DepositStatistics
 import com.d3.btc.dwbridge.monitoring.routing.availableSumBtc
 import com.d3.btc.dwbridge.monitoring.routing.availableUTXOSet
+import com.d3.btc.dwbridge.monitoring.routing.depositStatistics
+import com.d3.btc.dwbridge.monitoring.routing.utxoChanges
+import com.d3.btc.dwbridge.monitoring.routing.withdrawalStages
+import com.d3.btc.dwbridge.monitoring.routing.withdrawalStatistics
+import com.d3.btc.dwbridge.monitoring.routing.withdrawalTimeline
+import com.d3.btc.withdrawal.statistics.WithdrawalStatistics
+import com.d3.btc.withdrawal.statistics.WithdrawalTimeline
 import de.nielsfalk.ktor.swagger.SwaggerSupport
 import de.nielsfalk.ktor.swagger.version.v2.Swagger
 import io.ktor.application.install
@@ -29,11 +37,16 @@ class BitcoinMonitoringEndpoint(
     private val webPort: Int,
     @Qualifier("transferWallet")
     private val transferWallet: Wallet,
-    private val bitcoinConfig: BitcoinConfig
+    private val bitcoinConfig: BitcoinConfig,
+    private val withdrawalStatistics: WithdrawalStatistics,
+    private val withdrawalTimeline: WithdrawalTimeline,
+    private val depositStatistics: DepositStatistics
 ) : Closeable {
 
     private val server: ApplicationEngine
 
+    private val utxoAggregator = UTXOAggregator(transferWallet, bitcoinConfig.confidenceLevel)
+
     init {
         server = embeddedServer(Netty, port = webPort) {
             install(CORS)
@@ -49,8 +62,13 @@ class BitcoinMonitoringEndpoint(
                 swagger = Swagger()
             }
             routing {
-                availableSumBtc(transferWallet, bitcoinConfig)
-                availableUTXOSet(transferWallet, bitcoinConfig)
+                availableSumBtc(utxoAggregator, bitcoinConfig)
+                availableUTXOSet(utxoAggregator, bitcoinConfig)
+                utxoChanges(utxoAggregator)
+                withdrawalStatistics(withdrawalStatistics)
+                withdrawalStages(withdrawalStatistics)
+                withdrawalTimeline(withdrawalTimeline)
+                depositStatistics(depositStatistics)
             }
         }
         server.start(wait = false)
@@ -58,5 +76,6 @@ class BitcoinMonitoringEndpoint(
 
     override fun close() {
         server.stop(gracePeriod = 5, timeout = 5, timeUnit = TimeUnit.SECONDS)
+        utxoAggregator.close()
     }
 }
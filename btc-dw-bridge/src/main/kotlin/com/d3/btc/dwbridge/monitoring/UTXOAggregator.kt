@@ -0,0 +1,559 @@
+/*
+ * Copyright D3 Ledger, Inc. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package com.d3.btc.dwbridge.monitoring
+
+import com.d3.btc.dwbridge.BTC_DW_BRIDGE_SERVICE_NAME
+import com.d3.btc.dwbridge.monitoring.dto.UTXOBtc
+import com.d3.btc.helper.address.outPutToBase58Address
+import com.d3.btc.helper.currency.satToBtc
+import com.d3.commons.util.createPrettySingleThreadPool
+import mu.KLogging
+import org.bitcoinj.core.Sha256Hash
+import org.bitcoinj.core.Transaction
+import org.bitcoinj.core.TransactionConfidence
+import org.bitcoinj.core.TransactionOutput
+import org.bitcoinj.utils.Threading
+import org.bitcoinj.wallet.Wallet
+import org.bitcoinj.wallet.listeners.WalletChangeEventListener
+import org.bitcoinj.wallet.listeners.WalletCoinsReceivedEventListener
+import org.bitcoinj.wallet.listeners.WalletCoinsSentEventListener
+import org.bitcoinj.wallet.listeners.WalletReorganizeEventListener
+import java.io.Closeable
+import java.util.TreeMap
+import java.util.concurrent.Callable
+import java.util.concurrent.ConcurrentLinkedQueue
+import java.util.concurrent.atomic.AtomicBoolean
+
+/**
+ * Height of UTXO which transaction is not in the best chain yet
+ */
+const val UNCONFIRMED_HEIGHT = Int.MAX_VALUE
+
+/**
+ * Aggregator of transfer wallet UTXO that serves monitoring requests without taking the wallet lock.
+ * UTXO are grouped into buckets by height of their transactions. Buckets are updated on a dedicated thread:
+ * only the buckets touched by received or spent coins are copied. Unconfirmed UTXO are checked on every wallet change
+ * as their transactions may be mined or die. The whole set is copied only on start and on chain reorganizations.
+ * Changes that happen while the set is being updated are coalesced into one more update.
+ * Differences between consecutive snapshots are published to [changeFeed].
+ * Confirmations are tracked in buckets: 0, 1, ..., [confidenceLevel]. A UTXO leaves the last bucket only when it's spent,
+ * so there are no confirmation changes for UTXO that are deep enough.
+ * @param transferWallet - wallet with transfers
+ * @param confidenceLevel - number of confirmations that makes UTXO available
+ * @param changeFeed - feed of UTXO changes
+ */
+class UTXOAggregator(
+    private val transferWallet: Wallet,
+    private val confidenceLevel: Int,
+    val changeFeed: UTXOChangeFeed = UTXOChangeFeed()
+) : Closeable {
+
+    private val executor = createPrettySingleThreadPool(BTC_DW_BRIDGE_SERVICE_NAME, "utxo-aggregator")
+
+    private val updateScheduled = AtomicBoolean()
+
+    private val rebuildRequested = AtomicBoolean()
+
+    // Transactions that may have received or spent coins of the wallet
+    private val changedTransactions = ConcurrentLinkedQueue<Transaction>()
+
+    // UTXO buckets by height. Accessed by the aggregator thread only
+    private val buckets = TreeMap<Int, UTXOBucket>()
+
+    // UTXO by outpoint. Accessed by the aggregator thread only
+    private val entries = HashMap<String, UTXOSnapshotEntry>()
+
+    @Volatile
+    private var snapshot = UTXOSnapshot(0, 0, emptyList())
+
+    // Listeners only enqueue work, so it's safe to run them on the thread that notifies
+    private val walletChangeListener = WalletChangeEventListener { scheduleUpdate() }
+
+    private val coinsReceivedListener = WalletCoinsReceivedEventListener { _, tx, _, _ -> onTransaction(tx) }
+
+    private val coinsSentListener = WalletCoinsSentEventListener { _, tx, _, _ -> onTransaction(tx) }
+
+    private val reorganizeListener = WalletReorganizeEventListener {
+        rebuildRequested.set(true)
+        scheduleUpdate()
+    }
+
+    init {
+        // Listeners are registered first, so no change is missed
+        transferWallet.addCoinsReceivedEventListener(Threading.SAME_THREAD, coinsReceivedListener)
+        transferWallet.addCoinsSentEventListener(Threading.SAME_THREAD, coinsSentListener)
+        transferWallet.addReorganizeEventListener(Threading.SAME_THREAD, reorganizeListener)
+        transferWallet.addChangeEventListener(Threading.SAME_THREAD, walletChangeListener)
+        rebuildRequested.set(true)
+        executor.submit(Callable { update() }).get()
+    }
+
+    /**
+     * Returns the latest snapshot of UTXO set. Never takes the wallet lock
+     * @return UTXO snapshot
+     */
+    fun getSnapshot() = snapshot
+
+    private fun onTransaction(tx: Transaction) {
+        changedTransactions.add(tx)
+        scheduleUpdate()
+    }
+
+    private fun scheduleUpdate() {
+        if (updateScheduled.compareAndSet(false, true)) {
+            executor.execute {
+                updateScheduled.set(false)
+                try {
+                    update()
+                } catch (e: Exception) {
+                    logger.error("Cannot aggregate UTXO of transfer wallet", e)
+                    // The buckets may be inconsistent now
+                    rebuildRequested.set(true)
+                }
+            }
+        }
+    }
+
+    /**
+     * Applies wallet changes to buckets and publishes a new snapshot. Runs on the aggregator thread
+     */
+    private fun update() {
+        val oldSnapshot = snapshot
+        if (rebuildRequested.getAndSet(false)) {
+            changedTransactions.clear()
+            rebuild()
+            publish(oldSnapshot, UTXOSnapshot(oldSnapshot.version + 1, transferWallet.lastBlockSeenHeight, buckets.values))
+            return
+        }
+        val changes = UTXOChanges()
+        while (true) {
+            val tx = changedTransactions.poll() ?: break
+            tx.inputs.forEach { input ->
+                changes.remove("${input.outpoint.hash}:${input.outpoint.index}")
+            }
+            tx.outputs
+                .filter { output -> output.isMine(transferWallet) && output.isAvailableForSpending }
+                .forEach { output -> changes.add(createEntry(output)) }
+        }
+        // Transactions of unconfirmed UTXO may be mined or die
+        buckets[UNCONFIRMED_HEIGHT]?.entries?.forEach { entry ->
+            val confidence = transferWallet.getTransaction(Sha256Hash.wrap(entry.txHash))?.confidence
+            if (confidence == null || confidence.confidenceType == TransactionConfidence.ConfidenceType.DEAD) {
+                changes.remove(entry.outPoint)
+            } else if (confidence.confidenceType == TransactionConfidence.ConfidenceType.BUILDING) {
+                changes.remove(entry.outPoint)
+                changes.add(entry.withHeight(confidence.appearedAtChainHeight))
+            }
+        }
+        val newSnapshot = UTXOSnapshot(oldSnapshot.version + 1, transferWallet.lastBlockSeenHeight, apply(changes))
+        publish(oldSnapshot, newSnapshot, changes)
+    }
+
+    /**
+     * Applies changes to buckets. Only the buckets that are touched by the changes are copied
+     * @param changes - changes to apply
+     * @return live view of buckets sorted by height
+     */
+    private fun apply(changes: UTXOChanges): Collection<UTXOBucket> {
+        val removedByHeight = changes.removed.values.groupBy { entry -> entry.height }
+        val addedByHeight = changes.added.values.groupBy { entry -> entry.height }
+        changes.removed.keys.forEach { outPoint -> entries.remove(outPoint) }
+        changes.added.values.forEach { entry -> entries[entry.outPoint] = entry }
+        (removedByHeight.keys + addedByHeight.keys).forEach { height ->
+            val removedOutPoints = removedByHeight[height].orEmpty().mapTo(HashSet()) { entry -> entry.outPoint }
+            val bucketEntries = buckets[height]?.entries.orEmpty()
+                .filter { entry -> !removedOutPoints.contains(entry.outPoint) } + addedByHeight[height].orEmpty()
+            if (bucketEntries.isEmpty()) {
+                buckets.remove(height)
+            } else {
+                buckets[height] = UTXOBucket(height, bucketEntries)
+            }
+        }
+        return buckets.values
+    }
+
+    /**
+     * Copies UTXO set of the wallet into buckets
+     */
+    private fun rebuild() {
+        buckets.clear()
+        entries.clear()
+        transferWallet.unspents.forEach { output ->
+            val entry = createEntry(output)
+            entries[entry.outPoint] = entry
+        }
+        entries.values.groupBy { entry -> entry.height }
+            .forEach { (height, bucketEntries) -> buckets[height] = UTXOBucket(height, bucketEntries) }
+    }
+
+    private fun createEntry(output: TransactionOutput): UTXOSnapshotEntry {
+        val confidence = output.parentTransaction!!.confidence
+        return UTXOSnapshotEntry(
+            output.parentTransactionHash.toString(),
+            output.index,
+            outPutToBase58Address(output),
+            output.value.value,
+            if (confidence.confidenceType == TransactionConfidence.ConfidenceType.BUILDING)
+                confidence.appearedAtChainHeight else UNCONFIRMED_HEIGHT
+        )
+    }
+
+    /**
+     * Publishes snapshot and its differences from the previous snapshot
+     * @param oldSnapshot - previous snapshot
+     * @param newSnapshot - snapshot to publish
+     * @param changes - changes that turn the previous snapshot into the new one. Null if all UTXO must be compared
+     */
+    private fun publish(oldSnapshot: UTXOSnapshot, newSnapshot: UTXOSnapshot, changes: UTXOChanges? = null) {
+        snapshot = newSnapshot
+        // The initial UTXO set is not a change
+        if (oldSnapshot.version == 0L) {
+            return
+        }
+        val feedChanges = if (changes == null) {
+            compareSnapshots(oldSnapshot, newSnapshot, confidenceLevel)
+        } else {
+            compareChanged(oldSnapshot, newSnapshot, changes)
+        }
+        val sumSat = newSnapshot.sumSat(confidenceLevel)
+        val sumBtc = if (sumSat != oldSnapshot.sumSat(confidenceLevel)) satToBtc(sumSat).toPlainString() else null
+        changeFeed.publish(newSnapshot.version, feedChanges, sumBtc)
+    }
+
+    /**
+     * Compares snapshots using changes that turn one into another.
+     * Besides changed UTXO, only the UTXO that were not deep enough in the previous snapshot are compared
+     * @param oldSnapshot - previous snapshot
+     * @param newSnapshot - current snapshot
+     * @param changes - changes that turn the previous snapshot into the new one
+     * @return changes for the change feed
+     */
+    private fun compareChanged(
+        oldSnapshot: UTXOSnapshot,
+        newSnapshot: UTXOSnapshot,
+        changes: UTXOChanges
+    ): List<Pair<UTXOChangeType, UTXOBtc?>> {
+        val feedChanges = ArrayList<Pair<UTXOChangeType, UTXOBtc?>>()
+        changes.removed.values
+            .filter { entry -> !changes.added.containsKey(entry.outPoint) }
+            .forEach { entry -> feedChanges.add(Pair(UTXOChangeType.SPENT, oldSnapshot.toUTXOBtc(entry))) }
+        changes.added.values.forEach { entry ->
+            val oldEntry = changes.removed[entry.outPoint]
+            if (oldEntry == null) {
+                feedChanges.add(Pair(UTXOChangeType.ADDED, newSnapshot.toUTXOBtc(entry)))
+            } else if (confirmationBucket(oldSnapshot, oldEntry) != confirmationBucket(newSnapshot, entry)) {
+                feedChanges.add(Pair(UTXOChangeType.CONFIRMED, newSnapshot.toUTXOBtc(entry)))
+            }
+        }
+        // Heights of confirmed UTXO don't change without reorganizations, so only new blocks change their buckets
+        newSnapshot.shallowBuckets(Math.min(oldSnapshot.bestHeight, newSnapshot.bestHeight), confidenceLevel)
+            .filter { bucket ->
+                confirmationBucket(oldSnapshot, bucket.height) != confirmationBucket(newSnapshot, bucket.height)
+            }
+            .flatMap { bucket -> bucket.entries }
+            .filter { entry -> !changes.added.containsKey(entry.outPoint) }
+            .forEach { entry -> feedChanges.add(Pair(UTXOChangeType.CONFIRMED, newSnapshot.toUTXOBtc(entry))) }
+        return feedChanges
+    }
+
+    private fun confirmationBucket(snapshot: UTXOSnapshot, entry: UTXOSnapshotEntry) =
+        confirmationBucket(snapshot, entry.height)
+
+    private fun confirmationBucket(snapshot: UTXOSnapshot, height: Int) =
+        confirmationBucket(snapshot, height, confidenceLevel)
+
+    override fun close() {
+        transferWallet.removeChangeEventListener(walletChangeListener)
+        transferWallet.removeReorganizeEventListener(reorganizeListener)
+        transferWallet.removeCoinsSentEventListener(coinsSentListener)
+        transferWallet.removeCoinsReceivedEventListener(coinsReceivedListener)
+        executor.shutdownNow()
+    }
+
+    /**
+     * Logger
+     */
+    companion object : KLogging()
+
+    /**
+     * UTXO that are added and removed by one update. A UTXO that is both removed and added has moved to another height
+     */
+    private inner class UTXOChanges {
+        val added = LinkedHashMap<String, UTXOSnapshotEntry>()
+        val removed = LinkedHashMap<String, UTXOSnapshotEntry>()
+
+        fun add(entry: UTXOSnapshotEntry) {
+            // Coins may be reported by several listeners
+            if (added.containsKey(entry.outPoint)
+                || (entries.containsKey(entry.outPoint) && !removed.containsKey(entry.outPoint))
+            ) {
+                return
+            }
+            added[entry.outPoint] = entry
+        }
+
+        fun remove(outPoint: String) {
+            if (added.remove(outPoint) != null) {
+                return
+            }
+            entries[outPoint]?.let { entry -> removed[outPoint] = entry }
+        }
+    }
+}
+
+/**
+ * Immutable snapshot of UTXO set
+ * @param version - version of snapshot. Incremented on every wallet change
+ * @param bestHeight - height of the best chain that UTXO confirmations are counted from
+ * @param buckets - UTXO buckets sorted by height in ascending order
+ */
+class UTXOSnapshot(val version: Long, val bestHeight: Int, buckets: Collection<UTXOBucket>) {
+
+    private val buckets = ArrayList(buckets)
+
+    // Number of UTXO in the first N buckets is located at index N-1
+    private val cumulativeCounts = IntArray(this.buckets.size)
+
+    // Sum of values of UTXO in the first N buckets is located at index N-1
+    private val cumulativeValuesSat = LongArray(this.buckets.size)
+
+    // UTXO sorted by their outpoints. Used for pagination as outpoints don't change over time
+    private val entriesByOutPoint by lazy { entries().sortedWith(OUT_POINT_ORDER).toList() }
+
+    init {
+        var count = 0
+        var sumSat = 0L
+        this.buckets.forEachIndexed { index, bucket ->
+            count += bucket.entries.size
+            sumSat += bucket.sumSat
+            cumulativeCounts[index] = count
+            cumulativeValuesSat[index] = sumSat
+        }
+    }
+
+    /**
+     * Returns number of confirmations of UTXO
+     * @param height - height of UTXO transaction
+     * @return number of confirmations(depth in blocks)
+     */
+    fun confirmations(height: Int) = if (height == UNCONFIRMED_HEIGHT) 0 else Math.max(1, bestHeight - height + 1)
+
+    /**
+     * Returns number of UTXO that have enough confirmations
+     * @param minConfirmations - minimum number of confirmations(depth in blocks)
+     * @return number of UTXO
+     */
+    fun count(minConfirmations: Int): Int {
+        val bucketsCount = bucketsCount(minConfirmations)
+        return if (bucketsCount == 0) 0 else cumulativeCounts[bucketsCount - 1]
+    }
+
+    /**
+     * Returns sum of UTXO that have enough confirmations
+     * @param minConfirmations - minimum number of confirmations(depth in blocks)
+     * @return sum in SAT
+     */
+    fun sumSat(minConfirmations: Int): Long {
+        val bucketsCount = bucketsCount(minConfirmations)
+        return if (bucketsCount == 0) 0 else cumulativeValuesSat[bucketsCount - 1]
+    }
+
+    /**
+     * Returns number of buckets which UTXO have enough confirmations
+     * @param minConfirmations - minimum number of confirmations(depth in blocks)
+     * @return number of the first buckets
+     */
+    private fun bucketsCount(minConfirmations: Int): Int {
+        // Buckets are sorted by height, so the first bucket with not enough confirmations is searched
+        var low = 0
+        var high = buckets.size
+        while (low < high) {
+            val middle = (low + high) ushr 1
+            if (confirmations(buckets[middle].height) >= minConfirmations) {
+                low = middle + 1
+            } else {
+                high = middle
+            }
+        }
+        return low
+    }
+
+    /**
+     * Returns buckets which UTXO are confirmed, but not deep enough
+     * @param bestHeight - height of the best chain that confirmations are counted from
+     * @param confidenceLevel - number of confirmations that makes UTXO deep enough
+     * @return buckets sorted by height
+     */
+    fun shallowBuckets(bestHeight: Int, confidenceLevel: Int) =
+        buckets.filter { bucket -> bucket.height != UNCONFIRMED_HEIGHT && bestHeight - bucket.height + 1 < confidenceLevel }
+
+    /**
+     * Returns all UTXO of snapshot
+     * @return sequence of UTXO sorted by height
+     */
+    fun entries() = buckets.asSequence().flatMap { bucket -> bucket.entries.asSequence() }
+
+    /**
+     * Converts UTXO into DTO
+     * @param entry - UTXO of snapshot
+     * @return UTXO data that is returned to clients
+     */
+    fun toUTXOBtc(entry: UTXOSnapshotEntry) = UTXOBtc(
+        confirmations(entry.height),
+        satToBtc(entry.valueSat).toPlainString(),
+        entry.txHash,
+        entry.outputIndex,
+        entry.receiverAddress
+    )
+
+    /**
+     * Returns UTXO that match filter in order of their outpoints. UTXO are filtered lazily
+     * @param filter - UTXO filter
+     * @param cursor - outpoint of the last UTXO that was returned before(see [UTXOSnapshotEntry.outPoint]).
+     * Only UTXO that follow the cursor are returned. Null to start from the beginning.
+     * @return sequence of UTXO
+     */
+    fun utxoSequence(filter: UTXOFilter, cursor: String?): Sequence<UTXOSnapshotEntry> {
+        val from = if (cursor == null) 0 else firstAfter(parseOutPoint(cursor))
+        return (from until entriesByOutPoint.size).asSequence()
+            .map { index -> entriesByOutPoint[index] }
+            .filter { entry -> filter.matches(entry, confirmations(entry.height)) }
+    }
+
+    /**
+     * Returns index of the first UTXO that follows outpoint
+     * @param outPoint - outpoint in a form <transaction hash, output index>
+     * @return index in [entriesByOutPoint]
+     */
+    private fun firstAfter(outPoint: Pair<String, Int>): Int {
+        var low = 0
+        var high = entriesByOutPoint.size
+        while (low < high) {
+            val middle = (low + high) ushr 1
+            val entry = entriesByOutPoint[middle]
+            if (compareOutPoints(entry.txHash, entry.outputIndex, outPoint.first, outPoint.second) <= 0) {
+                low = middle + 1
+            } else {
+                high = middle
+            }
+        }
+        return low
+    }
+}
+
+/**
+ * Immutable group of UTXO which transactions have the same height
+ * @param height - height of UTXO transactions. [UNCONFIRMED_HEIGHT] for UTXO which transactions are not mined yet
+ * @param entries - UTXO of bucket
+ */
+class UTXOBucket(val height: Int, val entries: List<UTXOSnapshotEntry>) {
+
+    /**
+     * Sum of UTXO values in SAT
+     */
+    val sumSat = entries.fold(0L) { sum, entry -> sum + entry.valueSat }
+}
+
+/**
+ * UTXO of snapshot. Confirmations are not stored as they change with every block(see [UTXOSnapshot.confirmations])
+ * @param txHash - hash of UTXO transaction
+ * @param outputIndex - index of UTXO in its transaction
+ * @param receiverAddress - address that UTXO is sent to
+ * @param valueSat - value of UTXO in SAT
+ * @param height - height of UTXO transaction. [UNCONFIRMED_HEIGHT] if the transaction is not mined yet
+ */
+class UTXOSnapshotEntry(
+    val txHash: String,
+    val outputIndex: Int,
+    val receiverAddress: String,
+    val valueSat: Long,
+    val height: Int
+) {
+
+    /**
+     * Outpoint of UTXO in a form 'transaction hash:output index'. Used as a pagination cursor
+     */
+    val outPoint: String
+        get() = "$txHash:$outputIndex"
+
+    /**
+     * Returns the same UTXO at another height
+     * @param height - new height of UTXO transaction
+     * @return UTXO of snapshot
+     */
+    fun withHeight(height: Int) = UTXOSnapshotEntry(txHash, outputIndex, receiverAddress, valueSat, height)
+}
+
+/**
+ * Filter of UTXO
+ * @param minConfirmations - minimum number of confirmations(depth in blocks)
+ * @param address - address that UTXO must be sent to. Null to accept any address
+ * @param minValueSat - minimum value of UTXO in SAT
+ */
+data class UTXOFilter(val minConfirmations: Int, val address: String? = null, val minValueSat: Long = 0) {
+
+    fun matches(entry: UTXOSnapshotEntry, confirmations: Int) = confirmations >= minConfirmations
+            && (address == null || entry.receiverAddress == address)
+            && entry.valueSat >= minValueSat
+}
+
+/**
+ * Compares snapshots UTXO by UTXO. Used after rebuilds of UTXO set
+ * @param oldSnapshot - previous snapshot
+ * @param newSnapshot - current snapshot
+ * @param confidenceLevel - number of confirmations that makes UTXO available
+ * @return changes for the change feed
+ */
+internal fun compareSnapshots(
+    oldSnapshot: UTXOSnapshot,
+    newSnapshot: UTXOSnapshot,
+    confidenceLevel: Int
+): List<Pair<UTXOChangeType, UTXOBtc?>> {
+    val oldEntries = oldSnapshot.entries().associateBy { entry -> entry.outPoint }
+    val changes = ArrayList<Pair<UTXOChangeType, UTXOBtc?>>()
+    newSnapshot.entries().forEach { entry ->
+        val oldEntry = oldEntries[entry.outPoint]
+        if (oldEntry == null) {
+            changes.add(Pair(UTXOChangeType.ADDED, newSnapshot.toUTXOBtc(entry)))
+        } else if (confirmationBucket(oldSnapshot, oldEntry.height, confidenceLevel) !=
+            confirmationBucket(newSnapshot, entry.height, confidenceLevel)
+        ) {
+            changes.add(Pair(UTXOChangeType.CONFIRMED, newSnapshot.toUTXOBtc(entry)))
+        }
+    }
+    val newOutPoints = newSnapshot.entries().mapTo(HashSet()) { entry -> entry.outPoint }
+    oldSnapshot.entries()
+        .filter { entry -> !newOutPoints.contains(entry.outPoint) }
+        .forEach { entry -> changes.add(Pair(UTXOChangeType.SPENT, oldSnapshot.toUTXOBtc(entry))) }
+    return changes
+}
+
+private fun confirmationBucket(snapshot: UTXOSnapshot, height: Int, confidenceLevel: Int) =
+    Math.min(snapshot.confirmations(height), confidenceLevel)
+
+private val OUT_POINT_ORDER = Comparator<UTXOSnapshotEntry> { first, second ->
+    compareOutPoints(first.txHash, first.outputIndex, second.txHash, second.outputIndex)
+}
+
+private fun compareOutPoints(firstTxHash: String, firstIndex: Int, secondTxHash: String, secondIndex: Int): Int {
+    val txHashComparison = firstTxHash.compareTo(secondTxHash)
+    return if (txHashComparison != 0) txHashComparison else firstIndex.compareTo(secondIndex)
+}
+
+/**
+ * Parses outpoint
+ * @param outPoint - outpoint in a form 'transaction hash:output index'
+ * @return outpoint in a form <transaction hash, output index>
+ * @throws IllegalArgumentException if outpoint is malformed
+ */
+private fun parseOutPoint(outPoint: String): Pair<String, Int> {
+    val separator = outPoint.lastIndexOf(':')
+    val outputIndex = if (separator > 0) outPoint.substring(separator + 1).toIntOrNull() else null
+    if (outputIndex == null) {
+        throw IllegalArgumentException("Malformed cursor $outPoint")
+    }
+    return Pair(outPoint.substring(0, separator), outputIndex)
+}
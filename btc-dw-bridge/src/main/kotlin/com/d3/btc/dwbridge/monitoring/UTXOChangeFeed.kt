@@ -0,0 +1,120 @@
+/*
+ * Copyright D3 Ledger, Inc. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package com.d3.btc.dwbridge.monitoring
+
+import com.d3.btc.dwbridge.monitoring.dto.UTXOBtc
+import com.d3.btc.dwbridge.monitoring.dto.UTXOChangeEventBtc
+import kotlinx.coroutines.channels.Channel
+import java.util.*
+import java.util.concurrent.CopyOnWriteArrayList
+
+// Number of the latest events that are kept for resumption
+private const val DEFAULT_FEED_CAPACITY = 10_000
+// Maximum number of events that are returned at once
+private const val MAX_EVENTS_BATCH = 1_000
+
+/**
+ * Feed of transfer wallet UTXO changes.
+ * Every event gets a sequence number, so subscribers may resume reading after reconnection.
+ * Only the latest events are kept. Subscribers that are too far behind must reload the UTXO set.
+ * @param capacity - number of the latest events that are kept
+ */
+class UTXOChangeFeed(private val capacity: Int = DEFAULT_FEED_CAPACITY) {
+
+    private val events = ArrayDeque<UTXOChangeEventBtc>()
+
+    private var lastSequence = 0L
+
+    // Subscribers are notified about new events through conflated channels
+    private val subscribers = CopyOnWriteArrayList<Channel<Unit>>()
+
+    /**
+     * Publishes changes of UTXO set
+     * @param version - version of UTXO snapshot that has the changes applied
+     * @param changes - changes in a form <type, changed UTXO or null for balance changes>
+     * @param sumBtc - available sum of BTC after the changes or null if the sum hasn't changed
+     */
+    fun publish(version: Long, changes: List<Pair<UTXOChangeType, UTXOBtc?>>, sumBtc: String?) {
+        if (changes.isEmpty() && sumBtc == null) {
+            return
+        }
+        synchronized(this) {
+            changes.forEach { (type, utxo) -> append(UTXOChangeEventBtc(++lastSequence, type.name, version, utxo, null)) }
+            if (sumBtc != null) {
+                append(UTXOChangeEventBtc(++lastSequence, UTXOChangeType.BALANCE.name, version, null, sumBtc))
+            }
+        }
+        subscribers.forEach { subscriber -> subscriber.offer(Unit) }
+    }
+
+    /**
+     * Returns events that follow the given sequence number
+     * @param sequence - sequence number of the last event that was read
+     * @return events in order of sequence numbers or null if some events that follow the sequence number are lost
+     */
+    @Synchronized
+    fun eventsAfter(sequence: Long): List<UTXOChangeEventBtc>? {
+        if (sequence >= lastSequence) {
+            return emptyList()
+        }
+        val firstSequence = events.peekFirst()?.sequence ?: lastSequence + 1
+        if (sequence + 1 < firstSequence) {
+            return null
+        }
+        return events.asSequence()
+            .dropWhile { event -> event.sequence <= sequence }
+            .take(MAX_EVENTS_BATCH)
+            .toList()
+    }
+
+    /**
+     * Returns sequence number of the last published event
+     */
+    @Synchronized
+    fun lastSequence() = lastSequence
+
+    /**
+     * Subscribes to new events
+     * @return channel that receives a signal once new events are published
+     */
+    fun subscribe(): Channel<Unit> {
+        val subscriber = Channel<Unit>(Channel.CONFLATED)
+        subscribers.add(subscriber)
+        return subscriber
+    }
+
+    /**
+     * Unsubscribes from new events
+     * @param subscriber - channel that was returned by [subscribe]
+     */
+    fun unsubscribe(subscriber: Channel<Unit>) {
+        subscribers.remove(subscriber)
+        subscriber.close()
+    }
+
+    private fun append(event: UTXOChangeEventBtc) {
+        events.addLast(event)
+        if (events.size > capacity) {
+            events.removeFirst()
+        }
+    }
+}
+
+/**
+ * Types of UTXO changes
+ */
+enum class UTXOChangeType {
+    // New UTXO appeared
+    ADDED,
+    // UTXO was spent or removed by reorganization
+    SPENT,
+    // UTXO moved to another confirmation bucket(see [UTXOAggregator])
+    CONFIRMED,
+    // Available sum of BTC changed
+    BALANCE,
+    // Events were lost. The UTXO set must be reloaded. Never published, only sent to subscribers
+    RESET
+}
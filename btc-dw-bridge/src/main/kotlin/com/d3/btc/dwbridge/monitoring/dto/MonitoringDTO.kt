@@ -3,14 +3,99 @@ package com.d3.btc.dwbridge.monitoring.dto
 import java.math.BigDecimal
 
 /**
- * Class that represents available BTC sum
+ * Class that represents available BTC sum.
+ * The version identifies the UTXO snapshot the sum was computed from
  */
-data class AvailableSumBtc(val sumBtc: String)
+data class AvailableSumBtc(val sumBtc: String, val utxoCount: Int, val version: Long)
 
 /**
- * Class that represents available UTXO set
+ * Class that represents a page of available UTXO set.
+ * The version identifies the UTXO snapshot the page was taken from.
+ * The next cursor is used to request the next page. It's absent on the last page
  */
-data class UTXOSetBtc(val utxoList: List<UTXOBtc>)
+data class UTXOSetBtc(val utxoList: List<UTXOBtc>, val version: Long, val nextCursor: String? = null)
+
+/**
+ * Class that represents change of available UTXO set.
+ * The version identifies the UTXO snapshot that has the change applied.
+ * UTXO is absent for balance changes and resets, sum is present only for balance changes
+ */
+data class UTXOChangeEventBtc(
+    val sequence: Long,
+    val type: String,
+    val version: Long,
+    val utxo: UTXOBtc?,
+    val sumBtc: String?
+)
+
+/**
+ * Class that represents withdrawal statistics
+ */
+data class WithdrawalStatisticsBtc(
+    val totalTransfers: Int,
+    val failedTransfers: Int,
+    val succeededTransfers: Int,
+    val pendingBroadcasts: Int
+)
+
+/**
+ * Class that represents deposit statistics
+ */
+data class DepositStatisticsBtc(
+    val processedBlocks: Long,
+    val scannedTransactions: Long,
+    val matchedTransactions: Long,
+    val depositEvents: Long,
+    val committedDeposits: Long,
+    val pendingConfirmations: Int,
+    val latencies: Map<String, LatencyHistogramBtc>
+)
+
+/**
+ * Class that represents withdrawal stages: latencies of withdrawal steps and withdrawals in progress by stage
+ */
+data class WithdrawalStagesBtc(
+    val inFlightWithdrawals: Map<String, Int>,
+    val latencies: Map<String, LatencyHistogramBtc>
+)
+
+/**
+ * Class that represents timeline of withdrawal as it is seen by the current node
+ */
+data class WithdrawalTimelineBtc(
+    val withdrawalHash: String,
+    val events: List<WithdrawalTimelineEventBtc>
+)
+
+/**
+ * Class that represents withdrawal timeline event
+ */
+data class WithdrawalTimelineEventBtc(
+    val type: String,
+    val time: Long,
+    val details: String?
+)
+
+/**
+ * Class that represents latency histogram
+ */
+data class LatencyHistogramBtc(
+    val count: Long,
+    val sumMillis: Long,
+    val maxMillis: Long,
+    val p50Millis: Long,
+    val p95Millis: Long,
+    val p99Millis: Long,
+    val buckets: List<LatencyBucketBtc>
+)
+
+/**
+ * Class that represents latency histogram bucket. Overflow bucket has no upper bound
+ */
+data class LatencyBucketBtc(
+    val upperBoundMillis: Long?,
+    val count: Long
+)
 
 /**
  * Class that represents UTXO item
@@ -1,21 +1,55 @@
 package com.d3.btc.dwbridge.monitoring.routing
 
 import com.d3.btc.config.BitcoinConfig
+import com.d3.btc.deposit.statistics.DepositStatistics
+import com.d3.btc.dwbridge.monitoring.UTXOAggregator
+import com.d3.btc.dwbridge.monitoring.UTXOChangeType
+import com.d3.btc.dwbridge.monitoring.UTXOFilter
+import com.d3.btc.dwbridge.monitoring.UTXOSnapshot
+import com.d3.btc.dwbridge.monitoring.UTXOSnapshotEntry
 import com.d3.btc.dwbridge.monitoring.dto.AvailableSumBtc
+import com.d3.btc.dwbridge.monitoring.dto.DepositStatisticsBtc
+import com.d3.btc.dwbridge.monitoring.dto.LatencyBucketBtc
+import com.d3.btc.dwbridge.monitoring.dto.LatencyHistogramBtc
 import com.d3.btc.dwbridge.monitoring.dto.UTXOBtc
+import com.d3.btc.dwbridge.monitoring.dto.UTXOChangeEventBtc
 import com.d3.btc.dwbridge.monitoring.dto.UTXOSetBtc
-import com.d3.btc.helper.address.outPutToBase58Address
+import com.d3.btc.dwbridge.monitoring.dto.WithdrawalStagesBtc
+import com.d3.btc.dwbridge.monitoring.dto.WithdrawalStatisticsBtc
+import com.d3.btc.dwbridge.monitoring.dto.WithdrawalTimelineBtc
+import com.d3.btc.dwbridge.monitoring.dto.WithdrawalTimelineEventBtc
+import com.d3.btc.helper.currency.btcToSat
 import com.d3.btc.helper.currency.satToBtc
+import com.d3.btc.statistics.LatencyHistogramSnapshot
+import com.d3.btc.withdrawal.statistics.WithdrawalStatistics
+import com.d3.btc.withdrawal.statistics.WithdrawalTimeline
+import com.d3.commons.util.GsonInstance
+import com.google.gson.stream.JsonWriter
 import de.nielsfalk.ktor.swagger.created
 import de.nielsfalk.ktor.swagger.description
 import de.nielsfalk.ktor.swagger.get
 import de.nielsfalk.ktor.swagger.responds
 import de.nielsfalk.ktor.swagger.version.shared.Group
 import io.ktor.application.call
+import io.ktor.http.ContentType
+import io.ktor.http.HttpStatusCode
 import io.ktor.locations.Location
 import io.ktor.response.respond
+import io.ktor.response.respondText
+import io.ktor.response.respondTextWriter
 import io.ktor.routing.Routing
-import org.bitcoinj.wallet.Wallet
+import kotlinx.coroutines.withTimeoutOrNull
+import java.io.Writer
+import java.math.BigDecimal
+
+// Number of UTXO on page if only 'cursor' parameter is set
+private const val DEFAULT_UTXO_PAGE_SIZE = 1_000
+// Maximum number of UTXO on page
+private const val MAX_UTXO_PAGE_SIZE = 10_000
+// Period of keep-alive comments in UTXO change stream
+private const val UTXO_CHANGES_KEEP_ALIVE_MILLIS = 15_000L
+
+private val gson = GsonInstance.get()
 
 @Group("monitoring")
 @Location("/monitoring/sumBtc")
@@ -25,13 +59,33 @@ class SumBtcLocation
 @Location("/monitoring/utxo")
 class UTXOBtcLocation
 
+@Group("monitoring")
+@Location("/monitoring/utxo/changes")
+class UTXOChangesLocation
+
+@Group("monitoring")
+@Location("/monitoring/deposit/statistics")
+class DepositStatisticsLocation
+
+@Group("monitoring")
+@Location("/monitoring/withdrawal/statistics")
+class WithdrawalStatisticsLocation
+
+@Group("monitoring")
+@Location("/monitoring/withdrawal/stages")
+class WithdrawalStagesLocation
+
+@Group("monitoring")
+@Location("/monitoring/withdrawal/timeline/{withdrawalHash}")
+class WithdrawalTimelineLocation(val withdrawalHash: String)
+
 /**
  * Monitors available amount of BTC
  *
- * @param transferWallet - wallet with transfers
+ * @param utxoAggregator - aggregator of transfer wallet UTXO
  * @param bitcoinConfig - Bitcoin config object
  */
-fun Routing.availableSumBtc(transferWallet: Wallet, bitcoinConfig: BitcoinConfig) {
+fun Routing.availableSumBtc(utxoAggregator: UTXOAggregator, bitcoinConfig: BitcoinConfig) {
     get<SumBtcLocation>(
         "all"
             .description("Returns available sum of BTC")
@@ -39,62 +93,287 @@ fun Routing.availableSumBtc(transferWallet: Wallet, bitcoinConfig: BitcoinConfig
     ) {
         val confirmations = call.parameters["confirmations"]
         if (confirmations == null) {
-            call.respond(getAvailableSumBtc(transferWallet, bitcoinConfig.confidenceLevel))
+            call.respond(getAvailableSumBtc(utxoAggregator.getSnapshot(), bitcoinConfig.confidenceLevel))
         } else {
-            call.respond(getAvailableSumBtc(transferWallet, confirmations.toInt()))
+            call.respond(getAvailableSumBtc(utxoAggregator.getSnapshot(), confirmations.toInt()))
         }
     }
 }
 
 /**
- * Monitors available UTXO set
+ * Monitors available UTXO set.
+ * UTXO are returned in order of their outpoints. If 'cursor' or 'limit' parameter is set, UTXO are returned page by page.
+ * Otherwise, all the matching UTXO are returned at once.
+ * UTXO may be filtered by 'confirmations', 'address' and 'minBtcAmount' parameters.
+ * If 'stream' parameter is true, all the matching UTXO are streamed in one chunked response instead.
  *
- * @param transferWallet - wallet with transfers
+ * @param utxoAggregator - aggregator of transfer wallet UTXO
  * @param bitcoinConfig - Bitcoin config object
  */
-fun Routing.availableUTXOSet(transferWallet: Wallet, bitcoinConfig: BitcoinConfig) {
+fun Routing.availableUTXOSet(utxoAggregator: UTXOAggregator, bitcoinConfig: BitcoinConfig) {
     get<UTXOBtcLocation>(
         "all"
-            .description("Returns available UTXO set")
+            .description("Returns available UTXO set page by page or as a stream")
             .responds(created<UTXOSetBtc>())
     ) {
-        val confirmations = call.parameters["confirmations"]
-        if (confirmations == null) {
-            call.respond(getUTXOSet(transferWallet, bitcoinConfig.confidenceLevel))
+        val snapshot = utxoAggregator.getSnapshot()
+        val utxoSequence: Sequence<UTXOSnapshotEntry>
+        val limit: Int?
+        try {
+            val filter = UTXOFilter(
+                call.parameters["confirmations"]?.toInt() ?: bitcoinConfig.confidenceLevel,
+                call.parameters["address"],
+                call.parameters["minBtcAmount"]?.let { minBtcAmount -> btcToSat(BigDecimal(minBtcAmount)) } ?: 0
+            )
+            utxoSequence = snapshot.utxoSequence(filter, call.parameters["cursor"])
+            limit = parseLimit(call.parameters["limit"], call.parameters["cursor"] != null)
+        } catch (e: IllegalArgumentException) {
+            call.respondText(e.message ?: "Bad request", status = HttpStatusCode.BadRequest)
+            return@get
+        }
+        if (call.parameters["stream"]?.toBoolean() == true) {
+            call.respondTextWriter(ContentType.Application.Json) { writeUTXOSet(this, snapshot, utxoSequence) }
         } else {
-            call.respond(getUTXOSet(transferWallet, confirmations.toInt()))
+            call.respond(getUTXOSet(snapshot, utxoSequence, limit))
         }
     }
 }
 
 /**
- * Returns available UTXO set
- * @param transferWallet - wallet with transfers
- * @param minConfirmations - minimum number of confirmations(depth in blocks)
- * @return UTXO set
+ * Streams changes of available UTXO set as server-sent events.
+ * A new subscriber gets a RESET event first. It must load the UTXO set and apply only the events
+ * with a greater version than the version of the loaded set.
+ * A subscriber resumes reading by 'Last-Event-ID' header or 'lastEventId' parameter.
+ * If the events that follow it are lost, the subscriber gets a RESET event again.
+ *
+ * @param utxoAggregator - aggregator of transfer wallet UTXO
+ */
+fun Routing.utxoChanges(utxoAggregator: UTXOAggregator) {
+    get<UTXOChangesLocation>(
+        "all"
+            .description("Streams changes of available UTXO set as server-sent events")
+            .responds(created<UTXOChangeEventBtc>())
+    ) {
+        val changeFeed = utxoAggregator.changeFeed
+        val lastEventId = (call.request.headers["Last-Event-ID"] ?: call.parameters["lastEventId"])?.toLongOrNull()
+        // Subscribe before reading the feed, so no signal is missed
+        val subscriber = changeFeed.subscribe()
+        try {
+            call.respondTextWriter(ContentType.Text.EventStream) {
+                var sequence = lastEventId ?: writeReset(this, utxoAggregator)
+                while (true) {
+                    val events = changeFeed.eventsAfter(sequence)
+                    if (events == null) {
+                        sequence = writeReset(this, utxoAggregator)
+                    } else {
+                        events.forEach { event -> writeEvent(this, event) }
+                        sequence = events.lastOrNull()?.sequence ?: sequence
+                    }
+                    flush()
+                    if (events != null && events.isEmpty()) {
+                        // Comments keep the connection alive and detect disconnected subscribers
+                        withTimeoutOrNull(UTXO_CHANGES_KEEP_ALIVE_MILLIS) { subscriber.receive() }
+                            ?: write(": keep-alive\n\n")
+                    }
+                }
+            }
+        } finally {
+            changeFeed.unsubscribe(subscriber)
+        }
+    }
+}
+
+/**
+ * Monitors deposit statistics
+ *
+ * @param depositStatistics - statistics of deposit service
  */
-private fun getUTXOSet(transferWallet: Wallet, minConfirmations: Int) = UTXOSetBtc(transferWallet.unspents
-    .filter { utxo -> utxo.parentTransactionDepthInBlocks >= minConfirmations }
-    .map { utxo ->
-        UTXOBtc(
-            utxo.parentTransactionDepthInBlocks,
-            satToBtc(utxo.value.value).toPlainString(),
-            utxo.parentTransactionHash.toString(),
-            utxo.index,
-            outPutToBase58Address(utxo)
+fun Routing.depositStatistics(depositStatistics: DepositStatistics) {
+    get<DepositStatisticsLocation>(
+        "all"
+            .description("Returns deposit statistics including latencies of deposit steps")
+            .responds(created<DepositStatisticsBtc>())
+    ) {
+        call.respond(
+            DepositStatisticsBtc(
+                depositStatistics.processedBlocks.get(),
+                depositStatistics.scannedTransactions.get(),
+                depositStatistics.matchedTransactions.get(),
+                depositStatistics.depositEvents.get(),
+                depositStatistics.committedDeposits.get(),
+                depositStatistics.pendingConfirmations.get(),
+                depositStatistics.getLatencies()
+                    .map { (latency, histogram) -> latency.name to toLatencyHistogramBtc(histogram) }
+                    .toMap()
+            )
         )
+    }
+}
+
+/**
+ * Monitors withdrawal statistics
+ *
+ * @param withdrawalStatistics - statistics of withdrawal service
+ */
+fun Routing.withdrawalStatistics(withdrawalStatistics: WithdrawalStatistics) {
+    get<WithdrawalStatisticsLocation>(
+        "all"
+            .description("Returns withdrawal statistics including the number of pending broadcasts")
+            .responds(created<WithdrawalStatisticsBtc>())
+    ) {
+        call.respond(
+            WithdrawalStatisticsBtc(
+                withdrawalStatistics.totalTransfers.get(),
+                withdrawalStatistics.failedTransfers.get(),
+                withdrawalStatistics.succeededTransfers.get(),
+                withdrawalStatistics.pendingBroadcasts.get()
+            )
+        )
+    }
+}
+
+/**
+ * Monitors withdrawal stages: latencies of withdrawal steps and withdrawals in progress by stage
+ *
+ * @param withdrawalStatistics - statistics of withdrawal service
+ */
+fun Routing.withdrawalStages(withdrawalStatistics: WithdrawalStatistics) {
+    get<WithdrawalStagesLocation>(
+        "all"
+            .description("Returns latency histograms of withdrawal steps and numbers of withdrawals in progress by stage")
+            .responds(created<WithdrawalStagesBtc>())
+    ) {
+        call.respond(
+            WithdrawalStagesBtc(
+                withdrawalStatistics.getInFlightWithdrawals().mapKeys { (stage, _) -> stage.name },
+                withdrawalStatistics.getLatencies()
+                    .map { (latency, histogram) -> latency.name to toLatencyHistogramBtc(histogram) }
+                    .toMap()
+            )
+        )
+    }
+}
+
+/**
+ * Monitors timeline of withdrawal
+ *
+ * @param withdrawalTimeline - storage of withdrawal timelines
+ */
+fun Routing.withdrawalTimeline(withdrawalTimeline: WithdrawalTimeline) {
+    get<WithdrawalTimelineLocation>(
+        "all"
+            .description("Returns timeline of withdrawal by its hash as it is seen by the current node")
+            .responds(created<WithdrawalTimelineBtc>())
+    ) { location ->
+        call.respond(
+            WithdrawalTimelineBtc(
+                location.withdrawalHash,
+                withdrawalTimeline.getTimeline(location.withdrawalHash).map { event ->
+                    WithdrawalTimelineEventBtc(event.type.name, event.time, event.details)
+                })
+        )
+    }
+}
+
+/**
+ * Converts latency histogram snapshot into DTO
+ * @param histogram - histogram snapshot to convert
+ * @return latency histogram DTO
+ */
+private fun toLatencyHistogramBtc(histogram: LatencyHistogramSnapshot) = LatencyHistogramBtc(
+    histogram.count,
+    histogram.sumMillis,
+    histogram.maxMillis,
+    histogram.percentileMillis(50.0),
+    histogram.percentileMillis(95.0),
+    histogram.percentileMillis(99.0),
+    histogram.bucketCounts.mapIndexed { bucket, count ->
+        LatencyBucketBtc(histogram.bucketBoundsMillis.getOrNull(bucket), count)
     })
 
+/**
+ * Parses page size
+ * @param limit - value of 'limit' parameter
+ * @param paginated - whether UTXO set is requested page by page even if 'limit' is not set
+ * @return number of UTXO on page or null if UTXO set is not paginated
+ * @throws IllegalArgumentException if limit is not a positive number
+ */
+private fun parseLimit(limit: String?, paginated: Boolean): Int? {
+    if (limit == null) {
+        return if (paginated) DEFAULT_UTXO_PAGE_SIZE else null
+    }
+    val parsedLimit = limit.toIntOrNull()
+    if (parsedLimit == null || parsedLimit < 1) {
+        throw IllegalArgumentException("Malformed limit $limit")
+    }
+    return Math.min(parsedLimit, MAX_UTXO_PAGE_SIZE)
+}
+
+/**
+ * Returns page of available UTXO set
+ * @param snapshot - snapshot of transfer wallet UTXO
+ * @param utxoSequence - UTXO that follow the cursor of page
+ * @param limit - maximum number of UTXO on page. Null to return all the UTXO
+ * @return page of UTXO set
+ */
+private fun getUTXOSet(snapshot: UTXOSnapshot, utxoSequence: Sequence<UTXOSnapshotEntry>, limit: Int?): UTXOSetBtc {
+    if (limit == null) {
+        return UTXOSetBtc(utxoSequence.map { entry -> snapshot.toUTXOBtc(entry) }.toList(), snapshot.version, null)
+    }
+    // One more UTXO is taken to check if there is the next page
+    val entries = utxoSequence.take(limit + 1).toList()
+    val page = entries.take(limit)
+    val nextCursor = if (entries.size > limit) page.last().outPoint else null
+    return UTXOSetBtc(page.map { entry -> snapshot.toUTXOBtc(entry) }, snapshot.version, nextCursor)
+}
+
+/**
+ * Writes available UTXO set as JSON one by one, so the set is never held in memory as a whole.
+ * The format is the same as the one of [UTXOSetBtc] without the next cursor
+ * @param writer - writer of response
+ * @param snapshot - snapshot of transfer wallet UTXO
+ * @param utxoSequence - UTXO to write
+ */
+private fun writeUTXOSet(writer: Writer, snapshot: UTXOSnapshot, utxoSequence: Sequence<UTXOSnapshotEntry>) {
+    val jsonWriter = JsonWriter(writer)
+    jsonWriter.beginObject().name("utxoList").beginArray()
+    utxoSequence.forEach { entry -> gson.toJson(snapshot.toUTXOBtc(entry), UTXOBtc::class.java, jsonWriter) }
+    jsonWriter.endArray().name("version").value(snapshot.version).endObject()
+    jsonWriter.flush()
+}
+
+/**
+ * Writes server-sent event
+ * @param writer - writer of response
+ * @param event - UTXO change event
+ */
+private fun writeEvent(writer: Writer, event: UTXOChangeEventBtc) {
+    writer.write("id: ${event.sequence}\nevent: ${event.type}\ndata: ${gson.toJson(event)}\n\n")
+}
+
+/**
+ * Writes RESET event
+ * @param writer - writer of response
+ * @param utxoAggregator - aggregator of transfer wallet UTXO
+ * @return sequence number of the last event in the feed. Reading must be continued from it
+ */
+private fun writeReset(writer: Writer, utxoAggregator: UTXOAggregator): Long {
+    // The sequence number is taken before the version, so events that are already in the loaded set may be sent.
+    // They are skipped by subscribers as their versions are not greater than the version of the set
+    val sequence = utxoAggregator.changeFeed.lastSequence()
+    val version = utxoAggregator.getSnapshot().version
+    writeEvent(writer, UTXOChangeEventBtc(sequence, UTXOChangeType.RESET.name, version, null, null))
+    return sequence
+}
+
 /**
  * Returns sum of BTC that is available to spend
- * @param transferWallet - wallet with transfers
+ * @param snapshot - snapshot of transfer wallet UTXO
  * @param minConfirmations - minimum number of confirmations(depth in blocks)
  * @return sum of BTC
  */
-private fun getAvailableSumBtc(transferWallet: Wallet, minConfirmations: Int): AvailableSumBtc {
-    var sumSat = 0L
-    transferWallet.unspents
-        .filter { utxo -> utxo.parentTransactionDepthInBlocks >= minConfirmations }
-        .forEach { utxo -> sumSat += utxo.value.value }
-    return AvailableSumBtc(satToBtc(sumSat).toPlainString())
-}
+private fun getAvailableSumBtc(snapshot: UTXOSnapshot, minConfirmations: Int) = AvailableSumBtc(
+    satToBtc(snapshot.sumSat(minConfirmations)).toPlainString(),
+    snapshot.count(minConfirmations),
+    snapshot.version
+)
@@ -0,0 +1,147 @@
+/*
+ * Copyright D3 Ledger, Inc. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package com.d3.btc.dwbridge.monitoring
+
+import com.d3.btc.dwbridge.monitoring.dto.UTXOBtc
+import org.junit.jupiter.api.Assertions.assertEquals
+import org.junit.jupiter.api.Assertions.assertNotNull
+import org.junit.jupiter.api.Assertions.assertNull
+import org.junit.jupiter.api.Assertions.assertTrue
+import org.junit.jupiter.api.Test
+
+class UTXOChangeFeedTest {
+
+    private val confidenceLevel = 6
+
+    /**
+     * @given two snapshots: the second one has a new block, a new UTXO and a spent UTXO
+     * @when snapshots are compared
+     * @then shallow UTXO are reported as confirmed, new UTXO as added and missing UTXO as spent.
+     * Deep UTXO are not reported
+     */
+    @Test
+    fun testCompareSnapshots() {
+        val shallow = UTXOSnapshotEntry("shallow", 0, "address", 100, 100)
+        val deep = UTXOSnapshotEntry("deep", 0, "address", 200, 90)
+        val spent = UTXOSnapshotEntry("spent", 0, "address", 300, UNCONFIRMED_HEIGHT)
+        val added = UTXOSnapshotEntry("added", 0, "address", 400, UNCONFIRMED_HEIGHT)
+        val oldSnapshot = UTXOSnapshot(
+            1, 100, listOf(
+                UTXOBucket(90, listOf(deep)),
+                UTXOBucket(100, listOf(shallow)),
+                UTXOBucket(UNCONFIRMED_HEIGHT, listOf(spent))
+            )
+        )
+        val newSnapshot = UTXOSnapshot(
+            2, 101, listOf(
+                UTXOBucket(90, listOf(deep)),
+                UTXOBucket(100, listOf(shallow)),
+                UTXOBucket(UNCONFIRMED_HEIGHT, listOf(added))
+            )
+        )
+        val changes = compareSnapshots(oldSnapshot, newSnapshot, confidenceLevel)
+        assertEquals(
+            listOf(
+                Pair(UTXOChangeType.CONFIRMED, "shallow"),
+                Pair(UTXOChangeType.ADDED, "added"),
+                Pair(UTXOChangeType.SPENT, "spent")
+            ),
+            changes.map { (type, utxo) -> Pair(type, utxo!!.txHash) })
+        assertEquals(2, changes[0].second!!.confirmations)
+    }
+
+    /**
+     * @given change feed
+     * @when changes with a new balance are published
+     * @then every change and the balance get their own sequence numbers, so reading may be resumed after any of them
+     */
+    @Test
+    fun testPublishAndResume() {
+        val changeFeed = UTXOChangeFeed()
+        changeFeed.publish(
+            1,
+            listOf(Pair(UTXOChangeType.ADDED, createUTXO("first")), Pair(UTXOChangeType.SPENT, createUTXO("second"))),
+            "1.5"
+        )
+        assertEquals(3, changeFeed.lastSequence())
+
+        val events = changeFeed.eventsAfter(0)!!
+        assertEquals(listOf(1L, 2L, 3L), events.map { event -> event.sequence })
+        assertEquals(listOf("ADDED", "SPENT", "BALANCE"), events.map { event -> event.type })
+        assertTrue(events.all { event -> event.version == 1L })
+        assertEquals("1.5", events[2].sumBtc)
+
+        assertEquals(listOf(3L), changeFeed.eventsAfter(2)!!.map { event -> event.sequence })
+        assertTrue(changeFeed.eventsAfter(3)!!.isEmpty())
+    }
+
+    /**
+     * @given change feed
+     * @when nothing has changed
+     * @then no event is published
+     */
+    @Test
+    fun testPublishNothing() {
+        val changeFeed = UTXOChangeFeed()
+        changeFeed.publish(1, emptyList(), null)
+        assertEquals(0, changeFeed.lastSequence())
+        assertTrue(changeFeed.eventsAfter(0)!!.isEmpty())
+    }
+
+    /**
+     * @given change feed with capacity of 3 events
+     * @when 5 events are published
+     * @then subscribers that haven't read the first 2 events must reset, the others resume reading
+     */
+    @Test
+    fun testOverflow() {
+        val changeFeed = UTXOChangeFeed(3)
+        (1..5).forEach { version ->
+            changeFeed.publish(version.toLong(), listOf(Pair(UTXOChangeType.ADDED, createUTXO("tx$version"))), null)
+        }
+        assertNull(changeFeed.eventsAfter(0))
+        assertNull(changeFeed.eventsAfter(1))
+        assertEquals(listOf(3L, 4L, 5L), changeFeed.eventsAfter(2)!!.map { event -> event.sequence })
+        assertEquals(listOf(5L), changeFeed.eventsAfter(4)!!.map { event -> event.sequence })
+    }
+
+    /**
+     * @given change feed with more events than may be returned at once
+     * @when events are read batch by batch
+     * @then reading resumes after the last event of the previous batch until all the events are read
+     */
+    @Test
+    fun testBatches() {
+        val changeFeed = UTXOChangeFeed()
+        changeFeed.publish(1, (1..1_500).map { index -> Pair(UTXOChangeType.ADDED, createUTXO("tx$index")) }, null)
+        val firstBatch = changeFeed.eventsAfter(0)!!
+        assertEquals(1_000, firstBatch.size)
+        val secondBatch = changeFeed.eventsAfter(firstBatch.last().sequence)!!
+        assertEquals(500, secondBatch.size)
+        assertEquals(1_500L, secondBatch.last().sequence)
+    }
+
+    /**
+     * @given change feed with a subscriber
+     * @when changes are published
+     * @then the subscriber is signaled until it unsubscribes
+     */
+    @Test
+    fun testSubscribe() {
+        val changeFeed = UTXOChangeFeed()
+        val subscriber = changeFeed.subscribe()
+        assertNull(subscriber.poll())
+        changeFeed.publish(1, listOf(Pair(UTXOChangeType.ADDED, createUTXO("tx"))), null)
+        changeFeed.publish(2, listOf(Pair(UTXOChangeType.SPENT, createUTXO("tx"))), null)
+        // Signals are conflated
+        assertNotNull(subscriber.poll())
+        assertNull(subscriber.poll())
+        changeFeed.unsubscribe(subscriber)
+        assertTrue(subscriber.isClosedForReceive)
+    }
+
+    private fun createUTXO(txHash: String) = UTXOBtc(1, "0.1", txHash, 0, "address")
+}
@@ -0,0 +1,121 @@
+/*
+ * Copyright D3 Ledger, Inc. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package com.d3.btc.dwbridge.monitoring
+
+import org.junit.jupiter.api.Assertions.assertEquals
+import org.junit.jupiter.api.Test
+
+class UTXOSnapshotTest {
+
+    private val bestHeight = 100
+
+    // Buckets with 6, 3, 1 and 0 confirmations
+    private val snapshot = UTXOSnapshot(
+        1, bestHeight, listOf(
+            createBucket(95, 1_000, 2_000),
+            createBucket(98, 300),
+            createBucket(100, 40, 50),
+            createBucket(UNCONFIRMED_HEIGHT, 7)
+        )
+    )
+
+    /**
+     * @given UTXO snapshot with buckets of different heights
+     * @when UTXO are counted by number of confirmations
+     * @then only UTXO of buckets with enough confirmations are counted
+     */
+    @Test
+    fun testCount() {
+        assertEquals(6, snapshot.count(0))
+        assertEquals(5, snapshot.count(1))
+        assertEquals(3, snapshot.count(2))
+        assertEquals(3, snapshot.count(3))
+        assertEquals(2, snapshot.count(4))
+        assertEquals(2, snapshot.count(6))
+        assertEquals(0, snapshot.count(7))
+    }
+
+    /**
+     * @given UTXO snapshot with buckets of different heights
+     * @when UTXO values are summed by number of confirmations
+     * @then only values of UTXO of buckets with enough confirmations are summed
+     */
+    @Test
+    fun testSumSat() {
+        assertEquals(3_397L, snapshot.sumSat(0))
+        assertEquals(3_390L, snapshot.sumSat(1))
+        assertEquals(3_300L, snapshot.sumSat(3))
+        assertEquals(3_000L, snapshot.sumSat(4))
+        assertEquals(3_000L, snapshot.sumSat(6))
+        assertEquals(0L, snapshot.sumSat(7))
+    }
+
+    /**
+     * @given UTXO snapshot without UTXO
+     * @when UTXO are counted and summed
+     * @then zeroes are returned
+     */
+    @Test
+    fun testEmpty() {
+        val emptySnapshot = UTXOSnapshot(1, bestHeight, emptyList())
+        assertEquals(0, emptySnapshot.count(0))
+        assertEquals(0L, emptySnapshot.sumSat(0))
+    }
+
+    /**
+     * @given UTXO snapshot with buckets of different heights
+     * @when a snapshot of the same buckets is created for the next block
+     * @then UTXO get one more confirmation, but unconfirmed UTXO stay unconfirmed
+     */
+    @Test
+    fun testNextBlock() {
+        val nextSnapshot = UTXOSnapshot(
+            2, bestHeight + 1, listOf(
+                createBucket(95, 1_000, 2_000),
+                createBucket(98, 300),
+                createBucket(100, 40, 50),
+                createBucket(UNCONFIRMED_HEIGHT, 7)
+            )
+        )
+        assertEquals(6, nextSnapshot.count(0))
+        assertEquals(5, nextSnapshot.count(2))
+        assertEquals(3_390L, nextSnapshot.sumSat(2))
+        assertEquals(3, nextSnapshot.count(4))
+        assertEquals(3_300L, nextSnapshot.sumSat(4))
+        assertEquals(2, nextSnapshot.count(7))
+    }
+
+    /**
+     * @given UTXO snapshot with buckets of different heights
+     * @when UTXO are filtered by number of confirmations and value
+     * @then matching UTXO are returned in order of their outpoints with the current number of confirmations
+     */
+    @Test
+    fun testUtxoSequence() {
+        val utxo = snapshot.utxoSequence(UTXOFilter(1, minValueSat = 50), null)
+            .map { entry -> snapshot.toUTXOBtc(entry) }
+            .toList()
+        assertEquals(listOf("tx100:1", "tx95:0", "tx95:1", "tx98:0"), utxo.map { "${it.txHash}:${it.outputIndex}" })
+        assertEquals(listOf(1, 6, 6, 3), utxo.map { it.confirmations })
+        assertEquals(
+            listOf("tx95:1", "tx98:0"),
+            snapshot.utxoSequence(UTXOFilter(1, minValueSat = 50), "tx95:0").map { it.outPoint }.toList()
+        )
+    }
+
+    /**
+     * Creates bucket of UTXO of one transaction
+     * @param height - height of transaction
+     * @param valuesSat - values of transaction outputs
+     * @return UTXO bucket
+     */
+    private fun createBucket(height: Int, vararg valuesSat: Long) = UTXOBucket(
+        height,
+        valuesSat.mapIndexed { index, valueSat ->
+            val txHash = if (height == UNCONFIRMED_HEIGHT) "txUnconfirmed" else "tx$height"
+            UTXOSnapshotEntry(txHash, index, "address", valueSat, height)
+        })
+}
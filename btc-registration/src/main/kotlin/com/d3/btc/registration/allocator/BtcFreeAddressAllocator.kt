@@ -0,0 +1,254 @@
+/*
+ * Copyright D3 Ledger, Inc. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package com.d3.btc.registration.allocator
+
+import com.d3.btc.model.BtcAddress
+import com.d3.btc.provider.BtcFreeAddressesProvider
+import com.d3.btc.registration.BTC_REGISTRATION_OPERATION_NAME
+import com.d3.commons.model.D3ErrorException
+import com.github.kittinunf.result.Result
+import mu.KLogging
+import java.util.*
+import java.util.concurrent.CompletableFuture
+import java.util.concurrent.CompletionException
+
+// Minimum period between fetches while addresses of other slices are still available
+private const val SPARE_REFILL_PERIOD_MLS = 10_000L
+
+/*
+ Taken addresses are never queued again during this period.
+ A fetch that was in progress while an address was taken may still see it free.
+ */
+private const val TAKEN_ADDRESS_TTL_MLS = 60_000L
+
+/**
+ * Allocator of free addresses.
+ * Free addresses are fetched from Iroha in one query and queued locally, so every registration worker takes its own address.
+ * The query runs outside the allocator lock and only one query runs at a time.
+ * Free addresses are split into [replicas] slices by address hash. Each replica of the registration service takes
+ * addresses from its own slice first, so replicas don't compete for the same addresses.
+ * Addresses of other slices are taken only if the own slice is exhausted. Iroha CAS stays the final check anyway.
+ * @param btcFreeAddressesProvider - provider of free addresses
+ * @param replicaIndex - index of the current registration service replica. Starts from 0
+ * @param replicas - number of registration service replicas
+ */
+class BtcFreeAddressAllocator(
+    private val btcFreeAddressesProvider: BtcFreeAddressesProvider,
+    private val replicaIndex: Int,
+    private val replicas: Int
+) {
+
+    // Free addresses of the replica slice
+    private val ownAddresses = ArrayDeque<BtcAddress>()
+
+    // Free addresses of other replicas slices
+    private val spareAddresses = ArrayDeque<BtcAddress>()
+
+    // Addresses that were allocated, but neither taken nor released yet
+    private val allocatedAddresses = HashSet<String>()
+
+    // Address -> time when it was taken. In order of taking
+    private val takenAddresses = LinkedHashMap<String, Long>()
+
+    private var lastRefillTime = 0L
+
+    // Fetch of free addresses that is in progress. Null if addresses are not being fetched
+    private var pendingRefill: CompletableFuture<Unit>? = null
+
+    init {
+        if (replicas < 1 || replicaIndex !in 0 until replicas) {
+            throw IllegalArgumentException("Bad replica index $replicaIndex. Number of replicas is $replicas")
+        }
+    }
+
+    /**
+     * Allocates free address. The address must be either taken or released afterwards
+     * @return free address
+     */
+    fun allocate(): Result<BtcAddress, Exception> {
+        return Result.of {
+            allocateAddresses(1).firstOrNull() ?: throw D3ErrorException.warning(
+                failedOperation = BTC_REGISTRATION_OPERATION_NAME,
+                description = "No free address to take"
+            )
+        }
+    }
+
+    /**
+     * Allocates free addresses. Every address must be either taken or released afterwards
+     * @param count - number of addresses to allocate
+     * @return free addresses. There may be less than [count] addresses if there are not enough free addresses
+     */
+    fun allocate(count: Int): Result<List<BtcAddress>, Exception> {
+        return Result.of { allocateAddresses(count) }
+    }
+
+    /**
+     * Marks allocated address as taken. Used once the address is registered or found taken by someone else
+     * @param address - allocated address
+     */
+    @Synchronized
+    fun taken(address: BtcAddress) {
+        allocatedAddresses.remove(address.address)
+        takenAddresses.remove(address.address)
+        takenAddresses[address.address] = System.currentTimeMillis()
+    }
+
+    /**
+     * Returns allocated address back to the allocator. Used if the address is still free
+     * @param address - allocated address
+     */
+    @Synchronized
+    fun release(address: BtcAddress) {
+        if (allocatedAddresses.remove(address.address)) {
+            if (isOwnAddress(address)) {
+                ownAddresses.addFirst(address)
+            } else {
+                spareAddresses.addFirst(address)
+            }
+        }
+    }
+
+    /**
+     * Allocates free addresses. Addresses are fetched from Iroha outside the lock, so releases and allocations of
+     * queued addresses are not blocked by the query. Only one fetch runs at a time, others wait for it
+     * @param count - number of addresses to allocate
+     * @return free addresses
+     */
+    private fun allocateAddresses(count: Int): List<BtcAddress> {
+        val addresses = ArrayList<BtcAddress>(count)
+        val (refill, leader) = takeQueuedAddresses(addresses, count) ?: return addresses
+        if (leader) {
+            fetchFreeAddresses(refill)
+        }
+        val refillFailure = try {
+            refill.join()
+            null
+        } catch (e: CompletionException) {
+            e.cause ?: e
+        }
+        takeRefilledAddresses(addresses, count)
+        if (addresses.isEmpty() && refillFailure != null) {
+            throw refillFailure
+        }
+        return addresses
+    }
+
+    /**
+     * Takes queued addresses until there are enough of them or addresses must be fetched again
+     * @param addresses - allocated addresses
+     * @param count - number of addresses to allocate
+     * @return refill to wait for and whether the caller must run it. Null if there are enough addresses
+     */
+    @Synchronized
+    private fun takeQueuedAddresses(
+        addresses: MutableList<BtcAddress>,
+        count: Int
+    ): Pair<CompletableFuture<Unit>, Boolean>? {
+        while (addresses.size < count && !refillNeeded()) {
+            addresses.add(next() ?: break)
+        }
+        if (addresses.size == count) {
+            return null
+        }
+        val refill = pendingRefill
+        if (refill != null) {
+            return Pair(refill, false)
+        }
+        val newRefill = CompletableFuture<Unit>()
+        pendingRefill = newRefill
+        return Pair(newRefill, true)
+    }
+
+    /**
+     * Takes queued addresses after refill
+     * @param addresses - allocated addresses
+     * @param count - number of addresses to allocate
+     */
+    @Synchronized
+    private fun takeRefilledAddresses(addresses: MutableList<BtcAddress>, count: Int) {
+        while (addresses.size < count) {
+            addresses.add(next() ?: break)
+        }
+    }
+
+    /**
+     * Checks if free addresses must be fetched before taking the next one
+     * @return true if the replica slice is exhausted and spare addresses are exhausted or stale
+     */
+    private fun refillNeeded() = ownAddresses.isEmpty() && (spareAddresses.isEmpty()
+            || System.currentTimeMillis() - lastRefillTime >= SPARE_REFILL_PERIOD_MLS)
+
+    /**
+     * Takes next queued free address
+     * @return free address or null if there are no queued addresses
+     */
+    private fun next(): BtcAddress? {
+        val address = ownAddresses.pollFirst() ?: spareAddresses.pollFirst() ?: return null
+        allocatedAddresses.add(address.address)
+        return address
+    }
+
+    /**
+     * Fetches free addresses from Iroha and queues them
+     * @param refill - future that is completed once addresses are queued
+     */
+    private fun fetchFreeAddresses(refill: CompletableFuture<Unit>) {
+        val freeAddresses = Result.of { btcFreeAddressesProvider.getFreeAddresses().get() }
+        synchronized(this) {
+            pendingRefill = null
+            freeAddresses.fold({ addresses -> queue(addresses) }, { ex ->
+                logger.error("Cannot fetch free addresses", ex)
+            })
+        }
+        freeAddresses.fold({ refill.complete(Unit) }, { ex -> refill.completeExceptionally(ex) })
+    }
+
+    /**
+     * Replaces queued addresses with fetched ones. Allocated and recently taken addresses are skipped.
+     * Must be called under the lock
+     * @param freeAddresses - free addresses fetched from Iroha
+     */
+    private fun queue(freeAddresses: List<BtcAddress>) {
+        lastRefillTime = System.currentTimeMillis()
+        ownAddresses.clear()
+        spareAddresses.clear()
+        dropOutdatedTakenAddresses()
+        freeAddresses
+            .filter { address ->
+                !allocatedAddresses.contains(address.address) && !takenAddresses.containsKey(address.address)
+            }
+            // Other replicas may take spare addresses too, so they are taken in random order
+            .shuffled()
+            .forEach { address ->
+                if (isOwnAddress(address)) {
+                    ownAddresses.addLast(address)
+                } else {
+                    spareAddresses.addLast(address)
+                }
+            }
+        logger.info(
+            "Free addresses have been fetched. Replica slice has ${ownAddresses.size} addresses, " +
+                    "other slices have ${spareAddresses.size} addresses"
+        )
+    }
+
+    // Forgets addresses that were taken long enough ago to be seen taken by any fetch
+    private fun dropOutdatedTakenAddresses() {
+        val now = System.currentTimeMillis()
+        val iterator = takenAddresses.values.iterator()
+        while (iterator.hasNext() && now - iterator.next() >= TAKEN_ADDRESS_TTL_MLS) {
+            iterator.remove()
+        }
+    }
+
+    private fun isOwnAddress(address: BtcAddress) = Math.floorMod(address.address.hashCode(), replicas) == replicaIndex
+
+    /**
+     * Logger
+     */
+    companion object : KLogging()
+}
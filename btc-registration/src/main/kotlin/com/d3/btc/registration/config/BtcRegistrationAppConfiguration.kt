@@ -8,6 +8,7 @@ package com.d3.btc.registration.config
 import com.d3.btc.provider.BtcFreeAddressesProvider
 import com.d3.btc.provider.BtcRegisteredAddressesProvider
 import com.d3.btc.provider.account.IrohaBtcAccountRegistrator
+import com.d3.btc.registration.allocator.BtcFreeAddressAllocator
 import com.d3.commons.config.loadRawLocalConfigs
 import com.d3.commons.model.IrohaCredential
 import com.d3.commons.sidechain.iroha.consumer.IrohaConsumerImpl
@@ -18,6 +19,10 @@ import jp.co.soramitsu.iroha.java.Utils
 import org.springframework.context.annotation.Bean
 import org.springframework.context.annotation.Configuration
 
+// Registration service doesn't see free addresses that are created by address generation service until the next count
+// check, so free addresses are re-counted more often than by default
+private const val FREE_ADDRESSES_COUNT_CHECK_PERIOD_MLS = 10_000L
+
 private val btcRegistrationConfig = loadRawLocalConfigs(
     "btc-registration",
     BtcRegistrationConfig::class.java,
@@ -61,10 +66,18 @@ class BtcRegistrationAppConfiguration {
             btcRegistrationConfig.nodeId,
             btcRegistrationConfig.freeAddressesStorageAccount,
             registrationQueryHelper(),
-            btcRegistrationConsumer()
+            btcRegistrationConsumer(),
+            FREE_ADDRESSES_COUNT_CHECK_PERIOD_MLS
         )
     }
 
+    @Bean
+    fun btcFreeAddressAllocator() = BtcFreeAddressAllocator(
+        btcFreeAddressesProvider(),
+        btcRegistrationConfig.replicaIndex,
+        btcRegistrationConfig.replicas
+    )
+
     @Bean
     fun irohaBtcAccountCreator(): IrohaBtcAccountRegistrator {
         return IrohaBtcAccountRegistrator(
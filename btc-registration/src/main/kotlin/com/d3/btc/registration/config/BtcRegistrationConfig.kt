@@ -35,4 +35,19 @@ interface BtcRegistrationConfig {
 
     //Account that stores free Bitcoin addresses
     val freeAddressesStorageAccount: String
+
+    /** Number of registration service replicas of the node */
+    val replicas: Int
+
+    /** Index of the current registration service replica. Starts from 0 */
+    val replicaIndex: Int
+
+    /** Port of bulk registration endpoint */
+    val bulkRegistrationPort: Int
+
+    /** Number of registration transactions in one Iroha batch of bulk registration */
+    val bulkRegistrationBatchSize: Int
+
+    /** Number of bulk registration batches that may be sent to Iroha concurrently */
+    val bulkRegistrationConcurrency: Int
 }
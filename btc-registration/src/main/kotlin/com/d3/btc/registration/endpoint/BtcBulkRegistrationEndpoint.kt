@@ -0,0 +1,96 @@
+/*
+ * Copyright D3 Ledger, Inc. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package com.d3.btc.registration.endpoint
+
+import com.d3.btc.registration.strategy.BtcBulkRegistrationStrategy
+import com.d3.btc.registration.strategy.BtcClientRegistration
+import com.d3.commons.util.GsonInstance
+import com.github.kittinunf.result.Result
+import com.google.gson.JsonParseException
+import io.ktor.application.call
+import io.ktor.application.install
+import io.ktor.features.CORS
+import io.ktor.features.ContentNegotiation
+import io.ktor.gson.gson
+import io.ktor.http.HttpStatusCode
+import io.ktor.request.receiveText
+import io.ktor.response.respond
+import io.ktor.routing.post
+import io.ktor.routing.routing
+import io.ktor.server.engine.ApplicationEngine
+import io.ktor.server.engine.embeddedServer
+import io.ktor.server.netty.Netty
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.withContext
+import mu.KLogging
+import java.io.Closeable
+import java.util.concurrent.TimeUnit
+
+private val gson = GsonInstance.get()
+
+/**
+ * Endpoint of bulk registration.
+ * 'POST /users/bulk' takes a JSON array of clients(see [BtcClientRegistration]) and responds with a result for every client
+ * @param port - port of endpoint
+ * @param btcBulkRegistrationStrategy - strategy of bulk registration
+ */
+class BtcBulkRegistrationEndpoint(
+    port: Int,
+    private val btcBulkRegistrationStrategy: BtcBulkRegistrationStrategy
+) : Closeable {
+
+    private val server: ApplicationEngine
+
+    init {
+        server = embeddedServer(Netty, port = port) {
+            install(CORS)
+            {
+                anyHost()
+            }
+            install(ContentNegotiation) {
+                gson()
+            }
+            routing {
+                post("/users/bulk") {
+                    val clients = try {
+                        gson.fromJson(call.receiveText(), Array<BtcClientRegistration>::class.java)?.toList()
+                    } catch (e: JsonParseException) {
+                        null
+                    }
+                    if (clients == null || clients.any { client -> !isValid(client) }) {
+                        call.respond(HttpStatusCode.BadRequest, mapOf("message" to "Malformed list of clients"))
+                        return@post
+                    }
+                    logger.info("Bulk registration of ${clients.size} clients")
+                    // Registration of many clients takes a while, so it's not done on a server thread
+                    val result = withContext(Dispatchers.IO) { btcBulkRegistrationStrategy.register(clients) }
+                    when (result) {
+                        is Result.Success -> call.respond(result.value)
+                        is Result.Failure -> {
+                            logger.error("Cannot register clients", result.error)
+                            call.respond(HttpStatusCode.InternalServerError, mapOf("message" to result.error.message))
+                        }
+                    }
+                }
+            }
+        }
+        server.start(wait = false)
+    }
+
+    // Gson doesn't check nullability, so fields may be null despite declared types
+    @Suppress("SENSELESS_COMPARISON")
+    private fun isValid(client: BtcClientRegistration?) =
+        client != null && client.name != null && client.domain != null
+
+    override fun close() {
+        server.stop(gracePeriod = 5, timeout = 5, timeUnit = TimeUnit.SECONDS)
+    }
+
+    /**
+     * Logger
+     */
+    companion object : KLogging()
+}
@@ -6,6 +6,8 @@
 package com.d3.btc.registration.init
 
 import com.d3.btc.registration.config.BtcRegistrationConfig
+import com.d3.btc.registration.endpoint.BtcBulkRegistrationEndpoint
+import com.d3.btc.registration.strategy.BtcBulkRegistrationStrategy
 import com.d3.commons.registration.RegistrationServiceEndpoint
 import com.d3.commons.registration.RegistrationStrategy
 import com.github.kittinunf.result.Result
@@ -15,7 +17,8 @@ import org.springframework.stereotype.Component
 @Component
 class BtcRegistrationServiceInitialization(
     private val btcRegistrationConfig: BtcRegistrationConfig,
-    private val btcRegistrationStrategy: RegistrationStrategy
+    private val btcRegistrationStrategy: RegistrationStrategy,
+    private val btcBulkRegistrationStrategy: BtcBulkRegistrationStrategy
 ) {
     /**
      * Init Registration Service
@@ -27,6 +30,10 @@ class BtcRegistrationServiceInitialization(
                 btcRegistrationConfig.port,
                 btcRegistrationStrategy
             )
+            BtcBulkRegistrationEndpoint(
+                btcRegistrationConfig.bulkRegistrationPort,
+                btcBulkRegistrationStrategy
+            )
             Unit
         }
     }
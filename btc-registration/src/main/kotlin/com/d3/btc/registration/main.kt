@@ -20,6 +20,7 @@ import kotlin.system.exitProcess
 private val logger = KLogging().logger
 
 const val BTC_REGISTRATION_OPERATION_NAME = "Bitcoin user registration"
+const val BTC_REGISTRATION_SERVICE_NAME = "btc-registration"
 
 @ComponentScan(basePackages = ["com.d3.btc.registration"])
 class BtcRegistrationApplication
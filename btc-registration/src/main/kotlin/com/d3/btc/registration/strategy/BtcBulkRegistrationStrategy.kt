@@ -0,0 +1,247 @@
+/*
+ * Copyright D3 Ledger, Inc. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package com.d3.btc.registration.strategy
+
+import com.d3.btc.helper.iroha.isCASError
+import com.d3.btc.model.BtcAddress
+import com.d3.btc.provider.BtcFreeAddressesProvider
+import com.d3.btc.provider.BtcRegisteredAddressesProvider
+import com.d3.btc.provider.account.IrohaBtcAccountRegistrator
+import com.d3.btc.registration.BTC_REGISTRATION_SERVICE_NAME
+import com.d3.btc.registration.allocator.BtcFreeAddressAllocator
+import com.d3.btc.registration.config.BtcRegistrationConfig
+import com.d3.commons.util.createPrettyFixThreadPool
+import com.github.kittinunf.result.Result
+import mu.KLogging
+import org.springframework.stereotype.Component
+import java.io.Closeable
+import java.util.concurrent.Callable
+import java.util.concurrent.Semaphore
+
+// Number of attempts to register a client. Every attempt takes another free address, as the previous one was taken
+private const val MAX_BULK_ATTEMPTS = 3
+
+/**
+ * Strategy for registering many Bitcoin clients at once.
+ * Free addresses are allocated for all the clients in one pass. Registration transactions are sent as Iroha batches.
+ * Clients whose free addresses turn out to be taken by someone else are registered again with other addresses.
+ * Clients whose transactions fail for other reasons get the Iroha error.
+ */
+@Component
+class BtcBulkRegistrationStrategy(
+    private val btcRegisteredAddressesProvider: BtcRegisteredAddressesProvider,
+    private val btcFreeAddressesProvider: BtcFreeAddressesProvider,
+    private val btcFreeAddressAllocator: BtcFreeAddressAllocator,
+    private val irohaBtcAccountCreator: IrohaBtcAccountRegistrator,
+    private val btcRegistrationConfig: BtcRegistrationConfig
+) : Closeable {
+
+    // Executor that sends registration batches
+    private val registrationExecutor = createPrettyFixThreadPool(BTC_REGISTRATION_SERVICE_NAME, "bulk-registration")
+
+    /**
+     * Registers Iroha clients and associates BTC addresses to them
+     * @param clients - clients to register. Only the first of clients with the same account id is registered,
+     * the rest fail as duplicates
+     * @return registration results in order of clients. There is exactly one result for every client
+     */
+    fun register(clients: List<BtcClientRegistration>): Result<List<BtcRegistrationResult>, Exception> {
+        return btcRegisteredAddressesProvider.getRegisteredAddresses().map { registeredAddresses ->
+            val registeredClients = registeredAddresses.mapNotNullTo(HashSet()) { address -> address.info.irohaClient }
+            val distinctClients = clients.distinctBy { client -> client.accountId }
+            val results = HashMap<String, BtcRegistrationResult>()
+            var pendingClients = distinctClients.filter { client ->
+                if (registeredClients.contains(client.accountId)) {
+                    results[client.accountId] = BtcRegistrationResult.failure(
+                        client.accountId,
+                        "The user probably has been registered before"
+                    )
+                    false
+                } else {
+                    true
+                }
+            }
+            var attempts = 0
+            while (pendingClients.isNotEmpty() && attempts < MAX_BULK_ATTEMPTS) {
+                attempts++
+                val freeAddresses = btcFreeAddressAllocator.allocate(pendingClients.size).get()
+                pendingClients.drop(freeAddresses.size).forEach { client ->
+                    results[client.accountId] = BtcRegistrationResult.failure(client.accountId, "No free address to take")
+                }
+                pendingClients = registerBatches(pendingClients.zip(freeAddresses), results)
+                logger.info("Bulk registration attempt $attempts is over. ${pendingClients.size} clients are to be registered again")
+            }
+            pendingClients.forEach { client ->
+                results[client.accountId] = BtcRegistrationResult.failure(
+                    client.accountId,
+                    "Free addresses were taken by someone else. Attempts $MAX_BULK_ATTEMPTS"
+                )
+            }
+            val seenClients = HashSet<String>()
+            clients.map { client ->
+                if (seenClients.add(client.accountId)) {
+                    results.getValue(client.accountId)
+                } else {
+                    BtcRegistrationResult.failure(client.accountId, "Duplicate client ${client.accountId}")
+                }
+            }
+        }
+    }
+
+    /**
+     * Registers clients using Iroha batches. Batches are sent concurrently
+     * @param registrations - clients alongside with allocated addresses
+     * @param results - results of registration. Filled with results of clients that are not to be registered again
+     * @return clients that are to be registered again(i.e. their addresses were taken by someone else)
+     */
+    private fun registerBatches(
+        registrations: List<Pair<BtcClientRegistration, BtcAddress>>,
+        results: MutableMap<String, BtcRegistrationResult>
+    ): List<BtcClientRegistration> {
+        // Bounds the number of batches that are sent at the same time
+        val inFlightBatches = Semaphore(btcRegistrationConfig.bulkRegistrationConcurrency.coerceAtLeast(1))
+        return registrations
+            .chunked(btcRegistrationConfig.bulkRegistrationBatchSize.coerceAtLeast(1))
+            .map { batch ->
+                inFlightBatches.acquire()
+                registrationExecutor.submit(Callable {
+                    try {
+                        registerBatch(batch)
+                    } finally {
+                        inFlightBatches.release()
+                    }
+                })
+            }.flatMap { batchRegistration ->
+                val batchResults = batchRegistration.get()
+                batchResults.forEach { (client, result) ->
+                    if (result != null) {
+                        results[client.accountId] = result
+                    }
+                }
+                batchResults.filter { (_, result) -> result == null }.map { (client, _) -> client }
+            }
+    }
+
+    /**
+     * Registers clients using one Iroha batch
+     * @param batch - clients alongside with allocated addresses
+     * @return registration results. A result is null if the client is to be registered again
+     */
+    private fun registerBatch(
+        batch: List<Pair<BtcClientRegistration, BtcAddress>>
+    ): List<Pair<BtcClientRegistration, BtcRegistrationResult?>> {
+        val results = ArrayList<Pair<BtcClientRegistration, BtcRegistrationResult?>>()
+        val transactions = batch.mapNotNull { (client, freeAddress) ->
+            irohaBtcAccountCreator.buildTx(
+                freeAddress.address,
+                client.name,
+                client.domain,
+                freeAddress.info.notaryKeys,
+                freeAddress.info.nodeId
+            ) {
+                btcFreeAddressesProvider.addRegisterFreeAddressCommands(it, freeAddress)
+            }.fold({ transaction -> Pair(Pair(client, freeAddress), transaction) }, { ex ->
+                btcFreeAddressAllocator.release(freeAddress)
+                results.add(Pair(client, BtcRegistrationResult.failure(client.accountId, ex.message)))
+                null
+            })
+        }
+        if (transactions.isEmpty()) {
+            return results
+        }
+        irohaBtcAccountCreator.createBatch(transactions.map { (_, transaction) -> transaction })
+            .fold({ committedFlags ->
+                transactions.map { (registration, _) -> registration }
+                    .zip(committedFlags)
+                    .forEach { (registration, committed) ->
+                        val (client, freeAddress) = registration
+                        if (committed) {
+                            btcFreeAddressAllocator.taken(freeAddress)
+                            btcFreeAddressesProvider.onFreeAddressTaken(freeAddress.address)
+                            results.add(Pair(client, BtcRegistrationResult.success(client.accountId, freeAddress.address)))
+                        } else {
+                            results.add(Pair(client, registerRejected(client, freeAddress)))
+                        }
+                    }
+            }, { ex ->
+                logger.error("Cannot send bulk registration batch", ex)
+                transactions.forEach { (registration, _) ->
+                    val (client, freeAddress) = registration
+                    btcFreeAddressAllocator.release(freeAddress)
+                    results.add(Pair(client, BtcRegistrationResult.failure(client.accountId, ex.message)))
+                }
+            })
+        return results
+    }
+
+    /**
+     * Handles client which registration transaction was not committed as a part of batch.
+     * Iroha doesn't report errors of batch transactions, so the transaction is sent alone to get its error
+     * @param client - client to register
+     * @param freeAddress - address that was allocated for the client
+     * @return registration result or null if the client is to be registered again(i.e. the address was taken)
+     */
+    private fun registerRejected(client: BtcClientRegistration, freeAddress: BtcAddress): BtcRegistrationResult? {
+        return irohaBtcAccountCreator.create(
+            freeAddress.address,
+            client.name,
+            client.domain,
+            freeAddress.info.notaryKeys,
+            freeAddress.info.nodeId
+        ) {
+            btcFreeAddressesProvider.addRegisterFreeAddressCommands(it, freeAddress)
+        }.fold({
+            btcFreeAddressAllocator.taken(freeAddress)
+            btcFreeAddressesProvider.onFreeAddressTaken(freeAddress.address)
+            BtcRegistrationResult.success(client.accountId, freeAddress.address)
+        }, { ex ->
+            if (isCASError(ex)) {
+                // The address was taken by someone else
+                btcFreeAddressAllocator.taken(freeAddress)
+                null
+            } else {
+                // The address is still free
+                btcFreeAddressAllocator.release(freeAddress)
+                logger.warn("Cannot register ${client.accountId} due to error response from Iroha", ex)
+                BtcRegistrationResult.failure(client.accountId, ex.message)
+            }
+        })
+    }
+
+    override fun close() {
+        registrationExecutor.shutdownNow()
+    }
+
+    /**
+     * Logger
+     */
+    companion object : KLogging()
+}
+
+/**
+ * Client to register
+ * @param name - client name
+ * @param domain - client domain
+ */
+data class BtcClientRegistration(val name: String, val domain: String) {
+    val accountId: String
+        get() = "$name@$domain"
+}
+
+/**
+ * Result of client registration
+ * @param accountId - client account id
+ * @param clientId - registered Bitcoin address or null if registration failed
+ * @param error - error message or null if registration succeeded
+ */
+data class BtcRegistrationResult(val accountId: String, val clientId: String?, val error: String?) {
+    companion object {
+        fun success(accountId: String, clientId: String) = BtcRegistrationResult(accountId, clientId, null)
+
+        fun failure(accountId: String, error: String?) =
+            BtcRegistrationResult(accountId, null, error ?: "Cannot register $accountId")
+    }
+}
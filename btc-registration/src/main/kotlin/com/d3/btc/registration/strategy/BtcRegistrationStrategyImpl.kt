@@ -10,6 +10,7 @@ import com.d3.btc.provider.BtcFreeAddressesProvider
 import com.d3.btc.provider.BtcRegisteredAddressesProvider
 import com.d3.btc.provider.account.IrohaBtcAccountRegistrator
 import com.d3.btc.registration.BTC_REGISTRATION_OPERATION_NAME
+import com.d3.btc.registration.allocator.BtcFreeAddressAllocator
 import com.d3.commons.model.D3ErrorException
 import com.d3.commons.registration.RegistrationStrategy
 import com.d3.commons.sidechain.iroha.consumer.status.ToriiErrorResponseException
@@ -26,6 +27,7 @@ private const val MAX_CAS_ATTEMPTS = 15
 class BtcRegistrationStrategyImpl(
     private val btcRegisteredAddressesProvider: BtcRegisteredAddressesProvider,
     private val btcFreeAddressesProvider: BtcFreeAddressesProvider,
+    private val btcFreeAddressAllocator: BtcFreeAddressAllocator,
     private val irohaBtcAccountCreator: IrohaBtcAccountRegistrator
 ) : RegistrationStrategy {
 
@@ -56,7 +58,8 @@ class BtcRegistrationStrategyImpl(
     }
 
     /**
-     * Registers account using Iroha CAS
+     * Registers account using Iroha CAS. Addresses are taken from [btcFreeAddressAllocator],
+     * so CAS fails only if another registration service replica has taken the same address
      * @param accountName - account name
      * @param domainId - domain id
      * @return registered address
@@ -74,42 +77,45 @@ class BtcRegistrationStrategyImpl(
                     )
                 )
             }
-            // Get free address
-            btcFreeAddressesProvider.getFreeAddress()
-                .flatMap { freeAddress ->
-                    // Try to register
-                    irohaBtcAccountCreator.create(
-                        freeAddress.address,
-                        accountName,
-                        domainId,
-                        freeAddress.info.notaryKeys,
-                        freeAddress.info.nodeId
-                    ) {
-                        btcFreeAddressesProvider.addRegisterFreeAddressCommands(it, freeAddress)
-                    }
-                }.fold({
-                    logger.info("User $accountName@$domainId has been registered. CAS attempts $attempts")
-                    // Stop the loop and return result if everything was ok
+            // Allocate free address
+            val freeAddress = btcFreeAddressAllocator.allocate().fold({ it }, { ex -> return Result.error(ex) })
+            // Try to register
+            irohaBtcAccountCreator.create(
+                freeAddress.address,
+                accountName,
+                domainId,
+                freeAddress.info.notaryKeys,
+                freeAddress.info.nodeId
+            ) {
+                btcFreeAddressesProvider.addRegisterFreeAddressCommands(it, freeAddress)
+            }.fold({
+                btcFreeAddressAllocator.taken(freeAddress)
+                btcFreeAddressesProvider.onFreeAddressTaken(freeAddress.address)
+                logger.info("User $accountName@$domainId has been registered. CAS attempts $attempts")
+                // Stop the loop and return result if everything was ok
+                stopRegistration = true
+                result = Result.of(it)
+            }, { ex ->
+                if (isCASError(ex)) {
+                    // The address was taken by someone else
+                    btcFreeAddressAllocator.taken(freeAddress)
+                    attempts++
+                    // Go on next iteration and try again if an error occurred due to CAS issues
+                    logger.warn("Cannot register $accountName@$domainId due to CAS issues. Try again. CAS attempts $attempts")
+                } else {
+                    // The address is still free
+                    btcFreeAddressAllocator.release(freeAddress)
+                    // Stop the loop and return an exception
                     stopRegistration = true
-                    result = Result.of(it)
-                }, { ex ->
-                    if (isCASError(ex)) {
-                        // Wait a little before next attempt
-                        attempts++
-                        // Go on next iteration and try again if an error occurred due to CAS issues
-                        logger.warn("Cannot register $accountName@$domainId due to CAS issues. Try again. CAS attempts $attempts")
-                    } else {
-                        // Stop the loop and return an exception
-                        stopRegistration = true
-                        result = Result.error(
-                            D3ErrorException.warning(
-                                failedOperation = BTC_REGISTRATION_OPERATION_NAME,
-                                description = "Cannot register user $accountName@$domainId due to error response from Iroha",
-                                errorCause = ex
-                            )
+                    result = Result.error(
+                        D3ErrorException.warning(
+                            failedOperation = BTC_REGISTRATION_OPERATION_NAME,
+                            description = "Cannot register user $accountName@$domainId due to error response from Iroha",
+                            errorCause = ex
                         )
-                    }
-                })
+                    )
+                }
+            })
         }
         return result!!
     }
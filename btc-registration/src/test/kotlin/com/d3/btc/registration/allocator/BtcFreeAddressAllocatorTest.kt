@@ -0,0 +1,168 @@
+/*
+ * Copyright D3 Ledger, Inc. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package com.d3.btc.registration.allocator
+
+import com.d3.btc.model.AddressInfo
+import com.d3.btc.provider.BtcFreeAddressesProvider
+import com.d3.commons.sidechain.iroha.consumer.IrohaConsumer
+import com.d3.commons.sidechain.iroha.util.IrohaQueryHelper
+import com.github.kittinunf.result.Result
+import com.nhaarman.mockito_kotlin.doReturn
+import com.nhaarman.mockito_kotlin.mock
+import com.nhaarman.mockito_kotlin.times
+import com.nhaarman.mockito_kotlin.verify
+import com.nhaarman.mockito_kotlin.whenever
+import org.junit.jupiter.api.Assertions.assertEquals
+import org.junit.jupiter.api.Assertions.assertNotNull
+import org.junit.jupiter.api.Assertions.assertTrue
+import org.junit.jupiter.api.Test
+import java.util.concurrent.Callable
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.Executors
+import java.util.concurrent.TimeUnit
+
+class BtcFreeAddressAllocatorTest {
+
+    private val nodeId = "nodeId"
+
+    private val freeAddressesStorageAccount = "btc_free_addresses_storage@notary"
+
+    private val registrationAccountId = "btc_registration_service@notary"
+
+    private val addresses = (1..10).map { index -> "address$index" }
+
+    private val registrationQueryHelper = mock<IrohaQueryHelper> {
+        on { getQueryCreatorAccountId() } doReturn registrationAccountId
+    }
+
+    private val btcFreeAddressesProvider = BtcFreeAddressesProvider(
+        nodeId,
+        freeAddressesStorageAccount,
+        registrationQueryHelper,
+        mock<IrohaConsumer>()
+    )
+
+    /**
+     * @given allocator of the first out of two replicas and free addresses of both slices in Iroha
+     * @when all the addresses are allocated
+     * @then addresses of the replica slice are allocated first and Iroha is queried once
+     */
+    @Test
+    fun testAllocateOwnSliceFirst() {
+        mockFreeAddresses(addresses)
+        val allocator = BtcFreeAddressAllocator(btcFreeAddressesProvider, 0, 2)
+        val ownAddresses = addresses.filter { address -> Math.floorMod(address.hashCode(), 2) == 0 }
+
+        val allocated = allocator.allocate(addresses.size).get().map { address -> address.address }
+        assertEquals(ownAddresses.toSet(), allocated.take(ownAddresses.size).toSet())
+        assertEquals(addresses.toSet(), allocated.toSet())
+        verify(registrationQueryHelper, times(1)).getAccountDetails(freeAddressesStorageAccount, registrationAccountId)
+    }
+
+    /**
+     * @given allocator with an allocated address
+     * @when the address is released
+     * @then the address is allocated again first without querying Iroha
+     */
+    @Test
+    fun testRelease() {
+        mockFreeAddresses(addresses)
+        val allocator = BtcFreeAddressAllocator(btcFreeAddressesProvider, 0, 1)
+        val address = allocator.allocate().get()
+        allocator.release(address)
+        assertEquals(address, allocator.allocate().get())
+        verify(registrationQueryHelper, times(1)).getAccountDetails(freeAddressesStorageAccount, registrationAccountId)
+    }
+
+    /**
+     * @given allocator with all the addresses allocated
+     * @when more addresses are requested
+     * @then Iroha is queried again, but allocated addresses are not allocated twice.
+     * Released addresses are allocated again, taken addresses are not
+     */
+    @Test
+    fun testRefillSkipsAllocated() {
+        mockFreeAddresses(addresses.take(2))
+        val allocator = BtcFreeAddressAllocator(btcFreeAddressesProvider, 0, 1)
+        val first = allocator.allocate().get()
+        val second = allocator.allocate().get()
+        assertNotNull(allocator.allocate().component2())
+        verify(registrationQueryHelper, times(2)).getAccountDetails(freeAddressesStorageAccount, registrationAccountId)
+
+        allocator.taken(first)
+        allocator.release(first)
+        allocator.release(second)
+        assertEquals(second, allocator.allocate().get())
+        // The taken address is not free in Iroha anymore
+        mockFreeAddresses(listOf(second.address))
+        assertTrue(allocator.allocate(2).get().isEmpty())
+    }
+
+    /**
+     * @given allocator that fetches free addresses slowly
+     * @when addresses are allocated concurrently
+     * @then Iroha is queried once and every caller gets its own address
+     */
+    @Test
+    fun testSingleFetch() {
+        whenever(registrationQueryHelper.getAccountDetails(freeAddressesStorageAccount, registrationAccountId))
+            .thenAnswer {
+                Thread.sleep(200)
+                Result.of { toIrohaDetails(addresses) }
+            }
+        val allocator = BtcFreeAddressAllocator(btcFreeAddressesProvider, 0, 1)
+        val executor = Executors.newFixedThreadPool(4)
+        try {
+            val allocated = (1..4)
+                .map { executor.submit(Callable { allocator.allocate().get() }) }
+                .map { allocation -> allocation.get().address }
+            assertEquals(4, allocated.toSet().size)
+        } finally {
+            executor.shutdownNow()
+        }
+        verify(registrationQueryHelper, times(1)).getAccountDetails(freeAddressesStorageAccount, registrationAccountId)
+    }
+
+    /**
+     * @given allocator that is fetching free addresses
+     * @when an allocated address is taken before the fetch is over and the fetch still sees it free
+     * @then the taken address is not allocated again
+     */
+    @Test
+    fun testTakenDuringFetch() {
+        mockFreeAddresses(addresses.take(1))
+        val allocator = BtcFreeAddressAllocator(btcFreeAddressesProvider, 0, 1)
+        val first = allocator.allocate().get()
+        val fetchStarted = CountDownLatch(1)
+        val addressTaken = CountDownLatch(1)
+        whenever(registrationQueryHelper.getAccountDetails(freeAddressesStorageAccount, registrationAccountId))
+            .thenAnswer {
+                fetchStarted.countDown()
+                addressTaken.await(5, TimeUnit.SECONDS)
+                // Iroha was queried before the address was taken
+                Result.of { toIrohaDetails(addresses.take(1)) }
+            }
+        val executor = Executors.newSingleThreadExecutor()
+        try {
+            val allocation = executor.submit(Callable { allocator.allocate() })
+            assertTrue(fetchStarted.await(5, TimeUnit.SECONDS))
+            allocator.taken(first)
+            addressTaken.countDown()
+            assertNotNull(allocation.get().component2())
+        } finally {
+            executor.shutdownNow()
+        }
+    }
+
+    private fun mockFreeAddresses(freeAddresses: List<String>) {
+        whenever(registrationQueryHelper.getAccountDetails(freeAddressesStorageAccount, registrationAccountId))
+            .thenReturn(Result.of { toIrohaDetails(freeAddresses) })
+    }
+
+    private fun toIrohaDetails(freeAddresses: List<String>) = freeAddresses.map { address ->
+        address to AddressInfo.createFreeAddressInfo(listOf("pubKey"), nodeId, 0).toJson()
+    }.toMap()
+}
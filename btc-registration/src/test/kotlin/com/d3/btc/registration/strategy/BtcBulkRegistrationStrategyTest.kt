@@ -0,0 +1,85 @@
+/*
+ * Copyright D3 Ledger, Inc. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package com.d3.btc.registration.strategy
+
+import com.d3.btc.model.AddressInfo
+import com.d3.btc.provider.BtcFreeAddressesProvider
+import com.d3.btc.provider.BtcRegisteredAddressesProvider
+import com.d3.btc.provider.account.IrohaBtcAccountRegistrator
+import com.d3.btc.registration.allocator.BtcFreeAddressAllocator
+import com.d3.btc.registration.config.BtcRegistrationConfig
+import com.d3.commons.sidechain.iroha.consumer.IrohaConsumer
+import com.d3.commons.sidechain.iroha.util.IrohaQueryHelper
+import com.github.kittinunf.result.Result
+import com.nhaarman.mockito_kotlin.doReturn
+import com.nhaarman.mockito_kotlin.mock
+import com.nhaarman.mockito_kotlin.whenever
+import org.junit.jupiter.api.AfterEach
+import org.junit.jupiter.api.Assertions.assertEquals
+import org.junit.jupiter.api.Test
+
+class BtcBulkRegistrationStrategyTest {
+
+    private val freeAddressesStorageAccount = "btc_free_addresses_storage@notary"
+
+    private val registrationAccountId = "btc_registration_service@notary"
+
+    private val notaryAccountId = "notary@notary"
+
+    private val registrationQueryHelper = mock<IrohaQueryHelper> {
+        on { getQueryCreatorAccountId() } doReturn registrationAccountId
+    }
+
+    private val registrationIrohaConsumer = mock<IrohaConsumer>()
+
+    private val btcFreeAddressesProvider = BtcFreeAddressesProvider(
+        "nodeId",
+        freeAddressesStorageAccount,
+        registrationQueryHelper,
+        registrationIrohaConsumer
+    )
+
+    private val btcRegistrationConfig = mock<BtcRegistrationConfig> {
+        on { bulkRegistrationBatchSize } doReturn 10
+        on { bulkRegistrationConcurrency } doReturn 1
+    }
+
+    private val strategy = BtcBulkRegistrationStrategy(
+        BtcRegisteredAddressesProvider(registrationQueryHelper, registrationAccountId, notaryAccountId),
+        btcFreeAddressesProvider,
+        BtcFreeAddressAllocator(btcFreeAddressesProvider, 0, 1),
+        IrohaBtcAccountRegistrator(registrationIrohaConsumer, notaryAccountId),
+        btcRegistrationConfig
+    )
+
+    @AfterEach
+    fun tearDown() {
+        strategy.close()
+    }
+
+    /**
+     * @given bulk registration strategy with one registered client and no free addresses
+     * @when the registered client, its duplicate and a new client are registered
+     * @then every client gets its own result in order of clients and the duplicate fails explicitly
+     */
+    @Test
+    fun testResultPerClient() {
+        whenever(registrationQueryHelper.getAccountDetails(notaryAccountId, registrationAccountId))
+            .thenReturn(Result.of {
+                mapOf("address" to AddressInfo("registered@d3", listOf("pubKey"), "nodeId", 0).toJson())
+            })
+        whenever(registrationQueryHelper.getAccountDetails(freeAddressesStorageAccount, registrationAccountId))
+            .thenReturn(Result.of { emptyMap<String, String>() })
+        val registered = BtcClientRegistration("registered", "d3")
+        val newClient = BtcClientRegistration("new", "d3")
+
+        val results = strategy.register(listOf(registered, registered, newClient)).get()
+        assertEquals(listOf("registered@d3", "registered@d3", "new@d3"), results.map { result -> result.accountId })
+        assertEquals("The user probably has been registered before", results[0].error)
+        assertEquals("Duplicate client registered@d3", results[1].error)
+        assertEquals("No free address to take", results[2].error)
+    }
+}
@@ -39,4 +39,22 @@ interface BtcWithdrawalConfig {
     val utxoStorageAccount: String
     // Account that collects withdrawal fees
     val withdrawalBillingAccount: String
+    // Fee rate in SAT per byte. Used if no fee rate file is set
+    val feeRate: Int
+    // Path to a file with fee rate in SAT per byte. Optional
+    val feeRateFilePath: String?
+    // Maximum number of withdrawals from one Iroha block that are executed in a single Bitcoin transaction. 1 means no batching
+    val withdrawalBatchSize: Int
+    // Minimum number of available UTXO that triggers UTXO consolidation. 0 turns consolidation off
+    val consolidationUtxoThreshold: Int
+    // Maximum fee rate in SAT per byte at which UTXO consolidation is allowed
+    val consolidationMaxFeeRate: Int
+    // Number of parallel lanes of every asynchronous withdrawal stage
+    val withdrawalPipelineLanes: Int
+    // Number of parallel lanes that execute other events of Iroha blocks
+    val irohaBlockLanes: Int
+    // Time in seconds to wait for peers to accept a broadcasted transaction. Doubled on every next attempt
+    val broadcastTimeoutSeconds: Int
+    // Maximum number of attempts to broadcast a transaction
+    val broadcastMaxAttempts: Int
 }
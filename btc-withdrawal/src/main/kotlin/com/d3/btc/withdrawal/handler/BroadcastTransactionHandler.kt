@@ -7,8 +7,13 @@ package com.d3.btc.withdrawal.handler
 
 import com.d3.btc.handler.SetAccountDetailEvent
 import com.d3.btc.handler.SetAccountDetailHandler
+import com.d3.btc.handler.SetAccountDetailRoute
 import com.d3.btc.withdrawal.config.BtcWithdrawalConfig
+import com.d3.btc.withdrawal.pipeline.WithdrawalStage
+import com.d3.btc.withdrawal.pipeline.WithdrawalStageHandler
 import com.d3.btc.withdrawal.service.BtcWithdrawalFinalizeService
+import com.d3.btc.withdrawal.statistics.WithdrawalTimeline
+import com.d3.btc.withdrawal.statistics.WithdrawalTimelineEventType
 import com.d3.btc.withdrawal.transaction.WithdrawalDetails
 import com.d3.commons.util.GsonInstance
 import com.d3.commons.util.irohaUnEscape
@@ -21,8 +26,11 @@ import org.springframework.stereotype.Component
 @Component
 class BroadcastTransactionHandler(
     private val btcWithdrawalConfig: BtcWithdrawalConfig,
-    private val btcWithdrawalFinalizeService: BtcWithdrawalFinalizeService
-) : SetAccountDetailHandler() {
+    private val btcWithdrawalFinalizeService: BtcWithdrawalFinalizeService,
+    private val withdrawalTimeline: WithdrawalTimeline
+) : SetAccountDetailHandler(), WithdrawalStageHandler {
+
+    override val stage = WithdrawalStage.FINALIZATION
 
     private val gson = GsonInstance.get()
 
@@ -37,13 +45,33 @@ class BroadcastTransactionHandler(
             logger.error("Cannot handle 'null' withdrawal")
             return
         }
+        if (withdrawalDetails.isConsolidation()) {
+            // Consolidation doesn't move clients assets. Nothing to finalize
+            logger.info("UTXO consolidation $withdrawalDetails has been broadcasted")
+            return
+        }
         btcWithdrawalFinalizeService.finalize(withdrawalDetails)
             .fold(
-                { logger.info("Withdrawal $withdrawalDetails has been finalized") },
+                {
+                    logger.info("Withdrawal $withdrawalDetails has been finalized")
+                    withdrawalTimeline.record(listOf(withdrawalDetails), WithdrawalTimelineEventType.FINALIZED)
+                },
                 { ex -> logger.error("Cannot finalize withdrawal $withdrawalDetails", ex) }
             )
     }
 
+    override fun getWithdrawals(setAccountDetailEvent: SetAccountDetailEvent): List<WithdrawalDetails> =
+        listOfNotNull(
+            gson.fromJson(setAccountDetailEvent.command.value.irohaUnEscape(), WithdrawalDetails::class.java)
+        )
+
+    override fun isStageEvent(setAccountDetailEvent: SetAccountDetailEvent) = filter(setAccountDetailEvent)
+
+    override fun route() = SetAccountDetailRoute(
+        creator = btcWithdrawalConfig.broadcastsCredential.accountId,
+        accountId = btcWithdrawalConfig.broadcastsCredential.accountId
+    )
+
     override fun filter(setAccountDetailEvent: SetAccountDetailEvent) =
         setAccountDetailEvent.command.accountId == btcWithdrawalConfig.broadcastsCredential.accountId &&
                 setAccountDetailEvent.creator == btcWithdrawalConfig.broadcastsCredential.accountId
@@ -7,9 +7,13 @@ package com.d3.btc.withdrawal.handler
 
 import com.d3.btc.handler.SetAccountDetailEvent
 import com.d3.btc.handler.SetAccountDetailHandler
+import com.d3.btc.handler.SetAccountDetailRoute
 import com.d3.btc.withdrawal.config.BtcWithdrawalConfig
+import com.d3.btc.withdrawal.pipeline.WithdrawalStage
+import com.d3.btc.withdrawal.pipeline.WithdrawalStageHandler
 import com.d3.btc.withdrawal.service.WithdrawalTransferService
 import com.d3.btc.withdrawal.transaction.WithdrawalConsensus
+import com.d3.btc.withdrawal.transaction.WithdrawalDetails
 import com.d3.commons.util.irohaUnEscape
 import mu.KLogging
 import org.springframework.stereotype.Component
@@ -21,7 +25,9 @@ import org.springframework.stereotype.Component
 class ConsensusDataCreatedHandler(
     private val withdrawalTransferService: WithdrawalTransferService,
     private val btcWithdrawalConfig: BtcWithdrawalConfig
-) : SetAccountDetailHandler() {
+) : SetAccountDetailHandler(), WithdrawalStageHandler {
+
+    override val stage = WithdrawalStage.TRANSACTION
 
     /**
      * Handles consensus command
@@ -33,6 +39,16 @@ class ConsensusDataCreatedHandler(
         withdrawalTransferService.withdraw(withdrawalConsensus)
     }
 
+    override fun getWithdrawals(setAccountDetailEvent: SetAccountDetailEvent): List<WithdrawalDetails> =
+        WithdrawalConsensus.fromJson(setAccountDetailEvent.command.value.irohaUnEscape()).allWithdrawals()
+
+    override fun isStageEvent(setAccountDetailEvent: SetAccountDetailEvent) = filter(setAccountDetailEvent)
+
+    override fun route() = SetAccountDetailRoute(
+        creator = btcWithdrawalConfig.withdrawalCredential.accountId,
+        accountId = btcWithdrawalConfig.btcConsensusCredential.accountId
+    )
+
     override fun filter(setAccountDetailEvent: SetAccountDetailEvent) =
         setAccountDetailEvent.command.accountId == btcWithdrawalConfig.btcConsensusCredential.accountId &&
                 setAccountDetailEvent.creator == btcWithdrawalConfig.withdrawalCredential.accountId
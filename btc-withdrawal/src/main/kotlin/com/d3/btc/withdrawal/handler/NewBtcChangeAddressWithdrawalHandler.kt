@@ -7,6 +7,7 @@ package com.d3.btc.withdrawal.handler
 
 import com.d3.btc.handler.SetAccountDetailEvent
 import com.d3.btc.handler.SetAccountDetailHandler
+import com.d3.btc.handler.SetAccountDetailRoute
 import com.d3.btc.provider.network.BtcNetworkConfigProvider
 import com.d3.btc.withdrawal.config.BtcWithdrawalConfig
 import iroha.protocol.Commands
@@ -40,6 +41,11 @@ class NewBtcChangeAddressWithdrawalHandler(
         )
     }
 
+    override fun route() = SetAccountDetailRoute(
+        creator = btcWithdrawalConfig.mstRegistrationAccount,
+        accountId = btcWithdrawalConfig.changeAddressesStorageAccount
+    )
+
     override fun filter(setAccountDetailEvent: SetAccountDetailEvent) =
         setAccountDetailEvent.command.accountId == btcWithdrawalConfig.changeAddressesStorageAccount &&
                 setAccountDetailEvent.creator == btcWithdrawalConfig.mstRegistrationAccount
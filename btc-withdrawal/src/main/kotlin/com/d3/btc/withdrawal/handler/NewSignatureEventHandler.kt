@@ -8,24 +8,34 @@ package com.d3.btc.withdrawal.handler
 import com.d3.btc.config.BTC_SIGN_COLLECT_DOMAIN
 import com.d3.btc.handler.SetAccountDetailEvent
 import com.d3.btc.handler.SetAccountDetailHandler
+import com.d3.btc.handler.SetAccountDetailRoute
+import com.d3.btc.helper.transaction.shortTxHash
+import com.d3.btc.metrics.MetricsRegistry
+import com.d3.btc.wallet.measuredSave
 import com.d3.btc.withdrawal.config.BtcWithdrawalConfig
 import com.d3.btc.withdrawal.init.WITHDRAWAL_OPERATION
+import com.d3.btc.withdrawal.pipeline.WithdrawalStage
+import com.d3.btc.withdrawal.pipeline.WithdrawalStageHandler
 import com.d3.btc.withdrawal.provider.BroadcastsProvider
 import com.d3.btc.withdrawal.service.BtcRollbackService
 import com.d3.btc.withdrawal.statistics.WithdrawalStatistics
+import com.d3.btc.withdrawal.statistics.WithdrawalTimeline
+import com.d3.btc.withdrawal.statistics.WithdrawalTimelineEventType
 import com.d3.btc.withdrawal.transaction.SignCollector
+import com.d3.btc.withdrawal.transaction.TransactionBroadcaster
 import com.d3.btc.withdrawal.transaction.TransactionsStorage
 import com.d3.btc.withdrawal.transaction.WithdrawalConsensus
 import com.d3.commons.model.D3ErrorException
+import com.github.kittinunf.result.Result
 import com.github.kittinunf.result.failure
+import com.github.kittinunf.result.flatMap
 import com.github.kittinunf.result.map
 import mu.KLogging
-import org.bitcoinj.core.PeerGroup
 import org.bitcoinj.core.Transaction
 import org.bitcoinj.wallet.Wallet
 import org.springframework.beans.factory.annotation.Qualifier
 import org.springframework.stereotype.Component
-import java.io.File
+import java.util.concurrent.ConcurrentHashMap
 import java.util.concurrent.CopyOnWriteArrayList
 
 /*
@@ -40,12 +50,23 @@ class NewSignatureEventHandler(
     private val signCollector: SignCollector,
     private val transactionsStorage: TransactionsStorage,
     private val btcRollbackService: BtcRollbackService,
-    private val peerGroup: PeerGroup,
-    private val broadcastsProvider: BroadcastsProvider
-) : SetAccountDetailHandler() {
+    private val transactionBroadcaster: TransactionBroadcaster,
+    private val broadcastsProvider: BroadcastsProvider,
+    private val withdrawalTimeline: WithdrawalTimeline,
+    private val metricsRegistry: MetricsRegistry
+) : SetAccountDetailHandler(), WithdrawalStageHandler {
+
+    override val stage = WithdrawalStage.BROADCAST
 
     private val broadcastTransactionListeners = CopyOnWriteArrayList<(tx: Transaction) -> Unit>()
 
+    /*
+    Short hashes of original transactions that are being broadcasted.
+    Broadcasts are tracked here rather than in the withdrawal pipeline,
+    so Iroha blocks are acknowledged as soon as transactions are signed.
+     */
+    private val pendingBroadcasts = ConcurrentHashMap.newKeySet<String>()
+
     /**
      * Registers "broadcast transaction" event listener
      * For testing purposes only.
@@ -60,12 +81,18 @@ class NewSignatureEventHandler(
      * @param setAccountDetailEvent - event object full of signatures
      */
     override fun handle(setAccountDetailEvent: SetAccountDetailEvent) {
-        val shortTxHash = setAccountDetailEvent.command.accountId.replace("@$BTC_SIGN_COLLECT_DOMAIN", "")
+        val shortTxHash = getPipelineKey(setAccountDetailEvent)
         var savedWithdrawal: WithdrawalConsensus? = null
         var savedTx: Transaction? = null
         transactionsStorage.get(shortTxHash).map { withdrawal ->
             savedWithdrawal = withdrawal.first
             savedTx = withdrawal.second
+            // Key of signatures identifies the set of keys that signed the transaction
+            withdrawalTimeline.record(
+                withdrawal.first.allWithdrawals(),
+                WithdrawalTimelineEventType.SIGNATURE_RECEIVED,
+                "Signatures ${setAccountDetailEvent.command.key}"
+            )
             broadcastsProvider.hasBeenBroadcasted(withdrawal.first.withdrawalDetails).fold(
                 { broadcasted ->
                     if (broadcasted) {
@@ -85,8 +112,8 @@ class NewSignatureEventHandler(
                 })
         }.failure { ex ->
             if (savedWithdrawal != null && savedTx != null) {
-                btcRollbackService.rollback(
-                    savedWithdrawal!!.withdrawalDetails, "Cannot handle new signature", savedTx
+                btcRollbackService.rollbackConsensus(
+                    savedWithdrawal!!, "Cannot handle new signature", savedTx
                 )
             }
             logger.error("Cannot handle new signature for tx $shortTxHash", ex)
@@ -103,9 +130,13 @@ class NewSignatureEventHandler(
         tx: Transaction,
         withdrawalConsensus: WithdrawalConsensus
     ) {
-        val withdrawalDetails = withdrawalConsensus.withdrawalDetails
         // Hash of transaction will be changed after signing. This is why we keep an "original" hash
         val originalHash = tx.hashAsString
+        val pipelineKey = shortTxHash(originalHash)
+        if (pendingBroadcasts.contains(pipelineKey)) {
+            logger.info { "Tx $originalHash is being broadcasted already" }
+            return
+        }
         signCollector.getSignatures(originalHash).fold({ signatures ->
             val enoughSignaturesCollected =
                 signCollector.isEnoughSignaturesCollected(tx, signatures, withdrawalConsensus)
@@ -113,49 +144,145 @@ class NewSignatureEventHandler(
                 logger.info { "Not enough signatures were collected for tx $originalHash" }
                 return
             }
-            var successfullyBroadcasted = false
             logger.info { "Tx $originalHash has enough signatures" }
+            withdrawalStatistics.finishSignatureCollection(originalHash)
+            withdrawalTimeline.record(
+                withdrawalConsensus.allWithdrawals(),
+                WithdrawalTimelineEventType.THRESHOLD_REACHED,
+                "Tx $originalHash"
+            )
             signCollector.fillTxWithSignatures(tx, signatures, withdrawalConsensus)
                 .map {
                     logger.info { "Tx(originally known as $originalHash) is ready to be broadcasted $tx" }
                     broadcastTransactionListeners.forEach { listener ->
                         listener(tx)
                     }
-                    //Wait until it is broadcasted to all the connected peers
-                    peerGroup.broadcastTransaction(tx).future().get()
-                    successfullyBroadcasted = true
-                }.map {
-                    // Save wallet
-                    transferWallet.saveToFile(File(btcWithdrawalConfig.btcTransfersWalletPath))
-                }.map {
-                    // Mark withdrawal as 'broadcasted'
-                    broadcastsProvider.markAsBroadcasted(withdrawalDetails)
-                }
-                .fold({
-                    logger.info { "Tx ${tx.hashAsString} was successfully broadcasted" }
-                    withdrawalStatistics.incSucceededTransfers()
-                }, { ex ->
+                    // Broadcasting may take a while. The result is handled in callbacks
+                    pendingBroadcasts.add(pipelineKey)
+                    try {
+                        transactionBroadcaster.broadcast(
+                            tx,
+                            {
+                                try {
+                                    onBroadcasted(tx, withdrawalConsensus)
+                                } finally {
+                                    pendingBroadcasts.remove(pipelineKey)
+                                }
+                            },
+                            { ex, timedOut ->
+                                onBroadcastFailure(tx, originalHash, withdrawalConsensus, ex, timedOut) {
+                                    pendingBroadcasts.remove(pipelineKey)
+                                }
+                            })
+                    } catch (e: Exception) {
+                        pendingBroadcasts.remove(pipelineKey)
+                        throw e
+                    }
+                }.failure { ex ->
                     withdrawalStatistics.incFailedTransfers()
                     logger.error("Cannot complete tx $originalHash", ex)
-                    if (successfullyBroadcasted) {
-                        logger.warn("Cannot rollback $withdrawalDetails because it has been successfully broadcasted recently")
-                    } else {
-                        btcRollbackService.rollback(
-                            withdrawalDetails, "Cannot complete Bitcoin transaction", tx
-                        )
-                    }
-                    Unit
-                })
-
+                    btcRollbackService.rollbackConsensus(
+                        withdrawalConsensus, "Cannot complete Bitcoin transaction", tx
+                    )
+                }
         }, { ex ->
-            btcRollbackService.rollback(
-                withdrawalDetails, "Cannot get signatures for Bitcoin transaction", tx
+            btcRollbackService.rollbackConsensus(
+                withdrawalConsensus, "Cannot get signatures for Bitcoin transaction", tx
             )
             withdrawalStatistics.incFailedTransfers()
             logger.error("Cannot get signatures for tx $originalHash", ex)
         })
     }
 
+    /**
+     * Saves wallet and marks withdrawals as 'broadcasted'. Called once peers have accepted transaction.
+     * @param tx - broadcasted transaction
+     * @param withdrawalConsensus - withdrawal consensus data
+     */
+    private fun onBroadcasted(tx: Transaction, withdrawalConsensus: WithdrawalConsensus) {
+        Result.of {
+            transferWallet.measuredSave(btcWithdrawalConfig.btcTransfersWalletPath, metricsRegistry)
+        }.flatMap {
+            // Mark all the withdrawals of the transaction as 'broadcasted'
+            broadcastsProvider.markAsBroadcasted(withdrawalConsensus.allWithdrawals())
+        }.fold({
+            logger.info { "Tx ${tx.hashAsString} was successfully broadcasted" }
+            withdrawalTimeline.record(
+                withdrawalConsensus.allWithdrawals(),
+                WithdrawalTimelineEventType.BROADCASTED,
+                "Tx ${tx.hashAsString}"
+            )
+            withdrawalStatistics.incSucceededTransfers()
+        }, { ex ->
+            withdrawalStatistics.incFailedTransfers()
+            logger.error("Cannot complete tx ${tx.hashAsString}", ex)
+            logger.warn("Cannot rollback ${withdrawalConsensus.withdrawalDetails} because it has been successfully broadcasted recently")
+        })
+    }
+
+    /**
+     * Handles transaction that cannot be broadcasted.
+     * Peers may relay such a transaction anyway, so it's checked again later until the outcome is known.
+     * The transaction is marked as 'broadcasted' once relayed. Withdrawals are rolled back only once it can never be mined.
+     * @param tx - transaction that cannot be broadcasted
+     * @param originalHash - hash of transaction before signing
+     * @param withdrawalConsensus - withdrawal consensus data
+     * @param ex - cause of failure
+     * @param timedOut - true if the broadcast has timed out
+     * @param onComplete - function that is called once the outcome of transaction is handled
+     */
+    private fun onBroadcastFailure(
+        tx: Transaction,
+        originalHash: String,
+        withdrawalConsensus: WithdrawalConsensus,
+        ex: Exception,
+        timedOut: Boolean,
+        onComplete: () -> Unit
+    ) {
+        var checkScheduled = false
+        try {
+            logger.error("Cannot broadcast tx $originalHash", ex)
+            withdrawalTimeline.record(
+                withdrawalConsensus.allWithdrawals(),
+                WithdrawalTimelineEventType.BROADCAST_FAILED,
+                if (timedOut) "Timed out" else ex.message
+            )
+            // Even rejected transaction may have been relayed by some peers. Rollback right away may lead to double spending
+            logger.warn("Tx $originalHash may have been relayed. Check it later")
+            transactionBroadcaster.awaitRelayedOrDead(tx) { relayed ->
+                try {
+                    if (relayed) {
+                        logger.info { "Tx $originalHash was relayed by peers after all" }
+                        onBroadcasted(tx, withdrawalConsensus)
+                    } else {
+                        withdrawalStatistics.incFailedTransfers()
+                        btcRollbackService.rollbackConsensus(
+                            withdrawalConsensus, "Bitcoin transaction can never be mined", tx
+                        )
+                    }
+                } finally {
+                    onComplete()
+                }
+            }
+            checkScheduled = true
+        } finally {
+            if (!checkScheduled) {
+                onComplete()
+            }
+        }
+    }
+
+    // Signature events carry only a hash of transaction
+    override fun getPipelineKey(setAccountDetailEvent: SetAccountDetailEvent) =
+        setAccountDetailEvent.command.accountId.replace("@$BTC_SIGN_COLLECT_DOMAIN", "")
+
+    override fun isStageEvent(setAccountDetailEvent: SetAccountDetailEvent) = filter(setAccountDetailEvent)
+
+    override fun route() = SetAccountDetailRoute(
+        creator = btcWithdrawalConfig.signatureCollectorCredential.accountId,
+        domain = BTC_SIGN_COLLECT_DOMAIN
+    )
+
     override fun filter(setAccountDetailEvent: SetAccountDetailEvent) =
         setAccountDetailEvent.command.accountId.endsWith("@$BTC_SIGN_COLLECT_DOMAIN") &&
                 setAccountDetailEvent.creator == btcWithdrawalConfig.signatureCollectorCredential.accountId
@@ -2,13 +2,20 @@ package com.d3.btc.withdrawal.handler
 
 import com.d3.btc.handler.SetAccountDetailEvent
 import com.d3.btc.handler.SetAccountDetailHandler
+import com.d3.btc.handler.SetAccountDetailRoute
 import com.d3.btc.withdrawal.config.BtcWithdrawalConfig
+import com.d3.btc.withdrawal.pipeline.WithdrawalStage
+import com.d3.btc.withdrawal.pipeline.WithdrawalStageHandler
 import com.d3.btc.withdrawal.provider.BroadcastsProvider
 import com.d3.btc.withdrawal.service.BtcRollbackService
+import com.d3.btc.withdrawal.statistics.WithdrawalLatency
+import com.d3.btc.withdrawal.statistics.WithdrawalStatistics
 import com.d3.btc.withdrawal.transaction.SignCollector
 import com.d3.btc.withdrawal.transaction.TransactionsStorage
 import com.d3.btc.withdrawal.transaction.WithdrawalConsensus
 import com.d3.btc.withdrawal.transaction.WithdrawalDetails
+import com.d3.btc.withdrawal.transaction.getWithdrawalConsensus
+import com.d3.commons.util.irohaUnEscape
 import com.github.kittinunf.result.Result
 import com.github.kittinunf.result.failure
 import com.github.kittinunf.result.flatMap
@@ -23,8 +30,11 @@ class NewTransactionCreatedHandler(
     private val transactionsStorage: TransactionsStorage,
     private val btcWithdrawalConfig: BtcWithdrawalConfig,
     private val btcRollbackService: BtcRollbackService,
-    private val broadcastsProvider: BroadcastsProvider
-) : SetAccountDetailHandler() {
+    private val broadcastsProvider: BroadcastsProvider,
+    private val withdrawalStatistics: WithdrawalStatistics
+) : SetAccountDetailHandler(), WithdrawalStageHandler {
+
+    override val stage = WithdrawalStage.SIGNING
 
     /**
      * Handles "create new transaction" commands
@@ -48,19 +58,23 @@ class NewTransactionCreatedHandler(
             } else {
                 val transaction = savedTransaction!!
                 logger.info { "Tx to sign\n$savedTransaction" }
-                signCollector.signAndSave(
-                    savedWithdrawalConsensus!!,
-                    transaction,
-                    btcWithdrawalConfig.btcKeysWalletPath
-                )
+                // Signatures of all the nodes are collected by the hash of unsigned transaction
+                withdrawalStatistics.startSignatureCollection(transaction.hashAsString)
+                withdrawalStatistics.measureLatency(WithdrawalLatency.SIGNING) {
+                    signCollector.signAndSave(
+                        savedWithdrawalConsensus!!,
+                        transaction,
+                        btcWithdrawalConfig.btcKeysWalletPath
+                    )
+                }
             }
         }.map {
             logger.info("Signatures for ${savedTransaction!!.hashAsString} were successfully processed")
         }.failure { ex ->
-            if (savedTransaction != null && savedWithdrawalDetails != null) {
+            if (savedTransaction != null && savedWithdrawalConsensus != null) {
                 logger.error("Cannot handle new transaction $savedTransaction", ex)
-                btcRollbackService.rollback(
-                    savedWithdrawalDetails!!, "Cannot sign", savedTransaction
+                btcRollbackService.rollbackConsensus(
+                    savedWithdrawalConsensus!!, "Cannot sign", savedTransaction
                 )
             } else {
                 logger.error("Cannot handle new transaction with hash $txHash", ex)
@@ -68,6 +82,16 @@ class NewTransactionCreatedHandler(
         }
     }
 
+    override fun getWithdrawals(setAccountDetailEvent: SetAccountDetailEvent): List<WithdrawalDetails> =
+        getWithdrawalConsensus(setAccountDetailEvent.command.value.irohaUnEscape()).allWithdrawals()
+
+    override fun isStageEvent(setAccountDetailEvent: SetAccountDetailEvent) = filter(setAccountDetailEvent)
+
+    override fun route() = SetAccountDetailRoute(
+        creator = btcWithdrawalConfig.withdrawalCredential.accountId,
+        accountId = btcWithdrawalConfig.txStorageAccount
+    )
+
     override fun filter(setAccountDetailEvent: SetAccountDetailEvent) =
         setAccountDetailEvent.command.accountId == btcWithdrawalConfig.txStorageAccount &&
                 setAccountDetailEvent.creator == btcWithdrawalConfig.withdrawalCredential.accountId
@@ -13,7 +13,7 @@ import com.d3.btc.withdrawal.provider.WithdrawalConsensusProvider
 import com.d3.btc.withdrawal.service.BtcRollbackService
 import com.d3.btc.withdrawal.statistics.WithdrawalStatistics
 import com.d3.btc.withdrawal.transaction.WithdrawalDetails
-import com.d3.btc.withdrawal.transaction.isDust
+import com.d3.btc.withdrawal.transaction.isTooSmallWithdrawal
 import iroha.protocol.Commands
 import mu.KLogging
 import org.springframework.stereotype.Component
@@ -31,6 +31,32 @@ class NewTransferHandler(
     private val broadcastsProvider: BroadcastsProvider
 ) {
 
+    /**
+     * Handles withdrawals of a single Iroha block.
+     * If batching is on, valid withdrawals are split into batches of [BtcWithdrawalConfig.withdrawalBatchSize] items.
+     * Every batch is executed in a single Bitcoin transaction.
+     * UTXO for all the batches of the block are planned at once, so batches don't collide on the same UTXO.
+     * Withdrawals are taken in block order, so all the nodes create the same batches and plans.
+     * @param withdrawals - withdrawals of Iroha block in block order
+     */
+    fun handleWithdrawals(withdrawals: List<WithdrawalDetails>) {
+        if (withdrawals.size == 1) {
+            val withdrawalDetails = withdrawals.first()
+            if (isNotBroadcasted(withdrawalDetails)) {
+                checkAndStartConsensus(withdrawalDetails)
+            }
+            return
+        }
+        val groups = withdrawals.filter { withdrawalDetails ->
+            isNotBroadcasted(withdrawalDetails) && isValidWithdrawal(withdrawalDetails)
+        }.chunked(btcWithdrawalConfig.withdrawalBatchSize.coerceAtLeast(1))
+        if (groups.isEmpty()) {
+            return
+        }
+        groups.flatten().forEach { withdrawalStatistics.incTotalTransfers() }
+        startPlannedConsensusProcess(groups)
+    }
+
     /**
      * Handles "transfer asset" command
      * @param transferCommand - object with "transfer asset" data: source account, destination account, amount and etc
@@ -42,8 +68,24 @@ class NewTransferHandler(
         feeInBtc: BigDecimal,
         withdrawalTime: Long
     ) {
+        val withdrawalDetails = createWithdrawalDetails(transferCommand, feeInBtc, withdrawalTime) ?: return
+        handleWithdrawals(listOf(withdrawalDetails))
+    }
+
+    /**
+     * Creates withdrawal details from "transfer asset" command
+     * @param transferCommand - object with "transfer asset" data: source account, destination account, amount and etc
+     * @param feeInBtc - amount of fee for withdrawal in Bitcoin. May be zero.
+     * @param withdrawalTime - time of withdrawal
+     * @return withdrawal details or null if the command is not a withdrawal
+     */
+    fun createWithdrawalDetails(
+        transferCommand: Commands.TransferAsset,
+        feeInBtc: BigDecimal,
+        withdrawalTime: Long
+    ): WithdrawalDetails? {
         if (transferCommand.destAccountId != btcWithdrawalConfig.withdrawalCredential.accountId) {
-            return
+            return null
         }
         val destinationAddress = transferCommand.description
         val sourceAccountId = transferCommand.srcAccountId
@@ -60,16 +102,25 @@ class NewTransferHandler(
                     "fee:$fee " +
                     "hash:${withdrawalDetails.irohaFriendlyHashCode()})"
         }
-        broadcastsProvider.hasBeenBroadcasted(withdrawalDetails)
+        return withdrawalDetails
+    }
+
+    /**
+     * Checks if withdrawal hasn't been broadcasted yet. Rollbacks withdrawal if the check fails.
+     * @param withdrawalDetails - details of withdrawal
+     * @return true if withdrawal hasn't been broadcasted
+     */
+    private fun isNotBroadcasted(withdrawalDetails: WithdrawalDetails): Boolean {
+        return broadcastsProvider.hasBeenBroadcasted(withdrawalDetails)
             .fold({ broadcasted ->
                 if (broadcasted) {
                     logger.info("Withdrawal $withdrawalDetails has been broadcasted before")
-                } else {
-                    checkAndStartConsensus(withdrawalDetails)
                 }
+                !broadcasted
             }, { ex ->
                 btcRollbackService.rollback(withdrawalDetails, "Iroha error")
                 logger.error("Can't execute withdrawal operation due to Iroha error", ex)
+                false
             })
     }
 
@@ -78,25 +129,37 @@ class NewTransferHandler(
      * @param withdrawalDetails - details of withdrawal
      */
     protected fun checkAndStartConsensus(withdrawalDetails: WithdrawalDetails) {
+        if (!isValidWithdrawal(withdrawalDetails)) {
+            return
+        }
+        // Create consensus
+        withdrawalStatistics.incTotalTransfers()
+        startConsensusProcess(withdrawalDetails)
+    }
+
+    /**
+     * Checks if withdrawal is valid. Rollbacks invalid withdrawals.
+     * @param withdrawalDetails - details of withdrawal
+     * @return true if withdrawal is valid
+     */
+    private fun isValidWithdrawal(withdrawalDetails: WithdrawalDetails): Boolean {
         // Check if withdrawal has valid destination address
         if (!isValidBtcAddress(withdrawalDetails.toAddress)) {
             logger.warn { "Cannot execute transfer. Destination '${withdrawalDetails.toAddress}' is not a valid base58 address." }
             btcRollbackService.rollback(
                 withdrawalDetails, "Invalid address"
             )
-            return
+            return false
         }
         // Check if withdrawal amount is not too little
-        if (isDust(withdrawalDetails.amountSat)) {
+        if (isTooSmallWithdrawal(withdrawalDetails.amountSat)) {
             btcRollbackService.rollback(
                 withdrawalDetails, "Too small amount"
             )
-            logger.warn { "Can't spend SAT ${withdrawalDetails.amountSat}, because it's considered a dust" }
-            return
+            logger.warn { "Can't spend SAT ${withdrawalDetails.amountSat}, because it's too small" }
+            return false
         }
-        // Create consensus
-        withdrawalStatistics.incTotalTransfers()
-        startConsensusProcess(withdrawalDetails)
+        return true
     }
 
     /**
@@ -113,6 +176,24 @@ class NewTransferHandler(
         })
     }
 
+    /**
+     * Starts consensus creation process for all the withdrawal groups of a block
+     * @param groups - groups of withdrawals. Every group is executed in a single Bitcoin transaction
+     */
+    protected fun startPlannedConsensusProcess(groups: List<List<WithdrawalDetails>>) {
+        withdrawalConsensusProvider.createPlannedConsensusData(groups).forEachIndexed { index, result ->
+            val withdrawals = groups[index]
+            result.fold({
+                logger.info("Consensus data for $withdrawals has been created")
+            }, { ex ->
+                logger.error("Cannot create consensus for withdrawals $withdrawals", ex)
+                withdrawals.forEach { withdrawalDetails ->
+                    btcRollbackService.rollback(withdrawalDetails, "Cannot create consensus")
+                }
+            })
+        }
+    }
+
     /**
      * Logger
      */
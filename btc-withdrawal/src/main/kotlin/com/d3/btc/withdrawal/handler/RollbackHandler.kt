@@ -7,9 +7,15 @@ package com.d3.btc.withdrawal.handler
 
 import com.d3.btc.handler.SetAccountDetailEvent
 import com.d3.btc.handler.SetAccountDetailHandler
+import com.d3.btc.handler.SetAccountDetailRoute
+import com.d3.btc.withdrawal.pipeline.WithdrawalStage
+import com.d3.btc.withdrawal.pipeline.WithdrawalStageHandler
 import com.d3.btc.withdrawal.provider.UsedUTXOProvider
 import com.d3.btc.withdrawal.service.ROLLBACK_KEY
 import com.d3.btc.withdrawal.service.WithdrawalRollbackData
+import com.d3.btc.withdrawal.statistics.WithdrawalTimeline
+import com.d3.btc.withdrawal.statistics.WithdrawalTimelineEventType
+import com.d3.btc.withdrawal.transaction.WithdrawalDetails
 import com.d3.commons.sidechain.iroha.util.IrohaQueryHelper
 import com.d3.commons.util.GsonInstance
 import com.d3.commons.util.irohaUnEscape
@@ -24,8 +30,11 @@ import org.springframework.stereotype.Component
 class RollbackHandler(
     @Qualifier("withdrawalQueryHelper")
     private val withdrawalQueryHelper: IrohaQueryHelper,
-    private val usedUTXOProvider: UsedUTXOProvider
-) : SetAccountDetailHandler() {
+    private val usedUTXOProvider: UsedUTXOProvider,
+    private val withdrawalTimeline: WithdrawalTimeline
+) : SetAccountDetailHandler(), WithdrawalStageHandler {
+
+    override val stage = WithdrawalStage.ROLLBACK
 
     private val gson = GsonInstance.get()
 
@@ -39,8 +48,28 @@ class RollbackHandler(
             gson.fromJson(setAccountDetailEvent.command.value.irohaUnEscape(), WithdrawalRollbackData::class.java)
         // Unregister UTXO
         usedUTXOProvider.unregisterUsedUTXO(withdrawalRollbackData.utxoKeys, withdrawalRollbackData.withdrawalDetails)
+        withdrawalTimeline.record(
+            listOf(withdrawalRollbackData.withdrawalDetails),
+            WithdrawalTimelineEventType.ROLLED_BACK
+        )
     }
 
+    override fun getWithdrawals(setAccountDetailEvent: SetAccountDetailEvent): List<WithdrawalDetails> =
+        listOf(
+            gson.fromJson(
+                setAccountDetailEvent.command.value.irohaUnEscape(),
+                WithdrawalRollbackData::class.java
+            ).withdrawalDetails
+        )
+
+    override fun isStageEvent(setAccountDetailEvent: SetAccountDetailEvent) = filter(setAccountDetailEvent)
+
+    override fun route() = SetAccountDetailRoute(
+        creator = withdrawalQueryHelper.getQueryCreatorAccountId(),
+        accountId = withdrawalQueryHelper.getQueryCreatorAccountId(),
+        key = ROLLBACK_KEY
+    )
+
     override fun filter(setAccountDetailEvent: SetAccountDetailEvent) =
         setAccountDetailEvent.creator == withdrawalQueryHelper.getQueryCreatorAccountId()
                 && setAccountDetailEvent.command.accountId == withdrawalQueryHelper.getQueryCreatorAccountId()
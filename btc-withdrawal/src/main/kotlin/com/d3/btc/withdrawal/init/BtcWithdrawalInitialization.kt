@@ -5,26 +5,32 @@
 
 package com.d3.btc.withdrawal.init
 
-import com.d3.btc.handler.SetAccountDetailEvent
+import com.d3.btc.executor.PartitionedExecutor
 import com.d3.btc.handler.SetAccountDetailHandler
+import com.d3.btc.handler.SetAccountDetailRouter
 import com.d3.btc.healthcheck.HealthyService
 import com.d3.btc.helper.network.addPeerConnectionStatusListener
 import com.d3.btc.helper.network.startChainDownload
+import com.d3.btc.listener.IrohaBlockBus
+import com.d3.btc.listener.IrohaBlockEvent
+import com.d3.btc.metrics.MetricsRegistry
 import com.d3.btc.peer.SharedPeerGroup
 import com.d3.btc.provider.BtcChangeAddressProvider
 import com.d3.btc.provider.network.BtcNetworkConfigProvider
 import com.d3.btc.wallet.checkWalletNetwork
+import com.d3.btc.withdrawal.config.BTC_WITHDRAWAL_SERVICE_NAME
 import com.d3.btc.withdrawal.config.BtcWithdrawalConfig
 import com.d3.btc.withdrawal.expansion.WithdrawalServiceExpansion
 import com.d3.btc.withdrawal.handler.NewTransferHandler
-import com.d3.chainadapter.client.ReliableIrohaChainListener
+import com.d3.btc.withdrawal.pipeline.WithdrawalPipeline
+import com.d3.btc.withdrawal.pipeline.WithdrawalStageHandler
+import com.d3.btc.withdrawal.pipeline.allCompleted
+import com.d3.btc.withdrawal.provider.WithdrawalConsensusWaiter
 import com.d3.commons.sidechain.iroha.FEE_DESCRIPTION
-import com.d3.commons.sidechain.iroha.util.getSetDetailCommandsWithCreator
 import com.d3.commons.sidechain.iroha.util.getWithdrawalTransactions
 import com.github.kittinunf.result.Result
 import com.github.kittinunf.result.flatMap
 import com.github.kittinunf.result.map
-import iroha.protocol.BlockOuterClass
 import iroha.protocol.Commands
 import iroha.protocol.TransactionOuterClass
 import mu.KLogging
@@ -35,6 +41,7 @@ import org.springframework.beans.factory.annotation.Qualifier
 import org.springframework.stereotype.Component
 import java.io.Closeable
 import java.math.BigDecimal
+import java.util.concurrent.CompletableFuture
 
 const val WITHDRAWAL_OPERATION = "Bitcoin withdrawal"
 private const val ONE_DAY_MILLIS = 1000 * 60 * 60 * 24
@@ -53,10 +60,23 @@ class BtcWithdrawalInitialization(
     @Qualifier("withdrawalHandlers")
     private val accountDetailHandlers: List<SetAccountDetailHandler>,
     private val withdrawalServiceExpansion: WithdrawalServiceExpansion,
-    @Qualifier("withdrawalReliableIrohaChainListener")
-    private val irohaChainListener: ReliableIrohaChainListener
+    private val irohaBlockBus: IrohaBlockBus,
+    private val withdrawalPipeline: WithdrawalPipeline,
+    private val withdrawalConsensusWaiter: WithdrawalConsensusWaiter,
+    metricsRegistry: MetricsRegistry
 ) : HealthyService(), Closeable {
 
+    // Routes 'SetAccountDetail' events to interested handlers only
+    private val accountDetailRouter by lazy { SetAccountDetailRouter(accountDetailHandlers) }
+
+    // Executes events of Iroha blocks. Events of the same account are executed in order
+    private val blockEventsExecutor = PartitionedExecutor(
+        BTC_WITHDRAWAL_SERVICE_NAME,
+        "iroha-block-events",
+        btcWithdrawalConfig.irohaBlockLanes,
+        metricsRegistry
+    )
+
     fun init(): Result<Unit, Exception> {
         // Check wallet network
         return transferWallet.checkWalletNetwork(btcNetworkConfigProvider.getConfig()).map {
@@ -74,58 +94,80 @@ class BtcWithdrawalInitialization(
      */
     private fun initWithdrawalTransferListener(
     ): Result<Unit, Exception> {
-        return irohaChainListener.getBlockObservable()
-            .map { observable ->
-                observable.subscribe { (block, ack) ->
-                    safeApplyAck({ handleIrohaBlock(block) }, { ack() })
-                }
-            }.flatMap {
-                logger.info("Start listening RMQ Iroha blocks")
-                irohaChainListener.listen()
+        return Result.of {
+            irohaBlockBus.subscribe { blockEvent, ack ->
+                safeApplyAck({ handleIrohaBlock(blockEvent) }, ack)
             }
+        }.flatMap {
+            irohaBlockBus.listen()
+        }
     }
 
     /**
-     * Handles Iroha blocks
-     * @param block - Iroha block
+     * Handles Iroha blocks.
+     * Withdrawal work is only enqueued here. It's executed asynchronously by [WithdrawalPipeline],
+     * so slow withdrawal stages don't hold the Iroha block consumer.
+     * @param blockEvent - Iroha block
+     * @return work of the block. The block must be acknowledged once the work is over
      */
-    private fun handleIrohaBlock(block: BlockOuterClass.Block) {
+    private fun handleIrohaBlock(blockEvent: IrohaBlockEvent): IrohaBlockWork {
+        val block = blockEvent.block
         if ((System.currentTimeMillis() - block.blockV1.payload.createdTime) > ONE_DAY_MILLIS) {
             logger.warn("Ignore old block ${block.blockV1.payload.height}")
-            return
+            return IrohaBlockWork.EMPTY
         }
         // Expand the withdrawal service if there is a need to do so
         withdrawalServiceExpansion.expand(block)
+        // Notify nodes that wait for consensus data
+        withdrawalConsensusWaiter.onBlock(block)
         // Handle transfer commands
-        getWithdrawalTransactions(
+        val withdrawals = getWithdrawalTransactions(
             block,
             btcWithdrawalConfig.withdrawalCredential.accountId
-        ).forEach { transaction ->
-            getWithdrawalCommand(transaction)?.let { withdrawalCommand ->
-                newTransferHandler.handleTransferCommand(
+        ).mapNotNull { transaction -> getWithdrawalCommand(transaction) }
+            .mapNotNull { withdrawalCommand ->
+                newTransferHandler.createWithdrawalDetails(
                     withdrawalCommand.command.transferAsset,
                     withdrawalCommand.feeInBtc,
                     block.blockV1.payload.createdTime
                 )
             }
-        }
+        val stages = ArrayList<CompletableFuture<Unit>>()
+        stages.add(
+            withdrawalPipeline.submitWithdrawals(
+                withdrawals,
+                block.blockV1.payload.height,
+                block.blockV1.payload.createdTime
+            )
+        )
         // Handle other commands
-        getSetDetailCommandsWithCreator(block).map { SetAccountDetailEvent(it.command.setAccountDetail, it.creator) }
-            .forEach { setAccountDetailEvent ->
-                accountDetailHandlers.forEach { handler ->
-                    handler.handleFiltered(setAccountDetailEvent)
+        val tasks = blockEvent.setAccountDetailEvents
+            .flatMap { setAccountDetailEvent ->
+                val (stageHandlers, otherHandlers) = accountDetailRouter.route(setAccountDetailEvent)
+                    .partition { handler -> handler is WithdrawalStageHandler }
+                stages.add(withdrawalPipeline.dispatch(setAccountDetailEvent, stageHandlers))
+                otherHandlers.map { handler ->
+                    Pair(setAccountDetailEvent.command.accountId, { handler.handleFiltered(setAccountDetailEvent) })
                 }
             }
+        return IrohaBlockWork(tasks, allCompleted(stages))
     }
 
-    // Calls apply and then acknowledges it safely
-    private fun safeApplyAck(apply: () -> Unit, ack: () -> Unit) {
-        try {
+    /**
+     * Applies block, executes its tasks and then acknowledges it safely.
+     * The block is acknowledged once its withdrawal stages are over as well.
+     * Otherwise a restart would lose withdrawals that were in progress, because acknowledged blocks are never redelivered.
+     * Broadcasts of signed transactions don't hold the block, because they may take long.
+     */
+    private fun safeApplyAck(apply: () -> IrohaBlockWork, ack: () -> Unit) {
+        val work = try {
             apply()
         } catch (e: Exception) {
             logger.error("Cannot apply", e)
-        } finally {
-            ack()
+            IrohaBlockWork.EMPTY
+        }
+        blockEventsExecutor.executeBatch(work.tasks) {
+            work.stages.thenRun { ack() }
         }
     }
 
@@ -186,6 +228,8 @@ class BtcWithdrawalInitialization(
 
     override fun close() {
         logger.info { "Closing Bitcoin withdrawal service" }
+        blockEventsExecutor.close()
+        withdrawalPipeline.close()
         peerGroup.stop()
     }
 
@@ -198,4 +242,15 @@ class BtcWithdrawalInitialization(
 /**
  * Data class that stores withdrawal command and withdrawal fee value in Bitcoin
  */
-private data class WithdrawalCommandWithFee(val command: Commands.Command, val feeInBtc: BigDecimal)
\ No newline at end of file
+data class WithdrawalCommandWithFee(val command: Commands.Command, val feeInBtc: BigDecimal)
+
+/**
+ * Work of Iroha block
+ * @param tasks - tasks of handlers that are not withdrawal stages with their keys
+ * @param stages - future that is completed once withdrawal stages of the block are over
+ */
+private class IrohaBlockWork(val tasks: List<Pair<String, () -> Unit>>, val stages: CompletableFuture<Unit>) {
+    companion object {
+        val EMPTY = IrohaBlockWork(emptyList(), CompletableFuture.completedFuture(Unit))
+    }
+}
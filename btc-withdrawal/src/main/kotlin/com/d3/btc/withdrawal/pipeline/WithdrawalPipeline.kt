@@ -0,0 +1,187 @@
+/*
+ * Copyright D3 Ledger, Inc. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package com.d3.btc.withdrawal.pipeline
+
+import com.d3.btc.executor.PartitionedExecutor
+import com.d3.btc.handler.SetAccountDetailEvent
+import com.d3.btc.handler.SetAccountDetailHandler
+import com.d3.btc.metrics.MetricsRegistry
+import com.d3.btc.withdrawal.config.BTC_WITHDRAWAL_SERVICE_NAME
+import com.d3.btc.withdrawal.config.BtcWithdrawalConfig
+import com.d3.btc.withdrawal.handler.NewTransferHandler
+import com.d3.btc.withdrawal.service.UTXOConsolidationService
+import com.d3.btc.withdrawal.statistics.WithdrawalTimeline
+import com.d3.btc.withdrawal.statistics.WithdrawalTimelineEventType
+import com.d3.btc.withdrawal.transaction.WithdrawalDetails
+import mu.KLogging
+import org.springframework.stereotype.Component
+import java.io.Closeable
+import java.util.concurrent.CompletableFuture
+
+// Key of consensus stage tasks. Such tasks are executed one by one in order of Iroha blocks
+private const val CONSENSUS_KEY = "consensus"
+
+/**
+ * Asynchronous withdrawal pipeline.
+ * Every withdrawal stage has its own executor that consists of single threaded lanes.
+ * Tasks are put in lanes by key, so tasks of the same withdrawal are executed in order of appearance
+ * while different withdrawals proceed in parallel.
+ * Stages are chained through Iroha: the result of a stage is an Iroha event that triggers the next stage.
+ * Every stage is recorded in [WithdrawalStageStorage].
+ * Submitting functions return futures that are completed once the stage is over.
+ * Iroha blocks must be acknowledged only after that, so stages that were interrupted by a restart
+ * are executed again once their blocks are redelivered.
+ * Broadcasting of a signed transaction is not a part of the stage. It's tracked by the signature handler,
+ * so Iroha blocks are not held by slow broadcasts.
+ */
+@Component
+class WithdrawalPipeline(
+    btcWithdrawalConfig: BtcWithdrawalConfig,
+    private val withdrawalStageStorage: WithdrawalStageStorage,
+    private val newTransferHandler: NewTransferHandler,
+    private val utxoConsolidationService: UTXOConsolidationService,
+    private val withdrawalTimeline: WithdrawalTimeline,
+    metricsRegistry: MetricsRegistry
+) : Closeable {
+
+    private val stageExecutors: Map<WithdrawalStage, PartitionedExecutor> = WithdrawalStage.values()
+        .filter { stage -> stage != WithdrawalStage.RECEIVED }
+        .associate { stage ->
+            /*
+            UTXO are planned on the consensus stage.
+            Planning must take UTXO registered by previous blocks into account, so the stage has only one lane.
+             */
+            val lanesCount = if (stage == WithdrawalStage.CONSENSUS) {
+                1
+            } else {
+                btcWithdrawalConfig.withdrawalPipelineLanes
+            }
+            stage to PartitionedExecutor(
+                BTC_WITHDRAWAL_SERVICE_NAME,
+                "${stage.name.toLowerCase()}-stage",
+                lanesCount,
+                metricsRegistry
+            )
+        }
+
+    /**
+     * Enqueues withdrawals of Iroha block
+     * @param withdrawals - withdrawals of Iroha block in block order
+     * @param blockHeight - height of Iroha block
+     * @param blockTime - time of Iroha block
+     * @return future that is completed once consensus stage of withdrawals is over
+     */
+    fun submitWithdrawals(
+        withdrawals: List<WithdrawalDetails>,
+        blockHeight: Long,
+        blockTime: Long
+    ): CompletableFuture<Unit> {
+        withdrawalStageStorage.mark(withdrawals, WithdrawalStage.RECEIVED)
+        withdrawalTimeline.record(withdrawals, WithdrawalTimelineEventType.TRANSFER_SEEN, "Iroha block $blockHeight")
+        return submit(WithdrawalStage.CONSENSUS, CONSENSUS_KEY) {
+            if (withdrawals.isEmpty()) {
+                // No withdrawals means low load. Good time to consolidate UTXO
+                utxoConsolidationService.consolidateIfNeeded(blockHeight, blockTime)
+            } else {
+                startConsensus(withdrawals)
+            }
+        }
+    }
+
+    /**
+     * Dispatches 'SetAccountDetail' event to handlers.
+     * Withdrawal stage handlers are executed asynchronously. Other handlers are executed right away.
+     * @param setAccountDetailEvent - event to dispatch
+     * @param handlers - handlers of event
+     * @return future that is completed once all the stages of event are over
+     */
+    fun dispatch(
+        setAccountDetailEvent: SetAccountDetailEvent,
+        handlers: List<SetAccountDetailHandler>
+    ): CompletableFuture<Unit> {
+        val stages = ArrayList<CompletableFuture<Unit>>()
+        handlers.forEach { handler ->
+            if (handler !is WithdrawalStageHandler) {
+                handler.handleFiltered(setAccountDetailEvent)
+                return@forEach
+            }
+            try {
+                if (handler.isStageEvent(setAccountDetailEvent)) {
+                    stages.add(submitStageEvent(setAccountDetailEvent, handler))
+                }
+            } catch (e: Exception) {
+                handler.onError(e, setAccountDetailEvent)
+            }
+        }
+        return allCompleted(stages)
+    }
+
+    // Starts consensus for withdrawals of one Iroha block
+    private fun startConsensus(withdrawals: List<WithdrawalDetails>) {
+        withdrawalStageStorage.mark(withdrawals, WithdrawalStage.CONSENSUS)
+        newTransferHandler.handleWithdrawals(withdrawals)
+    }
+
+    // Enqueues event of withdrawal stage handler
+    private fun <T> submitStageEvent(
+        setAccountDetailEvent: SetAccountDetailEvent,
+        handler: T
+    ): CompletableFuture<Unit> where T : SetAccountDetailHandler, T : WithdrawalStageHandler {
+        val stage = handler.stage
+        val withdrawals = handler.getWithdrawals(setAccountDetailEvent)
+        val key = withdrawals.firstOrNull()?.irohaFriendlyHashCode() ?: handler.getPipelineKey(setAccountDetailEvent)
+        return submit(stage, key) {
+            // Terminal stages remove markers. Markers are removed only after the stage is done
+            if (!stage.terminal) {
+                withdrawalStageStorage.mark(withdrawals, stage)
+            }
+            handler.handleFiltered(setAccountDetailEvent)
+            if (stage.terminal) {
+                withdrawalStageStorage.mark(withdrawals, stage)
+            }
+        }
+    }
+
+    /**
+     * Executes task on a lane of a given stage
+     * @param stage - stage of task
+     * @param key - key of task. Tasks with the same key are executed in order of submission
+     * @param task - task to execute
+     * @return future that is completed once the task is over(successfully or not)
+     */
+    private fun submit(
+        stage: WithdrawalStage,
+        key: String,
+        task: () -> Unit
+    ): CompletableFuture<Unit> {
+        val stageFuture = CompletableFuture<Unit>()
+        stageExecutors.getValue(stage).execute(key) {
+            try {
+                task()
+            } finally {
+                stageFuture.complete(Unit)
+            }
+        }
+        return stageFuture
+    }
+
+    override fun close() {
+        stageExecutors.values.forEach { executor -> executor.close() }
+    }
+
+    /**
+     * Logger
+     */
+    companion object : KLogging()
+}
+
+/**
+ * Returns future that is completed once all the given futures are completed(successfully or not)
+ * @param futures - futures to wait for
+ * @return future of all the futures
+ */
+fun allCompleted(futures: List<CompletableFuture<Unit>>): CompletableFuture<Unit> =
+    CompletableFuture.allOf(*futures.toTypedArray()).handle { _, _ -> Unit }
@@ -0,0 +1,39 @@
+/*
+ * Copyright D3 Ledger, Inc. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package com.d3.btc.withdrawal.pipeline
+
+import com.d3.btc.withdrawal.transaction.WithdrawalDetails
+
+/**
+ * Stages of withdrawal. Stages are listed in order of execution.
+ * Every stage except [RECEIVED] runs asynchronously on its own executor.
+ */
+enum class WithdrawalStage(val terminal: Boolean = false) {
+    // Withdrawal has been read from Iroha block and waits for consensus
+    RECEIVED,
+    // UTXO consensus is being created
+    CONSENSUS,
+    // Bitcoin transaction is being created
+    TRANSACTION,
+    // Bitcoin transaction is being signed
+    SIGNING,
+    /*
+    Signatures are being collected and Bitcoin transaction is being broadcasted.
+    Signature events don't carry withdrawals, so withdrawals are never marked with this stage.
+    */
+    BROADCAST,
+    // Withdrawal is being finalized in Iroha
+    FINALIZATION(terminal = true),
+    // UTXO of failed withdrawal are being unregistered
+    ROLLBACK(terminal = true)
+}
+
+/**
+ * Stage marker of withdrawal
+ * @param stage - the latest stage that withdrawal has entered
+ * @param withdrawalDetails - details of withdrawal
+ */
+data class WithdrawalStageMarker(val stage: WithdrawalStage, val withdrawalDetails: WithdrawalDetails)
@@ -0,0 +1,44 @@
+/*
+ * Copyright D3 Ledger, Inc. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package com.d3.btc.withdrawal.pipeline
+
+import com.d3.btc.handler.SetAccountDetailEvent
+import com.d3.btc.withdrawal.transaction.WithdrawalDetails
+
+/**
+ * Interface of 'SetAccountDetail' handlers that execute a stage of withdrawal.
+ * Such handlers are executed asynchronously by [WithdrawalPipeline].
+ */
+interface WithdrawalStageHandler {
+
+    /**
+     * Stage that is executed by handler
+     */
+    val stage: WithdrawalStage
+
+    /**
+     * Checks if event must be handled by handler
+     * @param setAccountDetailEvent - event to check
+     * @return true if event must be handled
+     */
+    fun isStageEvent(setAccountDetailEvent: SetAccountDetailEvent): Boolean
+
+    /**
+     * Returns withdrawals that event belongs to. These withdrawals are marked with [stage].
+     * The hash of the first withdrawal is used as a key of event.
+     * Events with the same key are handled in order of appearance.
+     * @param setAccountDetailEvent - event to get withdrawals from
+     * @return withdrawals of event. Empty list if event doesn't carry withdrawals
+     */
+    fun getWithdrawals(setAccountDetailEvent: SetAccountDetailEvent): List<WithdrawalDetails> = emptyList()
+
+    /**
+     * Returns key of event that doesn't carry withdrawals
+     * @param setAccountDetailEvent - event to get key from
+     * @return key of event
+     */
+    fun getPipelineKey(setAccountDetailEvent: SetAccountDetailEvent): String = setAccountDetailEvent.command.key
+}
@@ -0,0 +1,74 @@
+/*
+ * Copyright D3 Ledger, Inc. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package com.d3.btc.withdrawal.pipeline
+
+import com.d3.btc.withdrawal.statistics.WithdrawalStatistics
+import com.d3.btc.withdrawal.transaction.WithdrawalDetails
+import org.springframework.stereotype.Component
+
+/*
+ Markers of withdrawals that are older than this are dropped.
+ Withdrawals from Iroha blocks older than one day are ignored anyway.
+ */
+private const val MARKER_TTL_MILLIS = 1000L * 60 * 60 * 24
+
+/**
+ * In-memory storage of withdrawal stage markers.
+ * Markers are used for monitoring only: numbers of withdrawals by stage are reported to [WithdrawalStatistics].
+ * Markers don't survive restarts. Interrupted stages are executed again once their Iroha blocks are redelivered.
+ */
+@Component
+class WithdrawalStageStorage(private val withdrawalStatistics: WithdrawalStatistics) {
+
+    private val markers = LinkedHashMap<String, WithdrawalStageMarker>()
+
+    init {
+        reportInFlightWithdrawals()
+    }
+
+    /**
+     * Marks withdrawals with a given stage. Terminal stages remove markers.
+     * Markers never go back: a stage that precedes the current one is ignored.
+     * @param withdrawals - withdrawals to mark
+     * @param stage - stage of withdrawals
+     */
+    @Synchronized
+    fun mark(withdrawals: List<WithdrawalDetails>, stage: WithdrawalStage) {
+        if (withdrawals.isEmpty()) {
+            return
+        }
+        withdrawals.forEach { withdrawalDetails ->
+            val key = withdrawalDetails.irohaFriendlyHashCode()
+            val currentMarker = markers[key]
+            if (stage.terminal) {
+                markers.remove(key)
+            } else if (currentMarker == null || currentMarker.stage < stage) {
+                markers[key] = WithdrawalStageMarker(stage, withdrawalDetails)
+            }
+        }
+        dropOutdated()
+        reportInFlightWithdrawals()
+    }
+
+    /**
+     * Returns stage of withdrawal
+     * @param withdrawalDetails - details of withdrawal
+     * @return the latest stage of withdrawal or null if withdrawal is not in progress
+     */
+    @Synchronized
+    fun getStage(withdrawalDetails: WithdrawalDetails) = markers[withdrawalDetails.irohaFriendlyHashCode()]?.stage
+
+    // Drops outdated markers
+    private fun dropOutdated() {
+        val now = System.currentTimeMillis()
+        markers.values.removeIf { marker -> now - marker.withdrawalDetails.withdrawalTime > MARKER_TTL_MILLIS }
+    }
+
+    // Reports numbers of withdrawals by stage
+    private fun reportInFlightWithdrawals() {
+        withdrawalStatistics.setInFlightWithdrawals(markers.values.groupingBy { marker -> marker.stage }.eachCount())
+    }
+}
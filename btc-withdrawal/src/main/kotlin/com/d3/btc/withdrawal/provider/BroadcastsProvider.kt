@@ -8,7 +8,7 @@ import com.d3.commons.sidechain.iroha.util.ModelUtil
 import com.d3.commons.util.irohaEscape
 import com.github.kittinunf.result.Result
 import com.github.kittinunf.result.map
-import com.google.gson.Gson
+import jp.co.soramitsu.iroha.java.TransactionBuilder
 import mu.KLogging
 import org.springframework.beans.factory.annotation.Qualifier
 import org.springframework.stereotype.Component
@@ -71,5 +71,26 @@ class BroadcastsProvider(
         ).map { Unit }
     }
 
+    /**
+     * Marks given withdrawals as 'broadcasted' using a single Iroha transaction
+     * @param withdrawals - withdrawals to mark. Typically, withdrawals of one batch
+     * @return result of operation
+     */
+    fun markAsBroadcasted(withdrawals: List<WithdrawalDetails>): Result<Unit, Exception> {
+        if (withdrawals.size == 1) {
+            return markAsBroadcasted(withdrawals.first())
+        }
+        logger.info("Mark withdrawals $withdrawals as 'broadcasted'")
+        val transactionBuilder = TransactionBuilder(broadcastsIrohaConsumer.creator, System.currentTimeMillis())
+        withdrawals.forEach { withdrawalDetails ->
+            transactionBuilder.setAccountDetail(
+                broadcastsIrohaConsumer.creator,
+                withdrawalDetails.irohaFriendlyHashCode(),
+                gson.toJson(withdrawalDetails).irohaEscape()
+            )
+        }
+        return broadcastsIrohaConsumer.send(transactionBuilder.build()).map { Unit }
+    }
+
     companion object : KLogging()
 }
\ No newline at end of file
@@ -0,0 +1,115 @@
+/*
+ * Copyright D3 Ledger, Inc. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package com.d3.btc.withdrawal.provider
+
+// Maximum number of search tree nodes to visit. Keeps the search time bounded.
+const val BNB_MAX_TRIES = 100_000
+
+/**
+ * Selects UTXO using the branch-and-bound algorithm.
+ * The algorithm looks for a set of values which sum lies in [target; target + costOfChange).
+ * Such a set may be spent without a change output, because the excess is cheaper to give away as a fee.
+ * Among all the suitable sets, the one with the smallest excess is chosen. Fewer inputs win ties.
+ * The result depends only on [values] and their order, so every node gets the same selection
+ * from the same UTXO view.
+ * @param values - values of UTXO in SAT. Must be sorted in descending order
+ * @param target - amount of SAT to collect(amount to spend and fee)
+ * @param costOfChange - maximum acceptable excess
+ * @param maxTries - maximum number of search tree nodes to visit
+ * @return indices of selected values or null if no suitable set was found
+ */
+fun selectBranchAndBound(
+    values: List<Long>,
+    target: Long,
+    costOfChange: Long,
+    maxTries: Int
+): List<Int>? {
+    val search = BranchAndBoundSearch(values, target, costOfChange, maxTries)
+    search.search(0, 0L)
+    return search.bestSelection
+}
+
+/**
+ * Selects UTXO in a given order until [target] is reached.
+ * @param values - values of UTXO in SAT
+ * @param target - amount of SAT to collect(amount to spend and fee)
+ * @return indices of selected values or null if there is not enough value
+ */
+fun selectGreedy(values: List<Long>, target: Long): List<Int>? {
+    val selection = ArrayList<Int>()
+    var collected = 0L
+    for (index in values.indices) {
+        if (collected >= target) {
+            break
+        }
+        collected += values[index]
+        selection.add(index)
+    }
+    return if (collected >= target) selection else null
+}
+
+/**
+ * Depth-first search over the 'include/exclude' tree of UTXO
+ */
+private class BranchAndBoundSearch(
+    private val values: List<Long>,
+    private val target: Long,
+    private val costOfChange: Long,
+    private val maxTries: Int
+) {
+    // remainingSums[i] is a sum of values starting from index i
+    private val remainingSums = LongArray(values.size + 1)
+    private val currentSelection = ArrayList<Int>()
+    private var tries = 0
+    private var bestExcess = Long.MAX_VALUE
+
+    var bestSelection: List<Int>? = null
+        private set
+
+    init {
+        for (index in values.indices.reversed()) {
+            remainingSums[index] = remainingSums[index + 1] + values[index]
+        }
+    }
+
+    fun search(index: Int, selectedSum: Long) {
+        if (tries++ >= maxTries) {
+            return
+        } else if (selectedSum >= target + costOfChange) {
+            // Too much. The excess is more expensive than a change output
+            return
+        } else if (selectedSum >= target) {
+            registerSolution(selectedSum - target)
+            return
+        } else if (index == values.size || selectedSum + remainingSums[index] < target) {
+            // Not enough value left in this branch
+            return
+        }
+        // Include the current value
+        currentSelection.add(index)
+        search(index + 1, selectedSum + values[index])
+        currentSelection.removeAt(currentSelection.size - 1)
+        /*
+        Exclude the current value.
+        Values equal to the excluded one are skipped as well,
+        because including them gives the same sums as the 'include' branch above.
+        */
+        var nextIndex = index + 1
+        while (nextIndex < values.size && values[nextIndex] == values[index]) {
+            nextIndex++
+        }
+        search(nextIndex, selectedSum)
+    }
+
+    // Saves the current selection if it's better than the best one
+    private fun registerSolution(excess: Long) {
+        val best = bestSelection
+        if (best == null || excess < bestExcess || (excess == bestExcess && currentSelection.size < best.size)) {
+            bestExcess = excess
+            bestSelection = ArrayList(currentSelection)
+        }
+    }
+}
@@ -5,7 +5,9 @@
 
 package com.d3.btc.withdrawal.provider
 
+import com.d3.btc.fee.getTxFee
 import com.d3.btc.helper.address.outPutToBase58Address
+import com.d3.btc.helper.output.irohaKey
 import com.d3.btc.provider.network.BtcNetworkConfigProvider
 import com.d3.btc.storage.BtcAddressStorage
 import com.d3.btc.withdrawal.init.WITHDRAWAL_OPERATION
@@ -13,6 +15,8 @@ import com.d3.btc.withdrawal.transaction.WithdrawalDetails
 import com.d3.btc.withdrawal.transaction.isDust
 import com.d3.commons.model.D3ErrorException
 import com.github.kittinunf.result.Result
+import com.github.kittinunf.result.flatMap
+import com.github.kittinunf.result.map
 import mu.KLogging
 import org.bitcoinj.core.Address
 import org.bitcoinj.core.Coin
@@ -21,8 +25,8 @@ import org.bitcoinj.core.TransactionOutput
 import org.bitcoinj.wallet.Wallet
 import org.springframework.stereotype.Component
 
-const val TX_FEE_SAT = 6000
-private const val MAX_UTXO_ITEMS = 20
+// Maximum number of UTXO that a withdrawal may choose from
+const val MAX_UTXO_ITEMS = 20
 
 /*
    Provider that is used to collect inputs, outputs and etc
@@ -52,25 +56,36 @@ class UTXOProvider(
     }
 
     /**
-     * Adds outputs(destination and change addresses) to a given transaction
+     * Adds outputs(destination and change addresses) to a given transaction.
+     * Inputs must be added before, because fee depends on the number of inputs.
      * @param transaction - current transaction
      * @param totalAmountSat - total amount of assets
-     * @param destinationAddress - receiver's base58 Bitcoin address
-     * @param amountToSpend - amount of SAT to spend(used to compute change)
-     * @param changeAddress - address that is used to store change
+     * @param withdrawals - withdrawals to execute. Every withdrawal gets its own output
+     * @param changeAddress - address that is used to store change. Not used if change is a dust
+     * @param feeRate - fee rate in SAT per byte
      */
     fun addOutputs(
         transaction: Transaction,
         totalAmountSat: Long,
-        destinationAddress: String,
-        amountToSpend: Long,
-        changeAddress: Address
+        withdrawals: List<WithdrawalDetails>,
+        changeAddress: Address,
+        feeRate: Int
     ) {
-        transaction.addOutput(
-            Coin.valueOf(amountToSpend),
-            Address.fromBase58(btcNetworkConfigProvider.getConfig(), destinationAddress)
-        )
-        val change = totalAmountSat - amountToSpend - TX_FEE_SAT
+        var amountToSpend = 0L
+        withdrawals.forEach { withdrawalDetails ->
+            transaction.addOutput(
+                Coin.valueOf(withdrawalDetails.amountSat),
+                Address.fromBase58(btcNetworkConfigProvider.getConfig(), withdrawalDetails.toAddress)
+            )
+            amountToSpend += withdrawalDetails.amountSat
+        }
+        val change =
+            totalAmountSat - amountToSpend - getTxFee(transaction.inputs.size, withdrawals.size + 1, feeRate)
+        if (isDust(change, feeRate)) {
+            // Dust change is not worth an output. It goes to miners
+            logger.info("Change $change SAT is a dust. No change output will be created")
+            return
+        }
         transaction.addOutput(Coin.valueOf(change), changeAddress)
     }
 
@@ -78,43 +93,175 @@ class UTXOProvider(
      * Collects previously sent transactions, that may be used as an input for newly created transaction
      * @param withdrawalDetails - details of withdrawal
      * @param confidenceLevel - minimum depth of transactions
+     * @param feeRate - fee rate in SAT per byte
      * @return result with list full of unspent transactions
      */
     fun collectUnspents(
         withdrawalDetails: WithdrawalDetails,
-        confidenceLevel: Int
+        confidenceLevel: Int,
+        feeRate: Int
+    ) = collectUnspents(listOf(withdrawalDetails), confidenceLevel, feeRate)
+
+    /**
+     * Collects previously sent transactions, that may be used as an input for a transaction that executes
+     * given withdrawals
+     * @param withdrawals - withdrawals to execute. The first one is a leader of the batch
+     * @param confidenceLevel - minimum depth of transactions
+     * @param feeRate - fee rate in SAT per byte
+     * @return result with list full of unspent transactions
+     */
+    fun collectUnspents(
+        withdrawals: List<WithdrawalDetails>,
+        confidenceLevel: Int,
+        feeRate: Int
     ): Result<List<TransactionOutput>, Exception> = Result.of {
+        // UTXO are registered by the leader of a batch
+        val leaderWithdrawal = withdrawals.first()
         val unspents = ArrayList(
             getAvailableUnspents(
-                withdrawalDetails,
+                leaderWithdrawal,
                 transfersWallet.unspents,
-                confidenceLevel
+                confidenceLevel,
+                feeRate
             )
         )
         if (unspents.isEmpty()) {
             throw D3ErrorException.fatal(
                 failedOperation = WITHDRAWAL_OPERATION,
-                description = "Cannot get enough UTXO for withdrawal $withdrawalDetails"
+                description = "Cannot get enough UTXO for withdrawals $withdrawals"
             )
         }
-        val collectedUnspents = ArrayList<TransactionOutput>()
         unspents.sortWith(utxoComparator)
-        val amountAndFee = withdrawalDetails.amountSat + TX_FEE_SAT
-        var collectedAmount = 0L
-        unspents.forEach { unspent ->
-            if (collectedAmount >= amountAndFee) {
-                return@forEach
+        selectUnspents(withdrawals, unspents, feeRate).map { index -> unspents[index] }
+    }
+
+    /**
+     * Plans UTXO for all the withdrawal groups of an Iroha block in one pass.
+     * Groups are handled in a given order and every group takes its UTXO from the ones left by previous groups.
+     * So groups never compete for the same UTXO and all the nodes get the same plan from the same wallet view.
+     * UTXO that were registered by any withdrawal before are not used at all.
+     * @param groups - groups of withdrawals. Withdrawals of a group are executed in a single transaction
+     * @param confidenceLevel - minimum depth of transactions
+     * @param feeRate - fee rate in SAT per byte
+     * @return list of results, one per group in the same order as [groups]
+     */
+    fun planUnspents(
+        groups: List<List<WithdrawalDetails>>,
+        confidenceLevel: Int,
+        feeRate: Int
+    ): List<Result<List<TransactionOutput>, Exception>> {
+        /*
+        Every group takes its candidates from the head of the pool and removes no more than MAX_UTXO_ITEMS of them.
+        So the groups never look beyond the first groups.size * MAX_UTXO_ITEMS unused UTXO.
+        */
+        val pool = getUnusedUnspents(confidenceLevel, feeRate, groups.size * MAX_UTXO_ITEMS)
+            .map { unspents -> ArrayList(unspents) }
+        return groups.map { withdrawals ->
+            pool.flatMap { availableUnspents ->
+                Result.of {
+                    val candidates = availableUnspents.take(MAX_UTXO_ITEMS)
+                    if (candidates.isEmpty()) {
+                        throw D3ErrorException.fatal(
+                            failedOperation = WITHDRAWAL_OPERATION,
+                            description = "Cannot get enough UTXO for withdrawals $withdrawals"
+                        )
+                    }
+                    val selectedIndices = selectUnspents(withdrawals, candidates, feeRate)
+                    val selectedUnspents = selectedIndices.map { index -> candidates[index] }
+                    // Candidates are taken from the head of the pool, so indices are the same
+                    selectedIndices.sortedDescending().forEach { index -> availableUnspents.removeAt(index) }
+                    logger.info("UTXO $selectedUnspents were planned for withdrawals $withdrawals")
+                    selectedUnspents
+                }
             }
-            collectedAmount += unspent.value.value
-            collectedUnspents.add(unspent)
         }
-        if (collectedAmount < amountAndFee) {
+    }
+
+    /**
+     * Returns UTXO that haven't been registered by any withdrawal
+     * @param confidenceLevel - minimum depth of transactions
+     * @param feeRate - fee rate in SAT per byte. Used to filter dust
+     * @return result with UTXO sorted by value in descending order
+     */
+    fun getUnusedUnspents(confidenceLevel: Int, feeRate: Int) =
+        getUnusedUnspents(confidenceLevel, feeRate, Int.MAX_VALUE)
+
+    /**
+     * Returns UTXO that haven't been registered by any withdrawal
+     * @param confidenceLevel - minimum depth of transactions
+     * @param feeRate - fee rate in SAT per byte. Used to filter dust
+     * @param limit - maximum number of UTXO to return
+     * @return result with no more than [limit] biggest UTXO sorted by value in descending order
+     */
+    fun getUnusedUnspents(
+        confidenceLevel: Int,
+        feeRate: Int,
+        limit: Int
+    ): Result<List<TransactionOutput>, Exception> =
+        usedUTXOProvider.getUsedUTXOKeys().map { usedUTXOKeys ->
+            transfersWallet.unspents.sortedWith(utxoComparator).asSequence().filter { unspent ->
+                !isDust(unspent.value.value, feeRate) &&
+                        unspent.parentTransactionDepthInBlocks >= confidenceLevel
+                        && isAvailableOutput(unspent)
+                        && !usedUTXOKeys.contains(unspent.irohaKey())
+            }.take(limit).toList()
+        }
+
+    /**
+     * Adds UTXO consolidation output to a given transaction. All the inputs except fee go to [changeAddress].
+     * Inputs must be added before, because fee depends on the number of inputs.
+     * @param transaction - current transaction
+     * @param totalAmountSat - total amount of assets
+     * @param changeAddress - address that receives consolidated UTXO
+     * @param feeRate - fee rate in SAT per byte
+     */
+    fun addConsolidationOutput(
+        transaction: Transaction,
+        totalAmountSat: Long,
+        changeAddress: Address,
+        feeRate: Int
+    ) {
+        val consolidatedAmount = totalAmountSat - getTxFee(transaction.inputs.size, 1, feeRate)
+        if (isDust(consolidatedAmount, feeRate)) {
             throw D3ErrorException.fatal(
                 failedOperation = WITHDRAWAL_OPERATION,
-                description = "Cannot get enough BTC amount for withdrawal $withdrawalDetails (required $amountAndFee, collected $collectedAmount) using current unspent tx collection"
+                description = "Cannot consolidate $totalAmountSat SAT, because it doesn't cover the fee"
             )
         }
-        collectedUnspents
+        transaction.addOutput(Coin.valueOf(consolidatedAmount), changeAddress)
+    }
+
+    /**
+     * Selects UTXO that cover given withdrawals and fee
+     * @param withdrawals - withdrawals to execute in a single transaction
+     * @param unspents - UTXO to choose from. Must be sorted with [utxoComparator]
+     * @param feeRate - fee rate in SAT per byte
+     * @return indices of selected UTXO
+     */
+    private fun selectUnspents(
+        withdrawals: List<WithdrawalDetails>,
+        unspents: List<TransactionOutput>,
+        feeRate: Int
+    ): List<Int> {
+        // Every input makes transaction bigger. So we take UTXO values without the fee that is paid to spend them
+        val inputFee = getTxFee(1, 0, feeRate)
+        val effectiveValues = unspents.map { unspent -> unspent.value.value - inputFee }
+        val amountSat = withdrawals.map { it.amountSat }.sum()
+        val amountAndFeeNoChange = amountSat + getTxFee(0, withdrawals.size, feeRate)
+        val amountAndFee = amountSat + getTxFee(0, withdrawals.size + 1, feeRate)
+        // Change output costs fee and it's useless if it's a dust
+        val costOfChange = getTxFee(0, 1, feeRate) + inputFee.toLong()
+        /*
+        Try to find a set of UTXO that may be spent without change first.
+        Fall back to the largest-first order if there is no such set.
+        */
+        return selectBranchAndBound(effectiveValues, amountAndFeeNoChange, costOfChange, BNB_MAX_TRIES)
+            ?.also { logger.info("UTXO for withdrawals $withdrawals were selected without change") }
+            ?: selectGreedy(effectiveValues, amountAndFee)
+            ?: throw D3ErrorException.fatal(
+                failedOperation = WITHDRAWAL_OPERATION,
+                description = "Cannot get enough BTC amount for withdrawals $withdrawals (required $amountAndFee, collected ${effectiveValues.sum()}) using current unspent tx collection"
+            )
     }
 
     /**
@@ -122,18 +269,20 @@ class UTXOProvider(
      * @param withdrawalDetails - details of withdrawal
      * @param unspents - all the unspents that we posses
      * @param confidenceLevel - minimum depth of transactions
+     * @param feeRate - fee rate in SAT per byte. Used to filter dust
      */
     private fun getAvailableUnspents(
         withdrawalDetails: WithdrawalDetails,
         unspents: List<TransactionOutput>,
-        confidenceLevel: Int
+        confidenceLevel: Int,
+        feeRate: Int
     ): List<TransactionOutput> {
         var utxoCount = 0
         return unspents.sortedWith(utxoComparator).filter { unspent ->
             if (utxoCount >= MAX_UTXO_ITEMS) {
                 return@filter false
             }
-            val availableToSpend = !isDust(unspent.value.value) &&
+            val availableToSpend = !isDust(unspent.value.value, feeRate) &&
                     //Only confirmed unspents may be used
                     unspent.parentTransactionDepthInBlocks >= confidenceLevel
                     //We use registered clients outputs only
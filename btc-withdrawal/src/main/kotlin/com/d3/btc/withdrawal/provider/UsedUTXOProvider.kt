@@ -43,6 +43,19 @@ open class UsedUTXOProvider(
         }
     }
 
+    /**
+     * Returns keys of outputs that have been used by any withdrawal.
+     * The whole registry is read in one query, so it's cheaper than checking outputs one by one
+     * @return keys of used outputs(see [irohaKey])
+     */
+    fun getUsedUTXOKeys(): Result<Set<String>, Exception> {
+        return withdrawalQueryHelper.getAccountDetails(
+            utxoStorageAccount, consensusIrohaConsumer.creator
+        ).map { details ->
+            details.filterValues { value -> value != REMOVED_UTXO_KEY }.keys
+        }
+    }
+
     /**
      * Adds UTXO registration Iroha commands
      * @param transactionBuilder - transaction builder to add commands to
@@ -6,9 +6,15 @@
 package com.d3.btc.withdrawal.provider
 
 import com.d3.btc.config.BitcoinConfig
+import com.d3.btc.fee.BtcFeeRateProvider
 import com.d3.btc.helper.iroha.isCASError
 import com.d3.btc.provider.network.BtcNetworkConfigProvider
+import com.d3.btc.withdrawal.config.BTC_WITHDRAWAL_SERVICE_NAME
 import com.d3.btc.withdrawal.init.WITHDRAWAL_OPERATION
+import com.d3.btc.withdrawal.statistics.WithdrawalLatency
+import com.d3.btc.withdrawal.statistics.WithdrawalStatistics
+import com.d3.btc.withdrawal.statistics.WithdrawalTimeline
+import com.d3.btc.withdrawal.statistics.WithdrawalTimelineEventType
 import com.d3.btc.withdrawal.transaction.SerializableUTXO
 import com.d3.btc.withdrawal.transaction.WithdrawalConsensus
 import com.d3.btc.withdrawal.transaction.WithdrawalDetails
@@ -17,16 +23,29 @@ import com.d3.commons.sidechain.iroha.consumer.IrohaConsumer
 import com.d3.commons.sidechain.iroha.util.IrohaQueryHelper
 import com.d3.commons.util.irohaEscape
 import com.github.kittinunf.result.Result
+import com.github.kittinunf.result.failure
 import com.github.kittinunf.result.flatMap
 import com.github.kittinunf.result.map
 import jp.co.soramitsu.iroha.java.TransactionBuilder
 import mu.KLogging
 import org.bitcoinj.core.Transaction
+import org.bitcoinj.core.TransactionOutput
 import org.springframework.beans.factory.annotation.Qualifier
 import org.springframework.stereotype.Component
+import java.io.Closeable
 import java.util.*
+import java.util.concurrent.CompletableFuture
+import java.util.concurrent.Executors
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.TimeoutException
+import java.util.function.Consumer
 import kotlin.collections.ArrayList
 
+// Time to wait for consensus data between Iroha queries
+private const val CONSENSUS_POLLING_INTERVAL_MILLIS = 1_000L
+// Time to wait for consensus data created by another node
+private const val JOIN_CONSENSUS_TIMEOUT_MILLIS = 5 * 60_000L
+
 @Component
 class WithdrawalConsensusProvider(
     @Qualifier("consensusIrohaConsumer")
@@ -38,8 +57,19 @@ class WithdrawalConsensusProvider(
     private val bitcoinUTXOProvider: UTXOProvider,
     private val usedUTXOProvider: UsedUTXOProvider,
     private val bitcoinConfig: BitcoinConfig,
-    private val btcNetworkConfigProvider: BtcNetworkConfigProvider
-) {
+    private val btcNetworkConfigProvider: BtcNetworkConfigProvider,
+    private val btcFeeRateProvider: BtcFeeRateProvider,
+    private val withdrawalConsensusWaiter: WithdrawalConsensusWaiter,
+    private val withdrawalStatistics: WithdrawalStatistics,
+    private val withdrawalTimeline: WithdrawalTimeline
+) : Closeable {
+
+    // Executor that joins consensus data committed by other nodes
+    private val joinExecutor = Executors.newSingleThreadScheduledExecutor { runnable ->
+        val thread = Thread(runnable, "$BTC_WITHDRAWAL_SERVICE_NAME:consensus-join")
+        thread.isDaemon = true
+        thread
+    }
 
     /**
      * Creates consensus data and saves it in Iroha
@@ -51,56 +81,208 @@ class WithdrawalConsensusProvider(
             if (hasBeenEstablished) {
                 return@flatMap Result.of(Unit)
             }
-            handleConsensus(withdrawalDetails)
+            // Fee rate is a part of consensus. This is how all the nodes agree on it
+            btcFeeRateProvider.getFeeRate().flatMap { feeRate ->
+                // Collect unspents
+                bitcoinUTXOProvider.collectUnspents(withdrawalDetails, bitcoinConfig.confidenceLevel, feeRate)
+                    .flatMap { unspents -> handleConsensus(withdrawalDetails, emptyList(), feeRate, unspents) }
+            }
         }
     }
 
     /**
-     * Handle consensus creation process
+     * Creates consensus data for all the withdrawal groups of an Iroha block and saves it in Iroha.
+     * UTXO of all the groups are planned at once(see [UTXOProvider.planUnspents]),
+     * so groups don't collide on the same UTXO.
+     * Withdrawals of a group are executed in a single Bitcoin transaction.
+     * The first withdrawal of a group is a leader: consensus data is stored by the leader's hash.
+     * @param groups - groups of withdrawals that will be used to create consensus. Groups must not be empty
+     * @return list of results, one per group in the same order as [groups]
+     */
+    fun createPlannedConsensusData(groups: List<List<WithdrawalDetails>>): List<Result<Unit, Exception>> {
+        val established = groups.map { withdrawals -> hasBeenEstablished(withdrawals.first().irohaFriendlyHashCode()) }
+        // Groups with established consensus are not planned. Their UTXO have been registered already
+        val groupsToPlan = groups.filterIndexed { index, _ -> established[index].fold({ !it }, { false }) }
+        // Fee rate is a part of consensus. This is how all the nodes agree on it
+        val plan = btcFeeRateProvider.getFeeRate().map { feeRate ->
+            Pair(feeRate, bitcoinUTXOProvider.planUnspents(groupsToPlan, bitcoinConfig.confidenceLevel, feeRate))
+        }
+        var plannedGroupIndex = 0
+        return groups.mapIndexed { index, withdrawals ->
+            established[index].flatMap { hasBeenEstablished ->
+                // No need to create consensus if it has been established before
+                if (hasBeenEstablished) {
+                    return@flatMap Result.of(Unit)
+                }
+                val plannedUnspentsIndex = plannedGroupIndex++
+                plan.flatMap { (feeRate, plannedUnspents) ->
+                    plannedUnspents[plannedUnspentsIndex].flatMap { unspents ->
+                        handleConsensus(withdrawals.first(), withdrawals.drop(1), feeRate, unspents)
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Creates UTXO consolidation consensus data and saves it in Iroha
+     * @param consolidationDetails - details of consolidation. See [WithdrawalDetails.consolidation]
+     * @param feeRate - fee rate in SAT per byte
+     * @param unspents - UTXO to consolidate
+     * @return result of operation
+     */
+    fun createConsolidationConsensusData(
+        consolidationDetails: WithdrawalDetails,
+        feeRate: Int,
+        unspents: List<TransactionOutput>
+    ): Result<Unit, Exception> {
+        return hasBeenEstablished(consolidationDetails.irohaFriendlyHashCode()).flatMap { hasBeenEstablished ->
+            // No need to create consensus if it has been established before
+            if (hasBeenEstablished) {
+                return@flatMap Result.of(Unit)
+            }
+            handleConsensus(consolidationDetails, emptyList(), feeRate, unspents)
+        }
+    }
+
+    /**
+     * Registers consensus data that was created by another node.
+     * Registration is an MST transaction, so a node must join it even if it didn't create consensus data itself.
+     * The data may not be committed yet if this node is behind the creator. Such data is taken from the Iroha
+     * block stream once it's committed, so the call doesn't block. Nothing is registered if no data appears in time.
+     * @param withdrawalDetails - details of withdrawal
+     * @return result of operation
+     */
+    fun joinConsensusData(withdrawalDetails: WithdrawalDetails): Result<Unit, Exception> {
+        return hasBeenEstablished(withdrawalDetails.irohaFriendlyHashCode()).flatMap { hasBeenEstablished ->
+            if (hasBeenEstablished) {
+                return@flatMap Result.of(Unit)
+            }
+            val withdrawalHash = withdrawalDetails.irohaFriendlyHashCode()
+            // Registered before the query, so data that is committed in between is not missed
+            val consensusFuture = withdrawalConsensusWaiter.register(withdrawalHash)
+            withdrawalQueryHelper.getAccountDetails(
+                consensusIrohaConsumer.creator,
+                consensusIrohaConsumer.creator,
+                withdrawalHash
+            ).flatMap { withdrawalConsensusDetail ->
+                if (withdrawalConsensusDetail.isPresent) {
+                    withdrawalConsensusWaiter.unregister(withdrawalHash)
+                    logger.info("Join consensus for withdrawal $withdrawalDetails")
+                    registerConsensus(WithdrawalConsensus.fromJson(withdrawalConsensusDetail.get()))
+                } else {
+                    joinConsensusDataLater(withdrawalDetails, consensusFuture)
+                    Result.of(Unit)
+                }
+            }.also { result ->
+                if (result is Result.Failure) {
+                    withdrawalConsensusWaiter.unregister(withdrawalHash)
+                }
+            }
+        }
+    }
+
+    /**
+     * Registers consensus data once it appears in the Iroha block stream
      * @param withdrawalDetails - details of withdrawal
+     * @param consensusFuture - future of consensus data. See [WithdrawalConsensusWaiter.register]
+     */
+    private fun joinConsensusDataLater(
+        withdrawalDetails: WithdrawalDetails,
+        consensusFuture: CompletableFuture<String>
+    ) {
+        val withdrawalHash = withdrawalDetails.irohaFriendlyHashCode()
+        val timeout = joinExecutor.schedule({
+            withdrawalConsensusWaiter.unregister(withdrawalHash)
+            if (consensusFuture.cancel(false)) {
+                logger.info("No consensus data has appeared for withdrawal $withdrawalDetails. Nothing to join")
+            }
+        }, JOIN_CONSENSUS_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)
+        consensusFuture.thenAcceptAsync(Consumer { withdrawalConsensusDetail ->
+            timeout.cancel(false)
+            withdrawalConsensusWaiter.unregister(withdrawalHash)
+            logger.info("Join consensus for withdrawal $withdrawalDetails from Iroha block")
+            registerConsensus(WithdrawalConsensus.fromJson(withdrawalConsensusDetail)).failure { ex ->
+                logger.error("Cannot join consensus for withdrawal $withdrawalDetails", ex)
+            }
+        }, joinExecutor)
+    }
+
+    /**
+     * Handle consensus creation process
+     * @param withdrawalDetails - details of withdrawal. A leader of batch
+     * @param batchedWithdrawals - withdrawals to execute along with [withdrawalDetails]
+     * @param feeRate - fee rate in SAT per byte
+     * @param unspents - UTXO to spend
      * @return result of operation
      */
-    private fun handleConsensus(withdrawalDetails: WithdrawalDetails): Result<Unit, Exception> {
+    private fun handleConsensus(
+        withdrawalDetails: WithdrawalDetails,
+        batchedWithdrawals: List<WithdrawalDetails>,
+        feeRate: Int,
+        unspents: List<TransactionOutput>
+    ): Result<Unit, Exception> = withdrawalStatistics.measureLatency(WithdrawalLatency.CONSENSUS_CREATION) {
         val utxo = ArrayList<SerializableUTXO>()
         val consensusId = UUID.randomUUID().toString()
-        // Collect unspents
-        return bitcoinUTXOProvider.collectUnspents(withdrawalDetails, bitcoinConfig.confidenceLevel)
-            .flatMap { unspents ->
-                unspents.forEach { output ->
-                    val transaction = Transaction(btcNetworkConfigProvider.getConfig())
-                    val input = transaction.addInput(output)
-                    input.setParent(null)
-                    // Populate utxo list
-                    utxo.add(SerializableUTXO.toSerializableUTXO(input, output))
-                }
-                // Only one node will succeed to commit the following tx
-                val transactionBuilder = TransactionBuilder(
-                    consensusIrohaConsumer.creator,
-                    withdrawalDetails.withdrawalTime
-                ).compareAndSetAccountDetail(
-                    consensusIrohaConsumer.creator,
-                    withdrawalDetails.irohaFriendlyHashCode(),
-                    WithdrawalConsensus(utxo, withdrawalDetails, consensusId).toJson().irohaEscape(),
-                    null
+        Result.of {
+            unspents.forEach { output ->
+                val transaction = Transaction(btcNetworkConfigProvider.getConfig())
+                val input = transaction.addInput(output)
+                input.setParent(null)
+                // Populate utxo list
+                utxo.add(SerializableUTXO.toSerializableUTXO(input, output))
+            }
+            // Only one node will succeed to commit the following tx
+            val transactionBuilder = TransactionBuilder(
+                consensusIrohaConsumer.creator,
+                withdrawalDetails.withdrawalTime
+            ).compareAndSetAccountDetail(
+                consensusIrohaConsumer.creator,
+                withdrawalDetails.irohaFriendlyHashCode(),
+                WithdrawalConsensus(
+                    utxo,
+                    withdrawalDetails,
+                    consensusId,
+                    feeRate,
+                    batchedWithdrawals
+                ).toJson().irohaEscape(),
+                null
+            )
+            // And UTXO registration commands to the transaction
+            usedUTXOProvider.addRegisterUTXOCommands(transactionBuilder, withdrawalDetails, unspents)
+            logger.info("Create consensus for withdrawal $withdrawalDetails. Hash ${withdrawalDetails.irohaFriendlyHashCode()}")
+            consensusIrohaConsumer.send(transactionBuilder.build()).get()
+        }.fold(
+            {
+                withdrawalTimeline.record(
+                    listOf(withdrawalDetails) + batchedWithdrawals,
+                    WithdrawalTimelineEventType.CONSENSUS_WON,
+                    "Consensus id $consensusId"
                 )
-                // And UTXO registration commands to the transaction
-                usedUTXOProvider.addRegisterUTXOCommands(transactionBuilder, withdrawalDetails, unspents)
-                logger.info("Create consensus for withdrawal $withdrawalDetails. Hash ${withdrawalDetails.irohaFriendlyHashCode()}")
-                consensusIrohaConsumer.send(transactionBuilder.build())
-            }.fold(
-                {
-                    // Start consensus registration if everything is ok
-                    return registerConsensus(WithdrawalConsensus(utxo, withdrawalDetails, consensusId))
-                }, { ex ->
-                    return if (isCASError(ex)) {
-                        logger.info("Register consensus for withdrawal $withdrawalDetails on CAS failure")
-                        // Start consensus registration if the error is a CAS issue
-                        registerConsensusCASFailure(withdrawalDetails)
-                    } else {
-                        // Return error if it's something else
-                        Result.error(ex)
-                    }
-                })
+                // Start consensus registration if everything is ok
+                registerConsensus(
+                    WithdrawalConsensus(
+                        utxo,
+                        withdrawalDetails,
+                        consensusId,
+                        feeRate,
+                        batchedWithdrawals
+                    )
+                )
+            }, { ex ->
+                if (isCASError(ex)) {
+                    logger.info("Register consensus for withdrawal $withdrawalDetails on CAS failure")
+                    withdrawalTimeline.record(
+                        listOf(withdrawalDetails) + batchedWithdrawals,
+                        WithdrawalTimelineEventType.CONSENSUS_LOST
+                    )
+                    // Start consensus registration if the error is a CAS issue
+                    registerConsensusCASFailure(withdrawalDetails)
+                } else {
+                    // Return error if it's something else
+                    Result.error(ex)
+                }
+            })
     }
 
     /**
@@ -117,42 +299,66 @@ class WithdrawalConsensusProvider(
         }
     }
 
-    //TODO remove after bugfix in Iroha
     /**
-     * Shitty Iroha bug workaround. It reads details from Iroha until it's not read properly.
+     * Reads consensus data that was created by another node.
+     * The data is taken from the Iroha block stream as soon as the winning compareAndSetAccountDetail is committed.
+     * Iroha is polled as a fallback, because queries may not return the data right away.
      * @param withdrawalDetails - withdrawal details
      * @return consensus data in JSON format
      */
     private fun getConsensusRepeatOnFailure(withdrawalDetails: WithdrawalDetails): Result<String, Exception> {
-        return Result.of {
-            var withdrawalConsensusDetail: String? = null
-            var attemptToRead = 0
-            while (withdrawalConsensusDetail == null && attemptToRead < 10) {
-                withdrawalQueryHelper.getAccountDetails(
-                    consensusIrohaConsumer.creator,
-                    consensusIrohaConsumer.creator,
-                    withdrawalDetails.irohaFriendlyHashCode()
-                ).fold(
-                    {
-                        if (it.isPresent) {
-                            logger.info("Successful read from Iroha. Attempt $attemptToRead")
-                            withdrawalConsensusDetail = it.get()
-                        } else {
-                            Thread.sleep(1_000)
-                            attemptToRead++
-                            logger.warn("Failed to get withdrawal consensus detail for withdrawal $withdrawalDetails. Try one more time. Attempt $attemptToRead")
-                        }
-
-                    }, { ex -> throw ex })
-            }
-            if (withdrawalConsensusDetail == null) {
-                throw D3ErrorException.fatal(
-                    failedOperation = WITHDRAWAL_OPERATION,
-                    description = "Cannot get withdrawal consensus details for withdrawal $withdrawalDetails"
-                )
-            } else {
-                withdrawalConsensusDetail!!
+        val withdrawalHash = withdrawalDetails.irohaFriendlyHashCode()
+        val consensusFuture = withdrawalConsensusWaiter.register(withdrawalHash)
+        return withdrawalStatistics.measureLatency(WithdrawalLatency.CONSENSUS_CAS_WAIT) {
+            Result.of {
+                var withdrawalConsensusDetail: String? = null
+                var attemptToRead = 0
+                while (withdrawalConsensusDetail == null && attemptToRead < 10) {
+                    if (consensusFuture.isDone) {
+                        logger.info("Got withdrawal consensus detail from Iroha block. Attempt $attemptToRead")
+                        withdrawalConsensusDetail = consensusFuture.get()
+                        break
+                    }
+                    withdrawalQueryHelper.getAccountDetails(
+                        consensusIrohaConsumer.creator,
+                        consensusIrohaConsumer.creator,
+                        withdrawalHash
+                    ).fold(
+                        {
+                            if (it.isPresent) {
+                                logger.info("Successful read from Iroha. Attempt $attemptToRead")
+                                withdrawalConsensusDetail = it.get()
+                            } else {
+                                withdrawalConsensusDetail = waitConsensusFromBlock(consensusFuture)
+                                attemptToRead++
+                                if (withdrawalConsensusDetail == null) {
+                                    logger.warn("Failed to get withdrawal consensus detail for withdrawal $withdrawalDetails. Try one more time. Attempt $attemptToRead")
+                                }
+                            }
+                        }, { ex -> throw ex })
+                }
+                if (withdrawalConsensusDetail == null) {
+                    throw D3ErrorException.fatal(
+                        failedOperation = WITHDRAWAL_OPERATION,
+                        description = "Cannot get withdrawal consensus details for withdrawal $withdrawalDetails"
+                    )
+                } else {
+                    withdrawalConsensusDetail!!
+                }
             }
+        }.also { withdrawalConsensusWaiter.unregister(withdrawalHash) }
+    }
+
+    /**
+     * Waits for consensus data to appear in the Iroha block stream
+     * @param consensusFuture - future of consensus data
+     * @return consensus data or null if it hasn't appeared in time
+     */
+    private fun waitConsensusFromBlock(consensusFuture: CompletableFuture<String>): String? {
+        return try {
+            consensusFuture.get(CONSENSUS_POLLING_INTERVAL_MILLIS, TimeUnit.MILLISECONDS)
+        } catch (e: TimeoutException) {
+            null
         }
     }
 
@@ -191,6 +397,10 @@ class WithdrawalConsensusProvider(
         }
     }
 
+    override fun close() {
+        joinExecutor.shutdownNow()
+    }
+
     /**
      * Logger
      */
@@ -0,0 +1,79 @@
+/*
+ * Copyright D3 Ledger, Inc. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package com.d3.btc.withdrawal.provider
+
+import com.d3.commons.sidechain.iroha.consumer.IrohaConsumer
+import com.d3.commons.util.irohaUnEscape
+import iroha.protocol.BlockOuterClass
+import org.springframework.beans.factory.annotation.Qualifier
+import org.springframework.stereotype.Component
+import java.util.concurrent.CompletableFuture
+import java.util.concurrent.ConcurrentHashMap
+
+// Number of recently created consensus data items to keep
+private const val RECENT_CONSENSUS_CAPACITY = 1_000
+
+/**
+ * Notifies about withdrawal consensus data that is committed to Iroha.
+ * Consensus data is created with a compareAndSetAccountDetail command, so only one node wins.
+ * Nodes that lose the race take the winning data from the Iroha block stream instead of polling Iroha.
+ */
+@Component
+class WithdrawalConsensusWaiter(
+    @Qualifier("consensusIrohaConsumer")
+    private val consensusIrohaConsumer: IrohaConsumer
+) {
+
+    // Withdrawal hash -> future of consensus data
+    private val waiting = ConcurrentHashMap<String, CompletableFuture<String>>()
+
+    // Consensus data that has been seen recently. Block may come before anybody waits for it.
+    private val recentConsensus = object : LinkedHashMap<String, String>() {
+        override fun removeEldestEntry(eldest: MutableMap.MutableEntry<String, String>) =
+            size > RECENT_CONSENSUS_CAPACITY
+    }
+
+    /**
+     * Registers interest in consensus data
+     * @param withdrawalHash - hash of withdrawal. See [com.d3.btc.withdrawal.transaction.WithdrawalDetails.irohaFriendlyHashCode]
+     * @return future of consensus data in JSON format. Completed right away if the data has been seen already.
+     * Must be released with [unregister]
+     */
+    fun register(withdrawalHash: String): CompletableFuture<String> {
+        val future = waiting.computeIfAbsent(withdrawalHash) { CompletableFuture() }
+        synchronized(recentConsensus) {
+            recentConsensus[withdrawalHash]?.let { future.complete(it) }
+        }
+        return future
+    }
+
+    /**
+     * Removes interest in consensus data
+     * @param withdrawalHash - hash of withdrawal
+     */
+    fun unregister(withdrawalHash: String) {
+        waiting.remove(withdrawalHash)
+    }
+
+    /**
+     * Takes consensus data from block
+     * @param block - committed Iroha block
+     */
+    fun onBlock(block: BlockOuterClass.Block) {
+        block.blockV1.payload.transactionsList
+            .flatMap { tx -> tx.payload.reducedPayload.commandsList }
+            .filter { command -> command.hasCompareAndSetAccountDetail() }
+            .map { command -> command.compareAndSetAccountDetail }
+            .filter { command -> command.accountId == consensusIrohaConsumer.creator }
+            .forEach { command ->
+                val consensusData = command.value.irohaUnEscape()
+                synchronized(recentConsensus) {
+                    recentConsensus[command.key] = consensusData
+                }
+                waiting[command.key]?.complete(consensusData)
+            }
+    }
+}
@@ -8,6 +8,7 @@ package com.d3.btc.withdrawal.service
 import com.d3.btc.config.BTC_ASSET
 import com.d3.btc.helper.currency.satToBtc
 import com.d3.btc.helper.input.irohaKey
+import com.d3.btc.withdrawal.transaction.WithdrawalConsensus
 import com.d3.btc.withdrawal.transaction.WithdrawalDetails
 import com.d3.commons.service.RollbackService
 import com.d3.commons.service.WithdrawalFinalizationDetails
@@ -15,6 +16,7 @@ import com.d3.commons.util.GsonInstance
 import com.d3.commons.util.irohaEscape
 import com.d3.reverse.client.ReliableIrohaConsumerImpl
 import com.github.kittinunf.result.flatMap
+import jp.co.soramitsu.iroha.java.Transaction as IrohaTransaction
 import mu.KLogging
 import org.bitcoinj.core.Transaction
 import org.springframework.beans.factory.annotation.Qualifier
@@ -41,6 +43,10 @@ class BtcRollbackService(
      * @param btcTx - Bitcoin transaction to rollback. Used to unregister UTXO. The argument is optional.
      */
     fun rollback(withdrawalDetails: WithdrawalDetails, reason: String, btcTx: Transaction? = null) {
+        if (withdrawalDetails.isConsolidation()) {
+            rollbackConsolidation(withdrawalDetails, reason, btcTx)
+            return
+        }
         val withdrawalFinalizationDetails = WithdrawalFinalizationDetails(
             satToBtc(withdrawalDetails.amountSat),
             BTC_ASSET,
@@ -78,6 +84,51 @@ class BtcRollbackService(
             { ex -> logger.error("Cannot perform rollback", ex) })
     }
 
+    /**
+     * Rollbacks UTXO consolidation. There are no assets to return, so only UTXO are unregistered.
+     * @param consolidationDetails - details of consolidation
+     * @param reason - reason of rollback
+     * @param btcTx - consolidation Bitcoin transaction. Used to unregister UTXO
+     */
+    private fun rollbackConsolidation(consolidationDetails: WithdrawalDetails, reason: String, btcTx: Transaction?) {
+        logger.warn("Rollback UTXO consolidation $consolidationDetails. Reason: $reason")
+        if (btcTx == null) {
+            return
+        }
+        withdrawalConsumer.getConsumerQuorum().flatMap { quorum ->
+            val withdrawalRollbackData = WithdrawalRollbackData(
+                consolidationDetails,
+                btcTx.inputs.map { input -> input.irohaKey() })
+            withdrawalConsumer.send(
+                IrohaTransaction.builder(withdrawalConsumer.creator)
+                    .setAccountDetail(
+                        withdrawalConsumer.creator,
+                        ROLLBACK_KEY,
+                        gson.toJson(withdrawalRollbackData).irohaEscape()
+                    )
+                    .setCreatedTime(consolidationDetails.withdrawalTime)
+                    .setQuorum(quorum)
+                    .build()
+            )
+        }.fold(
+            { logger.info("Rollback of UTXO consolidation $consolidationDetails was committed") },
+            { ex -> logger.error("Cannot perform rollback", ex) })
+    }
+
+    /**
+     * Rollbacks all the withdrawals of a given consensus.
+     * UTXO are registered by the leader of a batch, so Bitcoin transaction is rolled back along with the leader only.
+     * @param withdrawalConsensus - consensus of withdrawals to rollback
+     * @param reason - reason of rollback
+     * @param btcTx - Bitcoin transaction to rollback. Used to unregister UTXO. The argument is optional.
+     */
+    fun rollbackConsensus(withdrawalConsensus: WithdrawalConsensus, reason: String, btcTx: Transaction? = null) {
+        rollback(withdrawalConsensus.withdrawalDetails, reason, btcTx)
+        withdrawalConsensus.batchedWithdrawals?.forEach { withdrawalDetails ->
+            rollback(withdrawalDetails, reason)
+        }
+    }
+
     /**
      * Logger
      */
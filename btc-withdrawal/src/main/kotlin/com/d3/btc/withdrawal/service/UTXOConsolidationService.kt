@@ -0,0 +1,125 @@
+/*
+ * Copyright D3 Ledger, Inc. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package com.d3.btc.withdrawal.service
+
+import com.d3.btc.config.BitcoinConfig
+import com.d3.btc.fee.BtcFeeRateProvider
+import com.d3.btc.fee.getTxFee
+import com.d3.btc.withdrawal.config.BtcWithdrawalConfig
+import com.d3.btc.withdrawal.provider.MAX_UTXO_ITEMS
+import com.d3.btc.withdrawal.provider.UTXOProvider
+import com.d3.btc.withdrawal.provider.WithdrawalConsensusProvider
+import com.d3.btc.withdrawal.transaction.WithdrawalDetails
+import com.github.kittinunf.result.flatMap
+import mu.KLogging
+import org.bitcoinj.core.TransactionOutput
+import org.springframework.stereotype.Component
+
+// Consolidation is checked on every N-th Iroha block
+const val CONSOLIDATION_PERIOD_BLOCKS = 50
+// Maximum number of UTXO to spend in one consolidation transaction. Keeps the transaction size reasonable
+const val MAX_CONSOLIDATION_INPUTS = 100
+
+/**
+ * Service that consolidates small UTXO.
+ * Withdrawals look at the largest UTXO only, so small UTXO left by deposits are never spent.
+ * Consolidation spends them to a change address using the same consensus, signing and broadcasting path as withdrawals.
+ */
+@Component
+class UTXOConsolidationService(
+    private val btcWithdrawalConfig: BtcWithdrawalConfig,
+    private val bitcoinConfig: BitcoinConfig,
+    private val bitcoinUTXOProvider: UTXOProvider,
+    private val withdrawalConsensusProvider: WithdrawalConsensusProvider,
+    private val btcFeeRateProvider: BtcFeeRateProvider
+) {
+
+    /**
+     * Consolidates UTXO if there are too many of them and fee rate is low enough.
+     * Must be called on Iroha blocks without withdrawals, i.e. when the load is low.
+     * @param blockHeight - height of Iroha block. Consolidation is checked on every [CONSOLIDATION_PERIOD_BLOCKS] block
+     * @param blockTime - time of Iroha block. It's the time of consolidation, so all the nodes use the same consensus key
+     */
+    fun consolidateIfNeeded(blockHeight: Long, blockTime: Long) {
+        if (btcWithdrawalConfig.consolidationUtxoThreshold <= 0 || blockHeight % CONSOLIDATION_PERIOD_BLOCKS != 0L) {
+            return
+        }
+        val consolidationDetails = WithdrawalDetails.consolidation(blockTime)
+        btcFeeRateProvider.getFeeRate().flatMap { feeRate ->
+            bitcoinUTXOProvider.getUnusedUnspents(bitcoinConfig.confidenceLevel, feeRate).flatMap { pool ->
+                val unspents = selectUnspentsToConsolidate(pool, feeRate)
+                if (unspents.isEmpty()) {
+                    // Other nodes may have decided to consolidate. They need our signature to register consensus
+                    withdrawalConsensusProvider.joinConsensusData(consolidationDetails)
+                } else {
+                    logPoolStatistics(pool, unspents, feeRate)
+                    withdrawalConsensusProvider.createConsolidationConsensusData(
+                        consolidationDetails,
+                        feeRate,
+                        unspents
+                    )
+                }
+            }
+        }.fold(
+            { logger.info("UTXO consolidation check $consolidationDetails has been completed") },
+            { ex -> logger.error("Cannot consolidate UTXO", ex) })
+    }
+
+    /**
+     * Selects UTXO to consolidate
+     * @param pool - all the available UTXO sorted by value in descending order
+     * @param feeRate - current fee rate in SAT per byte
+     * @return UTXO to consolidate or empty list if there is no need to consolidate
+     */
+    private fun selectUnspentsToConsolidate(pool: List<TransactionOutput>, feeRate: Int): List<TransactionOutput> {
+        if (pool.size < btcWithdrawalConfig.consolidationUtxoThreshold) {
+            logger.info("No need to consolidate UTXO. There are ${pool.size} UTXO available")
+            return emptyList()
+        }
+        if (feeRate > btcWithdrawalConfig.consolidationMaxFeeRate) {
+            logger.info("UTXO consolidation is postponed. Fee rate $feeRate SAT/byte is too high")
+            return emptyList()
+        }
+        // The largest UTXO are left for withdrawals. Withdrawals never look beyond them
+        val unspents = pool.drop(MAX_UTXO_ITEMS).reversed().take(MAX_CONSOLIDATION_INPUTS)
+        return if (unspents.size < 2) emptyList() else unspents
+    }
+
+    /**
+     * Logs UTXO pool statistics before and after consolidation
+     * @param pool - all the available UTXO
+     * @param unspents - UTXO to consolidate
+     * @param feeRate - fee rate in SAT per byte
+     */
+    private fun logPoolStatistics(pool: List<TransactionOutput>, unspents: List<TransactionOutput>, feeRate: Int) {
+        val fee = getTxFee(unspents.size, 1, feeRate)
+        val before = UTXOPoolStatistics.create(pool.map { it.value.value })
+        // Consolidated UTXO are the smallest ones, i.e. the last ones in the pool
+        val after = UTXOPoolStatistics.create(
+            pool.dropLast(unspents.size).map { it.value.value } + (unspents.map { it.value.value }.sum() - fee)
+        )
+        logger.info("Consolidate ${unspents.size} UTXO paying $fee SAT fee. UTXO pool before: $before. UTXO pool after: $after")
+    }
+
+    /**
+     * Logger
+     */
+    companion object : KLogging()
+}
+
+/**
+ * UTXO pool statistics
+ * @param utxoCount - number of UTXO
+ * @param totalSat - total value of UTXO in SAT
+ * @param minSat - value of the smallest UTXO in SAT
+ * @param maxSat - value of the largest UTXO in SAT
+ */
+data class UTXOPoolStatistics(val utxoCount: Int, val totalSat: Long, val minSat: Long, val maxSat: Long) {
+    companion object {
+        fun create(values: List<Long>) =
+            UTXOPoolStatistics(values.size, values.sum(), values.min() ?: 0, values.max() ?: 0)
+    }
+}
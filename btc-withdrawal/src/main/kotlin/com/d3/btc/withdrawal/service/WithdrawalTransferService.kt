@@ -6,6 +6,7 @@
 package com.d3.btc.withdrawal.service
 
 import com.d3.btc.provider.network.BtcNetworkConfigProvider
+import com.d3.btc.withdrawal.statistics.WithdrawalLatency
 import com.d3.btc.withdrawal.statistics.WithdrawalStatistics
 import com.d3.btc.withdrawal.transaction.TransactionCreator
 import com.d3.btc.withdrawal.transaction.WithdrawalConsensus
@@ -36,16 +37,20 @@ class WithdrawalTransferService(
      * */
     fun withdraw(withdrawalConsensus: WithdrawalConsensus) {
         var savedTx: Transaction? = null
-        transactionCreator.createTransaction(withdrawalConsensus).map { tx ->
+        withdrawalStatistics.measureLatency(WithdrawalLatency.TRANSACTION_CREATION) {
+            transactionCreator.createTransaction(withdrawalConsensus)
+        }.map { tx ->
             savedTx = tx
-            registerWithdrawal(withdrawalConsensus.withdrawalDetails)
+            withdrawalConsensus.allWithdrawals().forEach { withdrawalDetails ->
+                registerWithdrawal(withdrawalDetails)
+            }
             registerTx(tx)
         }.failure { ex ->
             val rollbackReason = "Cannot create Bitcoin transaction"
             if (savedTx != null) {
-                btcRollbackService.rollback(withdrawalConsensus.withdrawalDetails, rollbackReason, savedTx!!)
+                btcRollbackService.rollbackConsensus(withdrawalConsensus, rollbackReason, savedTx!!)
             } else {
-                btcRollbackService.rollback(withdrawalConsensus.withdrawalDetails, rollbackReason)
+                btcRollbackService.rollbackConsensus(withdrawalConsensus, rollbackReason)
             }
             withdrawalStatistics.incFailedTransfers()
             logger.error(
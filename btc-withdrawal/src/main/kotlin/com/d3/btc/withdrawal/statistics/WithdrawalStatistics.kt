@@ -5,23 +5,140 @@
 
 package com.d3.btc.withdrawal.statistics
 
+import com.d3.btc.statistics.LatencyHistogram
+import com.d3.btc.withdrawal.pipeline.WithdrawalStage
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.TimeUnit
 import java.util.concurrent.atomic.AtomicInteger
 
+// Signature collections that take longer than this are considered abandoned
+private val SIGNATURE_COLLECTION_TTL_NANOS = TimeUnit.HOURS.toNanos(1)
+// Abandoned signature collections are dropped once there are more collections than this
+private const val MAX_SIGNATURE_COLLECTIONS = 1_000
+
 /**
  * Data class that holds short statistics about withdrawal service
  */
 data class WithdrawalStatistics(
     val totalTransfers: AtomicInteger,
     val failedTransfers: AtomicInteger,
-    val succeededTransfers: AtomicInteger
+    val succeededTransfers: AtomicInteger,
+    val pendingBroadcasts: AtomicInteger
 ) {
+    private val latencies = WithdrawalLatency.values().associate { latency -> latency to LatencyHistogram() }
+
+    private val inFlightWithdrawals = WithdrawalStage.values().associate { stage -> stage to AtomicInteger() }
+
+    // Original transaction hash -> time when signature collection started (in nanoseconds)
+    private val signatureCollectionStarts = ConcurrentHashMap<String, Long>()
+
     fun incTotalTransfers() = totalTransfers.incrementAndGet()
 
     fun incFailedTransfers() = failedTransfers.incrementAndGet()
 
     fun incSucceededTransfers() = succeededTransfers.incrementAndGet()
 
+    fun incPendingBroadcasts() = pendingBroadcasts.incrementAndGet()
+
+    fun decPendingBroadcasts() = pendingBroadcasts.decrementAndGet()
+
+    /**
+     * Registers latency of withdrawal step
+     * @param latency - withdrawal step
+     * @param latencyMillis - latency in milliseconds
+     */
+    fun observeLatency(latency: WithdrawalLatency, latencyMillis: Long) =
+        latencies.getValue(latency).observe(latencyMillis)
+
+    /**
+     * Executes withdrawal step and registers its latency. The latency is registered even if the step fails
+     * @param latency - withdrawal step
+     * @param step - step to execute
+     * @return result of step
+     */
+    fun <T> measureLatency(latency: WithdrawalLatency, step: () -> T): T {
+        val startNanos = System.nanoTime()
+        try {
+            return step()
+        } finally {
+            observeLatency(latency, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos))
+        }
+    }
+
+    /**
+     * Starts measuring [WithdrawalLatency.SIGNATURE_COLLECTION] of transaction.
+     * Does nothing if the collection has been started before.
+     * @param originalTxHash - hash of transaction before signing
+     */
+    fun startSignatureCollection(originalTxHash: String) {
+        val now = System.nanoTime()
+        if (signatureCollectionStarts.size >= MAX_SIGNATURE_COLLECTIONS) {
+            signatureCollectionStarts.values.removeIf { startNanos -> now - startNanos > SIGNATURE_COLLECTION_TTL_NANOS }
+        }
+        signatureCollectionStarts.putIfAbsent(originalTxHash, now)
+    }
+
+    /**
+     * Registers [WithdrawalLatency.SIGNATURE_COLLECTION] of transaction.
+     * Does nothing if the collection hasn't been started by this node.
+     * @param originalTxHash - hash of transaction before signing
+     */
+    fun finishSignatureCollection(originalTxHash: String) {
+        signatureCollectionStarts.remove(originalTxHash)?.let { startNanos ->
+            observeLatency(
+                WithdrawalLatency.SIGNATURE_COLLECTION,
+                TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos)
+            )
+        }
+    }
+
+    /**
+     * Returns latency histograms of withdrawal steps
+     * @return histogram snapshots in order of steps
+     */
+    fun getLatencies() = latencies.mapValues { (_, histogram) -> histogram.snapshot() }
+
+    /**
+     * Sets number of withdrawals in progress by stage
+     * @param withdrawalsByStage - number of withdrawals by stage. Missing stages have no withdrawals
+     */
+    fun setInFlightWithdrawals(withdrawalsByStage: Map<WithdrawalStage, Int>) {
+        inFlightWithdrawals.forEach { (stage, withdrawals) -> withdrawals.set(withdrawalsByStage[stage] ?: 0) }
+    }
+
+    /**
+     * Returns number of withdrawals in progress by stage.
+     * Withdrawals are never marked with [WithdrawalStage.BROADCAST], so [pendingBroadcasts] is used for that stage.
+     * Terminal stages have no withdrawals in progress, so they are omitted.
+     * @return number of withdrawals by stage in order of stages
+     */
+    fun getInFlightWithdrawals(): Map<WithdrawalStage, Int> = inFlightWithdrawals
+        .filterKeys { stage -> !stage.terminal }
+        .mapValues { (stage, withdrawals) ->
+            if (stage == WithdrawalStage.BROADCAST) pendingBroadcasts.get() else withdrawals.get()
+        }
+
     companion object {
-        fun create() = WithdrawalStatistics(AtomicInteger(), AtomicInteger(), AtomicInteger())
+        fun create() = WithdrawalStatistics(AtomicInteger(), AtomicInteger(), AtomicInteger(), AtomicInteger())
     }
 }
+
+/**
+ * Withdrawal steps which latency is measured
+ */
+enum class WithdrawalLatency {
+    // Creation of consensus data in Iroha including the wait for data of another node on CAS failure
+    CONSENSUS_CREATION,
+    // Wait for consensus data of another node on CAS failure
+    CONSENSUS_CAS_WAIT,
+    // Creation of Bitcoin transaction including its storage in Iroha
+    TRANSACTION_CREATION,
+    // Storage of Bitcoin transaction in Iroha
+    TRANSACTION_STORAGE,
+    // Signing of Bitcoin transaction and storage of signatures in Iroha
+    SIGNING,
+    // Time from the start of signing till the moment enough signatures are collected
+    SIGNATURE_COLLECTION,
+    // Time from the first announcement of Bitcoin transaction till its acceptance or failure
+    BROADCAST
+}
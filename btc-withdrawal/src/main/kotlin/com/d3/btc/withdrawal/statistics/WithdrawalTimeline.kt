@@ -0,0 +1,93 @@
+/*
+ * Copyright D3 Ledger, Inc. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package com.d3.btc.withdrawal.statistics
+
+import com.d3.btc.withdrawal.transaction.WithdrawalDetails
+import org.springframework.stereotype.Component
+
+// Maximum number of withdrawals to keep timelines of. The oldest timelines are dropped first
+private const val MAX_TIMELINES = 10_000
+// Maximum number of events per withdrawal. Protects from withdrawals that are retried over and over
+private const val MAX_TIMELINE_EVENTS = 100
+
+/**
+ * Bounded in-memory storage of withdrawal timelines.
+ * Every node keeps its own view of withdrawals, so timelines of different nodes may be compared
+ * to find a slow stage or a slow node.
+ * Timelines are stored by withdrawal hash(see [WithdrawalDetails.irohaFriendlyHashCode]).
+ */
+@Component
+class WithdrawalTimeline {
+
+    private val timelines = object : LinkedHashMap<String, MutableList<WithdrawalTimelineEvent>>() {
+        override fun removeEldestEntry(eldest: MutableMap.MutableEntry<String, MutableList<WithdrawalTimelineEvent>>?) =
+            size > MAX_TIMELINES
+    }
+
+    /**
+     * Records event of withdrawals
+     * @param withdrawals - withdrawals to record event for
+     * @param type - type of event
+     * @param details - details of event
+     */
+    fun record(withdrawals: List<WithdrawalDetails>, type: WithdrawalTimelineEventType, details: String? = null) {
+        val event = WithdrawalTimelineEvent(type, System.currentTimeMillis(), details)
+        synchronized(timelines) {
+            withdrawals.forEach { withdrawalDetails ->
+                val timeline = timelines.getOrPut(withdrawalDetails.irohaFriendlyHashCode()) { ArrayList() }
+                if (timeline.size < MAX_TIMELINE_EVENTS) {
+                    timeline.add(event)
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns timeline of withdrawal
+     * @param withdrawalHash - hash of withdrawal
+     * @return events of withdrawal in order of appearance. Empty list if the withdrawal is unknown
+     */
+    fun getTimeline(withdrawalHash: String): List<WithdrawalTimelineEvent> =
+        synchronized(timelines) { timelines[withdrawalHash]?.toList() ?: emptyList() }
+}
+
+/**
+ * Event of withdrawal timeline
+ * @param type - type of event
+ * @param time - time of event in milliseconds
+ * @param details - details of event
+ */
+data class WithdrawalTimelineEvent(
+    val type: WithdrawalTimelineEventType,
+    val time: Long,
+    val details: String?
+)
+
+/**
+ * Types of withdrawal timeline events
+ */
+enum class WithdrawalTimelineEventType {
+    // Withdrawal has been read from Iroha block
+    TRANSFER_SEEN,
+    // Consensus data of the node has been committed
+    CONSENSUS_WON,
+    // Consensus data of another node has been committed
+    CONSENSUS_LOST,
+    // Bitcoin transaction has been stored in Iroha
+    TX_STORED,
+    // Signatures of a node have appeared in Iroha
+    SIGNATURE_RECEIVED,
+    // Enough signatures have been collected
+    THRESHOLD_REACHED,
+    // Bitcoin transaction has been accepted by peers
+    BROADCASTED,
+    // Bitcoin transaction cannot be broadcasted
+    BROADCAST_FAILED,
+    // Withdrawal has been finalized in Iroha
+    FINALIZED,
+    // UTXO of withdrawal have been unregistered
+    ROLLED_BACK
+}
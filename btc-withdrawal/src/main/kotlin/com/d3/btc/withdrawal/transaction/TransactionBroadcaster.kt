@@ -0,0 +1,229 @@
+/*
+ * Copyright D3 Ledger, Inc. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package com.d3.btc.withdrawal.transaction
+
+import com.d3.btc.withdrawal.config.BTC_WITHDRAWAL_SERVICE_NAME
+import com.d3.btc.withdrawal.config.BtcWithdrawalConfig
+import com.d3.btc.withdrawal.statistics.WithdrawalLatency
+import com.d3.btc.withdrawal.statistics.WithdrawalStatistics
+import com.d3.commons.util.createPrettySingleThreadPool
+import mu.KLogging
+import org.bitcoinj.core.PeerGroup
+import org.bitcoinj.core.Transaction
+import org.bitcoinj.core.TransactionConfidence
+import org.bitcoinj.wallet.Wallet
+import org.springframework.beans.factory.annotation.Qualifier
+import org.springframework.stereotype.Component
+import java.io.Closeable
+import java.util.concurrent.ExecutionException
+import java.util.concurrent.Executors
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicBoolean
+
+/**
+ * Asynchronous broadcaster of Bitcoin transactions.
+ * A broadcast that is not confirmed by peers in time is announced again to a new random set of peers.
+ * Every next attempt waits twice as long as the previous one.
+ */
+@Component
+class TransactionBroadcaster(
+    private val btcWithdrawalConfig: BtcWithdrawalConfig,
+    private val peerGroup: PeerGroup,
+    private val withdrawalStatistics: WithdrawalStatistics,
+    @Qualifier("transferWallet")
+    private val transferWallet: Wallet
+) : Closeable {
+
+    // Executor of broadcast callbacks
+    private val callbackExecutor = createPrettySingleThreadPool(BTC_WITHDRAWAL_SERVICE_NAME, "broadcast-callback")
+    // Executor of broadcast timeouts
+    private val timeoutExecutor = Executors.newSingleThreadScheduledExecutor { runnable ->
+        val thread = Thread(runnable, "$BTC_WITHDRAWAL_SERVICE_NAME:broadcast-timeout")
+        thread.isDaemon = true
+        thread
+    }
+
+    /**
+     * Broadcasts transaction. Doesn't block.
+     * Exactly one of the callbacks is called on completion.
+     * @param tx - transaction to broadcast
+     * @param onBroadcasted - function that is called once peers have accepted the transaction
+     * @param onFailure - function that is called if the transaction cannot be broadcasted.
+     * The second argument is true if the broadcast has timed out. Such a transaction may still be relayed by peers.
+     */
+    fun broadcast(
+        tx: Transaction,
+        onBroadcasted: () -> Unit,
+        onFailure: (ex: Exception, timedOut: Boolean) -> Unit
+    ) {
+        withdrawalStatistics.incPendingBroadcasts()
+        val broadcast = PendingBroadcast(tx, onBroadcasted, onFailure)
+        broadcast.announce(1)
+    }
+
+    /**
+     * Waits until transaction that has not been broadcasted in time is either relayed by peers or dead. Doesn't block.
+     * The transaction is checked every time one more broadcast attempt would be over.
+     * A transaction that is neither relayed nor dead may still be mined, so it's announced again and checked later.
+     * @param tx - transaction to check
+     * @param onResolved - function that is called once the outcome is known.
+     * The argument is true if the transaction has been seen by peers or mined
+     * and false if the transaction can never be mined
+     */
+    fun awaitRelayedOrDead(tx: Transaction, onResolved: (relayed: Boolean) -> Unit) {
+        scheduleOutcomeCheck(tx, onResolved, 1)
+    }
+
+    // Checks the outcome of transaction once the time of one more broadcast attempt is over
+    private fun scheduleOutcomeCheck(tx: Transaction, onResolved: (relayed: Boolean) -> Unit, check: Int) {
+        val delaySeconds =
+            btcWithdrawalConfig.broadcastTimeoutSeconds.toLong() shl btcWithdrawalConfig.broadcastMaxAttempts
+        timeoutExecutor.schedule({
+            callbackExecutor.execute {
+                val outcome = try {
+                    getOutcome(tx)
+                } catch (e: Exception) {
+                    logger.error("Cannot check the outcome of tx ${tx.hashAsString}", e)
+                    BroadcastOutcome.UNKNOWN
+                }
+                if (outcome == BroadcastOutcome.UNKNOWN) {
+                    logger.error(
+                        "Tx ${tx.hashAsString} is neither relayed nor dead after $check checks. " +
+                                "Withdrawals stay pending. Announce it again and check later"
+                    )
+                    try {
+                        peerGroup.broadcastTransaction(tx)
+                    } catch (e: Exception) {
+                        logger.error("Cannot announce tx ${tx.hashAsString} again", e)
+                    }
+                    scheduleOutcomeCheck(tx, onResolved, check + 1)
+                } else {
+                    try {
+                        onResolved(outcome == BroadcastOutcome.RELAYED)
+                    } catch (e: Exception) {
+                        logger.error("Cannot handle the outcome of tx ${tx.hashAsString}", e)
+                    }
+                }
+            }
+        }, delaySeconds, TimeUnit.SECONDS)
+    }
+
+    /**
+     * Returns the outcome of transaction.
+     * Only a transaction that is known to be dead or double spent by a mined transaction is considered dead,
+     * because any other transaction may still be mined.
+     */
+    private fun getOutcome(tx: Transaction): BroadcastOutcome {
+        val confidence = tx.confidence
+        return when {
+            confidence.confidenceType == TransactionConfidence.ConfidenceType.DEAD -> BroadcastOutcome.DEAD
+            isDoubleSpent(tx) -> BroadcastOutcome.DEAD
+            confidence.confidenceType == TransactionConfidence.ConfidenceType.BUILDING -> BroadcastOutcome.RELAYED
+            confidence.confidenceType == TransactionConfidence.ConfidenceType.PENDING &&
+                    confidence.numBroadcastPeers() > 0 -> BroadcastOutcome.RELAYED
+            else -> BroadcastOutcome.UNKNOWN
+        }
+    }
+
+    // Checks if any input of transaction has been spent by another transaction that is mined
+    private fun isDoubleSpent(tx: Transaction) = tx.inputs.any { input ->
+        val spendingTx = transferWallet.getTransaction(input.outpoint.hash)
+            ?.outputs?.getOrNull(input.outpoint.index.toInt())
+            ?.spentBy?.parentTransaction
+        spendingTx != null && spendingTx != tx &&
+                spendingTx.confidence.confidenceType == TransactionConfidence.ConfidenceType.BUILDING
+    }
+
+    /**
+     * Broadcast that is waiting for confirmation from peers
+     */
+    private inner class PendingBroadcast(
+        private val tx: Transaction,
+        private val onBroadcasted: () -> Unit,
+        private val onFailure: (ex: Exception, timedOut: Boolean) -> Unit
+    ) {
+        private val completed = AtomicBoolean()
+        private val startNanos = System.nanoTime()
+
+        /**
+         * Announces transaction to peers
+         * @param attempt - number of attempt starting from 1
+         */
+        fun announce(attempt: Int) {
+            val future = peerGroup.broadcastTransaction(tx).future()
+            future.addListener(Runnable {
+                try {
+                    future.get()
+                    complete { onBroadcasted() }
+                } catch (e: ExecutionException) {
+                    complete { onFailure(e.cause as? Exception ?: e, false) }
+                } catch (e: Exception) {
+                    complete { onFailure(e, false) }
+                }
+            }, callbackExecutor)
+            val timeoutSeconds = btcWithdrawalConfig.broadcastTimeoutSeconds.toLong() shl (attempt - 1)
+            timeoutExecutor.schedule({ onTimeout(attempt) }, timeoutSeconds, TimeUnit.SECONDS)
+        }
+
+        // Announces transaction again or gives up
+        private fun onTimeout(attempt: Int) {
+            if (completed.get()) {
+                return
+            } else if (attempt < btcWithdrawalConfig.broadcastMaxAttempts) {
+                logger.warn("Tx ${tx.hashAsString} has not been broadcasted in time. Announce it again. Attempt ${attempt + 1}")
+                announce(attempt + 1)
+            } else {
+                callbackExecutor.execute {
+                    complete {
+                        onFailure(
+                            IllegalStateException("Tx ${tx.hashAsString} has not been broadcasted in $attempt attempts"),
+                            true
+                        )
+                    }
+                }
+            }
+        }
+
+        // Calls callback if the broadcast hasn't been completed yet
+        private fun complete(callback: () -> Unit) {
+            if (!completed.compareAndSet(false, true)) {
+                return
+            }
+            withdrawalStatistics.decPendingBroadcasts()
+            withdrawalStatistics.observeLatency(
+                WithdrawalLatency.BROADCAST,
+                TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos)
+            )
+            try {
+                callback()
+            } catch (e: Exception) {
+                logger.error("Cannot complete broadcast of tx ${tx.hashAsString}", e)
+            }
+        }
+    }
+
+    override fun close() {
+        timeoutExecutor.shutdownNow()
+        callbackExecutor.shutdown()
+    }
+
+    /**
+     * Logger
+     */
+    companion object : KLogging()
+}
+
+/**
+ * Outcome of transaction that has not been broadcasted in time
+ */
+private enum class BroadcastOutcome {
+    // Transaction has been seen by peers or mined
+    RELAYED,
+    // Transaction can never be mined
+    DEAD,
+    // Transaction may still be mined
+    UNKNOWN
+}
@@ -5,11 +5,11 @@
 
 package com.d3.btc.withdrawal.transaction
 
+import com.d3.btc.fee.getTxFee
 import com.d3.btc.model.BtcAddress
 import com.d3.btc.provider.BtcChangeAddressProvider
 import com.d3.btc.provider.network.BtcNetworkConfigProvider
 import com.d3.btc.withdrawal.init.WITHDRAWAL_OPERATION
-import com.d3.btc.withdrawal.provider.TX_FEE_SAT
 import com.d3.btc.withdrawal.provider.UTXOProvider
 import com.d3.commons.model.D3ErrorException
 import com.d3.commons.util.unHex
@@ -23,6 +23,9 @@ import org.bitcoinj.core.TransactionInput
 import org.springframework.stereotype.Component
 import kotlin.random.Random
 
+// Minimum amount of SAT that may be withdrawn
+const val MIN_WITHDRAWAL_SAT = 6000L
+
 /*
     Class that is used to create BTC transactions
  */
@@ -43,6 +46,14 @@ class TransactionCreator(
         withdrawalConsensus: WithdrawalConsensus
     ): Result<Transaction, Exception> {
         val withdrawalDetails = withdrawalConsensus.withdrawalDetails
+        if (withdrawalConsensus.feeRate <= 0) {
+            return Result.error(
+                D3ErrorException.fatal(
+                    failedOperation = WITHDRAWAL_OPERATION,
+                    description = "Fee rate is not set for withdrawal $withdrawalDetails"
+                )
+            )
+        }
         val transaction = Transaction(btcNetworkConfigProvider.getConfig())
         val unspents = withdrawalConsensus.utxo.map {
             TransactionInput(
@@ -61,16 +72,28 @@ class TransactionCreator(
                 unspents.forEach { unspent -> transaction.addInput(unspent) }
                 val changeAddress = chooseChangeAddress(withdrawalDetails, changeAddresses).address
                 logger.info("Change address chosen for withdrawal $withdrawalDetails is $changeAddress")
-                bitcoinUTXOProvider.addOutputs(
-                    transaction,
-                    totalAmount,
-                    withdrawalDetails.toAddress,
-                    withdrawalDetails.amountSat,
-                    Address.fromBase58(
-                        btcNetworkConfigProvider.getConfig(),
-                        changeAddress
+                if (withdrawalDetails.isConsolidation()) {
+                    bitcoinUTXOProvider.addConsolidationOutput(
+                        transaction,
+                        totalAmount,
+                        Address.fromBase58(
+                            btcNetworkConfigProvider.getConfig(),
+                            changeAddress
+                        ),
+                        withdrawalConsensus.feeRate
                     )
-                )
+                } else {
+                    bitcoinUTXOProvider.addOutputs(
+                        transaction,
+                        totalAmount,
+                        withdrawalConsensus.allWithdrawals(),
+                        Address.fromBase58(
+                            btcNetworkConfigProvider.getConfig(),
+                            changeAddress
+                        ),
+                        withdrawalConsensus.feeRate
+                    )
+                }
                 unspents
             }.map {
                 transactionsStorage.save(withdrawalConsensus, transaction).failure { ex ->
@@ -113,6 +136,15 @@ class TransactionCreator(
 /**
  * Checks if satValue is too low to spend
  * @param satValue - amount of SAT to check if it's a dust
- * @return true, if [satValue] is a dust
+ * @param feeRate - fee rate in SAT per byte
+ * @return true, if spending [satValue] costs more than [satValue] itself
+ */
+fun isDust(satValue: Long, feeRate: Int) = satValue < getTxFee(1, 0, feeRate)
+
+/**
+ * Checks if withdrawal amount is too low.
+ * The check doesn't depend on fee rate, so all the nodes get the same result.
+ * @param satValue - amount of SAT to withdraw
+ * @return true, if [satValue] is too low to withdraw
  */
-fun isDust(satValue: Long) = satValue < TX_FEE_SAT
+fun isTooSmallWithdrawal(satValue: Long) = satValue < MIN_WITHDRAWAL_SAT
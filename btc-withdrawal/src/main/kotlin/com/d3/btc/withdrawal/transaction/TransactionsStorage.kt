@@ -8,6 +8,10 @@ package com.d3.btc.withdrawal.transaction
 import com.d3.btc.helper.transaction.shortTxHash
 import com.d3.btc.provider.network.BtcNetworkConfigProvider
 import com.d3.btc.withdrawal.init.WITHDRAWAL_OPERATION
+import com.d3.btc.withdrawal.statistics.WithdrawalLatency
+import com.d3.btc.withdrawal.statistics.WithdrawalStatistics
+import com.d3.btc.withdrawal.statistics.WithdrawalTimeline
+import com.d3.btc.withdrawal.statistics.WithdrawalTimelineEventType
 import com.d3.commons.model.D3ErrorException
 import com.d3.commons.sidechain.iroha.consumer.IrohaConsumer
 import com.d3.commons.sidechain.iroha.util.IrohaQueryHelper
@@ -36,7 +40,9 @@ class TransactionsStorage(
     @Qualifier("reliableWithdrawalConsumer")
     private val btcWithdrawalConsumer: IrohaConsumer,
     @Qualifier("txStorageAccount")
-    private val txStorageAccount: String
+    private val txStorageAccount: String,
+    private val withdrawalStatistics: WithdrawalStatistics,
+    private val withdrawalTimeline: WithdrawalTimeline
 ) {
     /**
      * Saves transactions
@@ -46,14 +52,14 @@ class TransactionsStorage(
     fun save(
         withdrawalConsensus: WithdrawalConsensus,
         transaction: Transaction
-    ): Result<Unit, Exception> {
+    ): Result<Unit, Exception> = withdrawalStatistics.measureLatency(WithdrawalLatency.TRANSACTION_STORAGE) {
         val withdrawalDetails = withdrawalConsensus.withdrawalDetails
         logger.info(
             "Save transaction in Iroha.\nDetails $withdrawalDetails\n" +
                     "Transaction $transaction\n" +
                     "Key ${transaction.shortTxHash()}"
         )
-        return btcWithdrawalConsumer.getConsumerQuorum().flatMap { quorum ->
+        btcWithdrawalConsumer.getConsumerQuorum().flatMap { quorum ->
             val transactionBuilder = jp.co.soramitsu.iroha.java.Transaction
                 .builder(btcWithdrawalConsumer.creator)
                 .setAccountDetail(
@@ -66,7 +72,11 @@ class TransactionsStorage(
                 .setQuorum(quorum)
             btcWithdrawalConsumer.send(transactionBuilder.build())
         }.map {
-            Unit
+            withdrawalTimeline.record(
+                withdrawalConsensus.allWithdrawals(),
+                WithdrawalTimelineEventType.TX_STORED,
+                "Tx ${transaction.hashAsString}"
+            )
         }
     }
 
@@ -97,6 +107,13 @@ class TransactionsStorage(
     companion object : KLogging()
 }
 
+/**
+ * Returns withdrawal consensus data of a saved transaction
+ * @param txDetail - unescaped value of the account detail that holds transaction
+ * @return withdrawal consensus data
+ */
+fun getWithdrawalConsensus(txDetail: String) = WithdrawalTransaction.fromJson(txDetail).withdrawalConsensus
+
 private data class WithdrawalTransaction(
     val withdrawalConsensus: WithdrawalConsensus,
     val txHex: String
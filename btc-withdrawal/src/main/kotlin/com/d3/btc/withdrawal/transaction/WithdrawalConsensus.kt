@@ -16,14 +16,29 @@ private val gson = GsonInstance.get()
 
 /**
  * Data class that holds all the information to decide how withdrawal transaction must be created
+ * @param utxo - UTXO to spend
+ * @param withdrawalDetails - details of withdrawal
+ * @param id - id of consensus
+ * @param feeRate - fee rate in SAT per byte. Every node uses this rate to compute the fee of the transaction
+ * @param batchedWithdrawals - withdrawals that are executed in the same transaction with [withdrawalDetails].
+ * [withdrawalDetails] is a 'leader' of the batch: its hash is used as a consensus key and to register UTXO.
+ * May be null in consensus data created before batching was introduced.
  */
 data class WithdrawalConsensus(
     val utxo: List<SerializableUTXO>,
     val withdrawalDetails: WithdrawalDetails,
-    val id: String
+    val id: String,
+    val feeRate: Int,
+    val batchedWithdrawals: List<WithdrawalDetails>? = emptyList()
 ) {
     fun toJson() = gson.toJson(this)!!
 
+    /**
+     * Returns all the withdrawals of the consensus starting with the leader
+     * @return list of withdrawals
+     */
+    fun allWithdrawals() = listOf(withdrawalDetails) + (batchedWithdrawals ?: emptyList())
+
     /**
      * Returns connected output by given input
      * @param input - input that is bound with some output
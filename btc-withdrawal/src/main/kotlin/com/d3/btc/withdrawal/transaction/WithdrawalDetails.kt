@@ -9,6 +9,9 @@ import io.ktor.util.sha1
 import jp.co.soramitsu.iroha.java.Utils
 import java.lang.Math.min
 
+// Source account of UTXO consolidation. It's not a valid Iroha account id, so no client may have it
+const val CONSOLIDATION_SOURCE_ACCOUNT = "utxo_consolidation"
+
 /**
  * Withdrawal details
  * @param sourceAccountId - account that commits withdrawal
@@ -34,4 +37,21 @@ data class WithdrawalDetails(
         )
         return hashCode.toLowerCase().substring(0..min(63, hashCode.length - 1))
     }
+
+    /**
+     * Checks if it's a UTXO consolidation rather than a client withdrawal
+     * @return true if it's a UTXO consolidation
+     */
+    fun isConsolidation() = sourceAccountId == CONSOLIDATION_SOURCE_ACCOUNT
+
+    companion object {
+        /**
+         * Creates details of UTXO consolidation.
+         * Consolidation has no amount and destination: all the UTXO are spent to a change address.
+         * @param consolidationTime - time of consolidation. Must be the same on all the nodes
+         * @return details of UTXO consolidation
+         */
+        fun consolidation(consolidationTime: Long) =
+            WithdrawalDetails(CONSOLIDATION_SOURCE_ACCOUNT, "", 0, consolidationTime, 0)
+    }
 }
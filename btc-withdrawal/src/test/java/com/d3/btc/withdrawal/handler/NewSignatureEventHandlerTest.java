@@ -1,12 +1,15 @@
 package com.d3.btc.withdrawal.handler;
 
 import com.d3.btc.handler.SetAccountDetailEvent;
+import com.d3.btc.metrics.MetricsRegistry;
 import com.d3.btc.withdrawal.config.BtcWithdrawalConfig;
 import com.d3.btc.withdrawal.provider.BroadcastsProvider;
 import com.d3.btc.withdrawal.provider.UTXOProvider;
 import com.d3.btc.withdrawal.service.BtcRollbackService;
 import com.d3.btc.withdrawal.statistics.WithdrawalStatistics;
+import com.d3.btc.withdrawal.statistics.WithdrawalTimeline;
 import com.d3.btc.withdrawal.transaction.SignCollector;
+import com.d3.btc.withdrawal.transaction.TransactionBroadcaster;
 import com.d3.btc.withdrawal.transaction.TransactionsStorage;
 import com.d3.btc.withdrawal.transaction.WithdrawalConsensus;
 import com.d3.btc.withdrawal.transaction.WithdrawalDetails;
@@ -14,13 +17,16 @@ import com.d3.commons.config.IrohaCredentialRawConfig;
 import com.github.kittinunf.result.Result;
 import iroha.protocol.Commands;
 import kotlin.Pair;
-import org.bitcoinj.core.PeerGroup;
+import kotlin.Unit;
+import kotlin.jvm.functions.Function1;
+import kotlin.jvm.functions.Function2;
 import org.bitcoinj.core.Transaction;
 import org.bitcoinj.wallet.Wallet;
 import org.junit.Before;
 import org.junit.Test;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import static com.d3.btc.config.BitcoinConfigKt.BTC_SIGN_COLLECT_DOMAIN;
@@ -31,7 +37,7 @@ public class NewSignatureEventHandlerTest {
     private WithdrawalStatistics withdrawalStatistics;
     private SignCollector signCollector;
     private TransactionsStorage transactionsStorage;
-    private PeerGroup peerGroup;
+    private TransactionBroadcaster transactionBroadcaster;
     private BroadcastsProvider broadcastsProvider;
     private BtcRollbackService btcRollbackService;
     private NewSignatureEventHandler newSignatureEventHandler;
@@ -46,10 +52,11 @@ public class NewSignatureEventHandlerTest {
         doReturn(signatureCollectorAccountId).when(irohaCredential).getAccountId();
         doReturn(irohaCredential).when(btcWithdrawalConfig).getSignatureCollectorCredential();
         transferWallet = mock(Wallet.class);
-        withdrawalStatistics = new WithdrawalStatistics(new AtomicInteger(), new AtomicInteger(), new AtomicInteger());
+        withdrawalStatistics = new WithdrawalStatistics(
+                new AtomicInteger(), new AtomicInteger(), new AtomicInteger(), new AtomicInteger());
         signCollector = mock(SignCollector.class);
         transactionsStorage = mock(TransactionsStorage.class);
-        peerGroup = mock(PeerGroup.class);
+        transactionBroadcaster = mock(TransactionBroadcaster.class);
         broadcastsProvider = mock(BroadcastsProvider.class);
         btcRollbackService = mock(BtcRollbackService.class);
 
@@ -60,8 +67,10 @@ public class NewSignatureEventHandlerTest {
                 signCollector,
                 transactionsStorage,
                 btcRollbackService,
-                peerGroup,
-                broadcastsProvider));
+                transactionBroadcaster,
+                broadcastsProvider,
+                new WithdrawalTimeline(),
+                new MetricsRegistry()));
     }
 
     /**
@@ -72,7 +81,7 @@ public class NewSignatureEventHandlerTest {
     @Test
     public void testHandleHasBeenBroadcasted() {
         WithdrawalDetails withdrawalDetails = new WithdrawalDetails("src account id", "to address", 0, System.currentTimeMillis(), 0);
-        WithdrawalConsensus withdrawalConsensus = new WithdrawalConsensus(new ArrayList<>(), withdrawalDetails,"random id");
+        WithdrawalConsensus withdrawalConsensus = new WithdrawalConsensus(new ArrayList<>(), withdrawalDetails, "random id", 10, new ArrayList<>());
         Transaction transaction = mock(Transaction.class);
         Pair<WithdrawalConsensus, Transaction> withdrawal = new Pair<>(withdrawalConsensus, transaction);
         when(transactionsStorage.get(anyString())).thenReturn(Result.Companion.of(() -> withdrawal));
@@ -92,7 +101,7 @@ public class NewSignatureEventHandlerTest {
     @Test
     public void testHandleHasNotBeenBroadcasted() {
         WithdrawalDetails withdrawalDetails = new WithdrawalDetails("src account id", "to address", 0, System.currentTimeMillis(), 0);
-        WithdrawalConsensus withdrawalConsensus = new WithdrawalConsensus(new ArrayList<>(), withdrawalDetails,"random id");
+        WithdrawalConsensus withdrawalConsensus = new WithdrawalConsensus(new ArrayList<>(), withdrawalDetails, "random id", 10, new ArrayList<>());
         Transaction transaction = mock(Transaction.class);
         Pair<WithdrawalConsensus, Transaction> withdrawal = new Pair<>(withdrawalConsensus, transaction);
         when(transactionsStorage.get(anyString())).thenReturn(Result.Companion.of(() -> withdrawal));
@@ -112,7 +121,7 @@ public class NewSignatureEventHandlerTest {
     @Test
     public void testHandleBroadcastFailure() {
         WithdrawalDetails withdrawalDetails = new WithdrawalDetails("src account id", "to address", 0, System.currentTimeMillis(), 0);
-        WithdrawalConsensus withdrawalConsensus = new WithdrawalConsensus(new ArrayList<>(), withdrawalDetails,"random id");
+        WithdrawalConsensus withdrawalConsensus = new WithdrawalConsensus(new ArrayList<>(), withdrawalDetails, "random id", 10, new ArrayList<>());
         Transaction transaction = mock(Transaction.class);
         Pair<WithdrawalConsensus, Transaction> withdrawal = new Pair<>(withdrawalConsensus, transaction);
         when(transactionsStorage.get(anyString())).thenReturn(Result.Companion.of(() -> withdrawal));
@@ -124,7 +133,7 @@ public class NewSignatureEventHandlerTest {
         SetAccountDetailEvent event = new SetAccountDetailEvent(newSignatureDetail, signatureCollectorAccountId);
         newSignatureEventHandler.handle(event);
         verify(newSignatureEventHandler, never()).broadcastIfEnoughSignatures(any(), any());
-        verify(btcRollbackService).rollback(any(), any(), any());
+        verify(btcRollbackService).rollbackConsensus(any(), any(), any());
     }
 
     /**
@@ -135,7 +144,7 @@ public class NewSignatureEventHandlerTest {
     @Test
     public void testHandleGetSignaturesFail() {
         WithdrawalDetails withdrawalDetails = new WithdrawalDetails("src account id", "to address", 0, System.currentTimeMillis(), 0);
-        WithdrawalConsensus withdrawalConsensus = new WithdrawalConsensus(new ArrayList<>(), withdrawalDetails,"random id");
+        WithdrawalConsensus withdrawalConsensus = new WithdrawalConsensus(new ArrayList<>(), withdrawalDetails, "random id", 10, new ArrayList<>());
         Transaction transaction = mock(Transaction.class);
         when(transaction.getHashAsString()).thenReturn("abc");
         Pair<WithdrawalConsensus, Transaction> withdrawal = new Pair<>(withdrawalConsensus, transaction);
@@ -148,6 +157,58 @@ public class NewSignatureEventHandlerTest {
         SetAccountDetailEvent event = new SetAccountDetailEvent(newSignatureDetail, signatureCollectorAccountId);
         newSignatureEventHandler.handle(event);
         verify(newSignatureEventHandler).broadcastIfEnoughSignatures(any(), any());
-        verify(btcRollbackService).rollback(any(), any(), any());
+        verify(btcRollbackService).rollbackConsensus(any(), any(), any());
+    }
+
+    /**
+     * @given instance of NewSignatureEventHandler with TransactionBroadcaster that times out and then sees transaction relayed
+     * @when broadcastIfEnoughSignatures() is called
+     * @then withdrawal is marked as 'broadcasted' and not rolled back
+     */
+    @Test
+    public void testBroadcastTimeoutRelayed() {
+        WithdrawalConsensus withdrawalConsensus = mockBroadcastTimeout(true);
+        when(btcWithdrawalConfig.getBtcTransfersWalletPath()).thenReturn("transfers.wallet");
+        when(broadcastsProvider.markAsBroadcasted(anyListOf(WithdrawalDetails.class)))
+                .thenReturn(Result.Companion.of(() -> Unit.INSTANCE));
+        newSignatureEventHandler.broadcastIfEnoughSignatures(createSignedTx(), withdrawalConsensus);
+        verify(broadcastsProvider).markAsBroadcasted(withdrawalConsensus.allWithdrawals());
+        verify(btcRollbackService, never()).rollbackConsensus(any(), any(), any());
+    }
+
+    /**
+     * @given instance of NewSignatureEventHandler with TransactionBroadcaster that times out and then sees transaction dead
+     * @when broadcastIfEnoughSignatures() is called
+     * @then withdrawal is rolled back
+     */
+    @Test
+    public void testBroadcastTimeoutDead() {
+        WithdrawalConsensus withdrawalConsensus = mockBroadcastTimeout(false);
+        newSignatureEventHandler.broadcastIfEnoughSignatures(createSignedTx(), withdrawalConsensus);
+        verify(broadcastsProvider, never()).markAsBroadcasted(anyListOf(WithdrawalDetails.class));
+        verify(btcRollbackService).rollbackConsensus(any(), any(), any());
+    }
+
+    private WithdrawalConsensus mockBroadcastTimeout(boolean relayed) {
+        WithdrawalDetails withdrawalDetails = new WithdrawalDetails("src account id", "to address", 0, System.currentTimeMillis(), 0);
+        WithdrawalConsensus withdrawalConsensus = new WithdrawalConsensus(new ArrayList<>(), withdrawalDetails, "random id", 10, new ArrayList<>());
+        when(signCollector.getSignatures(anyString())).thenReturn(Result.Companion.of(Collections::emptyMap));
+        when(signCollector.isEnoughSignaturesCollected(any(), any(), any())).thenReturn(true);
+        when(signCollector.fillTxWithSignatures(any(), any(), any())).thenReturn(Result.Companion.of(() -> Unit.INSTANCE));
+        doAnswer(invocation -> {
+            Function2<Exception, Boolean, Unit> onFailure = invocation.getArgumentAt(2, Function2.class);
+            return onFailure.invoke(new IllegalStateException("Timed out"), true);
+        }).when(transactionBroadcaster).broadcast(any(), any(), any());
+        doAnswer(invocation -> {
+            Function1<Boolean, Unit> onResolved = invocation.getArgumentAt(1, Function1.class);
+            return onResolved.invoke(relayed);
+        }).when(transactionBroadcaster).awaitRelayedOrDead(any(), any());
+        return withdrawalConsensus;
+    }
+
+    private static Transaction createSignedTx() {
+        Transaction transaction = mock(Transaction.class);
+        when(transaction.getHashAsString()).thenReturn("abc");
+        return transaction;
     }
 }
@@ -4,6 +4,7 @@ import com.d3.btc.handler.SetAccountDetailEvent;
 import com.d3.btc.withdrawal.config.BtcWithdrawalConfig;
 import com.d3.btc.withdrawal.provider.BroadcastsProvider;
 import com.d3.btc.withdrawal.service.BtcRollbackService;
+import com.d3.btc.withdrawal.statistics.WithdrawalStatistics;
 import com.d3.btc.withdrawal.transaction.SignCollector;
 import com.d3.btc.withdrawal.transaction.TransactionsStorage;
 import com.d3.btc.withdrawal.transaction.WithdrawalConsensus;
@@ -49,7 +50,8 @@ public class NewTransactionCreatedHandlerTest {
                 transactionsStorage,
                 btcWithdrawalConfig,
                 btcRollbackService,
-                broadcastsProvider));
+                broadcastsProvider,
+                WithdrawalStatistics.Companion.create()));
     }
 
     /**
@@ -66,7 +68,7 @@ public class NewTransactionCreatedHandlerTest {
                 System.currentTimeMillis(),
                 0);
 
-        WithdrawalConsensus withdrawalConsensus = new WithdrawalConsensus(new ArrayList<>(), withdrawalDetails,"random id");
+        WithdrawalConsensus withdrawalConsensus = new WithdrawalConsensus(new ArrayList<>(), withdrawalDetails, "random id", 10, new ArrayList<>());
         when(transactionsStorage.get(anyString())).thenReturn(Result.Companion.of(() -> {
             Transaction transaction = mock(Transaction.class);
             return new Pair<>(withdrawalConsensus, transaction);
@@ -91,9 +93,10 @@ public class NewTransactionCreatedHandlerTest {
                 1,
                 System.currentTimeMillis(),
                 0);
-        WithdrawalConsensus withdrawalConsensus = new WithdrawalConsensus(new ArrayList<>(), withdrawalDetails,"random id");
+        WithdrawalConsensus withdrawalConsensus = new WithdrawalConsensus(new ArrayList<>(), withdrawalDetails, "random id", 10, new ArrayList<>());
         when(transactionsStorage.get(anyString())).thenReturn(Result.Companion.of(() -> {
             Transaction transaction = mock(Transaction.class);
+            doReturn("abc").when(transaction).getHashAsString();
             return new Pair<>(withdrawalConsensus, transaction);
         }));
         when(broadcastsProvider.hasBeenBroadcasted(any(WithdrawalDetails.class))).thenReturn(Result.Companion.of(() -> false));
@@ -117,7 +120,7 @@ public class NewTransactionCreatedHandlerTest {
                 1,
                 System.currentTimeMillis(),
                 0);
-        WithdrawalConsensus withdrawalConsensus = new WithdrawalConsensus(new ArrayList<>(), withdrawalDetails,"random id");
+        WithdrawalConsensus withdrawalConsensus = new WithdrawalConsensus(new ArrayList<>(), withdrawalDetails, "random id", 10, new ArrayList<>());
         when(transactionsStorage.get(anyString())).thenReturn(Result.Companion.of(() -> {
             Transaction transaction = mock(Transaction.class);
             return new Pair<>(withdrawalConsensus, transaction);
@@ -129,6 +132,6 @@ public class NewTransactionCreatedHandlerTest {
         SetAccountDetailEvent event = new SetAccountDetailEvent(createdTxCommand, withdrawalAccountId);
         newTransactionCreatedHandler.handle(event);
         verify(signCollector, never()).signAndSave(eq(withdrawalConsensus), any(), any());
-        verify(btcRollbackService).rollback(any(WithdrawalDetails.class), any(), any());
+        verify(btcRollbackService).rollbackConsensus(any(WithdrawalConsensus.class), any(), any());
     }
 }
\ No newline at end of file
@@ -12,10 +12,14 @@ import iroha.protocol.Commands;
 import kotlin.Unit;
 import org.junit.Before;
 import org.junit.Test;
+import org.mockito.ArgumentCaptor;
 
 import java.math.BigDecimal;
+import java.util.Arrays;
+import java.util.List;
 import java.util.concurrent.atomic.AtomicInteger;
 
+import static org.junit.Assert.assertEquals;
 import static org.mockito.Matchers.any;
 import static org.mockito.Mockito.*;
 
@@ -34,7 +38,8 @@ public class NewTransferHandlerTest {
 
     @Before
     public void setUp() {
-        withdrawalStatistics = new WithdrawalStatistics(new AtomicInteger(), new AtomicInteger(), new AtomicInteger());
+        withdrawalStatistics = new WithdrawalStatistics(
+                new AtomicInteger(), new AtomicInteger(), new AtomicInteger(), new AtomicInteger());
         withdrawalConsensusProvider = mock(WithdrawalConsensusProvider.class);
         btcRollbackService = mock(BtcRollbackService.class);
         broadcastsProvider = mock(BroadcastsProvider.class);
@@ -219,4 +224,78 @@ public class NewTransferHandlerTest {
         verify(handler, never()).checkAndStartConsensus(any());
         verify(btcRollbackService, never()).rollback(any(WithdrawalDetails.class), anyString(), any());
     }
-}
\ No newline at end of file
+
+    /**
+     * @given instance of NewTransferHandler with batch size 2
+     * @when handleWithdrawals() is called with 3 valid withdrawals and 1 withdrawal with invalid address
+     * @then invalid withdrawal is rolled back, valid withdrawals are split into 2 groups that are planned together
+     */
+    @Test
+    public void testHandleWithdrawalsBatch() {
+        IrohaCredentialRawConfig irohaCredentialRawConfig = mock(IrohaCredentialRawConfig.class);
+        when(irohaCredentialRawConfig.getAccountId()).thenReturn(BTC_SERVICE_ACCOUNT);
+        when(btcWithdrawalConfig.getWithdrawalCredential()).thenReturn(irohaCredentialRawConfig);
+        when(btcWithdrawalConfig.getWithdrawalBatchSize()).thenReturn(2);
+        when(withdrawalConsensusProvider.createPlannedConsensusData(any())).thenReturn(Arrays.asList(
+                Result.Companion.of(() -> Unit.INSTANCE),
+                Result.Companion.of(() -> Unit.INSTANCE)));
+        when(broadcastsProvider.hasBeenBroadcasted(any(WithdrawalDetails.class))).thenReturn(Result.Companion.of(() -> false));
+        List<WithdrawalDetails> withdrawals = Arrays.asList(
+                createWithdrawal(VALID_BTC_ADDRESS),
+                createWithdrawal("invalid address"),
+                createWithdrawal(VALID_BTC_ADDRESS),
+                createWithdrawal(VALID_BTC_ADDRESS));
+        handler.handleWithdrawals(withdrawals);
+        verify(btcRollbackService).rollback(any(WithdrawalDetails.class), anyString(), any());
+        ArgumentCaptor<List> groupsCaptor = ArgumentCaptor.forClass(List.class);
+        verify(handler).startPlannedConsensusProcess(groupsCaptor.capture());
+        List<List<WithdrawalDetails>> groups = groupsCaptor.getValue();
+        assertEquals(2, groups.size());
+        assertEquals(2, groups.get(0).size());
+        assertEquals(1, groups.get(1).size());
+        verify(handler, never()).checkAndStartConsensus(any());
+        assertEquals(3, withdrawalStatistics.getTotalTransfers().get());
+    }
+
+    /**
+     * @given instance of NewTransferHandler with batching turned off
+     * @when handleWithdrawals() is called with 3 valid withdrawals
+     * @then every withdrawal gets its own group, groups are planned together,
+     * withdrawal that fails to get consensus is rolled back
+     */
+    @Test
+    public void testHandleWithdrawalsPlanned() {
+        IrohaCredentialRawConfig irohaCredentialRawConfig = mock(IrohaCredentialRawConfig.class);
+        when(irohaCredentialRawConfig.getAccountId()).thenReturn(BTC_SERVICE_ACCOUNT);
+        when(btcWithdrawalConfig.getWithdrawalCredential()).thenReturn(irohaCredentialRawConfig);
+        when(btcWithdrawalConfig.getWithdrawalBatchSize()).thenReturn(1);
+        when(withdrawalConsensusProvider.createPlannedConsensusData(any())).thenReturn(Arrays.asList(
+                Result.Companion.of(() -> Unit.INSTANCE),
+                Result.Companion.of(() -> {
+                    throw new RuntimeException("Not enough UTXO");
+                }),
+                Result.Companion.of(() -> Unit.INSTANCE)));
+        when(broadcastsProvider.hasBeenBroadcasted(any(WithdrawalDetails.class))).thenReturn(Result.Companion.of(() -> false));
+        List<WithdrawalDetails> withdrawals = Arrays.asList(
+                createWithdrawal(VALID_BTC_ADDRESS),
+                createWithdrawal(VALID_BTC_ADDRESS),
+                createWithdrawal(VALID_BTC_ADDRESS));
+        handler.handleWithdrawals(withdrawals);
+        ArgumentCaptor<List> groupsCaptor = ArgumentCaptor.forClass(List.class);
+        verify(handler).startPlannedConsensusProcess(groupsCaptor.capture());
+        assertEquals(3, groupsCaptor.getValue().size());
+        verify(btcRollbackService).rollback(any(WithdrawalDetails.class), anyString(), any());
+        verify(handler, never()).checkAndStartConsensus(any());
+    }
+
+    // Creates withdrawal the same way Iroha block handler does
+    private WithdrawalDetails createWithdrawal(String destinationAddress) {
+        Commands.TransferAsset transferAsset = Commands.TransferAsset.newBuilder()
+                .setAmount("0.001")
+                .setDescription(destinationAddress)
+                .setSrcAccountId("source account id")
+                .setDestAccountId(BTC_SERVICE_ACCOUNT)
+                .build();
+        return handler.createWithdrawalDetails(transferAsset, feeValue, System.currentTimeMillis());
+    }
+}
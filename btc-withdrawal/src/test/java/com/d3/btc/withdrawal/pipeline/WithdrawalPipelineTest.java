@@ -0,0 +1,247 @@
+/*
+ * Copyright D3 Ledger, Inc. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package com.d3.btc.withdrawal.pipeline;
+
+import com.d3.btc.handler.SetAccountDetailEvent;
+import com.d3.btc.handler.SetAccountDetailHandler;
+import com.d3.btc.metrics.MetricsRegistry;
+import com.d3.btc.withdrawal.config.BtcWithdrawalConfig;
+import com.d3.btc.withdrawal.handler.NewTransferHandler;
+import com.d3.btc.withdrawal.service.UTXOConsolidationService;
+import com.d3.btc.withdrawal.statistics.WithdrawalStatistics;
+import com.d3.btc.withdrawal.statistics.WithdrawalTimeline;
+import com.d3.btc.withdrawal.transaction.WithdrawalDetails;
+import iroha.protocol.Commands;
+import org.jetbrains.annotations.NotNull;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Mockito.*;
+
+public class WithdrawalPipelineTest {
+
+    private BtcWithdrawalConfig btcWithdrawalConfig;
+    private WithdrawalStatistics withdrawalStatistics;
+    private WithdrawalStageStorage withdrawalStageStorage;
+    private NewTransferHandler newTransferHandler;
+    private UTXOConsolidationService utxoConsolidationService;
+    private WithdrawalPipeline withdrawalPipeline;
+
+    @Before
+    public void setUp() {
+        btcWithdrawalConfig = mock(BtcWithdrawalConfig.class);
+        when(btcWithdrawalConfig.getWithdrawalPipelineLanes()).thenReturn(2);
+        withdrawalStatistics = WithdrawalStatistics.Companion.create();
+        withdrawalStageStorage = new WithdrawalStageStorage(withdrawalStatistics);
+        newTransferHandler = mock(NewTransferHandler.class);
+        utxoConsolidationService = mock(UTXOConsolidationService.class);
+        withdrawalPipeline = new WithdrawalPipeline(
+                btcWithdrawalConfig,
+                withdrawalStageStorage,
+                newTransferHandler,
+                utxoConsolidationService,
+                new WithdrawalTimeline(),
+                new MetricsRegistry());
+    }
+
+    /**
+     * @given withdrawal pipeline
+     * @when withdrawals of a block are submitted
+     * @then withdrawals are handled asynchronously and marked with consensus stage
+     */
+    @Test
+    public void testSubmitWithdrawals() {
+        List<WithdrawalDetails> withdrawals = Arrays.asList(createWithdrawal("a"), createWithdrawal("b"));
+        withdrawalPipeline.submitWithdrawals(withdrawals, 1, System.currentTimeMillis());
+        withdrawalPipeline.close();
+        verify(newTransferHandler).handleWithdrawals(withdrawals);
+        verify(utxoConsolidationService, never()).consolidateIfNeeded(anyLong(), anyLong());
+        assertEquals(WithdrawalStage.CONSENSUS, withdrawalStageStorage.getStage(withdrawals.get(0)));
+        assertEquals(WithdrawalStage.CONSENSUS, withdrawalStageStorage.getStage(withdrawals.get(1)));
+    }
+
+    /**
+     * @given withdrawal pipeline
+     * @when a block without withdrawals is submitted
+     * @then UTXO consolidation is checked
+     */
+    @Test
+    public void testSubmitNoWithdrawals() {
+        withdrawalPipeline.submitWithdrawals(Collections.emptyList(), 50, 100);
+        withdrawalPipeline.close();
+        verify(utxoConsolidationService).consolidateIfNeeded(50, 100);
+        verify(newTransferHandler, never()).handleWithdrawals(any());
+    }
+
+    /**
+     * @given withdrawal pipeline with a regular handler and a stage handler
+     * @when events of the same withdrawal are dispatched
+     * @then the regular handler is executed right away,
+     * stage events are executed in order of appearance and the withdrawal is marked with the stage
+     */
+    @Test
+    public void testDispatch() {
+        WithdrawalDetails withdrawalDetails = createWithdrawal("a");
+        List<String> handledRegular = new ArrayList<>();
+        List<String> handledStage = Collections.synchronizedList(new ArrayList<>());
+        List<SetAccountDetailHandler> handlers = Arrays.asList(
+                new TestRegularHandler(handledRegular),
+                new TestStageHandler(WithdrawalStage.SIGNING, withdrawalDetails, handledStage));
+        withdrawalPipeline.dispatch(createEvent("first"), handlers);
+        withdrawalPipeline.dispatch(createEvent("second"), handlers);
+        assertEquals(Arrays.asList("first", "second"), handledRegular);
+        withdrawalPipeline.close();
+        assertEquals(Arrays.asList("first", "second"), handledStage);
+        assertEquals(WithdrawalStage.SIGNING, withdrawalStageStorage.getStage(withdrawalDetails));
+    }
+
+    /**
+     * @given withdrawal pipeline with a finalization stage handler and a withdrawal in progress
+     * @when finalization event is dispatched
+     * @then the withdrawal marker is removed
+     */
+    @Test
+    public void testDispatchTerminalStage() {
+        WithdrawalDetails withdrawalDetails = createWithdrawal("a");
+        withdrawalStageStorage.mark(Collections.singletonList(withdrawalDetails), WithdrawalStage.TRANSACTION);
+        List<String> handledStage = Collections.synchronizedList(new ArrayList<>());
+        withdrawalPipeline.dispatch(
+                createEvent("finalization"),
+                Collections.singletonList(
+                        new TestStageHandler(WithdrawalStage.FINALIZATION, withdrawalDetails, handledStage)));
+        withdrawalPipeline.close();
+        assertEquals(Collections.singletonList("finalization"), handledStage);
+        assertNull(withdrawalStageStorage.getStage(withdrawalDetails));
+    }
+
+    /**
+     * @given withdrawal stage storage with a marked withdrawal
+     * @when the withdrawal is marked with an earlier stage
+     * @then the marker never goes back and the withdrawal is reported in its latest stage
+     */
+    @Test
+    public void testStageStorageNeverGoesBack() {
+        WithdrawalDetails withdrawalDetails = createWithdrawal("a");
+        withdrawalStageStorage.mark(Collections.singletonList(withdrawalDetails), WithdrawalStage.TRANSACTION);
+        withdrawalStageStorage.mark(Collections.singletonList(withdrawalDetails), WithdrawalStage.CONSENSUS);
+        assertEquals(WithdrawalStage.TRANSACTION, withdrawalStageStorage.getStage(withdrawalDetails));
+        assertEquals(1, (int) withdrawalStatistics.getInFlightWithdrawals().get(WithdrawalStage.TRANSACTION));
+        assertEquals(0, (int) withdrawalStatistics.getInFlightWithdrawals().get(WithdrawalStage.CONSENSUS));
+    }
+
+    /**
+     * @given withdrawal pipeline with a broadcast stage handler
+     * @when signature event is dispatched
+     * @then the future of event is completed once the event is handled. Broadcasting is not awaited
+     */
+    @Test
+    public void testDispatchFuture() throws Exception {
+        WithdrawalDetails withdrawalDetails = createWithdrawal("a");
+        List<String> handledStage = Collections.synchronizedList(new ArrayList<>());
+        TestStageHandler handler = new TestStageHandler(WithdrawalStage.BROADCAST, withdrawalDetails, handledStage);
+        withdrawalPipeline.dispatch(createEvent("signature"), Collections.singletonList(handler))
+                .get(5, TimeUnit.SECONDS);
+        assertEquals(Collections.singletonList("signature"), handledStage);
+        withdrawalPipeline.close();
+    }
+
+    /**
+     * @given withdrawal pipeline
+     * @when withdrawals of a block are submitted
+     * @then the future of the block is completed once consensus stage is over
+     */
+    @Test
+    public void testSubmitWithdrawalsFuture() throws Exception {
+        WithdrawalDetails withdrawalDetails = createWithdrawal("a");
+        withdrawalPipeline.submitWithdrawals(Collections.singletonList(withdrawalDetails), 1, System.currentTimeMillis())
+                .get(5, TimeUnit.SECONDS);
+        verify(newTransferHandler).handleWithdrawals(Collections.singletonList(withdrawalDetails));
+        withdrawalPipeline.close();
+    }
+
+    private static WithdrawalDetails createWithdrawal(String sourceAccountId) {
+        return new WithdrawalDetails(sourceAccountId, "address", 10_000, System.currentTimeMillis(), 0);
+    }
+
+    private static SetAccountDetailEvent createEvent(String key) {
+        return new SetAccountDetailEvent(Commands.SetAccountDetail.newBuilder().setKey(key).build(), "creator");
+    }
+
+    // Handler that records events right away
+    private static class TestRegularHandler extends SetAccountDetailHandler {
+
+        private final List<String> handled;
+
+        TestRegularHandler(List<String> handled) {
+            this.handled = handled;
+        }
+
+        @Override
+        protected void handle(@NotNull SetAccountDetailEvent setAccountDetailEvent) {
+            handled.add(setAccountDetailEvent.getCommand().getKey());
+        }
+
+        @Override
+        protected boolean filter(@NotNull SetAccountDetailEvent setAccountDetailEvent) {
+            return true;
+        }
+    }
+
+    // Handler that records events of its stage. Withdrawal is taken from the handler, because events are fake
+    private static class TestStageHandler extends SetAccountDetailHandler implements WithdrawalStageHandler {
+
+        private final WithdrawalStage stage;
+        private final WithdrawalDetails withdrawalDetails;
+        private final List<String> handled;
+
+        TestStageHandler(WithdrawalStage stage, WithdrawalDetails withdrawalDetails, List<String> handled) {
+            this.stage = stage;
+            this.withdrawalDetails = withdrawalDetails;
+            this.handled = handled;
+        }
+
+        @NotNull
+        @Override
+        public WithdrawalStage getStage() {
+            return stage;
+        }
+
+        @Override
+        public boolean isStageEvent(@NotNull SetAccountDetailEvent setAccountDetailEvent) {
+            return filter(setAccountDetailEvent);
+        }
+
+        @NotNull
+        @Override
+        public List<WithdrawalDetails> getWithdrawals(@NotNull SetAccountDetailEvent setAccountDetailEvent) {
+            return Collections.singletonList(withdrawalDetails);
+        }
+
+        @NotNull
+        @Override
+        public String getPipelineKey(@NotNull SetAccountDetailEvent setAccountDetailEvent) {
+            return setAccountDetailEvent.getCommand().getKey();
+        }
+
+        @Override
+        protected void handle(@NotNull SetAccountDetailEvent setAccountDetailEvent) {
+            handled.add(setAccountDetailEvent.getCommand().getKey());
+        }
+
+        @Override
+        protected boolean filter(@NotNull SetAccountDetailEvent setAccountDetailEvent) {
+            return true;
+        }
+    }
+}
@@ -0,0 +1,125 @@
+/*
+ * Copyright D3 Ledger, Inc. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package com.d3.btc.withdrawal.provider;
+
+import com.d3.btc.fee.FeeTxExtKt;
+import com.d3.btc.withdrawal.transaction.TransactionCreatorKt;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Simulation that compares the branch-and-bound coin selection with the greedy largest-first one.
+ * UTXO pools are shaped after deposits: log-normally distributed values with lots of small ones.
+ */
+public class CoinSelectionSimulationTest {
+
+    private static final long SEED = 42;
+    private static final int WITHDRAWALS = 2_000;
+    private static final int MAX_UTXO_ITEMS = 20;
+    // Median deposit is 0.002 BTC
+    private static final double DEPOSIT_MEDIAN_SAT = 200_000;
+    // Median withdrawal is 0.005 BTC
+    private static final double WITHDRAWAL_MEDIAN_SAT = 500_000;
+    private static final double SIGMA = 1.5;
+    private static final int FEE_RATE = 10;
+
+    /**
+     * @given pools of log-normally distributed UTXO and log-normally distributed withdrawal amounts
+     * @when UTXO are selected using greedy and branch-and-bound strategies
+     * @then branch-and-bound creates no more change outputs than greedy, every selection covers amount and fee
+     * and the selection is deterministic
+     */
+    @Test
+    public void testSimulation() {
+        SimulationReport greedy = simulate(false);
+        SimulationReport branchAndBound = simulate(true);
+        assertEquals(greedy.withdrawals, branchAndBound.withdrawals);
+        assertTrue(branchAndBound.changeOutputs <= greedy.changeOutputs);
+        assertEquals(branchAndBound.toString(), simulate(true).toString());
+    }
+
+    private SimulationReport simulate(boolean useBranchAndBound) {
+        Random random = new Random(SEED);
+        SimulationReport report = new SimulationReport();
+        long inputFee = FeeTxExtKt.getTxFee(1, 0, FEE_RATE);
+        long costOfChange = FeeTxExtKt.getTxFee(0, 1, FEE_RATE) + inputFee;
+        for (int i = 0; i < WITHDRAWALS; i++) {
+            List<Long> pool = createPool(random);
+            List<Long> effectiveValues = new ArrayList<>();
+            for (long value : pool) {
+                effectiveValues.add(value - inputFee);
+            }
+            long amount = logNormal(random, WITHDRAWAL_MEDIAN_SAT);
+            List<Integer> selection = null;
+            if (useBranchAndBound) {
+                selection = CoinSelectionKt.selectBranchAndBound(
+                        effectiveValues,
+                        amount + FeeTxExtKt.getTxFee(0, 1, FEE_RATE),
+                        costOfChange,
+                        CoinSelectionKt.BNB_MAX_TRIES);
+            }
+            if (selection == null) {
+                selection = CoinSelectionKt.selectGreedy(effectiveValues, amount + FeeTxExtKt.getTxFee(0, 2, FEE_RATE));
+            }
+            if (selection == null) {
+                continue;
+            }
+            long collected = 0;
+            for (int index : selection) {
+                collected += pool.get(index);
+            }
+            long change = collected - amount - FeeTxExtKt.getTxFee(selection.size(), 2, FEE_RATE);
+            boolean hasChange = !TransactionCreatorKt.isDust(change, FEE_RATE);
+            long fee = hasChange ? collected - amount - change : collected - amount;
+            assertTrue(fee >= FeeTxExtKt.getTxFee(selection.size(), hasChange ? 2 : 1, FEE_RATE));
+            report.withdrawals++;
+            report.inputs += selection.size();
+            report.changeOutputs += hasChange ? 1 : 0;
+            report.feePaid += fee;
+        }
+        return report;
+    }
+
+    // Creates pool of non-dust UTXO sorted by value in descending order
+    private List<Long> createPool(Random random) {
+        List<Long> pool = new ArrayList<>();
+        while (pool.size() < MAX_UTXO_ITEMS) {
+            long value = logNormal(random, DEPOSIT_MEDIAN_SAT);
+            if (!TransactionCreatorKt.isDust(value, FEE_RATE)) {
+                pool.add(value);
+            }
+        }
+        pool.sort(Comparator.reverseOrder());
+        return pool;
+    }
+
+    private long logNormal(Random random, double median) {
+        return (long) (median * Math.exp(SIGMA * random.nextGaussian()));
+    }
+
+    private static class SimulationReport {
+        int withdrawals;
+        long inputs;
+        long changeOutputs;
+        long feePaid;
+
+        @Override
+        public String toString() {
+            return String.format("withdrawals %d, inputs per withdrawal %.3f, change outputs %d, " +
+                            "fee paid per withdrawal %.1f SAT",
+                    withdrawals,
+                    (double) inputs / withdrawals,
+                    changeOutputs,
+                    (double) feePaid / withdrawals);
+        }
+    }
+}
@@ -5,6 +5,7 @@
 
 package com.d3.btc.withdrawal.provider;
 
+import com.d3.btc.helper.output.TxOutputExtKt;
 import com.d3.btc.provider.network.BtcRegTestConfigProvider;
 import com.d3.btc.storage.BtcAddressStorage;
 import com.d3.btc.withdrawal.transaction.WithdrawalDetails;
@@ -26,8 +27,10 @@ import static org.mockito.Mockito.*;
 public class UTXOProviderTest {
 
     private static final int CONFIDENCE_LEVEL = 6;
+    private static final int FEE_RATE = 10;
     private static Wallet wallet = mock(Wallet.class);
     private static Map<Sha256Hash, Integer> txHashAppearance = new HashMap<>();
+    private static final Set<String> usedUTXOKeys = new HashSet<>();
     private static UsedUTXOProvider usedUTXOProvider = new UsedUTXOProvider(mock(IrohaQueryHelper.class), mock(IrohaConsumer.class), "abc") {
 
         private final Set<String> usedUTXO = new HashSet<>();
@@ -36,6 +39,11 @@ public class UTXOProviderTest {
         public Result<Boolean, Exception> isUsed(WithdrawalDetails withdrawalDetails, TransactionOutput output) {
             return Result.Companion.of(() -> usedUTXO.contains(output.getHash().toString()));
         }
+
+        @Override
+        public Result<Set<String>, Exception> getUsedUTXOKeys() {
+            return Result.Companion.of(() -> new HashSet<>(usedUTXOKeys));
+        }
     };
     private static UTXOProvider bitcoinUTXOProvider = spy(
             new UTXOProvider(
@@ -72,7 +80,7 @@ public class UTXOProviderTest {
         unspents.add(output);
         when(wallet.getUnspents()).thenReturn(unspents);
         Result<List<TransactionOutput>, Exception> result = bitcoinUTXOProvider.collectUnspents(
-                createDetails(amountToSpendSat), CONFIDENCE_LEVEL);
+                createDetails(amountToSpendSat), CONFIDENCE_LEVEL, FEE_RATE);
         result.fold(transactionOutputs -> {
             assertEquals(1, transactionOutputs.size());
             assertTrue(transactionOutputs.contains(output));
@@ -101,7 +109,7 @@ public class UTXOProviderTest {
         }
         when(wallet.getUnspents()).thenReturn(unspents);
         Result<List<TransactionOutput>, Exception> result = bitcoinUTXOProvider.collectUnspents(
-                createDetails(amountToSpendSat), CONFIDENCE_LEVEL);
+                createDetails(amountToSpendSat), CONFIDENCE_LEVEL, FEE_RATE);
         result.fold(transactionOutputs -> {
             assertEquals(2, transactionOutputs.size());
             assertEquals(18_000, bitcoinUTXOProvider.getTotalUnspentValue(transactionOutputs));
@@ -136,7 +144,7 @@ public class UTXOProviderTest {
         List<TransactionOutput> unspents = new ArrayList<>(Arrays.asList(outputSmallValue, outputBigValue));
         when(wallet.getUnspents()).thenReturn(unspents);
         Result<List<TransactionOutput>, Exception> result = bitcoinUTXOProvider.collectUnspents(
-                createDetails(amountToSpendSat), CONFIDENCE_LEVEL);
+                createDetails(amountToSpendSat), CONFIDENCE_LEVEL, FEE_RATE);
         result.fold(transactionOutputs -> {
             assertEquals(1, transactionOutputs.size());
             assertTrue(transactionOutputs.contains(outputBigValue));
@@ -164,13 +172,46 @@ public class UTXOProviderTest {
         unspents.add(output);
         when(wallet.getUnspents()).thenReturn(unspents);
         Result<List<TransactionOutput>, Exception> result = bitcoinUTXOProvider.collectUnspents(
-                createDetails(amountToSpendSat), CONFIDENCE_LEVEL);
+                createDetails(amountToSpendSat), CONFIDENCE_LEVEL, FEE_RATE);
         result.fold(transactionOutputs -> {
             fail();
             return null;
         }, e -> null);
     }
 
+    /**
+     * @given wallet with 3 unspents(50_000, 16_000 and 9_000 SAT)
+     * @when try to collect 13_860 SAT
+     * @then one unspent with 16_000 SAT is collected, because it covers amount and fee(2_140 SAT) without change
+     */
+    @Test
+    public void testCollectUnspentsExactMatch() {
+        long amountToSpendSat = 13_860;
+        List<TransactionOutput> unspents = new ArrayList<>();
+        TransactionOutput exactOutput = null;
+        for (long value : new long[]{50_000, 16_000, 9_000}) {
+            TransactionOutput output = createTransactionOutput();
+            Transaction transaction = mock(Transaction.class);
+            when(transaction.getAppearsInHashes()).thenReturn(txHashAppearance);
+            when(output.getParentTransaction()).thenReturn(transaction);
+            when(output.getValue()).thenReturn(Coin.valueOf(value));
+            when(output.getParentTransactionDepthInBlocks()).thenReturn(CONFIDENCE_LEVEL);
+            unspents.add(output);
+            if (value == 16_000) {
+                exactOutput = output;
+            }
+        }
+        when(wallet.getUnspents()).thenReturn(unspents);
+        TransactionOutput expectedOutput = exactOutput;
+        Result<List<TransactionOutput>, Exception> result = bitcoinUTXOProvider.collectUnspents(
+                createDetails(amountToSpendSat), CONFIDENCE_LEVEL, FEE_RATE);
+        result.fold(transactionOutputs -> {
+            assertEquals(1, transactionOutputs.size());
+            assertTrue(transactionOutputs.contains(expectedOutput));
+            return null;
+        }, Assertions::fail);
+    }
+
     /**
      * @given wallet with 1_000_000 SAT as 1 not properly confirmed unspent
      * @when try to collect 1_000 SAT
@@ -191,7 +232,7 @@ public class UTXOProviderTest {
         unspents.add(output);
         when(wallet.getUnspents()).thenReturn(unspents);
         Result<List<TransactionOutput>, Exception> result = bitcoinUTXOProvider.collectUnspents(
-                createDetails(amountToSpendSat), CONFIDENCE_LEVEL);
+                createDetails(amountToSpendSat), CONFIDENCE_LEVEL, FEE_RATE);
         result.fold(transactionOutputs -> {
             fail();
             return null;
@@ -219,7 +260,7 @@ public class UTXOProviderTest {
         List<TransactionOutput> unspents = new ArrayList<>(Arrays.asList(smallOutput, evenSmallerOutput));
         when(wallet.getUnspents()).thenReturn(unspents);
         Result<List<TransactionOutput>, Exception> result = bitcoinUTXOProvider.collectUnspents(
-                createDetails(amountToSpendSat), CONFIDENCE_LEVEL);
+                createDetails(amountToSpendSat), CONFIDENCE_LEVEL, FEE_RATE);
         result.fold(transactionOutputs -> {
             fail();
             return null;
@@ -229,7 +270,7 @@ public class UTXOProviderTest {
     /**
      * @given wallet with 100_000 SAT as 100 unspent (1_000 * 100)
      * @when try to collect 1_000 SAT
-     * @then exception is thrown, because every unspent takes 2000 SAT fee on average,
+     * @then exception is thrown, because every unspent takes 1_800 SAT fee to spend,
      * meaning that you can never collect 1_000 SAT using 100 little unspents,
      * even if total value in a wallet is 100_000 SAT
      */
@@ -249,19 +290,114 @@ public class UTXOProviderTest {
         }
         when(wallet.getUnspents()).thenReturn(unspents);
         Result<List<TransactionOutput>, Exception> result = bitcoinUTXOProvider.collectUnspents(
-                createDetails(amountToSpendSat), CONFIDENCE_LEVEL);
+                createDetails(amountToSpendSat), CONFIDENCE_LEVEL, FEE_RATE);
         result.fold(transactionOutputs -> {
             fail();
             return null;
         }, e -> null);
     }
 
+    /**
+     * @given wallet with 27_000 SAT as 3 unspents(9_000*3)
+     * @when try to collect 5_000 SAT for each of 2 batched withdrawals
+     * @then two unspents with total amount 18_000 SAT are collected, because one unspent doesn't cover both withdrawals
+     */
+    @Test
+    public void testCollectUnspentsBatch() {
+        List<TransactionOutput> unspents = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            TransactionOutput output = createTransactionOutput();
+            when(output.getValue()).thenReturn(Coin.valueOf(9_000));
+            when(output.getParentTransactionDepthInBlocks()).thenReturn(CONFIDENCE_LEVEL);
+            unspents.add(output);
+        }
+        when(wallet.getUnspents()).thenReturn(unspents);
+        Result<List<TransactionOutput>, Exception> result = bitcoinUTXOProvider.collectUnspents(
+                Arrays.asList(createDetails(5_000), createDetails(5_000)), CONFIDENCE_LEVEL, FEE_RATE);
+        result.fold(transactionOutputs -> {
+            assertEquals(2, transactionOutputs.size());
+            assertEquals(18_000, bitcoinUTXOProvider.getTotalUnspentValue(transactionOutputs));
+            return null;
+        }, Assertions::fail);
+    }
+
+    /**
+     * @given wallet with 75_000 SAT as 3 unspents(50_000 + 16_000 + 9_000)
+     * @when UTXO for 4 withdrawals(13_860, 5_000, 40_000 and 1_000 SAT) are planned
+     * @then first three withdrawals get disjoint unspents(16_000, 9_000 and 50_000 SAT),
+     * the last one fails, because all the unspents have been planned for other withdrawals
+     */
+    @Test
+    public void testPlanUnspents() {
+        TransactionOutput bigOutput = createTransactionOutput();
+        when(bigOutput.getValue()).thenReturn(Coin.valueOf(50_000));
+        when(bigOutput.getParentTransactionDepthInBlocks()).thenReturn(CONFIDENCE_LEVEL);
+        TransactionOutput mediumOutput = createTransactionOutput();
+        when(mediumOutput.getValue()).thenReturn(Coin.valueOf(16_000));
+        when(mediumOutput.getParentTransactionDepthInBlocks()).thenReturn(CONFIDENCE_LEVEL);
+        TransactionOutput smallOutput = createTransactionOutput();
+        when(smallOutput.getValue()).thenReturn(Coin.valueOf(9_000));
+        when(smallOutput.getParentTransactionDepthInBlocks()).thenReturn(CONFIDENCE_LEVEL);
+        when(wallet.getUnspents()).thenReturn(new ArrayList<>(Arrays.asList(smallOutput, bigOutput, mediumOutput)));
+        List<Result<List<TransactionOutput>, Exception>> plan = bitcoinUTXOProvider.planUnspents(
+                Arrays.asList(
+                        Collections.singletonList(createDetails(13_860)),
+                        Collections.singletonList(createDetails(5_000)),
+                        Collections.singletonList(createDetails(40_000)),
+                        Collections.singletonList(createDetails(1_000))),
+                CONFIDENCE_LEVEL, FEE_RATE);
+        assertEquals(4, plan.size());
+        assertEquals(Collections.singletonList(mediumOutput), plan.get(0).get());
+        assertEquals(Collections.singletonList(smallOutput), plan.get(1).get());
+        assertEquals(Collections.singletonList(bigOutput), plan.get(2).get());
+        plan.get(3).fold(transactionOutputs -> {
+            fail();
+            return null;
+        }, e -> null);
+    }
+
+    /**
+     * @given wallet with 3 unspents(50_000, 16_000 and 9_000 SAT). 16_000 SAT unspent is registered as used
+     * @when UTXO for 2 withdrawals(13_860 and 5_000 SAT) are planned
+     * @then the used unspent is not planned at all, the withdrawals get 50_000 and 9_000 SAT unspents
+     */
+    @Test
+    public void testPlanUnspentsSkipsUsed() {
+        TransactionOutput bigOutput = createTransactionOutput();
+        when(bigOutput.getValue()).thenReturn(Coin.valueOf(50_000));
+        when(bigOutput.getParentTransactionDepthInBlocks()).thenReturn(CONFIDENCE_LEVEL);
+        TransactionOutput mediumOutput = createTransactionOutput();
+        when(mediumOutput.getValue()).thenReturn(Coin.valueOf(16_000));
+        when(mediumOutput.getParentTransactionDepthInBlocks()).thenReturn(CONFIDENCE_LEVEL);
+        TransactionOutput smallOutput = createTransactionOutput();
+        when(smallOutput.getValue()).thenReturn(Coin.valueOf(9_000));
+        when(smallOutput.getParentTransactionDepthInBlocks()).thenReturn(CONFIDENCE_LEVEL);
+        when(wallet.getUnspents()).thenReturn(new ArrayList<>(Arrays.asList(smallOutput, bigOutput, mediumOutput)));
+        usedUTXOKeys.add(TxOutputExtKt.irohaKey(mediumOutput));
+        try {
+            List<Result<List<TransactionOutput>, Exception>> plan = bitcoinUTXOProvider.planUnspents(
+                    Arrays.asList(
+                            Collections.singletonList(createDetails(13_860)),
+                            Collections.singletonList(createDetails(5_000))),
+                    CONFIDENCE_LEVEL, FEE_RATE);
+            assertEquals(Collections.singletonList(bigOutput), plan.get(0).get());
+            assertEquals(Collections.singletonList(smallOutput), plan.get(1).get());
+        } finally {
+            usedUTXOKeys.clear();
+        }
+    }
+
     private TransactionOutput createTransactionOutput() {
         TransactionOutput output = mock(TransactionOutput.class);
         Random random = new Random();
         byte[] utxoHash = new byte[256];
         random.nextBytes(utxoHash);
         when(output.getHash()).thenReturn(Sha256Hash.of(utxoHash));
+        byte[] parentTxHash = new byte[256];
+        random.nextBytes(parentTxHash);
+        Transaction parentTransaction = mock(Transaction.class);
+        when(parentTransaction.getHash()).thenReturn(Sha256Hash.of(parentTxHash));
+        when(output.getParentTransaction()).thenReturn(parentTransaction);
         return output;
     }
 
@@ -0,0 +1,134 @@
+/*
+ * Copyright D3 Ledger, Inc. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package com.d3.btc.withdrawal.provider;
+
+import com.d3.btc.config.BitcoinConfig;
+import com.d3.btc.fee.BtcFixedFeeRateProvider;
+import com.d3.btc.provider.network.BtcRegTestConfigProvider;
+import com.d3.btc.withdrawal.statistics.WithdrawalStatistics;
+import com.d3.btc.withdrawal.statistics.WithdrawalTimeline;
+import com.d3.btc.withdrawal.transaction.WithdrawalConsensus;
+import com.d3.btc.withdrawal.transaction.WithdrawalDetails;
+import com.d3.commons.sidechain.iroha.consumer.IrohaConsumer;
+import com.d3.commons.sidechain.iroha.util.IrohaQueryHelper;
+import com.github.kittinunf.result.Result;
+import iroha.protocol.BlockOuterClass;
+import iroha.protocol.Commands;
+import iroha.protocol.TransactionOuterClass;
+import jp.co.soramitsu.iroha.java.Transaction;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.Optional;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.*;
+
+public class WithdrawalConsensusProviderTest {
+
+    private final String consensusAccountId = "consensus@btcSignCollect";
+    private final String withdrawalAccountId = "withdrawal@notary";
+    private IrohaConsumer withdrawalIrohaConsumer;
+    private IrohaQueryHelper withdrawalQueryHelper;
+    private WithdrawalConsensusWaiter withdrawalConsensusWaiter;
+    private WithdrawalConsensusProvider withdrawalConsensusProvider;
+
+    @Before
+    public void setUp() {
+        IrohaConsumer consensusIrohaConsumer = mock(IrohaConsumer.class);
+        when(consensusIrohaConsumer.getCreator()).thenReturn(consensusAccountId);
+        withdrawalIrohaConsumer = mock(IrohaConsumer.class);
+        when(withdrawalIrohaConsumer.getCreator()).thenReturn(withdrawalAccountId);
+        when(withdrawalIrohaConsumer.getConsumerQuorum()).thenReturn(Result.Companion.of(() -> 1));
+        when(withdrawalIrohaConsumer.send(any(Transaction.class))).thenReturn(Result.Companion.of(() -> "hash"));
+        withdrawalQueryHelper = mock(IrohaQueryHelper.class);
+        // Consensus data is not committed yet
+        when(withdrawalQueryHelper.getAccountDetails(anyString(), anyString(), anyString()))
+                .thenReturn(Result.Companion.of(() -> Optional.empty()));
+        withdrawalConsensusWaiter = new WithdrawalConsensusWaiter(consensusIrohaConsumer);
+        withdrawalConsensusProvider = new WithdrawalConsensusProvider(
+                consensusIrohaConsumer,
+                withdrawalIrohaConsumer,
+                withdrawalQueryHelper,
+                mock(UTXOProvider.class),
+                mock(UsedUTXOProvider.class),
+                mock(BitcoinConfig.class),
+                new BtcRegTestConfigProvider(),
+                new BtcFixedFeeRateProvider(10),
+                withdrawalConsensusWaiter,
+                WithdrawalStatistics.Companion.create(),
+                new WithdrawalTimeline());
+    }
+
+    @After
+    public void tearDown() {
+        withdrawalConsensusProvider.close();
+    }
+
+    /**
+     * @given node that is behind the node that has created consolidation consensus data
+     * @when the node joins consensus before the data is committed
+     * @then consensus is registered by the node as soon as the data appears in the Iroha block stream
+     */
+    @Test
+    public void testJoinConsensusDataLaggingNode() {
+        WithdrawalDetails consolidationDetails = WithdrawalDetails.Companion.consolidation(System.currentTimeMillis());
+        withdrawalConsensusProvider.joinConsensusData(consolidationDetails).get();
+        verify(withdrawalIrohaConsumer, never()).send(any(Transaction.class));
+
+        String consensusData = new WithdrawalConsensus(
+                Collections.emptyList(),
+                consolidationDetails,
+                "id",
+                10,
+                Collections.emptyList()).toJson();
+        withdrawalConsensusWaiter.onBlock(createBlock(consolidationDetails.irohaFriendlyHashCode(), consensusData));
+        verify(withdrawalIrohaConsumer, timeout(5_000)).send(any(Transaction.class));
+    }
+
+    /**
+     * @given node that is in sync with the node that has created consolidation consensus data
+     * @when the node joins consensus after the data is committed
+     * @then consensus is registered by the node right away
+     */
+    @Test
+    public void testJoinConsensusDataCommitted() {
+        WithdrawalDetails consolidationDetails = WithdrawalDetails.Companion.consolidation(System.currentTimeMillis());
+        String consensusData = new WithdrawalConsensus(
+                Collections.emptyList(),
+                consolidationDetails,
+                "id",
+                10,
+                Collections.emptyList()).toJson();
+        when(withdrawalQueryHelper.getAccountDetails(consensusAccountId, consensusAccountId,
+                consolidationDetails.irohaFriendlyHashCode()))
+                .thenReturn(Result.Companion.of(() -> Optional.of(consensusData)));
+        withdrawalConsensusProvider.joinConsensusData(consolidationDetails).get();
+        verify(withdrawalIrohaConsumer).send(any(Transaction.class));
+    }
+
+    private BlockOuterClass.Block createBlock(String key, String value) {
+        Commands.Command command = Commands.Command.newBuilder()
+                .setCompareAndSetAccountDetail(Commands.CompareAndSetAccountDetail.newBuilder()
+                        .setAccountId(consensusAccountId)
+                        .setKey(key)
+                        .setValue(value))
+                .build();
+        TransactionOuterClass.Transaction transaction = TransactionOuterClass.Transaction.newBuilder()
+                .setPayload(TransactionOuterClass.Transaction.Payload.newBuilder()
+                        .setReducedPayload(TransactionOuterClass.Transaction.Payload.ReducedPayload.newBuilder()
+                                .addCommands(command)))
+                .build();
+        return BlockOuterClass.Block.newBuilder()
+                .setBlockV1(BlockOuterClass.Block_v1.newBuilder()
+                        .setPayload(BlockOuterClass.Block_v1.Payload.newBuilder()
+                                .addTransactions(transaction)))
+                .build();
+    }
+}
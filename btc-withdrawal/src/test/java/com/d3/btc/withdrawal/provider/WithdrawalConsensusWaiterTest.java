@@ -0,0 +1,90 @@
+/*
+ * Copyright D3 Ledger, Inc. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package com.d3.btc.withdrawal.provider;
+
+import com.d3.commons.sidechain.iroha.consumer.IrohaConsumer;
+import iroha.protocol.BlockOuterClass;
+import iroha.protocol.Commands;
+import iroha.protocol.TransactionOuterClass;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.CompletableFuture;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+public class WithdrawalConsensusWaiterTest {
+
+    private final String consensusAccountId = "consensus@btcSignCollect";
+    private WithdrawalConsensusWaiter withdrawalConsensusWaiter;
+
+    @Before
+    public void setUp() {
+        IrohaConsumer consensusIrohaConsumer = mock(IrohaConsumer.class);
+        when(consensusIrohaConsumer.getCreator()).thenReturn(consensusAccountId);
+        withdrawalConsensusWaiter = new WithdrawalConsensusWaiter(consensusIrohaConsumer);
+    }
+
+    /**
+     * @given consensus waiter with a registered withdrawal hash
+     * @when a block with consensus data of the withdrawal is committed
+     * @then the future of consensus data is completed
+     */
+    @Test
+    public void testOnBlockAfterRegister() {
+        CompletableFuture<String> future = withdrawalConsensusWaiter.register("hash");
+        assertFalse(future.isDone());
+        withdrawalConsensusWaiter.onBlock(createBlock(consensusAccountId, "hash", "data"));
+        assertEquals("data", future.getNow(null));
+        withdrawalConsensusWaiter.unregister("hash");
+    }
+
+    /**
+     * @given consensus waiter
+     * @when a block with consensus data is committed before the withdrawal hash is registered
+     * @then the future of consensus data is completed right away
+     */
+    @Test
+    public void testOnBlockBeforeRegister() {
+        withdrawalConsensusWaiter.onBlock(createBlock(consensusAccountId, "hash", "data"));
+        CompletableFuture<String> future = withdrawalConsensusWaiter.register("hash");
+        assertEquals("data", future.getNow(null));
+        withdrawalConsensusWaiter.unregister("hash");
+    }
+
+    /**
+     * @given consensus waiter with a registered withdrawal hash
+     * @when a block with the same detail key set on another account is committed
+     * @then the future of consensus data is not completed
+     */
+    @Test
+    public void testOnBlockOtherAccount() {
+        CompletableFuture<String> future = withdrawalConsensusWaiter.register("hash");
+        withdrawalConsensusWaiter.onBlock(createBlock("other@d3", "hash", "data"));
+        assertFalse(future.isDone());
+        withdrawalConsensusWaiter.unregister("hash");
+    }
+
+    private static BlockOuterClass.Block createBlock(String accountId, String key, String value) {
+        Commands.Command command = Commands.Command.newBuilder()
+                .setCompareAndSetAccountDetail(Commands.CompareAndSetAccountDetail.newBuilder()
+                        .setAccountId(accountId)
+                        .setKey(key)
+                        .setValue(value))
+                .build();
+        TransactionOuterClass.Transaction transaction = TransactionOuterClass.Transaction.newBuilder()
+                .setPayload(TransactionOuterClass.Transaction.Payload.newBuilder()
+                        .setReducedPayload(TransactionOuterClass.Transaction.Payload.ReducedPayload.newBuilder()
+                                .addCommands(command)))
+                .build();
+        return BlockOuterClass.Block.newBuilder()
+                .setBlockV1(BlockOuterClass.Block_v1.newBuilder()
+                        .setPayload(BlockOuterClass.Block_v1.Payload.newBuilder()
+                                .addTransactions(transaction)))
+                .build();
+    }
+}
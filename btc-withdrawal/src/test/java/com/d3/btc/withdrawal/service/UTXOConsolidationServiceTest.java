@@ -0,0 +1,140 @@
+/*
+ * Copyright D3 Ledger, Inc. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package com.d3.btc.withdrawal.service;
+
+import com.d3.btc.config.BitcoinConfig;
+import com.d3.btc.fee.BtcFixedFeeRateProvider;
+import com.d3.btc.withdrawal.config.BtcWithdrawalConfig;
+import com.d3.btc.withdrawal.provider.UTXOProvider;
+import com.d3.btc.withdrawal.provider.UTXOProviderKt;
+import com.d3.btc.withdrawal.provider.WithdrawalConsensusProvider;
+import com.d3.btc.withdrawal.transaction.WithdrawalDetails;
+import com.github.kittinunf.result.Result;
+import kotlin.Unit;
+import org.bitcoinj.core.Coin;
+import org.bitcoinj.core.TransactionOutput;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.*;
+
+public class UTXOConsolidationServiceTest {
+
+    private static final int CONFIDENCE_LEVEL = 6;
+    private static final int UTXO_THRESHOLD = 25;
+    private static final int MAX_FEE_RATE = 5;
+    private static final long CONSOLIDATION_BLOCK_HEIGHT = UTXOConsolidationServiceKt.CONSOLIDATION_PERIOD_BLOCKS;
+
+    private BtcWithdrawalConfig btcWithdrawalConfig;
+    private UTXOProvider utxoProvider;
+    private WithdrawalConsensusProvider withdrawalConsensusProvider;
+
+    @Before
+    public void setUp() {
+        btcWithdrawalConfig = mock(BtcWithdrawalConfig.class);
+        when(btcWithdrawalConfig.getConsolidationUtxoThreshold()).thenReturn(UTXO_THRESHOLD);
+        when(btcWithdrawalConfig.getConsolidationMaxFeeRate()).thenReturn(MAX_FEE_RATE);
+        utxoProvider = mock(UTXOProvider.class);
+        withdrawalConsensusProvider = mock(WithdrawalConsensusProvider.class);
+        when(withdrawalConsensusProvider.createConsolidationConsensusData(any(), anyInt(), any()))
+                .thenReturn(Result.Companion.of(() -> Unit.INSTANCE));
+        when(withdrawalConsensusProvider.joinConsensusData(any())).thenReturn(Result.Companion.of(() -> Unit.INSTANCE));
+    }
+
+    /**
+     * @given 30 available UTXO, consolidation threshold of 25 UTXO and low fee rate
+     * @when consolidateIfNeeded() is called on consolidation block
+     * @then the smallest UTXO that withdrawals never reach are consolidated
+     */
+    @Test
+    public void testConsolidate() {
+        List<TransactionOutput> pool = createPool(30);
+        when(utxoProvider.getUnusedUnspents(CONFIDENCE_LEVEL, MAX_FEE_RATE)).thenReturn(Result.Companion.of(() -> pool));
+        createService(MAX_FEE_RATE).consolidateIfNeeded(CONSOLIDATION_BLOCK_HEIGHT, System.currentTimeMillis());
+        ArgumentCaptor<List> unspentsCaptor = ArgumentCaptor.forClass(List.class);
+        ArgumentCaptor<WithdrawalDetails> detailsCaptor = ArgumentCaptor.forClass(WithdrawalDetails.class);
+        verify(withdrawalConsensusProvider).createConsolidationConsensusData(
+                detailsCaptor.capture(), eq(MAX_FEE_RATE), unspentsCaptor.capture());
+        assertTrue(detailsCaptor.getValue().isConsolidation());
+        List<TransactionOutput> unspents = unspentsCaptor.getValue();
+        assertEquals(30 - UTXOProviderKt.MAX_UTXO_ITEMS, unspents.size());
+        assertTrue(unspents.contains(pool.get(pool.size() - 1)));
+        assertFalse(unspents.contains(pool.get(0)));
+        verify(withdrawalConsensusProvider, never()).joinConsensusData(any());
+    }
+
+    /**
+     * @given 30 available UTXO, consolidation threshold of 25 UTXO and high fee rate
+     * @when consolidateIfNeeded() is called on consolidation block
+     * @then consolidation is not created, but consolidation of other nodes is joined
+     */
+    @Test
+    public void testConsolidateHighFeeRate() {
+        List<TransactionOutput> pool = createPool(30);
+        when(utxoProvider.getUnusedUnspents(CONFIDENCE_LEVEL, MAX_FEE_RATE + 1)).thenReturn(Result.Companion.of(() -> pool));
+        createService(MAX_FEE_RATE + 1).consolidateIfNeeded(CONSOLIDATION_BLOCK_HEIGHT, System.currentTimeMillis());
+        verify(withdrawalConsensusProvider, never()).createConsolidationConsensusData(any(), anyInt(), any());
+        verify(withdrawalConsensusProvider).joinConsensusData(any());
+    }
+
+    /**
+     * @given 20 available UTXO and consolidation threshold of 25 UTXO
+     * @when consolidateIfNeeded() is called on consolidation block
+     * @then consolidation is not created
+     */
+    @Test
+    public void testConsolidateFewUTXO() {
+        List<TransactionOutput> pool = createPool(20);
+        when(utxoProvider.getUnusedUnspents(CONFIDENCE_LEVEL, MAX_FEE_RATE)).thenReturn(Result.Companion.of(() -> pool));
+        createService(MAX_FEE_RATE).consolidateIfNeeded(CONSOLIDATION_BLOCK_HEIGHT, System.currentTimeMillis());
+        verify(withdrawalConsensusProvider, never()).createConsolidationConsensusData(any(), anyInt(), any());
+    }
+
+    /**
+     * @given 30 available UTXO and consolidation threshold of 25 UTXO
+     * @when consolidateIfNeeded() is called on a block that is not a consolidation block
+     * @then UTXO are not even checked
+     */
+    @Test
+    public void testConsolidateNotConsolidationBlock() {
+        createService(MAX_FEE_RATE).consolidateIfNeeded(CONSOLIDATION_BLOCK_HEIGHT + 1, System.currentTimeMillis());
+        verify(utxoProvider, never()).getUnusedUnspents(anyInt(), anyInt());
+        verify(withdrawalConsensusProvider, never()).createConsolidationConsensusData(any(), anyInt(), any());
+        verify(withdrawalConsensusProvider, never()).joinConsensusData(any());
+    }
+
+    private UTXOConsolidationService createService(int feeRate) {
+        BitcoinConfig bitcoinConfig = mock(BitcoinConfig.class);
+        when(bitcoinConfig.getConfidenceLevel()).thenReturn(CONFIDENCE_LEVEL);
+        return new UTXOConsolidationService(
+                btcWithdrawalConfig,
+                bitcoinConfig,
+                utxoProvider,
+                withdrawalConsensusProvider,
+                new BtcFixedFeeRateProvider(feeRate));
+    }
+
+    // Creates pool of UTXO sorted by value in descending order
+    private List<TransactionOutput> createPool(int size) {
+        List<TransactionOutput> pool = new ArrayList<>();
+        for (int i = size; i > 0; i--) {
+            TransactionOutput output = mock(TransactionOutput.class);
+            when(output.getValue()).thenReturn(Coin.valueOf(10_000L * i));
+            pool.add(output);
+        }
+        return pool;
+    }
+}
@@ -0,0 +1,59 @@
+/*
+ * Copyright D3 Ledger, Inc. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package com.d3.btc.withdrawal.statistics;
+
+import com.d3.btc.withdrawal.transaction.WithdrawalDetails;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class WithdrawalTimelineTest {
+
+    private final WithdrawalTimeline withdrawalTimeline = new WithdrawalTimeline();
+
+    /**
+     * @given two withdrawals
+     * @when events of both withdrawals and events of one withdrawal are recorded
+     * @then every withdrawal has its own timeline in order of recording
+     */
+    @Test
+    public void testRecord() {
+        WithdrawalDetails first = createWithdrawal("first");
+        WithdrawalDetails second = createWithdrawal("second");
+        withdrawalTimeline.record(Arrays.asList(first, second), WithdrawalTimelineEventType.TRANSFER_SEEN, null);
+        withdrawalTimeline.record(Arrays.asList(first, second), WithdrawalTimelineEventType.CONSENSUS_WON, "id");
+        withdrawalTimeline.record(Collections.singletonList(second), WithdrawalTimelineEventType.ROLLED_BACK, null);
+
+        List<WithdrawalTimelineEvent> firstTimeline = withdrawalTimeline.getTimeline(first.irohaFriendlyHashCode());
+        assertEquals(2, firstTimeline.size());
+        assertEquals(WithdrawalTimelineEventType.TRANSFER_SEEN, firstTimeline.get(0).getType());
+        assertEquals(WithdrawalTimelineEventType.CONSENSUS_WON, firstTimeline.get(1).getType());
+        assertEquals("id", firstTimeline.get(1).getDetails());
+
+        List<WithdrawalTimelineEvent> secondTimeline = withdrawalTimeline.getTimeline(second.irohaFriendlyHashCode());
+        assertEquals(3, secondTimeline.size());
+        assertEquals(WithdrawalTimelineEventType.ROLLED_BACK, secondTimeline.get(2).getType());
+    }
+
+    /**
+     * @given withdrawal timeline storage
+     * @when timeline of unknown withdrawal is requested
+     * @then empty timeline is returned
+     */
+    @Test
+    public void testUnknownWithdrawal() {
+        assertTrue(withdrawalTimeline.getTimeline("unknown").isEmpty());
+    }
+
+    private WithdrawalDetails createWithdrawal(String sourceAccountId) {
+        return new WithdrawalDetails(sourceAccountId, "address", 10_000, System.currentTimeMillis(), 0);
+    }
+}
@@ -0,0 +1,206 @@
+/*
+ * Copyright D3 Ledger, Inc. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package com.d3.btc.withdrawal.transaction;
+
+import com.d3.btc.withdrawal.config.BtcWithdrawalConfig;
+import com.d3.btc.withdrawal.statistics.WithdrawalStatistics;
+import com.google.common.util.concurrent.SettableFuture;
+import kotlin.Unit;
+import org.bitcoinj.core.PeerGroup;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.Transaction;
+import org.bitcoinj.core.TransactionBroadcast;
+import org.bitcoinj.core.TransactionConfidence;
+import org.bitcoinj.core.TransactionInput;
+import org.bitcoinj.core.TransactionOutPoint;
+import org.bitcoinj.core.TransactionOutput;
+import org.bitcoinj.wallet.Wallet;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+public class TransactionBroadcasterTest {
+
+    private PeerGroup peerGroup;
+    private Wallet transferWallet;
+    private WithdrawalStatistics withdrawalStatistics;
+    private TransactionBroadcaster transactionBroadcaster;
+
+    @Before
+    public void setUp() {
+        BtcWithdrawalConfig btcWithdrawalConfig = mock(BtcWithdrawalConfig.class);
+        when(btcWithdrawalConfig.getBroadcastTimeoutSeconds()).thenReturn(1);
+        when(btcWithdrawalConfig.getBroadcastMaxAttempts()).thenReturn(2);
+        peerGroup = mock(PeerGroup.class);
+        transferWallet = mock(Wallet.class);
+        withdrawalStatistics = WithdrawalStatistics.Companion.create();
+        transactionBroadcaster = new TransactionBroadcaster(
+                btcWithdrawalConfig, peerGroup, withdrawalStatistics, transferWallet);
+    }
+
+    @After
+    public void tearDown() {
+        transactionBroadcaster.close();
+    }
+
+    /**
+     * @given transaction broadcaster and peers that accept transaction
+     * @when transaction is broadcasted
+     * @then the success callback is called and there are no pending broadcasts left
+     */
+    @Test
+    public void testBroadcast() throws InterruptedException {
+        Transaction tx = mock(Transaction.class);
+        SettableFuture<Transaction> future = SettableFuture.create();
+        mockBroadcast(tx, future);
+        CountDownLatch latch = new CountDownLatch(1);
+        AtomicBoolean broadcasted = new AtomicBoolean();
+        transactionBroadcaster.broadcast(tx, () -> {
+            broadcasted.set(true);
+            latch.countDown();
+            return Unit.INSTANCE;
+        }, (ex, timedOut) -> {
+            latch.countDown();
+            return Unit.INSTANCE;
+        });
+        assertEquals(1, withdrawalStatistics.getPendingBroadcasts().get());
+        future.set(tx);
+        assertTrue(latch.await(5, TimeUnit.SECONDS));
+        assertTrue(broadcasted.get());
+        assertEquals(0, withdrawalStatistics.getPendingBroadcasts().get());
+    }
+
+    /**
+     * @given transaction broadcaster and peers that never accept transaction
+     * @when transaction is broadcasted
+     * @then transaction is announced again and the failure callback is called once attempts are over
+     */
+    @Test
+    public void testBroadcastTimeout() throws InterruptedException {
+        Transaction tx = mock(Transaction.class);
+        mockBroadcast(tx, SettableFuture.create());
+        CountDownLatch latch = new CountDownLatch(1);
+        AtomicBoolean timedOutFailure = new AtomicBoolean();
+        transactionBroadcaster.broadcast(tx, () -> {
+            latch.countDown();
+            return Unit.INSTANCE;
+        }, (ex, timedOut) -> {
+            timedOutFailure.set(timedOut);
+            latch.countDown();
+            return Unit.INSTANCE;
+        });
+        // 1 second for the first attempt and 2 seconds for the second one
+        assertTrue(latch.await(10, TimeUnit.SECONDS));
+        assertTrue(timedOutFailure.get());
+        verify(peerGroup, times(2)).broadcastTransaction(tx);
+        assertEquals(0, withdrawalStatistics.getPendingBroadcasts().get());
+    }
+
+    /**
+     * @given transaction broadcaster and transaction that has been seen by peers after the broadcast timed out
+     * @when transaction is checked
+     * @then transaction is considered relayed
+     */
+    @Test
+    public void testAwaitRelayed() throws InterruptedException {
+        Transaction tx = mockTx(TransactionConfidence.ConfidenceType.PENDING, 2);
+        assertTrue(awaitRelayedOrDead(tx, 10));
+        verify(peerGroup, never()).broadcastTransaction(tx);
+    }
+
+    /**
+     * @given transaction broadcaster and transaction that is dead after the broadcast timed out
+     * @when transaction is checked
+     * @then transaction is considered dead
+     */
+    @Test
+    public void testAwaitDead() throws InterruptedException {
+        Transaction tx = mockTx(TransactionConfidence.ConfidenceType.DEAD, 0);
+        assertFalse(awaitRelayedOrDead(tx, 10));
+    }
+
+    /**
+     * @given transaction broadcaster and transaction which input has been spent by another mined transaction
+     * @when transaction is checked
+     * @then transaction is considered dead
+     */
+    @Test
+    public void testAwaitDoubleSpent() throws InterruptedException {
+        Transaction tx = mockTx(TransactionConfidence.ConfidenceType.PENDING, 0);
+        TransactionOutPoint outPoint = mock(TransactionOutPoint.class);
+        when(outPoint.getHash()).thenReturn(Sha256Hash.ZERO_HASH);
+        when(outPoint.getIndex()).thenReturn(0L);
+        TransactionInput input = mock(TransactionInput.class);
+        when(input.getOutpoint()).thenReturn(outPoint);
+        when(tx.getInputs()).thenReturn(Collections.singletonList(input));
+        Transaction spendingTx = mockTx(TransactionConfidence.ConfidenceType.BUILDING, 0);
+        TransactionInput spendingInput = mock(TransactionInput.class);
+        when(spendingInput.getParentTransaction()).thenReturn(spendingTx);
+        TransactionOutput spentOutput = mock(TransactionOutput.class);
+        when(spentOutput.getSpentBy()).thenReturn(spendingInput);
+        Transaction fundingTx = mock(Transaction.class);
+        when(fundingTx.getOutputs()).thenReturn(Collections.singletonList(spentOutput));
+        when(transferWallet.getTransaction(Sha256Hash.ZERO_HASH)).thenReturn(fundingTx);
+        assertFalse(awaitRelayedOrDead(tx, 10));
+    }
+
+    /**
+     * @given transaction broadcaster and transaction that has not been seen by peers after the broadcast timed out
+     * @when transaction is checked
+     * @then withdrawals are not resolved, transaction is announced again and resolved once it's mined
+     */
+    @Test
+    public void testAwaitUnknown() throws InterruptedException {
+        Transaction tx = mockTx(TransactionConfidence.ConfidenceType.PENDING, 0);
+        AtomicBoolean mined = new AtomicBoolean();
+        when(tx.getConfidence().getConfidenceType()).thenAnswer(invocation -> mined.get() ?
+                TransactionConfidence.ConfidenceType.BUILDING : TransactionConfidence.ConfidenceType.PENDING);
+        // Mined after the second announcement
+        when(peerGroup.broadcastTransaction(tx)).thenAnswer(invocation -> {
+            mined.set(true);
+            return null;
+        });
+        // 4 seconds for the first check and 4 seconds for the second one
+        assertTrue(awaitRelayedOrDead(tx, 15));
+        verify(peerGroup).broadcastTransaction(tx);
+    }
+
+    // Waits for the outcome of transaction. 4 seconds are waited before every check
+    private boolean awaitRelayedOrDead(Transaction tx, int timeoutSeconds) throws InterruptedException {
+        CountDownLatch latch = new CountDownLatch(1);
+        AtomicBoolean relayed = new AtomicBoolean();
+        transactionBroadcaster.awaitRelayedOrDead(tx, isRelayed -> {
+            relayed.set(isRelayed);
+            latch.countDown();
+            return Unit.INSTANCE;
+        });
+        assertTrue(latch.await(timeoutSeconds, TimeUnit.SECONDS));
+        return relayed.get();
+    }
+
+    private static Transaction mockTx(TransactionConfidence.ConfidenceType confidenceType, int broadcastPeers) {
+        Transaction tx = mock(Transaction.class);
+        TransactionConfidence confidence = mock(TransactionConfidence.class);
+        when(confidence.getConfidenceType()).thenReturn(confidenceType);
+        when(confidence.numBroadcastPeers()).thenReturn(broadcastPeers);
+        when(tx.getConfidence()).thenReturn(confidence);
+        return tx;
+    }
+
+    private void mockBroadcast(Transaction tx, SettableFuture<Transaction> future) {
+        TransactionBroadcast transactionBroadcast = mock(TransactionBroadcast.class);
+        when(transactionBroadcast.future()).thenReturn(future);
+        when(peerGroup.broadcastTransaction(tx)).thenReturn(transactionBroadcast);
+    }
+}
@@ -0,0 +1,95 @@
+/*
+ * Copyright D3 Ledger, Inc. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package com.d3.btc.executor
+
+import com.d3.btc.metrics.MetricsRegistry
+import com.d3.btc.metrics.registerExecutorMetrics
+import com.d3.btc.metrics.unregisterExecutorMetrics
+import mu.KLogging
+import java.io.Closeable
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicInteger
+
+// Time to wait for queued tasks on close
+private const val CLOSE_TIMEOUT_SECONDS = 10L
+
+/**
+ * Executor that consists of single threaded lanes.
+ * Tasks are put in lanes by key, so tasks with the same key are executed in order of submission
+ * while tasks with different keys may be executed in parallel.
+ * Queues of lanes are exposed as metrics until the executor is closed.
+ * @param serviceName - name of service that owns the executor
+ * @param purpose - purpose of the executor. Used to name threads
+ * @param lanesCount - number of lanes
+ * @param metricsRegistry - registry of metrics to expose lanes in
+ */
+class PartitionedExecutor(
+    serviceName: String,
+    purpose: String,
+    lanesCount: Int,
+    private val metricsRegistry: MetricsRegistry
+) : Closeable {
+
+    private val laneNames = (0 until lanesCount.coerceAtLeast(1)).map { lane -> "$serviceName:$purpose-$lane" }
+
+    private val lanes = laneNames.mapIndexed { lane, laneName ->
+        createSingleThreadPool(serviceName, "$purpose-$lane").also { executor ->
+            registerExecutorMetrics(metricsRegistry, laneName, executor)
+        }
+    }
+
+    /**
+     * Executes task
+     * @param key - key of task
+     * @param task - task to execute
+     */
+    fun execute(key: String, task: () -> Unit) {
+        laneOf(key).execute {
+            try {
+                task()
+            } catch (e: Exception) {
+                logger.error("Cannot execute task with key $key", e)
+            }
+        }
+    }
+
+    /**
+     * Executes a batch of tasks. Doesn't block.
+     * @param tasks - tasks with their keys
+     * @param onComplete - function that is called once all the tasks are executed(successfully or not)
+     */
+    fun executeBatch(tasks: List<Pair<String, () -> Unit>>, onComplete: () -> Unit) {
+        if (tasks.isEmpty()) {
+            onComplete()
+            return
+        }
+        val remainingTasks = AtomicInteger(tasks.size)
+        tasks.forEach { (key, task) ->
+            execute(key) {
+                try {
+                    task()
+                } finally {
+                    if (remainingTasks.decrementAndGet() == 0) {
+                        onComplete()
+                    }
+                }
+            }
+        }
+    }
+
+    private fun laneOf(key: String) = lanes[Math.floorMod(key.hashCode(), lanes.size)]
+
+    override fun close() {
+        laneNames.forEach { laneName -> unregisterExecutorMetrics(metricsRegistry, laneName) }
+        lanes.forEach { lane -> lane.shutdown() }
+        lanes.forEach { lane -> lane.awaitTermination(CLOSE_TIMEOUT_SECONDS, TimeUnit.SECONDS) }
+    }
+
+    /**
+     * Logger
+     */
+    companion object : KLogging()
+}
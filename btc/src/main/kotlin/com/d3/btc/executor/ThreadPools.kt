@@ -0,0 +1,23 @@
+/*
+ * Copyright D3 Ledger, Inc. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package com.d3.btc.executor
+
+import java.util.concurrent.LinkedBlockingQueue
+import java.util.concurrent.ThreadFactory
+import java.util.concurrent.ThreadPoolExecutor
+import java.util.concurrent.TimeUnit
+
+/**
+ * Creates single threaded executor.
+ * Unlike executors of [java.util.concurrent.Executors], the pool is not wrapped, so its queue and threads may be monitored
+ * @param serviceName - name of service that owns the executor
+ * @param purpose - purpose of the executor. Used to name the thread
+ * @return single threaded executor
+ */
+fun createSingleThreadPool(serviceName: String, purpose: String) =
+    ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS, LinkedBlockingQueue<Runnable>(), ThreadFactory { runnable ->
+        Thread(runnable, "$serviceName:$purpose")
+    })
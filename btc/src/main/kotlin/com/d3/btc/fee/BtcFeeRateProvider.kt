@@ -0,0 +1,20 @@
+/*
+ * Copyright D3 Ledger, Inc. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package com.d3.btc.fee
+
+import com.github.kittinunf.result.Result
+
+/**
+ * Source of Bitcoin fee rates
+ */
+interface BtcFeeRateProvider {
+
+    /**
+     * Returns current fee rate
+     * @return fee rate in SAT per byte
+     */
+    fun getFeeRate(): Result<Int, Exception>
+}
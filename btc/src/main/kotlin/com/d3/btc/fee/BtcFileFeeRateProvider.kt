@@ -0,0 +1,26 @@
+/*
+ * Copyright D3 Ledger, Inc. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package com.d3.btc.fee
+
+import com.github.kittinunf.result.Result
+import java.io.File
+
+/**
+ * Fee rate provider that reads fee rate from a file.
+ * The file must contain a single number - fee rate in SAT per byte.
+ * The file is read on every call, so the rate may be changed without restart.
+ * @param feeRateFilePath - path to a file with fee rate
+ */
+class BtcFileFeeRateProvider(private val feeRateFilePath: String) : BtcFeeRateProvider {
+
+    override fun getFeeRate(): Result<Int, Exception> = Result.of {
+        val feeRate = File(feeRateFilePath).readText().trim().toInt()
+        if (feeRate <= 0) {
+            throw IllegalStateException("Fee rate must be positive. Got $feeRate from $feeRateFilePath")
+        }
+        feeRate
+    }
+}
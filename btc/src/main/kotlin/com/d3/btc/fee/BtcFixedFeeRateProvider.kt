@@ -0,0 +1,23 @@
+/*
+ * Copyright D3 Ledger, Inc. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package com.d3.btc.fee
+
+import com.github.kittinunf.result.Result
+
+/**
+ * Fee rate provider that always returns the same fee rate
+ * @param feeRate - fee rate in SAT per byte
+ */
+class BtcFixedFeeRateProvider(private val feeRate: Int) : BtcFeeRateProvider {
+
+    init {
+        if (feeRate <= 0) {
+            throw IllegalArgumentException("Fee rate must be positive. Got $feeRate")
+        }
+    }
+
+    override fun getFeeRate(): Result<Int, Exception> = Result.of(feeRate)
+}
@@ -44,6 +44,9 @@ class NewBtcClientRegistrationHandler(
         )
     }
 
+    override fun route() =
+        SetAccountDetailRoute(creator = btcRegistrationServiceAccount, key = BTC_CURRENCY_NAME_KEY)
+
     /**
      * Checks if new btc client was registered
      */
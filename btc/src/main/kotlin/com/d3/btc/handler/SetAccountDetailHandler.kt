@@ -35,6 +35,13 @@ abstract class SetAccountDetailHandler {
         logger.error("Cannot handle even $setAccountDetailEvent", ex)
     }
 
+    /**
+     * Route of events that the handler is interested in. See [SetAccountDetailRouter].
+     * Events are still checked with [filter], so the route may be wider than the filter.
+     * @return route or null if the handler must see every event
+     */
+    open fun route(): SetAccountDetailRoute? = null
+
     /**
      * Handling logic
      * @param setAccountDetailEvent - event to handle
@@ -54,4 +61,18 @@ abstract class SetAccountDetailHandler {
 /**
  * Data class that represents 'SetAccountDetail' command alongside with its creator
  */
-data class SetAccountDetailEvent(val command: Commands.SetAccountDetail, val creator: String)
\ No newline at end of file
+data class SetAccountDetailEvent(val command: Commands.SetAccountDetail, val creator: String)
+
+/**
+ * Data class that represents a route of 'SetAccountDetail' events
+ * @param creator - creator of command
+ * @param accountId - account id that is set. The most selective part of route
+ * @param domain - domain of account that is set. Used if [accountId] is not known beforehand
+ * @param key - detail key that is set. Used if neither [accountId] nor [domain] is known beforehand
+ */
+data class SetAccountDetailRoute(
+    val creator: String,
+    val accountId: String? = null,
+    val domain: String? = null,
+    val key: String? = null
+)
@@ -0,0 +1,80 @@
+/*
+ * Copyright D3 Ledger, Inc. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package com.d3.btc.handler
+
+/**
+ * Index of 'SetAccountDetail' handlers.
+ * Routes events to handlers with matching [SetAccountDetailRoute] using hash lookups,
+ * so handlers don't have to filter every event of a block.
+ * Handlers without route receive every event.
+ * @param handlers - handlers to route events to. Events are routed in the same order.
+ */
+class SetAccountDetailRouter(private val handlers: List<SetAccountDetailHandler>) {
+
+    // Creator -> routes of the creator
+    private val routesByCreator = HashMap<String, CreatorRoutes>()
+    // Indexes of handlers without route
+    private val unroutedHandlers = ArrayList<Int>()
+
+    init {
+        handlers.forEachIndexed { index, handler ->
+            val route = handler.route()
+            if (route == null) {
+                unroutedHandlers.add(index)
+            } else {
+                routesByCreator.getOrPut(route.creator) { CreatorRoutes() }.add(route, index)
+            }
+        }
+    }
+
+    /**
+     * Returns handlers that may be interested in event
+     * @param setAccountDetailEvent - event to route
+     * @return handlers in the order of registration
+     */
+    fun route(setAccountDetailEvent: SetAccountDetailEvent): List<SetAccountDetailHandler> {
+        val creatorRoutes = routesByCreator[setAccountDetailEvent.creator]
+        if (creatorRoutes == null) {
+            return if (unroutedHandlers.isEmpty()) emptyList() else unroutedHandlers.map { handlers[it] }
+        }
+        val indexes = ArrayList<Int>(unroutedHandlers)
+        creatorRoutes.collect(setAccountDetailEvent, indexes)
+        if (indexes.isEmpty()) {
+            return emptyList()
+        }
+        indexes.sort()
+        return indexes.map { handlers[it] }
+    }
+
+    /**
+     * Routes of one creator
+     */
+    private class CreatorRoutes {
+        private val byAccountId = HashMap<String, MutableList<Int>>()
+        private val byDomain = HashMap<String, MutableList<Int>>()
+        private val byKey = HashMap<String, MutableList<Int>>()
+        private val any = ArrayList<Int>()
+
+        fun add(route: SetAccountDetailRoute, index: Int) {
+            when {
+                route.accountId != null -> byAccountId.getOrPut(route.accountId) { ArrayList() }.add(index)
+                route.domain != null -> byDomain.getOrPut(route.domain) { ArrayList() }.add(index)
+                route.key != null -> byKey.getOrPut(route.key) { ArrayList() }.add(index)
+                else -> any.add(index)
+            }
+        }
+
+        fun collect(setAccountDetailEvent: SetAccountDetailEvent, indexes: MutableList<Int>) {
+            val accountId = setAccountDetailEvent.command.accountId
+            byAccountId[accountId]?.let { indexes.addAll(it) }
+            if (byDomain.isNotEmpty()) {
+                byDomain[accountId.substringAfter('@')]?.let { indexes.addAll(it) }
+            }
+            byKey[setAccountDetailEvent.command.key]?.let { indexes.addAll(it) }
+            indexes.addAll(any)
+        }
+    }
+}
@@ -5,13 +5,17 @@
 
 package com.d3.btc.healthcheck
 
+import com.d3.btc.metrics.MetricsRegistry
+import com.d3.btc.metrics.registerJvmMetrics
 import io.ktor.application.call
 import io.ktor.application.install
 import io.ktor.features.CORS
 import io.ktor.features.ContentNegotiation
 import io.ktor.gson.gson
+import io.ktor.http.ContentType
 import io.ktor.http.HttpStatusCode
 import io.ktor.response.respond
+import io.ktor.response.respondText
 import io.ktor.routing.get
 import io.ktor.routing.routing
 import io.ktor.server.engine.ApplicationEngine
@@ -24,13 +28,17 @@ import java.io.Closeable
 import java.util.concurrent.TimeUnit
 
 /**
- * Health check endpoint
+ * Health check endpoint. Also serves metrics of the process in Prometheus text format
+ * @param healthCheckPort - port of endpoint
+ * @param serviceInitHealthCheck - health check of service initialization
+ * @param metricsRegistry - registry of metrics to serve. JVM metrics are added to the registry
  */
 @Component
 class HealthCheckEndpoint(
     @Qualifier("healthCheckPort")
     private val healthCheckPort: Int,
-    private val serviceInitHealthCheck: ServiceInitHealthCheck
+    private val serviceInitHealthCheck: ServiceInitHealthCheck,
+    private val metricsRegistry: MetricsRegistry
 ) : Closeable {
 
     private val server: ApplicationEngine
@@ -39,6 +47,7 @@ class HealthCheckEndpoint(
      * Initiates ktor based health check server
      */
     init {
+        registerJvmMetrics(metricsRegistry)
         server = embeddedServer(Netty, port = healthCheckPort) {
             install(CORS)
             {
@@ -56,6 +65,9 @@ class HealthCheckEndpoint(
                         )
                     )
                 }
+                get("/metrics") {
+                    call.respondText(metricsRegistry.scrape(), ContentType.parse(MetricsRegistry.CONTENT_TYPE))
+                }
             }
         }
         server.start(wait = false)
@@ -0,0 +1,134 @@
+/*
+ * Copyright D3 Ledger, Inc. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package com.d3.btc.listener
+
+import com.d3.btc.handler.SetAccountDetailEvent
+import com.d3.btc.metrics.MetricsRegistry
+import com.d3.chainadapter.client.ReliableIrohaChainListener
+import com.d3.commons.sidechain.iroha.util.getSetDetailCommandsWithCreator
+import com.github.kittinunf.result.Result
+import com.github.kittinunf.result.flatMap
+import com.github.kittinunf.result.map
+import iroha.protocol.BlockOuterClass
+import mu.KLogging
+import java.io.Closeable
+import java.util.concurrent.CopyOnWriteArrayList
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.atomic.AtomicLong
+
+/**
+ * In-process bus of Iroha blocks.
+ * Blocks are read from RabbitMQ once and shared by all the subscribers of the process.
+ * A block is acknowledged once every subscriber has acknowledged it.
+ * @param irohaChainListener - listener of Iroha blocks
+ * @param metricsRegistry - registry of metrics
+ * @param subscribersCount - number of subscribers that must call [listen] before blocks are read
+ */
+class IrohaBlockBus(
+    private val irohaChainListener: ReliableIrohaChainListener,
+    metricsRegistry: MetricsRegistry,
+    private val subscribersCount: Int = 1
+) : Closeable {
+
+    private val subscribers = CopyOnWriteArrayList<(IrohaBlockEvent, () -> Unit) -> Unit>()
+
+    private var listeningSubscribers = 0
+
+    private val blockLag = metricsRegistry.histogram(
+        "iroha_block_lag_seconds",
+        "Time from creation of Iroha block till its receipt from RabbitMQ"
+    )
+
+    private val lastBlockHeight = AtomicLong()
+
+    init {
+        metricsRegistry.gauge("iroha_block_height", "Height of the last Iroha block received from RabbitMQ") {
+            lastBlockHeight.get()
+        }
+    }
+
+    /**
+     * Subscribes to Iroha blocks
+     * @param subscriber - function that handles block. It must call the acknowledgment function exactly once
+     */
+    fun subscribe(subscriber: (block: IrohaBlockEvent, ack: () -> Unit) -> Unit) {
+        subscribers.add(subscriber)
+    }
+
+    /**
+     * Starts reading blocks once all the subscribers are ready
+     * @return result of operation
+     */
+    @Synchronized
+    fun listen(): Result<Unit, Exception> {
+        if (++listeningSubscribers < subscribersCount) {
+            logger.info("$listeningSubscribers out of $subscribersCount Iroha block subscribers are ready")
+            return Result.of(Unit)
+        }
+        if (listeningSubscribers > subscribersCount) {
+            return Result.of(Unit)
+        }
+        return irohaChainListener.getBlockObservable().map { observable ->
+            observable.subscribe { (block, ack) -> publish(block, ack) }
+        }.flatMap {
+            logger.info("Start listening RMQ Iroha blocks")
+            irohaChainListener.listen()
+        }
+    }
+
+    /**
+     * Publishes block to subscribers
+     * @param block - Iroha block
+     * @param ack - block acknowledgment function
+     */
+    private fun publish(block: BlockOuterClass.Block, ack: () -> Unit) {
+        val payload = block.blockV1.payload
+        blockLag.observe(System.currentTimeMillis() - payload.createdTime)
+        lastBlockHeight.set(payload.height)
+        if (subscribers.isEmpty()) {
+            ack()
+            return
+        }
+        val blockEvent = IrohaBlockEvent(block)
+        val pendingAcks = AtomicInteger(subscribers.size)
+        val subscriberAck = {
+            if (pendingAcks.decrementAndGet() == 0) {
+                ack()
+            }
+        }
+        subscribers.forEach { subscriber ->
+            try {
+                subscriber(blockEvent, subscriberAck)
+            } catch (e: Exception) {
+                logger.error("Cannot handle Iroha block ${block.blockV1.payload.height}", e)
+                subscriberAck()
+            }
+        }
+    }
+
+    override fun close() {
+        irohaChainListener.close()
+    }
+
+    /**
+     * Logger
+     */
+    companion object : KLogging()
+}
+
+/**
+ * Iroha block with lazily decoded commands. Commands are decoded once for all the subscribers
+ * @param block - Iroha block
+ */
+class IrohaBlockEvent(val block: BlockOuterClass.Block) {
+
+    /**
+     * 'SetAccountDetail' commands of the block alongside with their creators
+     */
+    val setAccountDetailEvents: List<SetAccountDetailEvent> by lazy {
+        getSetDetailCommandsWithCreator(block).map { SetAccountDetailEvent(it.command.setAccountDetail, it.creator) }
+    }
+}
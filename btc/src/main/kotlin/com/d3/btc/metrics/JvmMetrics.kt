@@ -0,0 +1,77 @@
+/*
+ * Copyright D3 Ledger, Inc. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package com.d3.btc.metrics
+
+import java.lang.management.ManagementFactory
+import java.util.concurrent.ThreadPoolExecutor
+
+private const val EXECUTOR_QUEUED_TASKS_METRIC = "executor_queued_tasks"
+private const val EXECUTOR_ACTIVE_THREADS_METRIC = "executor_active_threads"
+private const val EXECUTOR_COMPLETED_TASKS_METRIC = "executor_completed_tasks"
+
+/**
+ * Registers memory, thread, garbage collection and uptime gauges of the current JVM
+ * @param registry - registry to register gauges in
+ */
+fun registerJvmMetrics(registry: MetricsRegistry) {
+    val memory = ManagementFactory.getMemoryMXBean()
+    registry.gauge("jvm_memory_used_bytes", "Used JVM memory", mapOf("area" to "heap")) {
+        memory.heapMemoryUsage.used
+    }
+    registry.gauge("jvm_memory_used_bytes", "Used JVM memory", mapOf("area" to "nonheap")) {
+        memory.nonHeapMemoryUsage.used
+    }
+    registry.gauge("jvm_memory_max_bytes", "Max JVM memory. -1 if undefined", mapOf("area" to "heap")) {
+        memory.heapMemoryUsage.max
+    }
+    val threads = ManagementFactory.getThreadMXBean()
+    registry.gauge("jvm_threads_live", "Number of live JVM threads") { threads.threadCount }
+    registry.gauge("jvm_threads_daemon", "Number of daemon JVM threads") { threads.daemonThreadCount }
+    ManagementFactory.getGarbageCollectorMXBeans().forEach { gc ->
+        val labels = mapOf("gc" to gc.name)
+        registry.gauge("jvm_gc_collections", "Number of garbage collections", labels) { gc.collectionCount }
+        registry.gauge("jvm_gc_collection_seconds", "Time spent in garbage collections", labels) {
+            gc.collectionTime / 1000.0
+        }
+    }
+    val runtime = ManagementFactory.getRuntimeMXBean()
+    registry.gauge("process_uptime_seconds", "Uptime of the process") { runtime.uptime / 1000.0 }
+    val os = ManagementFactory.getOperatingSystemMXBean()
+    registry.gauge("system_load_average_1m", "System load average for the last minute. Negative if undefined") {
+        os.systemLoadAverage
+    }
+}
+
+/**
+ * Registers queue and thread gauges of executor
+ * @param registry - registry to register gauges in
+ * @param name - name of executor
+ * @param executor - executor to monitor
+ */
+fun registerExecutorMetrics(registry: MetricsRegistry, name: String, executor: ThreadPoolExecutor) {
+    val labels = mapOf("executor" to name)
+    registry.gauge(EXECUTOR_QUEUED_TASKS_METRIC, "Number of tasks waiting in executor queue", labels) {
+        executor.queue.size
+    }
+    registry.gauge(EXECUTOR_ACTIVE_THREADS_METRIC, "Number of executor threads that execute tasks", labels) {
+        executor.activeCount
+    }
+    registry.gauge(EXECUTOR_COMPLETED_TASKS_METRIC, "Number of tasks completed by executor", labels) {
+        executor.completedTaskCount
+    }
+}
+
+/**
+ * Removes gauges of executor that were registered by [registerExecutorMetrics]
+ * @param registry - registry to remove gauges from
+ * @param name - name of executor
+ */
+fun unregisterExecutorMetrics(registry: MetricsRegistry, name: String) {
+    val labels = mapOf("executor" to name)
+    registry.removeGauge(EXECUTOR_QUEUED_TASKS_METRIC, labels)
+    registry.removeGauge(EXECUTOR_ACTIVE_THREADS_METRIC, labels)
+    registry.removeGauge(EXECUTOR_COMPLETED_TASKS_METRIC, labels)
+}
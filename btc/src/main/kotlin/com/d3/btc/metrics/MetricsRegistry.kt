@@ -0,0 +1,171 @@
+/*
+ * Copyright D3 Ledger, Inc. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package com.d3.btc.metrics
+
+import com.d3.btc.statistics.LatencyHistogram
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.ConcurrentSkipListMap
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicLong
+
+/**
+ * Lightweight registry of counters, gauges and latency histograms.
+ * Metrics are rendered in Prometheus text exposition format(see [scrape]).
+ * A metric is identified by its name and labels. Metrics with the same name must be of the same type.
+ * Services keep one registry per process as a bean. The registry is served by the health check endpoint.
+ */
+class MetricsRegistry {
+
+    // Metric name -> family of metrics. Sorted to render families in a stable order
+    private val families = ConcurrentSkipListMap<String, MetricFamily>()
+
+    /**
+     * Returns counter. The counter is created on the first call
+     * @param name - name of metric. Must end with '_total'
+     * @param help - description of metric
+     * @param labels - labels of metric
+     * @return counter
+     */
+    fun counter(name: String, help: String, labels: Map<String, String> = emptyMap()) =
+        family(name, help, MetricType.COUNTER).counters.computeIfAbsent(labelsOf(labels)) { AtomicLong() }
+
+    /**
+     * Registers gauge. A gauge that was registered with the same name and labels before is replaced
+     * @param name - name of metric
+     * @param help - description of metric
+     * @param labels - labels of metric
+     * @param value - function that returns current value of gauge. It's called on every scrape
+     */
+    fun gauge(name: String, help: String, labels: Map<String, String> = emptyMap(), value: () -> Number) {
+        family(name, help, MetricType.GAUGE).gauges[labelsOf(labels)] = value
+    }
+
+    /**
+     * Removes gauge. Does nothing if there is no such gauge
+     * @param name - name of metric
+     * @param labels - labels of metric
+     */
+    fun removeGauge(name: String, labels: Map<String, String> = emptyMap()) {
+        families[name]?.gauges?.remove(labelsOf(labels))
+    }
+
+    /**
+     * Returns latency histogram. The histogram is created on the first call
+     * @param name - name of metric. Must end with '_seconds'
+     * @param help - description of metric
+     * @param labels - labels of metric
+     * @return latency histogram
+     */
+    fun histogram(name: String, help: String, labels: Map<String, String> = emptyMap()) =
+        family(name, help, MetricType.HISTOGRAM).histograms.computeIfAbsent(labelsOf(labels)) { LatencyHistogram() }
+
+    /**
+     * Executes function and registers its duration in histogram. The duration is registered even if the function fails
+     * @param name - name of histogram
+     * @param help - description of histogram
+     * @param labels - labels of histogram
+     * @param function - function to execute
+     * @return result of function
+     */
+    fun <T> time(name: String, help: String, labels: Map<String, String> = emptyMap(), function: () -> T): T {
+        val histogram = histogram(name, help, labels)
+        val startNanos = System.nanoTime()
+        try {
+            return function()
+        } finally {
+            histogram.observe(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos))
+        }
+    }
+
+    /**
+     * Renders all the metrics in Prometheus text exposition format(version 0.0.4)
+     * @return metrics as text
+     */
+    fun scrape(): String {
+        val text = StringBuilder()
+        families.forEach { (name, family) ->
+            text.append("# HELP ").append(name).append(' ').append(escapeHelp(family.help)).append('\n')
+            text.append("# TYPE ").append(name).append(' ').append(family.type.text).append('\n')
+            family.counters.forEach { (labels, counter) -> appendSample(text, name, labels, counter.get()) }
+            family.gauges.forEach { (labels, gauge) -> appendSample(text, name, labels, gaugeValue(gauge)) }
+            family.histograms.forEach { (labels, histogram) -> appendHistogram(text, name, labels, histogram) }
+        }
+        return text.toString()
+    }
+
+    private fun family(name: String, help: String, type: MetricType): MetricFamily {
+        val family = families.computeIfAbsent(name) { MetricFamily(help, type) }
+        if (family.type != type) {
+            throw IllegalArgumentException("Metric $name is already registered as ${family.type.text}")
+        }
+        return family
+    }
+
+    private fun appendHistogram(text: StringBuilder, name: String, labels: String, histogram: LatencyHistogram) {
+        val snapshot = histogram.snapshot()
+        // Prometheus buckets are cumulative
+        var observations = 0L
+        snapshot.bucketBoundsMillis.forEachIndexed { bucket, boundMillis ->
+            observations += snapshot.bucketCounts[bucket]
+            appendSample(text, name + "_bucket", withLabel(labels, "le", toSeconds(boundMillis)), observations)
+        }
+        appendSample(text, name + "_bucket", withLabel(labels, "le", "+Inf"), snapshot.count)
+        appendSample(text, name + "_sum", labels, toSeconds(snapshot.sumMillis))
+        appendSample(text, name + "_count", labels, snapshot.count)
+    }
+
+    private fun appendSample(text: StringBuilder, name: String, labels: String, value: Any) {
+        text.append(name)
+        if (labels.isNotEmpty()) {
+            text.append('{').append(labels).append('}')
+        }
+        text.append(' ').append(value).append('\n')
+    }
+
+    private fun gaugeValue(gauge: () -> Number): Any {
+        return try {
+            gauge()
+        } catch (e: Exception) {
+            "NaN"
+        }
+    }
+
+    companion object {
+        /**
+         * Content type of [scrape] result
+         */
+        const val CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8"
+    }
+}
+
+private enum class MetricType(val text: String) {
+    COUNTER("counter"), GAUGE("gauge"), HISTOGRAM("histogram")
+}
+
+private class MetricFamily(val help: String, val type: MetricType) {
+    // Rendered labels -> metric
+    val counters = ConcurrentSkipListMap<String, AtomicLong>()
+    val gauges = ConcurrentSkipListMap<String, () -> Number>()
+    val histograms = ConcurrentSkipListMap<String, LatencyHistogram>()
+}
+
+// Rendered labels are cached, because metrics are usually looked up on every observation
+private val renderedLabels = ConcurrentHashMap<Map<String, String>, String>()
+
+private fun labelsOf(labels: Map<String, String>) = renderedLabels.computeIfAbsent(labels) {
+    labels.entries.sortedBy { it.key }.joinToString(",") { (name, value) -> "$name=\"${escapeLabel(value)}\"" }
+}
+
+private fun withLabel(labels: String, name: String, value: String): String {
+    val label = "$name=\"$value\""
+    return if (labels.isEmpty()) label else "$labels,$label"
+}
+
+private fun toSeconds(millis: Long) = (millis / 1000.0).toString()
+
+private fun escapeLabel(value: String) = value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n")
+
+private fun escapeHelp(help: String) = help.replace("\\", "\\\\").replace("\n", "\\n")
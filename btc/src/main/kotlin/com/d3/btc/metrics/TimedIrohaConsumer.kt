@@ -0,0 +1,50 @@
+/*
+ * Copyright D3 Ledger, Inc. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package com.d3.btc.metrics
+
+import com.d3.commons.sidechain.iroha.consumer.IrohaConsumer
+import com.github.kittinunf.result.Result
+import jp.co.soramitsu.iroha.java.Transaction
+
+private const val SEND_DURATION_METRIC = "iroha_send_duration_seconds"
+private const val SEND_DURATION_HELP =
+    "Duration of Iroha transaction or batch sending including the wait for commit"
+private const val SEND_FAILURES_METRIC = "iroha_send_failures_total"
+private const val SEND_FAILURES_HELP = "Number of Iroha transactions that were not committed"
+
+/**
+ * Iroha consumer that measures duration of transaction and batch sending.
+ * Other operations are delegated as is.
+ * @param name - name of consumer. Used as a metric label
+ * @param irohaConsumer - consumer to delegate operations to
+ * @param registry - registry of metrics
+ */
+class TimedIrohaConsumer(
+    private val name: String,
+    private val irohaConsumer: IrohaConsumer,
+    private val registry: MetricsRegistry
+) : IrohaConsumer by irohaConsumer {
+
+    override fun send(utx: Transaction): Result<String, Exception> {
+        val labels = mapOf("consumer" to name, "operation" to "send")
+        val result = registry.time(SEND_DURATION_METRIC, SEND_DURATION_HELP, labels) { irohaConsumer.send(utx) }
+        if (result is Result.Failure) {
+            registry.counter(SEND_FAILURES_METRIC, SEND_FAILURES_HELP, labels).incrementAndGet()
+        }
+        return result
+    }
+
+    override fun send(lst: List<Transaction>): Result<List<String>, Exception> {
+        val labels = mapOf("consumer" to name, "operation" to "send_batch")
+        val result = registry.time(SEND_DURATION_METRIC, SEND_DURATION_HELP, labels) { irohaConsumer.send(lst) }
+        // Transactions of a batch may be committed independently
+        val notCommitted = result.fold({ committedHashes -> lst.size - committedHashes.size }, { lst.size })
+        if (notCommitted > 0) {
+            registry.counter(SEND_FAILURES_METRIC, SEND_FAILURES_HELP, labels).addAndGet(notCommitted.toLong())
+        }
+        return result
+    }
+}
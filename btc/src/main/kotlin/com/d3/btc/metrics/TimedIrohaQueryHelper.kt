@@ -0,0 +1,69 @@
+/*
+ * Copyright D3 Ledger, Inc. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package com.d3.btc.metrics
+
+import com.d3.commons.sidechain.iroha.util.IrohaQueryHelper
+import com.github.kittinunf.result.Result
+import java.util.*
+
+private const val QUERY_DURATION_METRIC = "iroha_query_duration_seconds"
+private const val QUERY_DURATION_HELP = "Duration of Iroha queries"
+private const val QUERY_FAILURES_METRIC = "iroha_query_failures_total"
+private const val QUERY_FAILURES_HELP = "Number of failed Iroha queries"
+
+/**
+ * Iroha query helper that measures duration of account details queries.
+ * Other queries are delegated as is.
+ * @param name - name of query helper. Used as a metric label
+ * @param queryHelper - query helper to delegate queries to
+ * @param registry - registry of metrics
+ */
+class TimedIrohaQueryHelper(
+    private val name: String,
+    private val queryHelper: IrohaQueryHelper,
+    private val registry: MetricsRegistry
+) : IrohaQueryHelper by queryHelper {
+
+    override fun getAccountDetails(
+        storageAccountId: String,
+        writerAccountId: String
+    ): Result<Map<String, String>, Exception> =
+        measure("getAccountDetails") { queryHelper.getAccountDetails(storageAccountId, writerAccountId) }
+
+    override fun getAccountDetails(
+        storageAccountId: String,
+        writerAccountId: String,
+        key: String
+    ): Result<Optional<String>, Exception> =
+        measure("getAccountDetail") { queryHelper.getAccountDetails(storageAccountId, writerAccountId, key) }
+
+    override fun getAccountDetailsCount(
+        storageAccountId: String,
+        writerAccountId: String,
+        filterPredicate: (key: String, value: String) -> Boolean
+    ): Result<Int, Exception> =
+        measure("getAccountDetailsCount") {
+            queryHelper.getAccountDetailsCount(storageAccountId, writerAccountId, filterPredicate)
+        }
+
+    override fun getAccountDetailsFirst(
+        storageAccountId: String,
+        writerAccountId: String,
+        firstPredicate: (key: String, value: String) -> Boolean
+    ): Result<Optional<Map.Entry<String, String>>, Exception> =
+        measure("getAccountDetailsFirst") {
+            queryHelper.getAccountDetailsFirst(storageAccountId, writerAccountId, firstPredicate)
+        }
+
+    private fun <T : Any> measure(query: String, execute: () -> Result<T, Exception>): Result<T, Exception> {
+        val labels = mapOf("query_helper" to name, "query" to query)
+        val result = registry.time(QUERY_DURATION_METRIC, QUERY_DURATION_HELP, labels, execute)
+        if (result is Result.Failure) {
+            registry.counter(QUERY_FAILURES_METRIC, QUERY_FAILURES_HELP, labels).incrementAndGet()
+        }
+        return result
+    }
+}
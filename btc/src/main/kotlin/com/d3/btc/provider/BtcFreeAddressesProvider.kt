@@ -11,18 +11,44 @@ import com.d3.commons.sidechain.iroha.consumer.IrohaConsumer
 import com.d3.commons.sidechain.iroha.util.IrohaQueryHelper
 import com.d3.commons.sidechain.iroha.util.ModelUtil
 import com.d3.commons.util.irohaEscape
+import com.d3.commons.util.irohaUnEscape
 import com.github.kittinunf.result.Result
 import com.github.kittinunf.result.map
+import iroha.protocol.BlockOuterClass
 import jp.co.soramitsu.iroha.java.Transaction
 
-// Class that used to fetch free addresses(addresses that might be registered by clients)
+// Free addresses are re-counted in Iroha once in a minute
+private const val DEFAULT_COUNT_CHECK_PERIOD_MLS = 60_000L
+
+/**
+ * Class that used to fetch free addresses(addresses that might be registered by clients).
+ * The number of free addresses is counted in Iroha once per [countCheckPeriodMls] and
+ * kept up to date in between by [onBlock] and [onFreeAddressTaken].
+ * Counted addresses are remembered, so blocks that are handled after the count but were committed before it
+ * are not counted twice. The count may still be too low for a while if a block is handled
+ * while Iroha is being queried. The next count check fixes it.
+ */
 class BtcFreeAddressesProvider(
     private val nodeId: String,
     private val freeAddressesStorageAccount: String,
     private val registrationQueryHelper: IrohaQueryHelper,
-    private val registrationIrohaConsumer: IrohaConsumer
+    private val registrationIrohaConsumer: IrohaConsumer,
+    private val countCheckPeriodMls: Long = DEFAULT_COUNT_CHECK_PERIOD_MLS
 ) {
 
+    private val countLock = Object()
+
+    // Free addresses counted in Iroha. Null if addresses have never been counted
+    private var checkedAddresses: Set<String>? = null
+
+    private var lastCountCheckTime = 0L
+
+    // Free addresses of the node that were created since the last count check and are not counted
+    private val createdSinceCheck = HashSet<String>()
+
+    // Counted or created free addresses of the node that were taken by clients since the last count check
+    private val takenSinceCheck = HashSet<String>()
+
     // Predicate for free Bitcoin addresses
     private val freeAddressPredicate =
         { _: String, value: String ->
@@ -30,13 +56,80 @@ class BtcFreeAddressesProvider(
         }
 
     /**
-     * Counts free Bitcoin addresses
+     * Counts free Bitcoin addresses. Iroha is queried only if the last count check is too old
      * @return number of free Bitcoin addresses
      */
-    fun countFreeAddresses() = registrationQueryHelper.getAccountDetailsCount(
-        freeAddressesStorageAccount,
-        registrationQueryHelper.getQueryCreatorAccountId(), freeAddressPredicate
-    )
+    fun countFreeAddresses(): Result<Int, Exception> {
+        synchronized(countLock) {
+            val addresses = checkedAddresses
+            if (addresses != null && System.currentTimeMillis() - lastCountCheckTime < countCheckPeriodMls) {
+                return Result.of { Math.max(0, addresses.size + createdSinceCheck.size - takenSinceCheck.size) }
+            }
+        }
+        return getFreeAddresses().map { freeAddresses ->
+            val addresses = freeAddresses.map { freeAddress -> freeAddress.address }.toSet()
+            synchronized(countLock) {
+                checkedAddresses = addresses
+                lastCountCheckTime = System.currentTimeMillis()
+                createdSinceCheck.clear()
+                takenSinceCheck.clear()
+            }
+            addresses.size
+        }
+    }
+
+    /**
+     * Updates the number of free addresses using committed block
+     * @param block - Iroha block
+     */
+    fun onBlock(block: BlockOuterClass.Block) {
+        val writerAccountId = registrationQueryHelper.getQueryCreatorAccountId()
+        block.blockV1.payload.transactionsList
+            .filter { tx -> tx.payload.reducedPayload.creatorAccountId == writerAccountId }
+            .flatMap { tx -> tx.payload.reducedPayload.commandsList }
+            .forEach { command ->
+                if (command.hasSetAccountDetail()) {
+                    val setDetail = command.setAccountDetail
+                    if (setDetail.accountId == freeAddressesStorageAccount && isMyAddressInfo(setDetail.value)) {
+                        onFreeAddressCreated(setDetail.key)
+                    }
+                } else if (command.hasCompareAndSetAccountDetail()) {
+                    val casDetail = command.compareAndSetAccountDetail
+                    if (casDetail.accountId == freeAddressesStorageAccount
+                        && casDetail.value.isEmpty()
+                        && isMyAddressInfo(casDetail.oldValue)
+                    ) {
+                        onFreeAddressTaken(casDetail.key)
+                    }
+                }
+            }
+    }
+
+    /**
+     * Registers that free address was taken by client.
+     * Addresses that were taken before the last count check are ignored
+     * @param address - address that was taken
+     */
+    fun onFreeAddressTaken(address: String) {
+        synchronized(countLock) {
+            if (checkedAddresses?.contains(address) == true || createdSinceCheck.contains(address)) {
+                takenSinceCheck.add(address)
+            }
+        }
+    }
+
+    // Registers that free address was created. Addresses that were created before the last count check are ignored
+    private fun onFreeAddressCreated(address: String) {
+        synchronized(countLock) {
+            if (checkedAddresses?.contains(address) != true) {
+                createdSinceCheck.add(address)
+            }
+        }
+    }
+
+    // Checks if escaped address info belongs to the node
+    private fun isMyAddressInfo(escapedAddressInfo: String) =
+        escapedAddressInfo.isNotEmpty() && AddressInfo.fromJson(escapedAddressInfo.irohaUnEscape()).nodeId == nodeId
 
     /**
      * Creates free address
@@ -76,19 +169,16 @@ class BtcFreeAddressesProvider(
         ).map { details -> !details.isPresent }
 
     /**
-     * Returns free address
-     * @return free address
+     * Returns all free addresses of the node
+     * @return free addresses
      */
-    fun getFreeAddress(): Result<BtcAddress, Exception> {
-        return registrationQueryHelper.getAccountDetailsFirstShufflePage(
+    fun getFreeAddresses(): Result<List<BtcAddress>, Exception> {
+        return registrationQueryHelper.getAccountDetails(
             freeAddressesStorageAccount,
-            registrationQueryHelper.getQueryCreatorAccountId(), freeAddressPredicate
-        ).map { freeAddressDetail ->
-            if (!freeAddressDetail.isPresent) {
-                throw IllegalStateException("No free address to take")
-            }
-            val (address, addressInfoJson) = freeAddressDetail.get()
-            BtcAddress(address, AddressInfo.fromJson(addressInfoJson))
+            registrationQueryHelper.getQueryCreatorAccountId()
+        ).map { details ->
+            details.filter { (address, addressInfoJson) -> freeAddressPredicate(address, addressInfoJson) }
+                .map { (address, addressInfoJson) -> BtcAddress(address, AddressInfo.fromJson(addressInfoJson)) }
         }
     }
 
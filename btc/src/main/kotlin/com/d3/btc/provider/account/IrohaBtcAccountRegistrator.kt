@@ -13,6 +13,7 @@ import com.github.kittinunf.result.Result
 import com.github.kittinunf.result.flatMap
 import com.github.kittinunf.result.map
 import jp.co.soramitsu.iroha.java.Transaction
+import jp.co.soramitsu.iroha.java.Utils
 
 const val BTC_CURRENCY_NAME_KEY = "bitcoin"
 
@@ -44,6 +45,46 @@ class IrohaBtcAccountRegistrator(
         nodeId: String,
         transactionMutator: (Transaction) -> Transaction
     ): Result<String, Exception> {
+        return buildTx(btcAddress, userName, domain, notaryKeys, nodeId, transactionMutator).flatMap {
+            registrationIrohaConsumer.send(it)
+        }.map { btcAddress }
+    }
+
+    /**
+     * Creates new Bitcoin accounts in Iroha using one ordered batch.
+     * Transactions of the batch are committed independently, so some accounts may be created while others are not
+     * @param transactions - registration transactions. See [buildTx]
+     * @return list of flags in order of transactions. A flag is true if the corresponding transaction was committed
+     */
+    fun createBatch(transactions: List<Transaction>): Result<List<Boolean>, Exception> {
+        return Result.of {
+            Utils.createTxUnsignedOrderedBatch(transactions).toList()
+        }.flatMap { batch ->
+            registrationIrohaConsumer.send(batch).map { committedHashes ->
+                val committed = committedHashes.mapTo(HashSet()) { hash -> hash.toLowerCase() }
+                batch.map { transaction -> committed.contains(Utils.toHex(Utils.hash(transaction.build())).toLowerCase()) }
+            }
+        }
+    }
+
+    /**
+     * Builds transaction that creates new Bitcoin account in Iroha with given address
+     * @param btcAddress - Bitcoin address
+     * @param userName - client userName in Iroha
+     * @param domain - client domain
+     * @param notaryKeys - keys that were used to create given address
+     * @param nodeId - node id
+     * @param transactionMutator - function that mutates(adds new commands) original registration transaction
+     * @return registration transaction
+     */
+    fun buildTx(
+        btcAddress: String,
+        userName: String,
+        domain: String,
+        notaryKeys: List<String>,
+        nodeId: String,
+        transactionMutator: (Transaction) -> Transaction
+    ): Result<Transaction, Exception> {
         return irohaAccountRegistrator.buildTx(
             btcAddress,
             "$userName@$domain"
@@ -56,8 +97,6 @@ class IrohaBtcAccountRegistrator(
             ).toJson().irohaEscape()
         }.map { transaction ->
             transactionMutator(transaction)
-        }.flatMap {
-            registrationIrohaConsumer.send(it)
-        }.map { btcAddress }
+        }
     }
 }
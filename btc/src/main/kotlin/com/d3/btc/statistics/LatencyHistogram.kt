@@ -0,0 +1,98 @@
+/*
+ * Copyright D3 Ledger, Inc. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package com.d3.btc.statistics
+
+import java.util.*
+import java.util.concurrent.atomic.AtomicLong
+import java.util.concurrent.atomic.AtomicLongArray
+
+// Upper bounds of latency buckets in milliseconds
+private val DEFAULT_BUCKET_BOUNDS_MILLIS =
+    longArrayOf(10, 50, 100, 250, 500, 1_000, 2_500, 5_000, 10_000, 30_000, 60_000, 300_000)
+
+/**
+ * Lock-free histogram of latencies.
+ * An observation falls into the first bucket whose upper bound is not less than the observed value.
+ * Observations that exceed all the bounds fall into the overflow bucket.
+ * @param bucketBoundsMillis - upper bounds of buckets in milliseconds in ascending order
+ */
+class LatencyHistogram(private val bucketBoundsMillis: LongArray = DEFAULT_BUCKET_BOUNDS_MILLIS) {
+
+    // The last bucket is the overflow bucket
+    private val bucketCounts = AtomicLongArray(bucketBoundsMillis.size + 1)
+    private val count = AtomicLong()
+    private val sumMillis = AtomicLong()
+    private val maxMillis = AtomicLong()
+
+    /**
+     * Registers latency
+     * @param latencyMillis - latency in milliseconds
+     */
+    fun observe(latencyMillis: Long) {
+        val latency = latencyMillis.coerceAtLeast(0)
+        val searchResult = Arrays.binarySearch(bucketBoundsMillis, latency)
+        val bucket = if (searchResult >= 0) searchResult else -searchResult - 1
+        bucketCounts.incrementAndGet(bucket)
+        sumMillis.addAndGet(latency)
+        maxMillis.accumulateAndGet(latency) { current, new -> Math.max(current, new) }
+        count.incrementAndGet()
+    }
+
+    /**
+     * Returns current state of histogram.
+     * Observations that happen while the snapshot is taken may be partially taken into account.
+     * @return snapshot of histogram
+     */
+    fun snapshot() = LatencyHistogramSnapshot(
+        bucketBoundsMillis.toList(),
+        (0 until bucketCounts.length()).map { bucket -> bucketCounts.get(bucket) },
+        count.get(),
+        sumMillis.get(),
+        maxMillis.get()
+    )
+}
+
+/**
+ * Snapshot of [LatencyHistogram]
+ * @param bucketBoundsMillis - upper bounds of buckets in milliseconds
+ * @param bucketCounts - number of observations per bucket. The last one is the overflow bucket
+ * @param count - total number of observations
+ * @param sumMillis - sum of all the observed latencies in milliseconds
+ * @param maxMillis - the highest observed latency in milliseconds
+ */
+data class LatencyHistogramSnapshot(
+    val bucketBoundsMillis: List<Long>,
+    val bucketCounts: List<Long>,
+    val count: Long,
+    val sumMillis: Long,
+    val maxMillis: Long
+) {
+
+    /**
+     * Estimates percentile of latency as the upper bound of the bucket that holds it
+     * @param percentile - percentile in range (0, 100]
+     * @return estimated latency in milliseconds or 0 if nothing has been observed
+     */
+    fun percentileMillis(percentile: Double): Long {
+        val total = bucketCounts.sum()
+        if (total == 0L) {
+            return 0
+        }
+        val rank = Math.ceil(total * percentile / 100).toLong().coerceIn(1, total)
+        var observations = 0L
+        bucketCounts.forEachIndexed { bucket, bucketCount ->
+            observations += bucketCount
+            if (observations >= rank) {
+                return if (bucket < bucketBoundsMillis.size) {
+                    Math.min(bucketBoundsMillis[bucket], maxMillis)
+                } else {
+                    maxMillis
+                }
+            }
+        }
+        return maxMillis
+    }
+}
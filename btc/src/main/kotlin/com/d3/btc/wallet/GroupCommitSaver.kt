@@ -0,0 +1,68 @@
+/*
+ * Copyright D3 Ledger, Inc. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package com.d3.btc.wallet
+
+import com.d3.btc.metrics.MetricsRegistry
+import org.bitcoinj.wallet.Wallet
+
+/**
+ * Saver that coalesces concurrent save requests.
+ * [save] returns only after a save that started after the call has completed, so every change made before
+ * the call is persisted. Callers that come while a save is in progress are served by one more save.
+ * @param persist - function that persists the current state
+ */
+class GroupCommitSaver(private val persist: () -> Unit) {
+
+    private val lock = Object()
+
+    // Number of the last save request
+    private var lastRequest = 0L
+
+    // Number of the last request that is covered by a completed save
+    private var lastPersistedRequest = 0L
+
+    private var saving = false
+
+    /**
+     * Persists the current state. Blocks until the state is persisted
+     * @throws Exception if the state cannot be persisted
+     */
+    fun save() {
+        synchronized(lock) {
+            val request = ++lastRequest
+            while (saving) {
+                lock.wait()
+            }
+            if (lastPersistedRequest >= request) {
+                // Persisted by another caller
+                return
+            }
+            saving = true
+        }
+        var persistedRequest: Long? = null
+        try {
+            // Every request made so far has its changes applied already
+            val coveredRequest = synchronized(lock) { lastRequest }
+            persist()
+            persistedRequest = coveredRequest
+        } finally {
+            synchronized(lock) {
+                saving = false
+                persistedRequest?.let { lastPersistedRequest = Math.max(lastPersistedRequest, it) }
+                lock.notifyAll()
+            }
+        }
+    }
+}
+
+/**
+ * Creates group commit saver of wallet. See [safeSave]
+ * @param walletPath - file path to wallet
+ * @param metricsRegistry - registry of metrics to register duration of saving in
+ * @return saver of wallet
+ */
+fun Wallet.groupCommitSaver(walletPath: String, metricsRegistry: MetricsRegistry) =
+    GroupCommitSaver { this.safeSave(walletPath, metricsRegistry) }
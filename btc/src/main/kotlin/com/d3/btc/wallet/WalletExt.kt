@@ -5,6 +5,7 @@
 
 package com.d3.btc.wallet
 
+import com.d3.btc.metrics.MetricsRegistry
 import com.d3.btc.model.BtcAddress
 import com.d3.btc.provider.network.BtcNetworkConfigProvider
 import com.github.kittinunf.result.Result
@@ -22,10 +23,23 @@ private val logger = KLogging().logger
  * Saves wallet safely.
  * Need to use if wallet file is used among multiple JVM processes
  * @param walletPath - file path to wallet
+ * @param metricsRegistry - registry of metrics to register duration of saving in
  */
 @Synchronized
-fun Wallet.safeSave(walletPath: String) {
-    lockFileApply(walletPath) { this.saveToFile(File(walletPath)) }
+fun Wallet.safeSave(walletPath: String, metricsRegistry: MetricsRegistry) {
+    lockFileApply(walletPath) { this.measuredSave(walletPath, metricsRegistry) }
+}
+
+/**
+ * Saves wallet and registers duration of saving
+ * @param walletPath - file path to wallet
+ * @param metricsRegistry - registry of metrics to register duration in
+ */
+fun Wallet.measuredSave(walletPath: String, metricsRegistry: MetricsRegistry) {
+    val walletFile = File(walletPath)
+    metricsRegistry.time("wallet_save_duration_seconds", "Duration of wallet saving", mapOf("wallet" to walletFile.name)) {
+        this.saveToFile(walletFile)
+    }
 }
 
 /**
@@ -120,18 +134,19 @@ fun createWalletIfAbsent(walletPath: String, networkProvider: BtcNetworkConfigPr
 /**
  * Loads wallet using given file path and makes it "autosavable"
  * @param walletPath - path to a wallet
+ * @param metricsRegistry - registry of metrics to register duration of saving in
  * @return wallet
  */
-fun loadAutoSaveWallet(walletPath: String): Wallet {
+fun loadAutoSaveWallet(walletPath: String, metricsRegistry: MetricsRegistry): Wallet {
     val wallet = Wallet.loadFromFile(File(walletPath))
     // Save the wallet file on every received coin in order to track UTXO
     wallet.addCoinsReceivedEventListener { _, _, _, _ ->
-        wallet.saveToFile(File(walletPath))
+        wallet.measuredSave(walletPath, metricsRegistry)
         logger.info("Got coin. Save wallet to $walletPath.")
     }
     // Save the wallet file on every sent coin in order to track UTXO
     wallet.addCoinsSentEventListener { _, _, _, _ ->
-        wallet.saveToFile(File(walletPath))
+        wallet.measuredSave(walletPath, metricsRegistry)
         logger.info("Sent coin. Save wallet to $walletPath.")
     }
     return wallet
@@ -0,0 +1,96 @@
+/*
+ * Copyright D3 Ledger, Inc. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package com.d3.btc.executor
+
+import com.d3.btc.metrics.MetricsRegistry
+import org.junit.jupiter.api.AfterEach
+import org.junit.jupiter.api.Assertions.assertEquals
+import org.junit.jupiter.api.Assertions.assertFalse
+import org.junit.jupiter.api.Assertions.assertTrue
+import org.junit.jupiter.api.Test
+import java.util.*
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicInteger
+
+class PartitionedExecutorTest {
+
+    private val metricsRegistry = MetricsRegistry()
+
+    private val partitionedExecutor = PartitionedExecutor("test", "partitioned", 4, metricsRegistry)
+
+    @AfterEach
+    fun tearDown() {
+        partitionedExecutor.close()
+    }
+
+    /**
+     * @given partitioned executor with 4 lanes
+     * @when a batch of tasks with different keys is executed
+     * @then tasks with the same key are executed in order of submission
+     * and the completion function is called once all the tasks are executed
+     */
+    @Test
+    fun testExecuteBatch() {
+        val keys = listOf("a", "b", "c", "d", "e")
+        val executed = keys.associate { key -> key to Collections.synchronizedList(ArrayList<Int>()) }
+        val tasks = (0 until 100).map { index ->
+            val key = keys[index % keys.size]
+            Pair(key, { executed.getValue(key).add(index); Unit })
+        }
+        val completed = CountDownLatch(1)
+        val completions = AtomicInteger()
+        partitionedExecutor.executeBatch(tasks) {
+            completions.incrementAndGet()
+            completed.countDown()
+        }
+        assertTrue(completed.await(5, TimeUnit.SECONDS))
+        assertEquals(100, executed.values.sumBy { it.size })
+        executed.values.forEach { indexes -> assertEquals(indexes.sorted(), indexes) }
+        assertEquals(1, completions.get())
+    }
+
+    /**
+     * @given partitioned executor
+     * @when a batch with a failing task is executed
+     * @then the completion function is called anyway
+     */
+    @Test
+    fun testExecuteBatchFailure() {
+        val completed = CountDownLatch(1)
+        partitionedExecutor.executeBatch(
+            listOf(
+                Pair("a", { throw IllegalStateException("Failure") }),
+                Pair("b", { Unit })
+            )
+        ) { completed.countDown() }
+        assertTrue(completed.await(5, TimeUnit.SECONDS))
+    }
+
+    /**
+     * @given partitioned executor
+     * @when an empty batch is executed
+     * @then the completion function is called right away
+     */
+    @Test
+    fun testExecuteEmptyBatch() {
+        var completed = false
+        partitionedExecutor.executeBatch(emptyList()) { completed = true }
+        assertTrue(completed)
+    }
+
+    /**
+     * @given partitioned executor with 4 lanes
+     * @when the executor is closed
+     * @then gauges of its lanes are removed from metrics
+     */
+    @Test
+    fun testCloseRemovesMetrics() {
+        assertTrue(metricsRegistry.scrape().contains("executor_queued_tasks{executor=\"test:partitioned-3\"} 0"))
+        partitionedExecutor.close()
+        assertFalse(metricsRegistry.scrape().contains("executor=\"test:partitioned-"))
+    }
+}
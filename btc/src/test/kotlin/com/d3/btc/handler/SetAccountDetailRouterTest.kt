@@ -0,0 +1,132 @@
+/*
+ * Copyright D3 Ledger, Inc. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package com.d3.btc.handler
+
+import iroha.protocol.Commands
+import org.junit.jupiter.api.Assertions.assertEquals
+import org.junit.jupiter.api.Assertions.assertTrue
+import org.junit.jupiter.api.Test
+import java.util.*
+
+class SetAccountDetailRouterTest {
+
+    /**
+     * @given router with handlers routed by account id, domain, key and creator only
+     * @when events are routed
+     * @then only handlers with matching routes are returned
+     */
+    @Test
+    fun testRoute() {
+        val byAccountId = TestHandler(SetAccountDetailRoute(creator = "creator@d3", accountId = "storage@d3"))
+        val byDomain = TestHandler(SetAccountDetailRoute(creator = "creator@d3", domain = "session"))
+        val byKey = TestHandler(SetAccountDetailRoute(creator = "creator@d3", key = "bitcoin"))
+        val byCreator = TestHandler(SetAccountDetailRoute(creator = "other@d3"))
+        val router = SetAccountDetailRouter(listOf(byAccountId, byDomain, byKey, byCreator))
+
+        assertEquals(listOf(byAccountId), router.route(createEvent("creator@d3", "storage@d3", "key")))
+        assertEquals(listOf(byDomain), router.route(createEvent("creator@d3", "abc@session", "key")))
+        assertEquals(listOf(byKey), router.route(createEvent("creator@d3", "client@d3", "bitcoin")))
+        assertEquals(listOf(byCreator), router.route(createEvent("other@d3", "client@d3", "key")))
+        assertTrue(router.route(createEvent("unknown@d3", "storage@d3", "bitcoin")).isEmpty())
+    }
+
+    /**
+     * @given router with handlers that match the same event and a handler without route
+     * @when event is routed
+     * @then all the matching handlers are returned in the order of registration
+     */
+    @Test
+    fun testRouteOrder() {
+        val unrouted = TestHandler(null)
+        val byKey = TestHandler(SetAccountDetailRoute(creator = "creator@d3", key = "bitcoin"))
+        val byAccountId = TestHandler(SetAccountDetailRoute(creator = "creator@d3", accountId = "client@d3"))
+        val router = SetAccountDetailRouter(listOf(byKey, unrouted, byAccountId))
+
+        assertEquals(
+            listOf(byKey, unrouted, byAccountId),
+            router.route(createEvent("creator@d3", "client@d3", "bitcoin"))
+        )
+        assertEquals(listOf(unrouted), router.route(createEvent("unknown@d3", "client@d3", "bitcoin")))
+    }
+
+    /**
+     * @given a dozen of handlers and blocks with thousands of 'SetAccountDetail' commands
+     * @when commands are dispatched by checking every handler and by using router
+     * @then both ways handle the same events
+     */
+    @Test
+    fun testRouteEquivalence() {
+        val handlers = (0 until HANDLERS).map { index ->
+            when (index % 3) {
+                0 -> TestHandler(SetAccountDetailRoute(creator = "creator$index@d3", accountId = "storage$index@d3"))
+                1 -> TestHandler(SetAccountDetailRoute(creator = "creator$index@d3", domain = "domain$index"))
+                else -> TestHandler(SetAccountDetailRoute(creator = "creator$index@d3", key = "key$index"))
+            }
+        }
+        val router = SetAccountDetailRouter(handlers)
+        val random = Random(SEED)
+        val blocks = (0 until BLOCKS).map {
+            (0 until COMMANDS_PER_BLOCK).map {
+                val index = random.nextInt(HANDLERS * 2)
+                val accountId = if (index % 3 == 1) "session$index@domain$index" else "storage$index@d3"
+                createEvent("creator$index@d3", accountId, "key$index")
+            }
+        }
+        dispatchLinear(blocks, handlers)
+        val linearHandled = handlers.map { it.handled }
+        handlers.forEach { it.handled = 0 }
+        dispatchRouted(blocks, router)
+        val routedHandled = handlers.map { it.handled }
+
+        assertEquals(linearHandled, routedHandled)
+        assertTrue(routedHandled.sum() > 0)
+    }
+
+    private fun dispatchLinear(blocks: List<List<SetAccountDetailEvent>>, handlers: List<TestHandler>) {
+        blocks.forEach { block -> block.forEach { event -> handlers.forEach { it.handleFiltered(event) } } }
+    }
+
+    private fun dispatchRouted(blocks: List<List<SetAccountDetailEvent>>, router: SetAccountDetailRouter) {
+        blocks.forEach { block -> block.forEach { event -> router.route(event).forEach { it.handleFiltered(event) } } }
+    }
+
+    private fun createEvent(creator: String, accountId: String, key: String) = SetAccountDetailEvent(
+        Commands.SetAccountDetail.newBuilder().setAccountId(accountId).setKey(key).setValue("value").build(),
+        creator
+    )
+
+    /**
+     * Handler that counts events that pass its route
+     */
+    private class TestHandler(private val route: SetAccountDetailRoute?) : SetAccountDetailHandler() {
+
+        var handled = 0
+
+        override fun route() = route
+
+        override fun handle(setAccountDetailEvent: SetAccountDetailEvent) {
+            handled++
+        }
+
+        override fun filter(setAccountDetailEvent: SetAccountDetailEvent): Boolean {
+            if (route == null) {
+                return true
+            }
+            val command = setAccountDetailEvent.command
+            return setAccountDetailEvent.creator == route.creator
+                    && (route.accountId == null || command.accountId == route.accountId)
+                    && (route.domain == null || command.accountId.endsWith("@${route.domain}"))
+                    && (route.key == null || command.key == route.key)
+        }
+    }
+
+    companion object {
+        private const val SEED = 42L
+        private const val HANDLERS = 12
+        private const val BLOCKS = 10
+        private const val COMMANDS_PER_BLOCK = 1_000
+    }
+}
@@ -0,0 +1,67 @@
+/*
+ * Copyright D3 Ledger, Inc. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package com.d3.btc.metrics
+
+import org.junit.jupiter.api.Assertions.assertEquals
+import org.junit.jupiter.api.Assertions.assertThrows
+import org.junit.jupiter.api.Assertions.assertTrue
+import org.junit.jupiter.api.Test
+
+class MetricsRegistryTest {
+
+    private val registry = MetricsRegistry()
+
+    /**
+     * @given metrics registry with a counter and a gauge
+     * @when metrics are scraped
+     * @then every metric is rendered with its help, type and labels
+     */
+    @Test
+    fun testScrapeCounterAndGauge() {
+        registry.counter("requests_total", "Number of requests", mapOf("path" to "/metrics")).addAndGet(3)
+        registry.gauge("queue_size", "Size of queue") { 5 }
+        val lines = registry.scrape().lines()
+        assertEquals("# HELP queue_size Size of queue", lines[0])
+        assertEquals("# TYPE queue_size gauge", lines[1])
+        assertEquals("queue_size 5", lines[2])
+        assertEquals("# HELP requests_total Number of requests", lines[3])
+        assertEquals("# TYPE requests_total counter", lines[4])
+        assertEquals("requests_total{path=\"/metrics\"} 3", lines[5])
+    }
+
+    /**
+     * @given metrics registry with a histogram
+     * @when latencies are observed and metrics are scraped
+     * @then buckets are rendered cumulatively in seconds alongside with the sum and the count of observations
+     */
+    @Test
+    fun testScrapeHistogram() {
+        val histogram = registry.histogram("query_duration_seconds", "Duration of queries", mapOf("query" to "q"))
+        histogram.observe(5)
+        histogram.observe(70)
+        histogram.observe(500_000)
+        val text = registry.scrape()
+        assertTrue(text.contains("query_duration_seconds_bucket{query=\"q\",le=\"0.01\"} 1\n"))
+        assertTrue(text.contains("query_duration_seconds_bucket{query=\"q\",le=\"0.1\"} 2\n"))
+        assertTrue(text.contains("query_duration_seconds_bucket{query=\"q\",le=\"300.0\"} 2\n"))
+        assertTrue(text.contains("query_duration_seconds_bucket{query=\"q\",le=\"+Inf\"} 3\n"))
+        assertTrue(text.contains("query_duration_seconds_sum{query=\"q\"} 500.075\n"))
+        assertTrue(text.contains("query_duration_seconds_count{query=\"q\"} 3\n"))
+    }
+
+    /**
+     * @given metrics registry with a counter
+     * @when a gauge with the same name is registered
+     * @then IllegalArgumentException is thrown
+     */
+    @Test
+    fun testTypeMismatch() {
+        registry.counter("events_total", "Number of events")
+        assertThrows(IllegalArgumentException::class.java) {
+            registry.gauge("events_total", "Number of events") { 1 }
+        }
+    }
+}
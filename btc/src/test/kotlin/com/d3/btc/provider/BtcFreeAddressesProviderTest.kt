@@ -0,0 +1,114 @@
+/*
+ * Copyright D3 Ledger, Inc. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package com.d3.btc.provider
+
+import com.d3.btc.model.AddressInfo
+import com.d3.commons.sidechain.iroha.consumer.IrohaConsumer
+import com.d3.commons.sidechain.iroha.util.IrohaQueryHelper
+import com.d3.commons.util.irohaEscape
+import com.github.kittinunf.result.Result
+import com.nhaarman.mockito_kotlin.doReturn
+import com.nhaarman.mockito_kotlin.mock
+import com.nhaarman.mockito_kotlin.whenever
+import iroha.protocol.BlockOuterClass
+import iroha.protocol.Commands
+import iroha.protocol.TransactionOuterClass
+import org.junit.jupiter.api.Assertions.assertEquals
+import org.junit.jupiter.api.Test
+
+class BtcFreeAddressesProviderTest {
+
+    private val nodeId = "nodeId"
+
+    private val freeAddressesStorageAccount = "btc_free_addresses_storage@notary"
+
+    private val registrationAccountId = "btc_registration_service@notary"
+
+    private val addressInfo = AddressInfo.createFreeAddressInfo(listOf("pubKey"), nodeId, 0).toJson()
+
+    private val registrationQueryHelper = mock<IrohaQueryHelper> {
+        on { getQueryCreatorAccountId() } doReturn registrationAccountId
+    }
+
+    private val btcFreeAddressesProvider = BtcFreeAddressesProvider(
+        nodeId,
+        freeAddressesStorageAccount,
+        registrationQueryHelper,
+        mock<IrohaConsumer>()
+    )
+
+    /**
+     * @given provider that has counted 2 free addresses
+     * @when blocks that were committed before the count are handled after it
+     * @then these blocks don't change the count
+     */
+    @Test
+    fun testBlocksBeforeCount() {
+        mockFreeAddresses(listOf("address1", "address2"))
+        assertEquals(2, btcFreeAddressesProvider.countFreeAddresses().get())
+
+        btcFreeAddressesProvider.onBlock(createBlock(createAddressCommand("address2")))
+        btcFreeAddressesProvider.onBlock(createBlock(takeAddressCommand("address3")))
+        assertEquals(2, btcFreeAddressesProvider.countFreeAddresses().get())
+    }
+
+    /**
+     * @given provider that has counted 2 free addresses
+     * @when blocks that were committed after the count are handled
+     * @then created and taken addresses are counted once
+     */
+    @Test
+    fun testBlocksAfterCount() {
+        mockFreeAddresses(listOf("address1", "address2"))
+        assertEquals(2, btcFreeAddressesProvider.countFreeAddresses().get())
+
+        btcFreeAddressesProvider.onBlock(createBlock(createAddressCommand("address3")))
+        assertEquals(3, btcFreeAddressesProvider.countFreeAddresses().get())
+        btcFreeAddressesProvider.onBlock(createBlock(takeAddressCommand("address1")))
+        btcFreeAddressesProvider.onFreeAddressTaken("address1")
+        btcFreeAddressesProvider.onBlock(createBlock(takeAddressCommand("address3")))
+        assertEquals(1, btcFreeAddressesProvider.countFreeAddresses().get())
+    }
+
+    private fun mockFreeAddresses(freeAddresses: List<String>) {
+        whenever(registrationQueryHelper.getAccountDetails(freeAddressesStorageAccount, registrationAccountId))
+            .thenReturn(Result.of { freeAddresses.map { address -> address to addressInfo }.toMap() })
+    }
+
+    private fun createAddressCommand(address: String) = Commands.Command.newBuilder()
+        .setSetAccountDetail(
+            Commands.SetAccountDetail.newBuilder()
+                .setAccountId(freeAddressesStorageAccount)
+                .setKey(address)
+                .setValue(addressInfo.irohaEscape())
+        ).build()
+
+    private fun takeAddressCommand(address: String) = Commands.Command.newBuilder()
+        .setCompareAndSetAccountDetail(
+            Commands.CompareAndSetAccountDetail.newBuilder()
+                .setAccountId(freeAddressesStorageAccount)
+                .setKey(address)
+                .setOldValue(addressInfo.irohaEscape())
+                .setValue("")
+        ).build()
+
+    private fun createBlock(command: Commands.Command): BlockOuterClass.Block {
+        val transaction = TransactionOuterClass.Transaction.newBuilder()
+            .setPayload(
+                TransactionOuterClass.Transaction.Payload.newBuilder()
+                    .setReducedPayload(
+                        TransactionOuterClass.Transaction.Payload.ReducedPayload.newBuilder()
+                            .setCreatorAccountId(registrationAccountId)
+                            .addCommands(command)
+                    )
+            ).build()
+        return BlockOuterClass.Block.newBuilder()
+            .setBlockV1(
+                BlockOuterClass.Block_v1.newBuilder()
+                    .setPayload(BlockOuterClass.Block_v1.Payload.newBuilder().addTransactions(transaction))
+            ).build()
+    }
+}
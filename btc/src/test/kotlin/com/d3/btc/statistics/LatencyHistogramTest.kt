@@ -0,0 +1,48 @@
+/*
+ * Copyright D3 Ledger, Inc. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package com.d3.btc.statistics
+
+import org.junit.jupiter.api.Assertions.assertEquals
+import org.junit.jupiter.api.Test
+
+class LatencyHistogramTest {
+
+    /**
+     * @given latency histogram with bounds 10, 100 and 1000 ms
+     * @when latencies are observed
+     * @then every latency falls into the first bucket with a bound that is not less than the latency,
+     * latencies that exceed all the bounds fall into the overflow bucket
+     */
+    @Test
+    fun testObserve() {
+        val histogram = LatencyHistogram(longArrayOf(10, 100, 1000))
+        listOf(0L, 10L, 11L, 1000L, 5000L).forEach { latency -> histogram.observe(latency) }
+        val snapshot = histogram.snapshot()
+        assertEquals(listOf(2L, 1L, 1L, 1L), snapshot.bucketCounts)
+        assertEquals(5L, snapshot.count)
+        assertEquals(6021L, snapshot.sumMillis)
+        assertEquals(5000L, snapshot.maxMillis)
+    }
+
+    /**
+     * @given latency histogram with 100 observations
+     * @when percentiles are estimated
+     * @then the upper bound of the bucket that holds a percentile is returned.
+     * The highest observed latency is returned for the overflow bucket
+     */
+    @Test
+    fun testPercentile() {
+        val histogram = LatencyHistogram(longArrayOf(10, 100, 1000))
+        repeat(50) { histogram.observe(5) }
+        repeat(45) { histogram.observe(50) }
+        repeat(5) { histogram.observe(2000) }
+        val snapshot = histogram.snapshot()
+        assertEquals(10L, snapshot.percentileMillis(50.0))
+        assertEquals(100L, snapshot.percentileMillis(95.0))
+        assertEquals(2000L, snapshot.percentileMillis(99.0))
+        assertEquals(0L, LatencyHistogram().snapshot().percentileMillis(99.0))
+    }
+}
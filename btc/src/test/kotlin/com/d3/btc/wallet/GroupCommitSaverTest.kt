@@ -0,0 +1,83 @@
+/*
+ * Copyright D3 Ledger, Inc. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package com.d3.btc.wallet
+
+import org.junit.jupiter.api.Assertions.assertEquals
+import org.junit.jupiter.api.Assertions.assertThrows
+import org.junit.jupiter.api.Assertions.assertTrue
+import org.junit.jupiter.api.Test
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.Executors
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicInteger
+
+class GroupCommitSaverTest {
+
+    /**
+     * @given group commit saver with a slow persisting function
+     * @when save is called by many threads while a save is in progress
+     * @then the waiting callers are served by one more save and every caller sees its change persisted
+     */
+    @Test
+    fun testConcurrentSaves() {
+        val state = AtomicInteger()
+        val persistedState = AtomicInteger()
+        val saves = AtomicInteger()
+        val firstSaveStarted = CountDownLatch(1)
+        val releaseFirstSave = CountDownLatch(1)
+        val saver = GroupCommitSaver {
+            val snapshot = state.get()
+            if (saves.incrementAndGet() == 1) {
+                firstSaveStarted.countDown()
+                releaseFirstSave.await()
+            }
+            persistedState.set(snapshot)
+        }
+        val executor = Executors.newFixedThreadPool(10)
+        try {
+            val failures = AtomicInteger()
+            val first = executor.submit { state.incrementAndGet(); saver.save() }
+            assertTrue(firstSaveStarted.await(5, TimeUnit.SECONDS))
+            val callers = (0 until 9).map {
+                executor.submit {
+                    val change = state.incrementAndGet()
+                    saver.save()
+                    if (persistedState.get() < change) {
+                        failures.incrementAndGet()
+                    }
+                }
+            }
+            // Give callers some time to queue up
+            Thread.sleep(500)
+            releaseFirstSave.countDown()
+            first.get(5, TimeUnit.SECONDS)
+            callers.forEach { it.get(5, TimeUnit.SECONDS) }
+            assertEquals(0, failures.get())
+            assertEquals(2, saves.get())
+            assertEquals(10, persistedState.get())
+        } finally {
+            executor.shutdownNow()
+        }
+    }
+
+    /**
+     * @given group commit saver with a persisting function that fails once
+     * @when save is called twice
+     * @then the first call fails and the second one persists the state
+     */
+    @Test
+    fun testFailedSave() {
+        val saves = AtomicInteger()
+        val saver = GroupCommitSaver {
+            if (saves.incrementAndGet() == 1) {
+                throw IllegalStateException("Disk is full")
+            }
+        }
+        assertThrows(IllegalStateException::class.java) { saver.save() }
+        saver.save()
+        assertEquals(2, saves.get())
+    }
+}
@@ -1,8 +1,12 @@
 package integration.btc
 
 import com.d3.btc.config.BitcoinConfig
+import com.d3.btc.deposit.statistics.DepositStatistics
 import com.d3.btc.dwbridge.monitoring.BitcoinMonitoringEndpoint
+import com.d3.btc.dwbridge.monitoring.dto.UTXOBtc
 import com.d3.btc.dwbridge.monitoring.dto.UTXOSetBtc
+import com.d3.btc.withdrawal.statistics.WithdrawalStatistics
+import com.d3.btc.withdrawal.statistics.WithdrawalTimeline
 import com.d3.commons.util.GsonInstance
 import integration.helper.BtcIntegrationHelperUtil
 import org.bitcoinj.core.BlockChain
@@ -39,7 +43,14 @@ class BitcoinMonitoringEndpointIntegrationTest {
     }
 
     init {
-        endpoint = BitcoinMonitoringEndpoint(webPort, transferWallet, bitcoinConfig)
+        endpoint = BitcoinMonitoringEndpoint(
+            webPort,
+            transferWallet,
+            bitcoinConfig,
+            WithdrawalStatistics.create(),
+            WithdrawalTimeline(),
+            DepositStatistics.create()
+        )
     }
 
     @AfterAll
@@ -114,6 +125,31 @@ class BitcoinMonitoringEndpointIntegrationTest {
             assertTrue(utxoSet.utxoList.all { utxo -> utxo.confirmations >= confirmations })
             // Check sum and sum from UTXO set
             assertEquals(sum, getUTXOSetSum(utxoSet))
+
+            // Check UTXO set page by page
+            val pagedUtxoList = ArrayList<UTXOBtc>()
+            var cursor: String? = null
+            do {
+                val cursorParam = if (cursor == null) "" else "&cursor=$cursor"
+                response =
+                    khttp.get("http://127.0.0.1:$webPort/monitoring/utxo?confirmations=$confirmations&limit=1$cursorParam")
+                assertEquals(200, response.statusCode)
+                val page = gson.fromJson(response.jsonObject.toString(), UTXOSetBtc::class.java)
+                assertTrue(page.utxoList.size <= 1)
+                pagedUtxoList.addAll(page.utxoList)
+                cursor = page.nextCursor
+            } while (cursor != null)
+            assertEquals(utxoSet.utxoList.toSet(), pagedUtxoList.toSet())
+
+            // Check streamed UTXO set filtered by address
+            response = khttp.get(
+                "http://127.0.0.1:$webPort/monitoring/utxo?confirmations=$confirmations&stream=true" +
+                        "&address=${addressC.toBase58()}"
+            )
+            assertEquals(200, response.statusCode)
+            utxoSet = gson.fromJson(response.jsonObject.toString(), UTXOSetBtc::class.java)
+            assertEquals(1, utxoSet.utxoList.size)
+            assertEquals(BigDecimal(3), getUTXOSetSum(utxoSet))
         } finally {
             peerGroup.stop()
         }
@@ -278,6 +278,56 @@ class BtcRegistrationIntegrationTest {
         assertEquals(addressesToRegister, takenAddresses.size)
     }
 
+    /**
+     * Note: Iroha must be deployed to pass the test.
+     * @given multiple clients registered in notary
+     * @when client names are passed to bulk registration endpoint twice
+     * @then every client is given a unique BTC address, second registration attempt fails for every client
+     */
+    @Test
+    fun testBulkRegistration() {
+        val addressesToRegister = 5
+        integrationHelper.preGenFreeBtcAddresses(
+            btcRegistrationEnvironment.btcAddressGenerationConfig.btcKeysWalletPath,
+            addressesToRegister,
+            btcRegistrationEnvironment.btcRegistrationConfig.nodeId
+        )
+        val userNames = (1..addressesToRegister).map { String.getRandomString(9) }
+        userNames.forEach { userName ->
+            val res = registrationServiceEnvironment.register(
+                userName,
+                Ed25519Sha3().generateKeypair().public.toHexString()
+            )
+            assertEquals(200, res.statusCode)
+        }
+        var res = btcRegistrationEnvironment.registerBulk(userNames)
+        assertEquals(200, res.statusCode)
+        val takenAddresses = HashSet<String>()
+        val registeredAddresses =
+            btcRegistrationEnvironment.btcRegisteredAddressesProvider.getRegisteredAddresses().get()
+        userNames.forEachIndexed { index, userName ->
+            val result = res.jsonArray.getJSONObject(index)
+            assertEquals("$userName@$D3_DOMAIN", result.getString("accountId"))
+            val registeredBtcAddress = result.getString("clientId")
+            assertFalse(takenAddresses.contains(registeredBtcAddress))
+            takenAddresses.add(registeredBtcAddress)
+            assertEquals(
+                "$userName@$D3_DOMAIN",
+                registeredAddresses.first { btcAddress -> btcAddress.address == registeredBtcAddress }.info.irohaClient
+            )
+        }
+
+        // Double registration
+        res = btcRegistrationEnvironment.registerBulk(userNames)
+        assertEquals(200, res.statusCode)
+        (0 until addressesToRegister).forEach { index ->
+            assertFalse(res.jsonArray.getJSONObject(index).has("clientId"))
+        }
+        val num =
+            khttp.get("http://127.0.0.1:${btcRegistrationEnvironment.btcRegistrationConfig.port}/free-addresses/number")
+        assertEquals("0", num.text)
+    }
+
     /**
      * Note: Iroha must be deployed to pass the test.
      * @given no generated btc addresses
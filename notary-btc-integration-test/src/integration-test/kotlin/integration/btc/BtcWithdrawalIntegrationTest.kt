@@ -6,10 +6,10 @@
 package integration.btc
 
 import com.d3.btc.config.BTC_ASSET
+import com.d3.btc.fee.getTxFee
 import com.d3.btc.helper.address.outPutToBase58Address
 import com.d3.btc.helper.currency.btcToSat
 import com.d3.btc.helper.currency.satToBtc
-import com.d3.btc.withdrawal.provider.TX_FEE_SAT
 import com.d3.commons.sidechain.iroha.FEE_DESCRIPTION
 import com.d3.commons.sidechain.iroha.util.ModelUtil
 import com.d3.commons.util.getRandomString
@@ -169,7 +169,11 @@ class BtcWithdrawalIntegrationTest {
             ) == changeAddress.toBase58()
         })
         assertEquals(
-            btcToSat(amountBtc) - TX_FEE_SAT.toLong() - btcToSat(amount),
+            btcToSat(amountBtc) - getTxFee(
+                environment.getLastCreatedTx().inputs.size,
+                environment.getLastCreatedTx().outputs.size,
+                environment.btcWithdrawalConfig.feeRate
+            ) - btcToSat(amount),
             environment.getLastCreatedTx().outputs.first { transactionOutput ->
                 outPutToBase58Address(
                     transactionOutput
@@ -16,13 +16,16 @@ import com.d3.btc.generation.init.BtcAddressGenerationInitialization
 import com.d3.btc.generation.provider.ADDRESS_GENERATION_NODE_ID_KEY
 import com.d3.btc.generation.provider.ADDRESS_GENERATION_TIME_KEY
 import com.d3.btc.generation.provider.BtcPublicKeyProvider
+import com.d3.btc.generation.provider.BtcSessionAggregator
 import com.d3.btc.generation.provider.BtcSessionProvider
 import com.d3.btc.generation.trigger.AddressGenerationTrigger
 import com.d3.btc.helper.address.createMsAddress
+import com.d3.btc.metrics.MetricsRegistry
 import com.d3.btc.model.BtcAddressType
 import com.d3.btc.provider.BtcChangeAddressProvider
 import com.d3.btc.provider.BtcFreeAddressesProvider
 import com.d3.btc.provider.network.BtcRegTestConfigProvider
+import com.d3.btc.wallet.groupCommitSaver
 import com.d3.chainadapter.client.RMQConfig
 import com.d3.chainadapter.client.ReliableIrohaChainListener
 import com.d3.commons.config.loadRawLocalConfigs
@@ -129,10 +132,14 @@ class BtcAddressGenerationTestEnvironment(
         RobustIrohaQueryHelperImpl(irohaQueryHelper, btcGenerationConfig.irohaQueryTimeoutMls)
     }
 
-    private fun btcPublicKeyProvider(): BtcPublicKeyProvider {
-        return BtcPublicKeyProvider(
+    private val keysWalletSaver = keysWallet.groupCommitSaver(btcGenerationConfig.btcKeysWalletPath, MetricsRegistry())
+
+    // The provider keeps a pool of keys, so it's shared among handlers
+    private val btcPublicKeyProvider by lazy {
+        BtcPublicKeyProvider(
             registrationQueryHelper,
             keysWallet,
+            keysWalletSaver,
             btcGenerationConfig,
             multiSigConsumer,
             registrationConsumer,
@@ -169,17 +176,22 @@ class BtcAddressGenerationTestEnvironment(
     private val addressGenerationTrigger = AddressGenerationTrigger(
         btcKeyGenSessionProvider,
         btcFreeAddressesProvider,
-        btcChangeAddressesProvider
+        btcChangeAddressesProvider,
+        btcGenerationConfig
     )
 
     private val btcMstAddressGeneratedHandler =
         BtcMultiSigAddressGeneratedHandler(btcFreeAddressesProvider, btcGenerationConfig)
     private val newKeyHandler =
-        NewKeyHandler(btcGenerationConfig, keysWallet, registrationQueryHelper, btcPublicKeyProvider())
+        NewKeyHandler(
+            btcGenerationConfig,
+            BtcSessionAggregator(btcGenerationConfig, registrationQueryHelper),
+            btcPublicKeyProvider
+        )
     private val btcAddressRegisteredHandler =
         BtcAddressRegisteredHandler(addressGenerationTrigger, btcGenerationConfig)
     private val btcAddressGenerationTriggerHandler =
-        BtcAddressGenerationTriggerHandler(btcGenerationConfig, keysWallet, btcPublicKeyProvider())
+        BtcAddressGenerationTriggerHandler(btcGenerationConfig, btcPublicKeyProvider)
 
     private val notaryClientsProvider = NotaryClientsProvider(
         registrationQueryHelper,
@@ -199,7 +211,8 @@ class BtcAddressGenerationTestEnvironment(
                 integrationHelper.accountHelper.expansionTriggerAccount.accountId,
                 ChangelogInterface.superuserAccountId,
                 irohaApi
-            ), mstRegistrationCredential
+            ), mstRegistrationCredential,
+            btcPublicKeyProvider
         ),
         listOf(
             newKeyHandler,
@@ -207,7 +220,8 @@ class BtcAddressGenerationTestEnvironment(
             btcAddressRegisteredHandler,
             btcMstAddressGeneratedHandler
         ),
-        notaryClientsProvider
+        notaryClientsProvider,
+        btcFreeAddressesProvider
     )
 
     /**
@@ -272,6 +286,7 @@ class BtcAddressGenerationTestEnvironment(
         executor.shutdownNow()
         irohaApi.close()
         irohaListener.close()
+        addressGenerationTrigger.close()
     }
 
     companion object : KLogging()
@@ -12,7 +12,10 @@ import com.d3.btc.deposit.expansion.DepositServiceExpansion
 import com.d3.btc.deposit.handler.NewBtcChangeAddressDepositHandler
 import com.d3.btc.deposit.init.BtcNotaryInitialization
 import com.d3.btc.deposit.service.BtcWalletListenerRestartService
+import com.d3.btc.deposit.statistics.DepositStatistics
 import com.d3.btc.handler.NewBtcClientRegistrationHandler
+import com.d3.btc.listener.IrohaBlockBus
+import com.d3.btc.metrics.MetricsRegistry
 import com.d3.btc.peer.SharedPeerGroup
 import com.d3.btc.provider.BtcChangeAddressProvider
 import com.d3.btc.provider.BtcRegisteredAddressesProvider
@@ -93,7 +96,9 @@ class BtcNotaryTestEnvironment(
 
     private val btcNetworkConfigProvider = BtcRegTestConfigProvider()
 
-    private val transferWallet by lazy { loadAutoSaveWallet(notaryConfig.btcTransferWalletPath) }
+    private val metricsRegistry = MetricsRegistry()
+
+    private val transferWallet by lazy { loadAutoSaveWallet(notaryConfig.btcTransferWalletPath, metricsRegistry) }
 
     private val rmqConfig =
         loadRawLocalConfigs("rmq", RMQConfig::class.java, "rmq.properties")
@@ -104,7 +109,7 @@ class BtcNotaryTestEnvironment(
             BTC_DEPOSIT_SERVICE_NAME,
             "rmq-consumer"
         ),
-        autoAck = true
+        autoAck = false
     )
 
     val btcAddressStorage by lazy {
@@ -168,13 +173,16 @@ class BtcNotaryTestEnvironment(
         btcEventsObservable
     )
 
+    private val depositStatistics = DepositStatistics.create()
+
     private val btcWalletListenerRestartService by lazy {
         BtcWalletListenerRestartService(
             btcAddressStorage,
             bitcoinConfig,
             confidenceExecutorService,
             peerGroup,
-            btcEventsSource
+            btcEventsSource,
+            depositStatistics
         )
     }
 
@@ -197,8 +205,8 @@ class BtcNotaryTestEnvironment(
                     irohaAPI
                 ), notaryCredential
             ),
-            depositReliableIrohaChainListener,
-            btcAddressStorage, depositHandlers
+            IrohaBlockBus(depositReliableIrohaChainListener, metricsRegistry),
+            btcAddressStorage, depositHandlers, depositStatistics, metricsRegistry
         )
     }
 
@@ -9,7 +9,9 @@ import com.d3.btc.provider.BtcFreeAddressesProvider
 import com.d3.btc.provider.BtcRegisteredAddressesProvider
 import com.d3.btc.provider.account.IrohaBtcAccountRegistrator
 import com.d3.btc.provider.address.BtcAddressesProvider
+import com.d3.btc.registration.allocator.BtcFreeAddressAllocator
 import com.d3.btc.registration.init.BtcRegistrationServiceInitialization
+import com.d3.btc.registration.strategy.BtcBulkRegistrationStrategy
 import com.d3.btc.registration.strategy.BtcRegistrationStrategyImpl
 import com.d3.commons.model.IrohaCredential
 import com.d3.commons.registration.NotaryRegistrationConfig
@@ -56,11 +58,27 @@ class BtcRegistrationTestEnvironment(
             btcRegistrationConfig.irohaQueryTimeoutMls
         )
 
+    // Tests create free addresses directly in Iroha and expect them to be counted right away
     val btcFreeAddressesProvider = BtcFreeAddressesProvider(
         btcRegistrationConfig.nodeId,
         btcRegistrationConfig.freeAddressesStorageAccount,
         registrationQueryHelper,
-        registrationConsumer
+        registrationConsumer,
+        countCheckPeriodMls = 0
+    )
+
+    private val btcFreeAddressAllocator = BtcFreeAddressAllocator(
+        btcFreeAddressesProvider,
+        btcRegistrationConfig.replicaIndex,
+        btcRegistrationConfig.replicas
+    )
+
+    private val btcBulkRegistrationStrategy = BtcBulkRegistrationStrategy(
+        btcRegisteredAddressesProvider(),
+        btcFreeAddressesProvider,
+        btcFreeAddressAllocator,
+        irohaBtcAccountCreator(),
+        btcRegistrationConfig
     )
 
     val btcRegistrationServiceInitialization = BtcRegistrationServiceInitialization(
@@ -68,8 +86,10 @@ class BtcRegistrationTestEnvironment(
         BtcRegistrationStrategyImpl(
             btcRegisteredAddressesProvider(),
             btcFreeAddressesProvider,
+            btcFreeAddressAllocator,
             irohaBtcAccountCreator()
-        )
+        ),
+        btcBulkRegistrationStrategy
     )
 
     private fun btcRegisteredAddressesProvider() = BtcRegisteredAddressesProvider(
@@ -99,7 +119,26 @@ class BtcRegistrationTestEnvironment(
         )
     }
 
+    /**
+     * Registers clients using bulk registration endpoint
+     * @param names - names of clients
+     * @return response with registration results
+     */
+    fun registerBulk(names: List<String>): Response {
+        return post(
+            "http://127.0.0.1:${btcRegistrationConfig.bulkRegistrationPort}/users/bulk",
+            json = names.map { name ->
+                mapOf(
+                    "name" to name,
+                    "pubkey" to ModelUtil.generateKeypair().public.toHexString(),
+                    "domain" to D3_DOMAIN
+                )
+            }
+        )
+    }
+
     override fun close() {
+        btcBulkRegistrationStrategy.close()
         integrationHelper.close()
     }
 }
@@ -7,8 +7,11 @@ package integration.btc.environment
 
 import com.d3.btc.config.BitcoinConfig
 import com.d3.btc.dwbridge.config.BtcDWBridgeConfig
+import com.d3.btc.fee.BtcFixedFeeRateProvider
 import com.d3.btc.handler.NewBtcClientRegistrationHandler
 import com.d3.btc.helper.address.outPutToBase58Address
+import com.d3.btc.listener.IrohaBlockBus
+import com.d3.btc.metrics.MetricsRegistry
 import com.d3.btc.provider.BtcChangeAddressProvider
 import com.d3.btc.provider.BtcRegisteredAddressesProvider
 import com.d3.btc.provider.network.BtcNetworkConfigProvider
@@ -21,14 +24,19 @@ import com.d3.btc.withdrawal.config.BtcWithdrawalConfig
 import com.d3.btc.withdrawal.expansion.WithdrawalServiceExpansion
 import com.d3.btc.withdrawal.handler.*
 import com.d3.btc.withdrawal.init.BtcWithdrawalInitialization
+import com.d3.btc.withdrawal.pipeline.WithdrawalPipeline
+import com.d3.btc.withdrawal.pipeline.WithdrawalStageStorage
 import com.d3.btc.withdrawal.provider.BroadcastsProvider
 import com.d3.btc.withdrawal.provider.UTXOProvider
 import com.d3.btc.withdrawal.provider.UsedUTXOProvider
 import com.d3.btc.withdrawal.provider.WithdrawalConsensusProvider
+import com.d3.btc.withdrawal.provider.WithdrawalConsensusWaiter
 import com.d3.btc.withdrawal.service.BtcRollbackService
 import com.d3.btc.withdrawal.service.BtcWithdrawalFinalizeService
+import com.d3.btc.withdrawal.service.UTXOConsolidationService
 import com.d3.btc.withdrawal.service.WithdrawalTransferService
 import com.d3.btc.withdrawal.statistics.WithdrawalStatistics
+import com.d3.btc.withdrawal.statistics.WithdrawalTimeline
 import com.d3.btc.withdrawal.transaction.*
 import com.d3.chainadapter.client.RMQConfig
 import com.d3.chainadapter.client.ReliableIrohaChainListener
@@ -130,8 +138,10 @@ class BtcWithdrawalTestEnvironment(
         }
     }
 
+    private val metricsRegistry = MetricsRegistry()
+
     val transferWallet by lazy {
-        loadAutoSaveWallet(btcWithdrawalConfig.btcTransfersWalletPath)
+        loadAutoSaveWallet(btcWithdrawalConfig.btcTransfersWalletPath, metricsRegistry)
     }
 
     private val irohaApi by lazy {
@@ -259,12 +269,18 @@ class BtcWithdrawalTestEnvironment(
             usedUTXOProvider
         )
 
+    private val withdrawalStatistics = WithdrawalStatistics.create()
+
+    private val withdrawalTimeline = WithdrawalTimeline()
+
     private val transactionsStorage =
         TransactionsStorage(
             BtcRegTestConfigProvider(),
             withdrawalQueryHelper,
             withdrawalIrohaConsumer,
-            btcWithdrawalConfig.txStorageAccount
+            btcWithdrawalConfig.txStorageAccount,
+            withdrawalStatistics,
+            withdrawalTimeline
         )
     private val transactionCreator =
         TransactionCreator(
@@ -288,13 +304,13 @@ class BtcWithdrawalTestEnvironment(
             transactionSigner
         )
 
-    private val withdrawalStatistics = WithdrawalStatistics.create()
-
     private val reliableWithdrawalConsumer =
         ReliableIrohaConsumerImpl(reverseChainAdapterClientConfig, withdrawalCredential, irohaApi, fireAndForget = true)
 
     private val btcRollbackService =
         BtcRollbackService(reliableWithdrawalConsumer)
+    private val withdrawalConsensusWaiter = WithdrawalConsensusWaiter(btcConsensusIrohaConsumer)
+
     private val withdrawalConsensusProvider = WithdrawalConsensusProvider(
         consensusIrohaConsumer = btcConsensusIrohaConsumer,
         withdrawalIrohaConsumer = reliableWithdrawalConsumer,
@@ -302,11 +318,23 @@ class BtcWithdrawalTestEnvironment(
         bitcoinUTXOProvider = utxoProvider,
         usedUTXOProvider = usedUTXOProvider,
         bitcoinConfig = bitcoinConfig,
-        btcNetworkConfigProvider = btcNetworkConfigProvider
+        btcNetworkConfigProvider = btcNetworkConfigProvider,
+        btcFeeRateProvider = BtcFixedFeeRateProvider(btcWithdrawalConfig.feeRate),
+        withdrawalConsensusWaiter = withdrawalConsensusWaiter,
+        withdrawalStatistics = withdrawalStatistics,
+        withdrawalTimeline = withdrawalTimeline
+    )
+
+    private val utxoConsolidationService = UTXOConsolidationService(
+        btcWithdrawalConfig,
+        bitcoinConfig,
+        utxoProvider,
+        withdrawalConsensusProvider,
+        BtcFixedFeeRateProvider(btcWithdrawalConfig.feeRate)
     )
 
     private val rollbackHandler =
-        RollbackHandler(withdrawalQueryHelper, usedUTXOProvider)
+        RollbackHandler(withdrawalQueryHelper, usedUTXOProvider, withdrawalTimeline)
 
     private val newChangeAddressHandler
             by lazy {
@@ -343,6 +371,9 @@ class BtcWithdrawalTestEnvironment(
         }
     }
 
+    private val transactionBroadcaster =
+        TransactionBroadcaster(btcWithdrawalConfig, peerGroup, withdrawalStatistics, transferWallet)
+
     val newSignatureEventHandler =
         NewSignatureEventHandler(
             transferWallet,
@@ -351,11 +382,13 @@ class BtcWithdrawalTestEnvironment(
             signCollector,
             transactionsStorage,
             btcRollbackService,
-            peerGroup,
-            broadcastsProvider
+            transactionBroadcaster,
+            broadcastsProvider,
+            withdrawalTimeline,
+            metricsRegistry
         )
 
-    private val broadcastTransactionHandler = BroadcastTransactionHandler(btcWithdrawalConfig, btcWithdrawalFinalizer)
+    private val broadcastTransactionHandler = BroadcastTransactionHandler(btcWithdrawalConfig, btcWithdrawalFinalizer, withdrawalTimeline)
 
     private val newConsensusDataHandler =
         ConsensusDataCreatedHandler(
@@ -369,7 +402,8 @@ class BtcWithdrawalTestEnvironment(
             transactionsStorage,
             btcWithdrawalConfig,
             btcRollbackService,
-            broadcastsProvider
+            broadcastsProvider,
+            withdrawalStatistics
         )
 
     private val withdrawalReliableIrohaChainListener = ReliableIrohaChainListener(
@@ -412,7 +446,17 @@ class BtcWithdrawalTestEnvironment(
                 ),
                 withdrawalCredential
             ),
-            withdrawalReliableIrohaChainListener
+            IrohaBlockBus(withdrawalReliableIrohaChainListener, metricsRegistry),
+            WithdrawalPipeline(
+                btcWithdrawalConfig,
+                WithdrawalStageStorage(withdrawalStatistics),
+                newTransferHandler,
+                utxoConsolidationService,
+                withdrawalTimeline,
+                metricsRegistry
+            ),
+            withdrawalConsensusWaiter,
+            metricsRegistry
         )
     }
 
@@ -460,6 +504,8 @@ class BtcWithdrawalTestEnvironment(
         executor.shutdownNow()
         File(bitcoinConfig.blockStoragePath).deleteRecursively()
         btcWithdrawalInitialization.close()
+        transactionBroadcaster.close()
+        withdrawalConsensusProvider.close()
         if (reverseChainAdapterDelegate.isInitialized()) {
             reverseChainAdapter.close()
         }
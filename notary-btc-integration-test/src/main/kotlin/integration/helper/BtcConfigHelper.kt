@@ -59,6 +59,10 @@ class BtcConfigHelper(
             override val irohaBlockQueue = testName + "_" + String.getRandomString(5)
             override val expansionTriggerAccount = accountHelper.expansionTriggerAccount.accountId
             override val threshold = initAddresses
+            override val sessionsPerTransaction = btcAddressGenConfig.sessionsPerTransaction
+            override val sessionCreationConcurrency = btcAddressGenConfig.sessionCreationConcurrency
+            override val keyPoolSize = btcAddressGenConfig.keyPoolSize
+            override val sessionTtlMls = btcAddressGenConfig.sessionTtlMls
             override val nodeId = NODE_ID
             override val changeAddressesStorageAccount =
                 accountHelper.changeAddressesStorageAccount.accountId
@@ -88,6 +92,15 @@ class BtcConfigHelper(
             ).get()
         return object : BtcWithdrawalConfig {
             override val withdrawalBillingAccount = btcWithdrawalConfig.withdrawalBillingAccount
+            override val feeRate = btcWithdrawalConfig.feeRate
+            override val feeRateFilePath: String? = null
+            override val withdrawalBatchSize = btcWithdrawalConfig.withdrawalBatchSize
+            override val consolidationUtxoThreshold = btcWithdrawalConfig.consolidationUtxoThreshold
+            override val consolidationMaxFeeRate = btcWithdrawalConfig.consolidationMaxFeeRate
+            override val withdrawalPipelineLanes = btcWithdrawalConfig.withdrawalPipelineLanes
+            override val irohaBlockLanes = btcWithdrawalConfig.irohaBlockLanes
+            override val broadcastTimeoutSeconds = btcWithdrawalConfig.broadcastTimeoutSeconds
+            override val broadcastMaxAttempts = btcWithdrawalConfig.broadcastMaxAttempts
             override val broadcastsCredential = accountHelper.createCredentialRawConfig(broadcastCredential)
             override val utxoStorageAccount = utxoStorageAccountCredential.accountId
             override val txStorageAccount = txStorageAccountCredential.accountId
@@ -134,6 +147,7 @@ class BtcConfigHelper(
     ): BtcDepositConfig {
         return object : BtcDepositConfig {
             override val irohaBlockQueue = testName + "_" + String.getRandomString(5)
+            override val irohaBlockLanes = 2
             override val mstRegistrationAccount = accountHelper.mstRegistrationAccount.accountId
             override val changeAddressesStorageAccount =
                 accountHelper.changeAddressesStorageAccount.accountId
@@ -197,6 +211,11 @@ class BtcConfigHelper(
             override val registrationCredential =
                 accountHelper.createCredentialRawConfig(accountHelper.registrationAccount)
             override val iroha = createIrohaConfig()
+            override val replicas = 1
+            override val replicaIndex = 0
+            override val bulkRegistrationPort = portCounter.incrementAndGet()
+            override val bulkRegistrationBatchSize = 10
+            override val bulkRegistrationConcurrency = 4
         }
     }
 }
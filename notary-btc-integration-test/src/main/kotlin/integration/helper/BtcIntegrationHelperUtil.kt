@@ -17,6 +17,7 @@ import com.d3.btc.provider.BtcFreeAddressesProvider
 import com.d3.btc.provider.BtcRegisteredAddressesProvider
 import com.d3.btc.provider.account.IrohaBtcAccountRegistrator
 import com.d3.btc.provider.network.BtcNetworkConfigProvider
+import com.d3.btc.registration.allocator.BtcFreeAddressAllocator
 import com.d3.btc.registration.strategy.BtcRegistrationStrategyImpl
 import com.d3.btc.wallet.WalletInitializer
 import com.d3.btc.withdrawal.config.BtcWithdrawalConfig
@@ -116,6 +117,7 @@ class BtcIntegrationHelperUtil(peers: Int = 1) : IrohaIntegrationHelperUtil(peer
         BtcRegistrationStrategyImpl(
             btcRegisteredAddressesProvider,
             btcFreeAddress,
+            BtcFreeAddressAllocator(btcFreeAddress, 0, 1),
             irohaBtcAccountCreator
         )
     }